@@ -27,6 +27,8 @@ import com.alibaba.rocketmq.broker.mqtrace.SendMessageHook;
 import com.alibaba.rocketmq.broker.offset.ConsumerOffsetManager;
 import com.alibaba.rocketmq.broker.out.BrokerOuterAPI;
 import com.alibaba.rocketmq.broker.processor.*;
+import com.alibaba.rocketmq.broker.qos.PullQosScheduler;
+import com.alibaba.rocketmq.broker.slave.SlaveReadRouter;
 import com.alibaba.rocketmq.broker.slave.SlaveSynchronize;
 import com.alibaba.rocketmq.broker.subscription.SubscriptionGroupManager;
 import com.alibaba.rocketmq.broker.topic.TopicConfigManager;
@@ -85,6 +87,7 @@ public class BrokerController {
     private final ScheduledExecutorService scheduledExecutorService = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryImpl(
         "BrokerControllerScheduledThread"));
     private final SlaveSynchronize slaveSynchronize;
+    private final SlaveReadRouter slaveReadRouter;
     private MessageStore messageStore;
     private RemotingServer remotingServer;
     private RemotingServer fastRemotingServer;
@@ -92,6 +95,9 @@ public class BrokerController {
     private TopicConfigManager topicConfigManager;
     private ExecutorService sendMessageExecutor;
     private ExecutorService pullMessageExecutor;
+    // 按消费组加权公平调度拉消息请求，数据在内存中的走hot，已经落盘的走cold
+    private PullQosScheduler hotPullScheduler;
+    private PullQosScheduler coldPullScheduler;
     private ExecutorService adminBrokerExecutor;
     private ExecutorService clientManageExecutor;
     private boolean updateMasterHAServerAddrPeriodically = false;
@@ -137,6 +143,7 @@ public class BrokerController {
         }
 
         this.slaveSynchronize = new SlaveSynchronize(this);
+        this.slaveReadRouter = new SlaveReadRouter(this);
 
         this.sendThreadPoolQueue = new LinkedBlockingQueue<Runnable>(this.brokerConfig.getSendThreadPoolQueueCapacity());
 
@@ -190,6 +197,26 @@ public class BrokerController {
                 this.pullThreadPoolQueue,//
                 new ThreadFactoryImpl("PullMessageThread_"));
 
+            if (this.brokerConfig.isPullQosEnable()) {
+                this.hotPullScheduler = new PullQosScheduler("HotPullMessageThread",//
+                    this.brokerConfig.getPullMessageThreadPoolNums(),//
+                    this.brokerConfig.getPullThreadPoolQueueCapacity(),//
+                    this.brokerConfig.getPullQosGroupQueueCapacity(),//
+                    this.brokerConfig.getPullQosGroupInflightLimit(),//
+                    this.brokerStatsManager);
+                this.hotPullScheduler.start();
+            }
+
+            if (this.brokerConfig.isColdPullRouteEnable()) {
+                this.coldPullScheduler = new PullQosScheduler("ColdPullMessageThread",//
+                    this.brokerConfig.getColdPullMessageThreadPoolNums(),//
+                    this.brokerConfig.getColdPullThreadPoolQueueCapacity(),//
+                    this.brokerConfig.getColdPullGroupQueueCapacity(),//
+                    this.brokerConfig.getColdPullGroupInflightLimit(),//
+                    this.brokerStatsManager);
+                this.coldPullScheduler.start();
+            }
+
             this.adminBrokerExecutor =
                     Executors.newFixedThreadPool(this.brokerConfig.getAdminBrokerThreadPoolNums(), new ThreadFactoryImpl(
                         "AdminBrokerThread_"));
@@ -281,6 +308,21 @@ public class BrokerController {
                         }
                     }
                 }, 1000 * 10, 1000 * 60, TimeUnit.MILLISECONDS);
+
+                if (this.brokerConfig.isAdaptiveSlaveReadEnable()) {
+                    this.scheduledExecutorService.scheduleAtFixedRate(new Runnable() {
+
+                        @Override
+                        public void run() {
+                            try {
+                                BrokerController.this.slaveSynchronize.reportSlaveState();
+                            }
+                            catch (Exception e) {
+                                log.error("ScheduledTask reportSlaveState exception", e);
+                            }
+                        }
+                    }, 1000 * 10, this.brokerConfig.getSlaveStateReportInterval(), TimeUnit.MILLISECONDS);
+                }
             }
             else {
                 this.scheduledExecutorService.scheduleAtFixedRate(new Runnable() {
@@ -308,10 +350,12 @@ public class BrokerController {
 
         this.remotingServer.registerProcessor(RequestCode.SEND_MESSAGE, sendProcessor, this.sendMessageExecutor);
         this.remotingServer.registerProcessor(RequestCode.SEND_MESSAGE_V2, sendProcessor,this.sendMessageExecutor);
+        this.remotingServer.registerProcessor(RequestCode.SEND_BATCH_MESSAGE, sendProcessor,this.sendMessageExecutor);
         this.remotingServer.registerProcessor(RequestCode.CONSUMER_SEND_MSG_BACK, sendProcessor,this.sendMessageExecutor);
 
         this.fastRemotingServer.registerProcessor(RequestCode.SEND_MESSAGE, sendProcessor,this.sendMessageExecutor);
         this.fastRemotingServer.registerProcessor(RequestCode.SEND_MESSAGE_V2, sendProcessor,this.sendMessageExecutor);
+        this.fastRemotingServer.registerProcessor(RequestCode.SEND_BATCH_MESSAGE, sendProcessor,this.sendMessageExecutor);
         this.fastRemotingServer.registerProcessor(RequestCode.CONSUMER_SEND_MSG_BACK, sendProcessor,this.sendMessageExecutor);
 
         this.remotingServer.registerProcessor(RequestCode.PULL_MESSAGE, this.pullMessageProcessor, this.pullMessageExecutor);
@@ -320,9 +364,11 @@ public class BrokerController {
         NettyRequestProcessor queryProcessor = new QueryMessageProcessor(this);
         this.remotingServer.registerProcessor(RequestCode.QUERY_MESSAGE, queryProcessor, this.pullMessageExecutor);
         this.remotingServer.registerProcessor(RequestCode.VIEW_MESSAGE_BY_ID, queryProcessor, this.pullMessageExecutor);
+        this.remotingServer.registerProcessor(RequestCode.QUERY_MESSAGE_BY_PROPERTY, queryProcessor, this.pullMessageExecutor);
 
         this.fastRemotingServer.registerProcessor(RequestCode.QUERY_MESSAGE, queryProcessor, this.pullMessageExecutor);
         this.fastRemotingServer.registerProcessor(RequestCode.VIEW_MESSAGE_BY_ID, queryProcessor, this.pullMessageExecutor);
+        this.fastRemotingServer.registerProcessor(RequestCode.QUERY_MESSAGE_BY_PROPERTY, queryProcessor, this.pullMessageExecutor);
 
         ClientManageProcessor clientProcessor = new ClientManageProcessor(this);
         clientProcessor.registerConsumeMessageHook(this.consumeMessageHookList);
@@ -336,9 +382,11 @@ public class BrokerController {
         this.fastRemotingServer.registerProcessor(RequestCode.GET_CONSUMER_LIST_BY_GROUP, clientProcessor, this.clientManageExecutor);
 
         this.remotingServer.registerProcessor(RequestCode.UPDATE_CONSUMER_OFFSET, clientProcessor, this.clientManageExecutor);
+        this.remotingServer.registerProcessor(RequestCode.UPDATE_CONSUMER_OFFSET_BATCH, clientProcessor, this.clientManageExecutor);
         this.remotingServer.registerProcessor(RequestCode.QUERY_CONSUMER_OFFSET, clientProcessor, this.clientManageExecutor);
 
         this.fastRemotingServer.registerProcessor(RequestCode.UPDATE_CONSUMER_OFFSET, clientProcessor, this.clientManageExecutor);
+        this.fastRemotingServer.registerProcessor(RequestCode.UPDATE_CONSUMER_OFFSET_BATCH, clientProcessor, this.clientManageExecutor);
         this.fastRemotingServer.registerProcessor(RequestCode.QUERY_CONSUMER_OFFSET, clientProcessor, this.clientManageExecutor);
 
         this.remotingServer.registerProcessor(RequestCode.END_TRANSACTION, new EndTransactionProcessor(this), this.sendMessageExecutor);
@@ -468,6 +516,14 @@ public class BrokerController {
             this.pullMessageExecutor.shutdown();
         }
 
+        if (this.hotPullScheduler != null) {
+            this.hotPullScheduler.shutdown();
+        }
+
+        if (this.coldPullScheduler != null) {
+            this.coldPullScheduler.shutdown();
+        }
+
         if (this.adminBrokerExecutor != null) {
             this.adminBrokerExecutor.shutdown();
         }
@@ -476,7 +532,7 @@ public class BrokerController {
             this.brokerOuterAPI.shutdown();
         }
 
-        this.consumerOffsetManager.persist();
+        this.consumerOffsetManager.shutdown();
 
         if (this.filterServerManager != null) {
             this.filterServerManager.shutdown();
@@ -704,6 +760,21 @@ public class BrokerController {
     }
 
 
+    public SlaveReadRouter getSlaveReadRouter() {
+        return slaveReadRouter;
+    }
+
+
+    public PullQosScheduler getHotPullScheduler() {
+        return hotPullScheduler;
+    }
+
+
+    public PullQosScheduler getColdPullScheduler() {
+        return coldPullScheduler;
+    }
+
+
     public BrokerStats getBrokerStats() {
         return brokerStats;
     }
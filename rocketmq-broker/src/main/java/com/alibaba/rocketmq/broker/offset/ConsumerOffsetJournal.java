@@ -0,0 +1,505 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.broker.offset;
+
+import com.alibaba.rocketmq.common.constant.LoggerName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+
+/**
+ * 消费进度的二进制存储，由快照文件和追加写的增量日志组成
+ * <p>
+ * 每轮持久化只把有变化的topic@group追加到日志，日志超过快照大小的2倍后合并：
+ * 重写快照并开始新一代日志。快照记录它已经包含的日志代数，启动时先读快照，
+ * 再重放更新一代的日志，日志尾部不完整的记录被截掉。
+ * <p>
+ * 日志格式：magic(4) generation(8) persistTimestamp(8) 之后每条记录为 length(4) crc(4) payload(length)，
+ * payload为 keyLength(2) key queueCount(4) [queueId(4) offset(8)]*，queueCount为-1表示删除。
+ * 快照格式：magic(4) generation(8) 之后是同样的payload，以keyLength为-1结束，最后是整个文件的crc(4)。
+ */
+public class ConsumerOffsetJournal {
+    private static final Logger log = LoggerFactory.getLogger(LoggerName.BrokerLoggerName);
+    private static final Charset CHARSET_UTF8 = Charset.forName("UTF-8");
+
+    private final static int SnapshotMagicCode = 0xCAFE0A01;
+    private final static int JournalMagicCode = 0xCAFE0A02;
+    private final static int FileHeaderLength = 4 + 8 + 8;
+    private final static int PersistTimestampPosition = 4 + 8;
+    private final static int RecordHeaderLength = 4 + 4;
+    private final static int RemovedQueueCount = -1;
+    // 日志不到该大小不合并
+    private final static long MinCompactSize = 1024 * 1024 * 4;
+
+    private final String snapshotPath;
+    private final String journalPath;
+
+    // 快照已经包含的日志代数
+    private long snapshotGeneration = -1;
+    private long snapshotSize = 0;
+    private long journalGeneration = 0;
+    private long journalSize = 0;
+    private RandomAccessFile journalFile;
+    private FileChannel journalChannel;
+
+
+    public ConsumerOffsetJournal(final String snapshotPath, final String journalPath) {
+        this.snapshotPath = snapshotPath;
+        this.journalPath = journalPath;
+    }
+
+
+    /**
+     * 二进制存储最后一次持久化的时间，用来和consumerOffset.json比较哪个更新
+     *
+     * @return 不存在时返回-1
+     */
+    public long readPersistTimestamp() {
+        File file = new File(this.journalPath);
+        if (file.length() >= FileHeaderLength) {
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new FileInputStream(file));
+                if (in.readInt() == JournalMagicCode) {
+                    in.readLong();
+                    return in.readLong();
+                }
+            }
+            catch (IOException e) {
+                log.warn("read consumer offset journal header exception, " + this.journalPath, e);
+            }
+            finally {
+                closeQuietly(in);
+            }
+        }
+
+        File snapshotFile = new File(this.snapshotPath);
+        return snapshotFile.exists() ? snapshotFile.lastModified() : -1;
+    }
+
+
+    /**
+     * 删除快照和日志，之后从空的存储开始
+     */
+    public void discard() {
+        this.shutdown();
+        new File(this.snapshotPath).delete();
+        new File(this.journalPath).delete();
+        this.snapshotGeneration = -1;
+        this.snapshotSize = 0;
+        log.warn("consumer offset snapshot and journal discarded, {}", this.journalPath);
+    }
+
+
+    /**
+     * 读取快照
+     *
+     * @return 快照不存在或损坏时返回false
+     */
+    public boolean loadSnapshot(final ConcurrentHashMap<String, ConcurrentHashMap<Integer, Long>> table) {
+        File file = new File(this.snapshotPath);
+        if (!file.exists()) {
+            return false;
+        }
+
+        DataInputStream in = null;
+        try {
+            CRC32 crc32 = new CRC32();
+            in = new DataInputStream(new CheckedInputStream(new BufferedInputStream(new FileInputStream(file),
+                1024 * 64), crc32));
+            if (in.readInt() != SnapshotMagicCode) {
+                log.error("consumer offset snapshot magic code mismatch, {}", this.snapshotPath);
+                return false;
+            }
+            long generation = in.readLong();
+
+            ConcurrentHashMap<String, ConcurrentHashMap<Integer, Long>> loaded =
+                    new ConcurrentHashMap<String, ConcurrentHashMap<Integer, Long>>(1024);
+            while (true) {
+                short keyLength = in.readShort();
+                if (keyLength < 0) {
+                    break;
+                }
+                byte[] key = new byte[keyLength];
+                in.readFully(key);
+                int queueCount = in.readInt();
+                ConcurrentHashMap<Integer, Long> map = new ConcurrentHashMap<Integer, Long>(Math.max(queueCount, 16));
+                for (int i = 0; i < queueCount; i++) {
+                    int queueId = in.readInt();
+                    map.put(queueId, in.readLong());
+                }
+                loaded.put(new String(key, CHARSET_UTF8), map);
+            }
+
+            int expected = (int) crc32.getValue();
+            if (in.readInt() != expected) {
+                log.error("consumer offset snapshot crc mismatch, {}", this.snapshotPath);
+                return false;
+            }
+
+            table.putAll(loaded);
+            this.snapshotGeneration = generation;
+            this.snapshotSize = file.length();
+            log.info("load consumer offset snapshot OK, {} entries, generation {}", loaded.size(), generation);
+            return true;
+        }
+        catch (IOException e) {
+            log.error("load consumer offset snapshot exception, " + this.snapshotPath, e);
+            return false;
+        }
+        finally {
+            closeQuietly(in);
+        }
+    }
+
+
+    /**
+     * 重放比快照新的日志，截掉尾部不完整的记录，并打开日志准备追加
+     *
+     * @return 重放的记录数
+     */
+    public int recover(final ConcurrentHashMap<String, ConcurrentHashMap<Integer, Long>> table) throws IOException {
+        File file = new File(this.journalPath);
+        long validLength = 0;
+        long generation = -1;
+        int records = 0;
+
+        if (file.exists() && file.length() >= FileHeaderLength) {
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1024 * 64));
+                if (in.readInt() == JournalMagicCode) {
+                    generation = in.readLong();
+                    in.readLong();
+                    validLength = FileHeaderLength;
+                }
+
+                if (generation > this.snapshotGeneration) {
+                    CRC32 crc32 = new CRC32();
+                    byte[] payload = new byte[1024];
+                    while (true) {
+                        int length = in.readInt();
+                        int crc = in.readInt();
+                        // 尾部的垃圾数据可能解析出很大的长度
+                        if (length <= 0 || length > file.length() - validLength - RecordHeaderLength) {
+                            break;
+                        }
+                        if (payload.length < length) {
+                            payload = new byte[length];
+                        }
+                        in.readFully(payload, 0, length);
+                        crc32.reset();
+                        crc32.update(payload, 0, length);
+                        if ((int) crc32.getValue() != crc) {
+                            break;
+                        }
+
+                        applyRecord(ByteBuffer.wrap(payload, 0, length), table);
+                        validLength += RecordHeaderLength + length;
+                        records++;
+                    }
+                }
+            }
+            catch (EOFException e) {
+                // 最后一条记录没写完整
+            }
+            finally {
+                closeQuietly(in);
+            }
+        }
+
+        if (generation > this.snapshotGeneration) {
+            this.openJournal(generation, validLength);
+            if (validLength < file.length()) {
+                log.warn("consumer offset journal truncated from {} to {}", file.length(), validLength);
+            }
+        }
+        else {
+            // 日志已经合并进快照或者不存在
+            this.resetJournal(this.snapshotGeneration + 1);
+        }
+
+        log.info("recover consumer offset journal OK, generation {}, {} records", this.journalGeneration, records);
+        return records;
+    }
+
+
+    /**
+     * 追加一轮的变化，value为null表示该topic@group已删除
+     */
+    public void append(final Map<String, ConcurrentHashMap<Integer, Long>> delta) throws IOException {
+        this.ensureOpen();
+        int total = 0;
+        byte[][] keys = new byte[delta.size()][];
+        int index = 0;
+        for (Entry<String, ConcurrentHashMap<Integer, Long>> entry : delta.entrySet()) {
+            keys[index] = entry.getKey().getBytes(CHARSET_UTF8);
+            total += RecordHeaderLength + payloadLength(keys[index], entry.getValue());
+            index++;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(total);
+        CRC32 crc32 = new CRC32();
+        index = 0;
+        for (Entry<String, ConcurrentHashMap<Integer, Long>> entry : delta.entrySet()) {
+            byte[] key = keys[index++];
+            int length = payloadLength(key, entry.getValue());
+            int recordPos = buffer.position();
+            buffer.position(recordPos + RecordHeaderLength);
+            writePayload(buffer, key, entry.getValue());
+
+            crc32.reset();
+            crc32.update(buffer.array(), recordPos + RecordHeaderLength, length);
+            buffer.putInt(recordPos, length);
+            buffer.putInt(recordPos + 4, (int) crc32.getValue());
+        }
+        buffer.flip();
+
+        try {
+            while (buffer.hasRemaining()) {
+                this.journalChannel.write(buffer);
+            }
+            this.journalChannel.force(false);
+            this.journalSize += total;
+        }
+        catch (IOException e) {
+            // 写了一半的记录后面不能再接新记录，否则重放时会在这里停下
+            this.journalChannel.truncate(this.journalSize);
+            this.journalChannel.position(this.journalSize);
+            throw e;
+        }
+    }
+
+
+    /**
+     * 在日志头记录本轮持久化的时间
+     */
+    public void markPersisted(final long timestamp) throws IOException {
+        this.ensureOpen();
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        buffer.putLong(timestamp);
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            this.journalChannel.write(buffer, PersistTimestampPosition + 8 - buffer.remaining());
+        }
+        this.journalChannel.force(false);
+    }
+
+
+    public boolean isCompactNeeded() {
+        return this.journalSize > Math.max(MinCompactSize, this.snapshotSize * 2);
+    }
+
+
+    /**
+     * 用当前的全量数据重写快照，然后开始新一代日志
+     */
+    public void compact(final ConcurrentHashMap<String, ConcurrentHashMap<Integer, Long>> table) throws IOException {
+        this.ensureOpen();
+        long beginTime = System.currentTimeMillis();
+        File tmpFile = new File(this.snapshotPath + ".tmp");
+        File parent = tmpFile.getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+
+        FileOutputStream fileOut = new FileOutputStream(tmpFile);
+        DataOutputStream out = null;
+        int entries = 0;
+        try {
+            CRC32 crc32 = new CRC32();
+            out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(fileOut, 1024 * 64), crc32));
+            out.writeInt(SnapshotMagicCode);
+            out.writeLong(this.journalGeneration);
+            for (Entry<String, ConcurrentHashMap<Integer, Long>> entry : table.entrySet()) {
+                byte[] key = entry.getKey().getBytes(CHARSET_UTF8);
+                Integer[] queueIds = entry.getValue().keySet().toArray(new Integer[0]);
+                Long[] values = new Long[queueIds.length];
+                int queueCount = 0;
+                for (Integer queueId : queueIds) {
+                    Long offset = entry.getValue().get(queueId);
+                    if (offset != null) {
+                        queueIds[queueCount] = queueId;
+                        values[queueCount++] = offset;
+                    }
+                }
+
+                out.writeShort(key.length);
+                out.write(key);
+                out.writeInt(queueCount);
+                for (int i = 0; i < queueCount; i++) {
+                    out.writeInt(queueIds[i]);
+                    out.writeLong(values[i]);
+                }
+                entries++;
+            }
+            out.writeShort(-1);
+            out.flush();
+            out.writeInt((int) crc32.getValue());
+            out.flush();
+            fileOut.getFD().sync();
+        }
+        finally {
+            closeQuietly(out == null ? fileOut : out);
+        }
+
+        File snapshotFile = new File(this.snapshotPath);
+        if (!tmpFile.renameTo(snapshotFile)) {
+            snapshotFile.delete();
+            if (!tmpFile.renameTo(snapshotFile)) {
+                throw new IOException("rename " + tmpFile + " to " + snapshotFile + " failed");
+            }
+        }
+
+        this.snapshotGeneration = this.journalGeneration;
+        this.snapshotSize = snapshotFile.length();
+        this.resetJournal(this.snapshotGeneration + 1);
+        log.info("compact consumer offset OK, {} entries, {} bytes, cost {} ms", entries, this.snapshotSize,
+            System.currentTimeMillis() - beginTime);
+    }
+
+
+    public void shutdown() {
+        closeQuietly(this.journalFile);
+        this.journalFile = null;
+        this.journalChannel = null;
+    }
+
+
+    /**
+     * 没有经过recover就写入时，保留已有的日志，接在后面追加
+     */
+    private void ensureOpen() throws IOException {
+        if (null == this.journalChannel) {
+            ConcurrentHashMap<String, ConcurrentHashMap<Integer, Long>> table =
+                    new ConcurrentHashMap<String, ConcurrentHashMap<Integer, Long>>();
+            this.loadSnapshot(table);
+            this.recover(table);
+        }
+    }
+
+
+    private void resetJournal(final long generation) throws IOException {
+        this.shutdown();
+        File file = new File(this.journalPath);
+        File parent = file.getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            raf.writeInt(JournalMagicCode);
+            raf.writeLong(generation);
+            raf.writeLong(System.currentTimeMillis());
+            raf.getChannel().force(true);
+        }
+        finally {
+            raf.close();
+        }
+
+        this.openJournal(generation, FileHeaderLength);
+    }
+
+
+    private void openJournal(final long generation, final long validLength) throws IOException {
+        this.shutdown();
+        this.journalFile = new RandomAccessFile(this.journalPath, "rw");
+        this.journalChannel = this.journalFile.getChannel();
+        if (this.journalChannel.size() > validLength) {
+            this.journalChannel.truncate(validLength);
+        }
+        this.journalChannel.position(validLength);
+        this.journalGeneration = generation;
+        this.journalSize = validLength;
+    }
+
+
+    private static int payloadLength(final byte[] key, final Map<Integer, Long> map) {
+        return 2 + key.length + 4 + (null == map ? 0 : map.size() * (4 + 8));
+    }
+
+
+    private static void writePayload(final ByteBuffer buffer, final byte[] key, final Map<Integer, Long> map) {
+        buffer.putShort((short) key.length);
+        buffer.put(key);
+        if (null == map) {
+            buffer.putInt(RemovedQueueCount);
+            return;
+        }
+
+        buffer.putInt(map.size());
+        for (Entry<Integer, Long> entry : map.entrySet()) {
+            buffer.putInt(entry.getKey());
+            buffer.putLong(entry.getValue());
+        }
+    }
+
+
+    private static void applyRecord(final ByteBuffer payload,
+            final ConcurrentHashMap<String, ConcurrentHashMap<Integer, Long>> table) {
+        byte[] key = new byte[payload.getShort()];
+        payload.get(key);
+        String topicAtGroup = new String(key, CHARSET_UTF8);
+        int queueCount = payload.getInt();
+        if (queueCount == RemovedQueueCount) {
+            table.remove(topicAtGroup);
+            return;
+        }
+
+        ConcurrentHashMap<Integer, Long> map = new ConcurrentHashMap<Integer, Long>(Math.max(queueCount, 16));
+        for (int i = 0; i < queueCount; i++) {
+            int queueId = payload.getInt();
+            map.put(queueId, payload.getLong());
+        }
+        table.put(topicAtGroup, map);
+    }
+
+
+    private static void closeQuietly(final Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            }
+            catch (IOException e) {
+                log.warn("close file exception", e);
+            }
+        }
+    }
+}
@@ -21,10 +21,13 @@ import com.alibaba.rocketmq.broker.BrokerPathConfigHelper;
 import com.alibaba.rocketmq.common.ConfigManager;
 import com.alibaba.rocketmq.common.UtilAll;
 import com.alibaba.rocketmq.common.constant.LoggerName;
+import com.alibaba.rocketmq.common.protocol.body.ConsumerOffsetDeltaWrapper;
 import com.alibaba.rocketmq.remoting.protocol.RemotingSerializable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
@@ -43,6 +46,21 @@ public class ConsumerOffsetManager extends ConfigManager {
 
     private transient BrokerController brokerController;
 
+    // 保留最近若干轮持久化的变化，供Slave增量同步
+    private static final int MaxDeltaRounds = 128;
+    private static final int MaxDeltaEntries = 1024 * 256;
+
+    private transient ConsumerOffsetJournal journal;
+    // 上次持久化之后有变化的topic@group
+    private final transient ConcurrentHashMap<String, Boolean> dirtyTable = new ConcurrentHashMap<String, Boolean>(512);
+    private transient boolean compactOnNextPersist = false;
+    private transient long lastJsonPersistTime = System.currentTimeMillis();
+    // 标识本次启动，Slave据此判断增量是否连续
+    private final transient long epoch = System.currentTimeMillis();
+    private transient long persistRound = 0;
+    private final transient LinkedList<DeltaRound> deltaRounds = new LinkedList<DeltaRound>();
+    private transient int deltaEntries = 0;
+
 
     public ConsumerOffsetManager() {
     }
@@ -50,6 +68,11 @@ public class ConsumerOffsetManager extends ConfigManager {
 
     public ConsumerOffsetManager(BrokerController brokerController) {
         this.brokerController = brokerController;
+        if (brokerController.getBrokerConfig().isConsumerOffsetJournalEnable()) {
+            String rootDir = brokerController.getMessageStoreConfig().getStorePathRootDir();
+            this.journal = new ConsumerOffsetJournal(BrokerPathConfigHelper.getConsumerOffsetSnapshotPath(rootDir),
+                BrokerPathConfigHelper.getConsumerOffsetJournalPath(rootDir));
+        }
     }
 
     public void scanUnsubscribedTopic() {
@@ -64,6 +87,7 @@ public class ConsumerOffsetManager extends ConfigManager {
                 if (null == brokerController.getConsumerManager().findSubscriptionData(group, topic)
                         && this.offsetBehindMuchThanData(topic, next.getValue())) {
                     it.remove();
+                    this.markDirty(topicAtGroup);
                     log.warn("remove topic offset, {}", topicAtGroup);
                 }
             }
@@ -136,6 +160,26 @@ public class ConsumerOffsetManager extends ConfigManager {
     }
 
 
+    /**
+     * 批量提交一个消费组的消费进度，每个Topic只查找一次
+     */
+    public void commitOffset(final String group, final Map<String/* topic */, Map<Integer, Long>> offsetTable) {
+        for (Map.Entry<String, Map<Integer, Long>> entry : offsetTable.entrySet()) {
+            String key = entry.getKey() + TOPIC_GROUP_SEPARATOR + group;
+            ConcurrentHashMap<Integer, Long> map = this.offsetTable.get(key);
+            if (null == map) {
+                map = new ConcurrentHashMap<Integer, Long>(32);
+                ConcurrentHashMap<Integer, Long> prev = this.offsetTable.putIfAbsent(key, map);
+                if (prev != null) {
+                    map = prev;
+                }
+            }
+            map.putAll(entry.getValue());
+            this.markDirty(key);
+        }
+    }
+
+
     public long queryOffset(final String group, final String topic, final int queueId) {
         // topic@group
         String key = topic + TOPIC_GROUP_SEPARATOR + group;
@@ -160,6 +204,25 @@ public class ConsumerOffsetManager extends ConfigManager {
         else {
             map.put(queueId, offset);
         }
+        this.markDirty(key);
+    }
+
+
+    private void markDirty(final String key) {
+        if (this.journal != null) {
+            this.dirtyTable.put(key, Boolean.TRUE);
+        }
+    }
+
+
+    /**
+     * Slave应用从Master同步来的消费进度
+     */
+    public void applyOffsetTable(final Map<String, ConcurrentHashMap<Integer, Long>> table) {
+        this.offsetTable.putAll(table);
+        for (String key : table.keySet()) {
+            this.markDirty(key);
+        }
     }
 
 
@@ -184,6 +247,180 @@ public class ConsumerOffsetManager extends ConfigManager {
     }
 
 
+    @Override
+    public boolean load() {
+        if (null == this.journal) {
+            return super.load();
+        }
+
+        // json文件的修改时间就是它的持久化时间，老版本写的json也适用
+        File jsonFile = new File(this.configFilePath());
+        long jsonTimestamp = jsonFile.exists() ? jsonFile.lastModified() : -1;
+        long binaryTimestamp = this.journal.readPersistTimestamp();
+        boolean jsonNewer = jsonTimestamp > binaryTimestamp;
+        if (jsonNewer && binaryTimestamp >= 0) {
+            // 关闭过二进制存储或者回退过版本，之后的进度只在json里
+            log.warn("consumer offset json is newer than the journal, {} > {}, discard the journal", jsonTimestamp,
+                binaryTimestamp);
+            this.journal.discard();
+        }
+
+        ConcurrentHashMap<String, ConcurrentHashMap<Integer, Long>> table =
+                new ConcurrentHashMap<String, ConcurrentHashMap<Integer, Long>>(512);
+        if (jsonNewer || !this.journal.loadSnapshot(table)) {
+            // 第一次启用二进制存储，json更新，或者快照损坏，从json开始
+            if (!super.load()) {
+                return false;
+            }
+            table.putAll(this.offsetTable);
+            this.compactOnNextPersist = !table.isEmpty();
+        }
+
+        try {
+            this.journal.recover(table);
+        }
+        catch (IOException e) {
+            log.error("recover consumer offset journal exception", e);
+            return false;
+        }
+
+        this.offsetTable = table;
+        this.lastJsonPersistTime = System.currentTimeMillis();
+        return true;
+    }
+
+
+    /**
+     * 只追加上次持久化之后变化的topic@group，日志足够大后合并成快照
+     */
+    @Override
+    public synchronized void persist() {
+        if (null == this.journal) {
+            super.persist();
+            return;
+        }
+
+        HashMap<String, ConcurrentHashMap<Integer, Long>> delta = new HashMap<String, ConcurrentHashMap<Integer, Long>>();
+        Iterator<String> it = this.dirtyTable.keySet().iterator();
+        while (it.hasNext()) {
+            String key = it.next();
+            it.remove();
+            ConcurrentHashMap<Integer, Long> map = this.offsetTable.get(key);
+            delta.put(key, null == map ? null : new ConcurrentHashMap<Integer, Long>(map));
+        }
+
+        if (!delta.isEmpty()) {
+            try {
+                this.journal.append(delta);
+                this.recordDelta(delta);
+            }
+            catch (IOException e) {
+                log.error("append consumer offset journal exception", e);
+                for (String key : delta.keySet()) {
+                    this.markDirty(key);
+                }
+                return;
+            }
+        }
+
+        // 定期写一份json，异常宕机后回退版本也只丢失这段时间的进度
+        long now = System.currentTimeMillis();
+        if (now - this.lastJsonPersistTime >= this.brokerController.getBrokerConfig()
+            .getConsumerOffsetJsonPersistInterval()) {
+            super.persist();
+            this.lastJsonPersistTime = now;
+        }
+
+        if (this.compactOnNextPersist || this.journal.isCompactNeeded()) {
+            this.compact();
+        }
+        else {
+            try {
+                // 在json之后记录，重启时二进制存储不会被当成旧的
+                this.journal.markPersisted(System.currentTimeMillis());
+            }
+            catch (IOException e) {
+                log.error("mark consumer offset journal persisted exception", e);
+            }
+        }
+    }
+
+
+    private void compact() {
+        try {
+            this.journal.compact(this.offsetTable);
+            this.compactOnNextPersist = false;
+        }
+        catch (IOException e) {
+            log.error("compact consumer offset exception", e);
+        }
+    }
+
+
+    /**
+     * Broker关闭时合并日志，并写一份json，便于回退版本和工具直接读取
+     */
+    public synchronized void shutdown() {
+        if (null == this.journal) {
+            super.persist();
+            return;
+        }
+
+        this.persist();
+        super.persist();
+        this.lastJsonPersistTime = System.currentTimeMillis();
+        // 最后合并，新一代日志的时间晚于json
+        this.compact();
+        this.journal.shutdown();
+    }
+
+
+    private void recordDelta(final Map<String, ConcurrentHashMap<Integer, Long>> delta) {
+        DeltaRound deltaRound = new DeltaRound(++this.persistRound);
+        for (Entry<String, ConcurrentHashMap<Integer, Long>> entry : delta.entrySet()) {
+            // 删除不同步给Slave，和全量同步一致
+            if (entry.getValue() != null) {
+                deltaRound.offsetTable.put(entry.getKey(), entry.getValue());
+                deltaRound.entries += entry.getValue().size();
+            }
+        }
+
+        this.deltaRounds.addLast(deltaRound);
+        this.deltaEntries += deltaRound.entries;
+        while (!this.deltaRounds.isEmpty()
+                && (this.deltaRounds.size() > MaxDeltaRounds || this.deltaEntries > MaxDeltaEntries)) {
+            this.deltaEntries -= this.deltaRounds.removeFirst().entries;
+        }
+    }
+
+
+    /**
+     * 返回round之后各轮持久化的变化，epoch不一致或者保留的增量不够时返回全量
+     */
+    public synchronized ConsumerOffsetDeltaWrapper queryOffsetDelta(final long epoch, final long round) {
+        ConsumerOffsetDeltaWrapper wrapper = new ConsumerOffsetDeltaWrapper();
+        wrapper.setEpoch(this.epoch);
+        wrapper.setRound(this.persistRound);
+
+        boolean continuous = this.journal != null && epoch == this.epoch && round <= this.persistRound
+                && (round == this.persistRound
+                        || (!this.deltaRounds.isEmpty() && this.deltaRounds.getFirst().round <= round + 1));
+        if (continuous) {
+            for (DeltaRound deltaRound : this.deltaRounds) {
+                if (deltaRound.round > round) {
+                    wrapper.getOffsetTable().putAll(deltaRound.offsetTable);
+                }
+            }
+        }
+        else {
+            wrapper.setFull(true);
+            wrapper.setOffsetTable(this.offsetTable);
+        }
+
+        return wrapper;
+    }
+
+
     @Override
     public String configFilePath() {
         return BrokerPathConfigHelper.getConsumerOffsetPath(this.brokerController.getMessageStoreConfig().getStorePathRootDir());
@@ -246,6 +483,20 @@ public class ConsumerOffsetManager extends ConfigManager {
         ConcurrentHashMap<Integer, Long> offsets = this.offsetTable.get(topic + TOPIC_GROUP_SEPARATOR + srcGroup);
         if (offsets != null) {
             this.offsetTable.put(topic + TOPIC_GROUP_SEPARATOR + destGroup, offsets);
+            this.markDirty(topic + TOPIC_GROUP_SEPARATOR + destGroup);
+        }
+    }
+
+
+    static class DeltaRound {
+        private final long round;
+        private final HashMap<String, ConcurrentHashMap<Integer, Long>> offsetTable =
+                new HashMap<String, ConcurrentHashMap<Integer, Long>>();
+        private int entries = 0;
+
+
+        DeltaRound(final long round) {
+            this.round = round;
         }
     }
 }
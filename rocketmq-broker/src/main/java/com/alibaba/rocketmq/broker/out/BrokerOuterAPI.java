@@ -24,6 +24,8 @@ import com.alibaba.rocketmq.common.namesrv.TopAddressing;
 import com.alibaba.rocketmq.common.protocol.RequestCode;
 import com.alibaba.rocketmq.common.protocol.ResponseCode;
 import com.alibaba.rocketmq.common.protocol.body.*;
+import com.alibaba.rocketmq.common.protocol.header.GetConsumerOffsetDeltaRequestHeader;
+import com.alibaba.rocketmq.common.protocol.header.ReportSlaveStateRequestHeader;
 import com.alibaba.rocketmq.common.protocol.header.namesrv.RegisterBrokerRequestHeader;
 import com.alibaba.rocketmq.common.protocol.header.namesrv.RegisterBrokerResponseHeader;
 import com.alibaba.rocketmq.common.protocol.header.namesrv.UnRegisterBrokerRequestHeader;
@@ -302,6 +304,30 @@ public class BrokerOuterAPI {
         throw new MQBrokerException(response.getCode(), response.getRemark());
     }
 
+    /**
+     * 增量获取Master的消费进度
+     */
+    public ConsumerOffsetDeltaWrapper getConsumerOffsetDelta(final String addr, final long epoch, final long round)
+            throws InterruptedException, RemotingTimeoutException, RemotingSendRequestException,
+            RemotingConnectException, MQBrokerException {
+        GetConsumerOffsetDeltaRequestHeader requestHeader = new GetConsumerOffsetDeltaRequestHeader();
+        requestHeader.setEpoch(epoch);
+        requestHeader.setRound(round);
+        RemotingCommand request =
+                RemotingCommand.createRequestCommand(RequestCode.GET_CONSUMER_OFFSET_DELTA, requestHeader);
+        RemotingCommand response = this.remotingClient.invokeSync(addr, request, 3000);
+        assert response != null;
+        switch (response.getCode()) {
+        case ResponseCode.SUCCESS: {
+            return ConsumerOffsetDeltaWrapper.decode(response.getBody(), ConsumerOffsetDeltaWrapper.class);
+        }
+        default:
+            break;
+        }
+
+        throw new MQBrokerException(response.getCode(), response.getRemark());
+    }
+
     public String getAllDelayOffset(final String addr) throws InterruptedException, RemotingTimeoutException,
             RemotingSendRequestException, RemotingConnectException, MQBrokerException {
         RemotingCommand request =
@@ -338,6 +364,15 @@ public class BrokerOuterAPI {
     }
 
 
+    public void reportSlaveState(final String addr, final ReportSlaveStateRequestHeader requestHeader)
+            throws InterruptedException, RemotingTimeoutException, RemotingSendRequestException,
+            RemotingConnectException, RemotingTooMuchRequestException {
+        RemotingCommand request =
+                RemotingCommand.createRequestCommand(RequestCode.REPORT_SLAVE_STATE, requestHeader);
+        this.remotingClient.invokeOneway(addr, request, 3000);
+    }
+
+
     public void registerRPCHook(RPCHook rpcHook) {
         remotingClient.registerRPCHook(rpcHook);
     }
@@ -27,6 +27,7 @@ import com.alibaba.rocketmq.common.constant.LoggerName;
 import com.alibaba.rocketmq.common.constant.PermName;
 import com.alibaba.rocketmq.common.help.FAQUrl;
 import com.alibaba.rocketmq.common.message.MessageAccessor;
+import com.alibaba.rocketmq.common.message.MessageConst;
 import com.alibaba.rocketmq.common.message.MessageDecoder;
 import com.alibaba.rocketmq.common.protocol.RequestCode;
 import com.alibaba.rocketmq.common.protocol.ResponseCode;
@@ -47,6 +48,7 @@ import org.slf4j.LoggerFactory;
 
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.Random;
 
@@ -56,6 +58,10 @@ import java.util.Random;
  */
 public abstract class AbstractSendMessageProcessor implements NettyRequestProcessor {
     protected static final Logger log = LoggerFactory.getLogger(LoggerName.BrokerLoggerName);
+    // 批量消息中单条消息除Body和属性外的长度：TOTALSIZE、MAGICCODE、BODYCRC、FLAG、BODYLENGTH、PROPERTIESLENGTH
+    private static final int BatchMsgHeaderLength = 4 + 4 + 4 + 4 + 4 + 2;
+    private static final byte[] TimerPropertyPrefix =
+            (MessageConst.PROPERTY_TIMER_DELIVER_MS + MessageDecoder.NAME_VALUE_SEPARATOR).getBytes(MessageDecoder.CHARSET_UTF8);
 
     protected final static int DLQ_NUMS_PER_GROUP = 1;
     protected final BrokerController brokerController;
@@ -93,6 +99,7 @@ public abstract class AbstractSendMessageProcessor implements NettyRequestProces
         SendMessageRequestHeaderV2 requestHeaderV2 = null;
         SendMessageRequestHeader requestHeader = null;
         switch (request.getCode()) {
+            case RequestCode.SEND_BATCH_MESSAGE:
             case RequestCode.SEND_MESSAGE_V2:
                 requestHeaderV2 =
                         (SendMessageRequestHeaderV2) request
@@ -283,6 +290,106 @@ public abstract class AbstractSendMessageProcessor implements NettyRequestProces
     }
 
 
+    /**
+     * 批量消息检查，不支持重试队列、延时消息和事务消息，整批大小受Broker的maxMessageSize限制
+     *
+     * @param ctx
+     * @param requestHeader
+     * @param request
+     * @param response
+     * @return
+     */
+    protected RemotingCommand batchMsgCheck(final ChannelHandlerContext ctx, final SendMessageRequestHeader requestHeader,
+                                            final RemotingCommand request, final RemotingCommand response) {
+        if (requestHeader.getTopic().startsWith(MixAll.RETRY_GROUP_TOPIC_PREFIX)) {
+            response.setCode(ResponseCode.MESSAGE_ILLEGAL);
+            response.setRemark("batch request does not support retry group " + requestHeader.getTopic());
+            return response;
+        }
+
+        if (MessageSysFlag.getTransactionValue(requestHeader.getSysFlag()) != MessageSysFlag.TransactionNotType) {
+            response.setCode(ResponseCode.MESSAGE_ILLEGAL);
+            response.setRemark("batch request does not support transaction message");
+            return response;
+        }
+
+        final byte[] body = request.getBody();
+        if (null == body || 0 == body.length) {
+            response.setCode(ResponseCode.MESSAGE_ILLEGAL);
+            response.setRemark("the batch body is empty");
+            return response;
+        }
+
+        final int maxMessageSize = this.brokerController.getMessageStoreConfig().getMaxMessageSize();
+        if (body.length > maxMessageSize) {
+            log.warn("batch message body size {} over max {}, from {}", body.length, maxMessageSize,
+                    ChannelUtil.getRemoteIp(ctx.channel()));
+            response.setCode(ResponseCode.MESSAGE_ILLEGAL);
+            response.setRemark("the batch body size over max value, MAX: " + maxMessageSize);
+            return response;
+        }
+
+        // 逐条校验客户端编码的格式，格式错误的请求不能进入CommitLog的编码
+        final ByteBuffer byteBuffer = ByteBuffer.wrap(body);
+        while (byteBuffer.hasRemaining()) {
+            final int pos = byteBuffer.position();
+            String illegal = null;
+            if (byteBuffer.remaining() < BatchMsgHeaderLength) {
+                illegal = "truncated message header";
+            } else {
+                final int totalSize = byteBuffer.getInt(pos);
+                final int bodyLen = byteBuffer.getInt(pos + 16);
+                if (bodyLen < 0 || bodyLen > byteBuffer.remaining() - BatchMsgHeaderLength) {
+                    illegal = "illegal body length " + bodyLen;
+                } else {
+                    final short propertiesLen = byteBuffer.getShort(pos + 20 + bodyLen);
+                    if (propertiesLen < 0 || totalSize != BatchMsgHeaderLength + bodyLen + propertiesLen
+                            || totalSize > byteBuffer.remaining()) {
+                        illegal = "illegal message size " + totalSize;
+                    } else if (containsProperty(body, pos + BatchMsgHeaderLength + bodyLen, propertiesLen,
+                            TimerPropertyPrefix)) {
+                        // 批量消息整体写入真实Topic，不能转入定时队列
+                        illegal = "timer message is not supported for batching";
+                    }
+                }
+            }
+
+            if (illegal != null) {
+                log.warn("illegal batch message at {}, {}, from {}", pos, illegal,
+                        ChannelUtil.getRemoteIp(ctx.channel()));
+                response.setCode(ResponseCode.MESSAGE_ILLEGAL);
+                response.setRemark("the batch body is illegal at " + pos + ", " + illegal);
+                return response;
+            }
+            byteBuffer.position(pos + byteBuffer.getInt(pos));
+        }
+
+        return response;
+    }
+
+
+    /**
+     * 在编码后的属性中查找以prefix开头的属性
+     */
+    private static boolean containsProperty(final byte[] body, final int from, final int length, final byte[] prefix) {
+        final int end = from + length - prefix.length;
+        for (int i = from; i <= end; i++) {
+            if (i != from && body[i - 1] != MessageDecoder.PROPERTY_SEPARATOR) {
+                continue;
+            }
+
+            int j = 0;
+            while (j < prefix.length && body[i + j] == prefix[j]) {
+                j++;
+            }
+            if (j == prefix.length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
     public SocketAddress getStoreHost() {
         return storeHost;
     }
@@ -116,6 +116,8 @@ public class AdminBrokerProcessor implements NettyRequestProcessor {
                 return this.getConsumeStats(ctx, request);
             case RequestCode.GET_ALL_CONSUMER_OFFSET:
                 return this.getAllConsumerOffset(ctx, request);
+            case RequestCode.GET_CONSUMER_OFFSET_DELTA:
+                return this.getConsumerOffsetDelta(ctx, request);
             case RequestCode.GET_ALL_DELAY_OFFSET:
                 return this.getAllDelayOffset(ctx, request);
             case RequestCode.INVOKE_BROKER_TO_RESET_OFFSET:
@@ -146,6 +148,8 @@ public class AdminBrokerProcessor implements NettyRequestProcessor {
                 return ViewBrokerStatsData(ctx, request);
             case RequestCode.GET_BROKER_CONSUME_STATS:
                 return fetchAllConsumeStatsInBroker(ctx, request);
+            case RequestCode.REPORT_SLAVE_STATE:
+                return this.reportSlaveState(ctx, request);
             default:
                 break;
         }
@@ -890,6 +894,23 @@ public class AdminBrokerProcessor implements NettyRequestProcessor {
     }
 
 
+    private RemotingCommand getConsumerOffsetDelta(ChannelHandlerContext ctx, RemotingCommand request)
+            throws RemotingCommandException {
+        final RemotingCommand response = RemotingCommand.createResponseCommand(null);
+        final GetConsumerOffsetDeltaRequestHeader requestHeader =
+                (GetConsumerOffsetDeltaRequestHeader) request
+                    .decodeCommandCustomHeader(GetConsumerOffsetDeltaRequestHeader.class);
+
+        ConsumerOffsetDeltaWrapper wrapper =
+                this.brokerController.getConsumerOffsetManager().queryOffsetDelta(requestHeader.getEpoch(),
+                    requestHeader.getRound());
+        response.setBody(wrapper.encode());
+        response.setCode(ResponseCode.SUCCESS);
+        response.setRemark(null);
+        return response;
+    }
+
+
     private RemotingCommand getAllDelayOffset(ChannelHandlerContext ctx, RemotingCommand request) {
         final RemotingCommand response = RemotingCommand.createResponseCommand(null);
 
@@ -1077,6 +1098,20 @@ public class AdminBrokerProcessor implements NettyRequestProcessor {
     }
 
 
+    private RemotingCommand reportSlaveState(ChannelHandlerContext ctx, RemotingCommand request) throws RemotingCommandException {
+        final RemotingCommand response = RemotingCommand.createResponseCommand(null);
+        final ReportSlaveStateRequestHeader requestHeader =
+                (ReportSlaveStateRequestHeader) request.decodeCommandCustomHeader(ReportSlaveStateRequestHeader.class);
+
+        this.brokerController.getSlaveReadRouter().updateSlaveState(requestHeader.getBrokerId(),
+                requestHeader.getMaxPhyOffset(), requestHeader.getPullQueuedNums());
+
+        response.setCode(ResponseCode.SUCCESS);
+        response.setRemark(null);
+        return response;
+    }
+
+
     private RemotingCommand cloneGroupOffset(ChannelHandlerContext ctx, RemotingCommand request) throws RemotingCommandException {
         final RemotingCommand response = RemotingCommand.createResponseCommand(null);
         CloneGroupOffsetRequestHeader requestHeader =
@@ -27,6 +27,7 @@ import com.alibaba.rocketmq.common.constant.LoggerName;
 import com.alibaba.rocketmq.common.constant.PermName;
 import com.alibaba.rocketmq.common.protocol.RequestCode;
 import com.alibaba.rocketmq.common.protocol.ResponseCode;
+import com.alibaba.rocketmq.common.protocol.body.UpdateConsumerOffsetBatchRequestBody;
 import com.alibaba.rocketmq.common.protocol.header.*;
 import com.alibaba.rocketmq.common.protocol.heartbeat.ConsumerData;
 import com.alibaba.rocketmq.common.protocol.heartbeat.HeartbeatData;
@@ -73,6 +74,8 @@ public class ClientManageProcessor implements NettyRequestProcessor {
             return this.getConsumerListByGroup(ctx, request);
         case RequestCode.UPDATE_CONSUMER_OFFSET:
             return this.updateConsumerOffset(ctx, request);
+        case RequestCode.UPDATE_CONSUMER_OFFSET_BATCH:
+            return this.updateConsumerOffsetBatch(ctx, request);
         case RequestCode.QUERY_CONSUMER_OFFSET:
             return this.queryConsumerOffset(ctx, request);
         default:
@@ -145,6 +148,50 @@ public class ClientManageProcessor implements NettyRequestProcessor {
     }
 
 
+    private RemotingCommand updateConsumerOffsetBatch(ChannelHandlerContext ctx, RemotingCommand request)
+            throws RemotingCommandException {
+        final RemotingCommand response = RemotingCommand.createResponseCommand(null);
+        final UpdateConsumerOffsetBatchRequestBody requestBody =
+                UpdateConsumerOffsetBatchRequestBody.decode(request.getBody(),
+                    UpdateConsumerOffsetBatchRequestBody.class);
+        if (null == requestBody || null == requestBody.getConsumerGroup()) {
+            response.setCode(ResponseCode.SYSTEM_ERROR);
+            response.setRemark("the request body of update consumer offset batch is invalid");
+            return response;
+        }
+
+        if (this.hasConsumeMessageHook()) {
+            final SocketAddress storeHost =
+                    new InetSocketAddress(brokerController.getBrokerConfig().getBrokerIP1(), brokerController
+                        .getNettyServerConfig().getListenPort());
+            for (Map.Entry<String, Map<Integer, Long>> entry : requestBody.getOffsetTable().entrySet()) {
+                for (Map.Entry<Integer, Long> queueOffset : entry.getValue().entrySet()) {
+                    ConsumeMessageContext context = new ConsumeMessageContext();
+                    context.setConsumerGroup(requestBody.getConsumerGroup());
+                    context.setTopic(entry.getKey());
+                    context.setClientHost(RemotingHelper.parseChannelRemoteAddr(ctx.channel()));
+                    context.setSuccess(true);
+                    context.setStatus(ConsumeConcurrentlyStatus.CONSUME_SUCCESS.toString());
+                    long preOffset =
+                            this.brokerController.getConsumerOffsetManager().queryOffset(
+                                requestBody.getConsumerGroup(), entry.getKey(), queueOffset.getKey());
+                    Map<String, Long> messageIds =
+                            this.brokerController.getMessageStore().getMessageIds(entry.getKey(),
+                                queueOffset.getKey(), preOffset, queueOffset.getValue(), storeHost);
+                    context.setMessageIds(messageIds);
+                    this.executeConsumeMessageHookAfter(context);
+                }
+            }
+        }
+
+        this.brokerController.getConsumerOffsetManager().commitOffset(requestBody.getConsumerGroup(),
+            requestBody.getOffsetTable());
+        response.setCode(ResponseCode.SUCCESS);
+        response.setRemark(null);
+        return response;
+    }
+
+
     private RemotingCommand queryConsumerOffset(ChannelHandlerContext ctx, RemotingCommand request)
             throws RemotingCommandException {
         final RemotingCommand response =
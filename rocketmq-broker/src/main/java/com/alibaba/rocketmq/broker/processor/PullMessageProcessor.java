@@ -22,6 +22,8 @@ import com.alibaba.rocketmq.broker.longpolling.PullRequest;
 import com.alibaba.rocketmq.broker.mqtrace.ConsumeMessageContext;
 import com.alibaba.rocketmq.broker.mqtrace.ConsumeMessageHook;
 import com.alibaba.rocketmq.broker.pagecache.ManyMessageTransfer;
+import com.alibaba.rocketmq.broker.qos.PullQosScheduler;
+import com.alibaba.rocketmq.common.BrokerConfig;
 import com.alibaba.rocketmq.common.MixAll;
 import com.alibaba.rocketmq.common.TopicConfig;
 import com.alibaba.rocketmq.common.TopicFilterType;
@@ -42,6 +44,7 @@ import com.alibaba.rocketmq.common.sysflag.PullSysFlag;
 import com.alibaba.rocketmq.remoting.common.RemotingHelper;
 import com.alibaba.rocketmq.remoting.common.RemotingUtil;
 import com.alibaba.rocketmq.remoting.exception.RemotingCommandException;
+import com.alibaba.rocketmq.remoting.netty.NettyRequestExecutorSelector;
 import com.alibaba.rocketmq.remoting.netty.NettyRequestProcessor;
 import com.alibaba.rocketmq.remoting.protocol.RemotingCommand;
 import com.alibaba.rocketmq.store.GetMessageResult;
@@ -49,7 +52,6 @@ import com.alibaba.rocketmq.store.MessageExtBrokerInner;
 import com.alibaba.rocketmq.store.PutMessageResult;
 import com.alibaba.rocketmq.store.config.BrokerRole;
 import com.alibaba.rocketmq.store.stats.BrokerStatsManager;
-import com.sun.prism.ExternalImageTools;
 import io.netty.channel.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -57,8 +59,11 @@ import org.slf4j.LoggerFactory;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 
 
 /**
@@ -66,7 +71,7 @@ import java.util.Map;
  *
  * @author shijia.wxr
  */
-public class PullMessageProcessor implements NettyRequestProcessor {
+public class PullMessageProcessor implements NettyRequestProcessor, NettyRequestExecutorSelector {
     private static final Logger log = LoggerFactory.getLogger(LoggerName.BrokerLoggerName);
 
     private final BrokerController brokerController;
@@ -84,6 +89,73 @@ public class PullMessageProcessor implements NettyRequestProcessor {
     }
 
 
+    /**
+     * 按数据是否在内存中选择hot或cold调度器，再按消费组的pullWeight加权公平调度
+     */
+    @Override
+    public ExecutorService selectExecutor(final RemotingCommand request) {
+        final PullQosScheduler hotPullScheduler = this.brokerController.getHotPullScheduler();
+        final PullQosScheduler coldPullScheduler = this.brokerController.getColdPullScheduler();
+        final boolean coldPullRouteEnable = this.brokerController.getBrokerConfig().isColdPullRouteEnable()
+                && coldPullScheduler != null;
+        if (!coldPullRouteEnable && null == hotPullScheduler) {
+            return null;
+        }
+
+        // 运行在网络IO线程上：请求头走FastCodesHeader直接从extFields字节解码，不生成HashMap，
+        // 解码结果挂在请求上，processRequest不再重复解码
+        final PullMessageRequestHeader requestHeader;
+        try {
+            requestHeader = this.decodeRequestHeader(request);
+        } catch (RemotingCommandException e) {
+            // 交给processRequest返回错误
+            return null;
+        }
+        final String consumerGroup = requestHeader.getConsumerGroup();
+        final String topic = requestHeader.getTopic();
+        if (null == consumerGroup || null == topic || null == requestHeader.getQueueId()
+                || null == requestHeader.getQueueOffset()) {
+            return null;
+        }
+
+        // 不存在的订阅组和Topic不能在这里被创建
+        SubscriptionGroupConfig subscriptionGroupConfig =
+                this.brokerController.getSubscriptionGroupManager().getSubscriptionGroupTable().get(consumerGroup);
+        final int weight = null == subscriptionGroupConfig ? 1 : subscriptionGroupConfig.getPullWeight();
+
+        if (coldPullRouteEnable) {
+            final int queueId = requestHeader.getQueueId();
+            final TopicConfig topicConfig = this.brokerController.getTopicConfigManager().selectTopicConfig(topic);
+            if (topicConfig != null && queueId >= 0 && queueId < topicConfig.getReadQueueNums()
+                    && this.brokerController.getMessageStore().estimateInDiskByConsumeOffset(topic, queueId,
+                        requestHeader.getQueueOffset())) {
+                return coldPullScheduler.laneExecutor(consumerGroup, weight);
+            }
+        }
+
+        if (hotPullScheduler != null) {
+            return hotPullScheduler.laneExecutor(consumerGroup, weight);
+        }
+
+        return null;
+    }
+
+
+    /**
+     * selectExecutor已经解码过的请求头直接复用
+     */
+    private PullMessageRequestHeader decodeRequestHeader(final RemotingCommand request) throws RemotingCommandException {
+        if (request.readCustomHeader() instanceof PullMessageRequestHeader) {
+            return (PullMessageRequestHeader) request.readCustomHeader();
+        }
+
+        PullMessageRequestHeader requestHeader =
+                (PullMessageRequestHeader) request.decodeCommandCustomHeader(PullMessageRequestHeader.class);
+        request.writeCustomHeader(requestHeader);
+        return requestHeader;
+    }
+
+
     /**
      * 长轮询被唤醒的时候，重新处理被唤醒的客户端请求
      * 当有消息到来的时候，唤醒长轮询
@@ -136,8 +208,18 @@ public class PullMessageProcessor implements NettyRequestProcessor {
         };
 
         /**
-         * 提交到队列执行
+         * 提交到队列执行，与新请求一样按hot/cold和消费组权重选择调度器
          */
+        ExecutorService executor = this.selectExecutor(request);
+        if (executor != null) {
+            try {
+                executor.submit(run);
+                return;
+            } catch (RejectedExecutionException e) {
+                // 挂起的请求已经被接收过，所在组的队列满时退回普通线程池，不丢弃响应
+                log.warn("excuteRequestWhenWakeup, {}, fallback to pull message executor", e.getMessage());
+            }
+        }
         this.brokerController.getPullMessageExecutor().submit(run);
     }
 
@@ -185,6 +267,29 @@ public class PullMessageProcessor implements NettyRequestProcessor {
     }
 
 
+    /**
+     * 选择拉消息的传输方式
+     * 1、数据不在内存中时，sendfile会在Netty IO线程里读磁盘，改为在拉消息线程里拷贝到堆内
+     * 2、总大小很小时，一次堆内拷贝比FileRegion逐个写Buffer更便宜
+     * 3、其他情况通过FileRegion零拷贝传输，避免每个消费组都拷贝一份消息到堆上
+     */
+    private boolean isTransferMsgByHeap(final PullMessageRequestHeader requestHeader, final GetMessageResult getMessageResult) {
+        final BrokerConfig brokerConfig = this.brokerController.getBrokerConfig();
+        if (!brokerConfig.isTransferMsgAdaptive()) {
+            return brokerConfig.isTransferMsgByHeap();
+        }
+
+        if (getMessageResult.getBufferTotalSize() <= brokerConfig.getTransferMsgByHeapMaxBytes()) {
+            return true;
+        }
+
+        // 按Tag过滤时会跳过部分ConsumeQueue单元，最后一条消息的位点取nextBeginOffset - 1
+        final long lastOffset = getMessageResult.getNextBeginOffset() - 1;
+        return this.brokerController.getMessageStore().checkInDiskByConsumeOffset(requestHeader.getTopic(),
+                requestHeader.getQueueId(), lastOffset);
+    }
+
+
     private RemotingCommand processRequest(final Channel channel, RemotingCommand request,
                                            boolean brokerAllowSuspend) throws RemotingCommandException {
         /**
@@ -198,8 +303,7 @@ public class PullMessageProcessor implements NettyRequestProcessor {
         /**
          * 解析请求头
          */
-        final PullMessageRequestHeader requestHeader =
-                (PullMessageRequestHeader) request.decodeCommandCustomHeader(PullMessageRequestHeader.class);
+        final PullMessageRequestHeader requestHeader = this.decodeRequestHeader(request);
 
         /**
          * 设置ID，用于响应和请求的匹配
@@ -379,7 +483,11 @@ public class PullMessageProcessor implements NettyRequestProcessor {
             /**
              * 如果返回的是建议从slave获取
              */
-            if (getMessageResult.isSuggestPullingFromSlave()) {
+            if (this.brokerController.getBrokerConfig().isAdaptiveSlaveReadEnable()) {
+                // 按消费组的堆积和数据是否在PageCache中自适应选择Master或Slave
+                responseHeader.setSuggestWhichBrokerId(this.brokerController.getSlaveReadRouter().suggestBrokerId(
+                        requestHeader.getConsumerGroup(), getMessageResult, subscriptionGroupConfig));
+            } else if (getMessageResult.isSuggestPullingFromSlave()) {
 
                 responseHeader.setSuggestWhichBrokerId(subscriptionGroupConfig.getWhichBrokerWhenConsumeSlowly());
                 log.warn(
@@ -551,7 +659,7 @@ public class PullMessageProcessor implements NettyRequestProcessor {
                      * 如果不是，则通过FileRegion进行传输
                      * FileRegion是Netty提供的用于支持零拷贝的数据传输方式
                      */
-                    if (this.brokerController.getBrokerConfig().isTransferMsgByHeap()) {
+                    if (this.isTransferMsgByHeap(requestHeader, getMessageResult)) {
                         final byte[] r = this.readGetMessageResult(getMessageResult);
                         response.setBody(r);
                     } else {
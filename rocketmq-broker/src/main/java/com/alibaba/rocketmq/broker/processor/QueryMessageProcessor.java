@@ -28,8 +28,12 @@ import com.alibaba.rocketmq.broker.BrokerController;
 import com.alibaba.rocketmq.broker.pagecache.OneMessageTransfer;
 import com.alibaba.rocketmq.broker.pagecache.QueryMessageTransfer;
 import com.alibaba.rocketmq.common.constant.LoggerName;
+import com.alibaba.rocketmq.common.message.MessageDecoder;
 import com.alibaba.rocketmq.common.protocol.RequestCode;
 import com.alibaba.rocketmq.common.protocol.ResponseCode;
+import com.alibaba.rocketmq.common.protocol.body.PropertyIndexItem;
+import com.alibaba.rocketmq.common.protocol.body.QueryMessageByPropertyBody;
+import com.alibaba.rocketmq.common.protocol.header.QueryMessageByPropertyRequestHeader;
 import com.alibaba.rocketmq.common.protocol.header.QueryMessageRequestHeader;
 import com.alibaba.rocketmq.common.protocol.header.QueryMessageResponseHeader;
 import com.alibaba.rocketmq.common.protocol.header.ViewMessageRequestHeader;
@@ -38,6 +42,8 @@ import com.alibaba.rocketmq.remoting.netty.NettyRequestProcessor;
 import com.alibaba.rocketmq.remoting.protocol.RemotingCommand;
 import com.alibaba.rocketmq.store.QueryMessageResult;
 import com.alibaba.rocketmq.store.SelectMapedBufferResult;
+import com.alibaba.rocketmq.store.index.PropertyIndexEntry;
+import com.alibaba.rocketmq.store.index.QueryPropertyIndexResult;
 
 
 /**
@@ -62,6 +68,8 @@ public class QueryMessageProcessor implements NettyRequestProcessor {
                 return this.queryMessage(ctx, request);
             case RequestCode.VIEW_MESSAGE_BY_ID:
                 return this.viewMessageById(ctx, request);
+            case RequestCode.QUERY_MESSAGE_BY_PROPERTY:
+                return this.queryMessageByProperty(ctx, request);
             default:
                 break;
         }
@@ -122,6 +130,49 @@ public class QueryMessageProcessor implements NettyRequestProcessor {
     }
 
 
+    /**
+     * 根据属性索引查找消息，只返回位置和消息ID，不读取消息内容
+     */
+    public RemotingCommand queryMessageByProperty(ChannelHandlerContext ctx, RemotingCommand request)
+            throws RemotingCommandException {
+        final RemotingCommand response = RemotingCommand.createResponseCommand(null);
+        final QueryMessageByPropertyRequestHeader requestHeader =
+                (QueryMessageByPropertyRequestHeader) request
+                        .decodeCommandCustomHeader(QueryMessageByPropertyRequestHeader.class);
+
+        response.setOpaque(request.getOpaque());
+
+        final QueryPropertyIndexResult result =
+                this.brokerController.getMessageStore().queryMessageByProperty(requestHeader.getTopic(),
+                        requestHeader.getPropertyKey(), requestHeader.getBeginValue(), requestHeader.getEndValue(),
+                        requestHeader.getPrefix(), requestHeader.getMaxNum(), requestHeader.getBeginTimestamp(),
+                        requestHeader.getEndTimestamp());
+
+        if (result.getEntries().isEmpty()) {
+            response.setCode(ResponseCode.QUERY_NOT_FOUND);
+            response.setRemark("can not find message, maybe property not indexed or time range not correct");
+            return response;
+        }
+
+        QueryMessageByPropertyBody body = new QueryMessageByPropertyBody();
+        body.setIndexLastUpdatePhyoffset(result.getIndexLastUpdatePhyoffset());
+        for (PropertyIndexEntry entry : result.getEntries()) {
+            PropertyIndexItem item = new PropertyIndexItem();
+            item.setValue(entry.getValue());
+            item.setStoreTimestamp(entry.getStoreTimestamp());
+            item.setCommitLogOffset(entry.getCommitLogOffset());
+            item.setMsgId(MessageDecoder.createMessageId(this.brokerController.getStoreHost(),
+                    entry.getCommitLogOffset()));
+            body.getItemList().add(item);
+        }
+
+        response.setBody(body.encode());
+        response.setCode(ResponseCode.SUCCESS);
+        response.setRemark(null);
+        return response;
+    }
+
+
     /**
      * 根据消息ID查找消息
      * @param ctx
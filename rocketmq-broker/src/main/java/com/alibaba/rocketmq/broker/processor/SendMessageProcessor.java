@@ -44,7 +44,9 @@ import com.alibaba.rocketmq.remoting.common.RemotingHelper;
 import com.alibaba.rocketmq.remoting.exception.RemotingCommandException;
 import com.alibaba.rocketmq.remoting.netty.NettyRequestProcessor;
 import com.alibaba.rocketmq.remoting.protocol.RemotingCommand;
+import com.alibaba.rocketmq.store.MessageExtBatch;
 import com.alibaba.rocketmq.store.MessageExtBrokerInner;
+import com.alibaba.rocketmq.store.PutMessageCallback;
 import com.alibaba.rocketmq.store.PutMessageResult;
 import com.alibaba.rocketmq.store.config.StorePathConfigHelper;
 import com.alibaba.rocketmq.store.stats.BrokerStatsManager;
@@ -88,9 +90,18 @@ public class SendMessageProcessor extends AbstractSendMessageProcessor implement
                 /**
                  * 发送消息
                  */
-                final RemotingCommand response = this.sendMessage(ctx, request, mqtraceContext, requestHeader);
+                final boolean asyncSend = this.brokerController.getBrokerConfig().isAsyncSendEnable();
+                final RemotingCommand response;
+                if (request.getCode() == RequestCode.SEND_BATCH_MESSAGE) {
+                    response = this.sendBatchMessage(ctx, request, mqtraceContext, requestHeader, asyncSend);
+                } else {
+                    response = this.sendMessage(ctx, request, mqtraceContext, requestHeader, asyncSend);
+                }
 
-                this.executeSendMessageHookAfter(response, mqtraceContext);
+                // 异步存储时，消息提交成功后由回调执行hook并写回响应
+                if (!asyncSend || response != null) {
+                    this.executeSendMessageHookAfter(response, mqtraceContext);
+                }
                 return response;
         }
     }
@@ -281,7 +292,8 @@ public class SendMessageProcessor extends AbstractSendMessageProcessor implement
     private RemotingCommand sendMessage(final ChannelHandlerContext ctx, //
                                         final RemotingCommand request,//
                                         final SendMessageContext mqtraceContext,//
-                                        final SendMessageRequestHeader requestHeader) throws RemotingCommandException {
+                                        final SendMessageRequestHeader requestHeader,//
+                                        final boolean asyncSend) throws RemotingCommandException {
 
         /**
          * 构造响应
@@ -386,8 +398,56 @@ public class SendMessageProcessor extends AbstractSendMessageProcessor implement
         /**
          * 消息存储
          */
+        if (asyncSend) {
+            this.brokerController.getMessageStore().asyncPutMessage(msgInner,
+                    this.createPutMessageCallback(response, request, msgInner, responseHeader, mqtraceContext, ctx, queueIdInt, requestHeader));
+            return null;
+        }
+
         PutMessageResult putMessageResult = this.brokerController.getMessageStore().putMessage(msgInner);
 
+        return this.handlePutMessageResult(putMessageResult, response, request, msgInner, responseHeader, mqtraceContext, ctx,
+                queueIdInt, requestHeader);
+    }
+
+
+    /**
+     * 异步存储完成后处理结果，失败时在这里写回响应
+     */
+    private PutMessageCallback createPutMessageCallback(final RemotingCommand response, //
+                                                        final RemotingCommand request, //
+                                                        final MessageExt msgInner, //
+                                                        final SendMessageResponseHeader responseHeader, //
+                                                        final SendMessageContext mqtraceContext, //
+                                                        final ChannelHandlerContext ctx, //
+                                                        final int queueIdInt, //
+                                                        final SendMessageRequestHeader requestHeader) {
+        return new PutMessageCallback() {
+            @Override
+            public void onComplete(PutMessageResult putMessageResult) {
+                RemotingCommand result = handlePutMessageResult(putMessageResult, response, request, msgInner, responseHeader,
+                        mqtraceContext, ctx, queueIdInt, requestHeader);
+                if (result != null) {
+                    doResponse(ctx, request, result);
+                }
+                executeSendMessageHookAfter(result, mqtraceContext);
+            }
+        };
+    }
+
+
+    /**
+     * 处理消息存储结果，设置响应并更新统计
+     */
+    private RemotingCommand handlePutMessageResult(final PutMessageResult putMessageResult, //
+                                                   final RemotingCommand response, //
+                                                   final RemotingCommand request, //
+                                                   final MessageExt msgInner, //
+                                                   final SendMessageResponseHeader responseHeader, //
+                                                   final SendMessageContext mqtraceContext, //
+                                                   final ChannelHandlerContext ctx, //
+                                                   final int queueIdInt, //
+                                                   final SendMessageRequestHeader requestHeader) {
         /**
          * 处理消息存储结果
          */
@@ -449,9 +509,10 @@ public class SendMessageProcessor extends AbstractSendMessageProcessor implement
                 /**
                  * 更新统计信息
                  */
-                this.brokerController.getBrokerStatsManager().incTopicPutNums(msgInner.getTopic());
+                this.brokerController.getBrokerStatsManager().incTopicPutNums(msgInner.getTopic(),
+                        putMessageResult.getAppendMessageResult().getMsgNum(), 1);
                 this.brokerController.getBrokerStatsManager().incTopicPutSize(msgInner.getTopic(), putMessageResult.getAppendMessageResult().getWroteBytes());
-                this.brokerController.getBrokerStatsManager().incBrokerPutNums();
+                this.brokerController.getBrokerStatsManager().incBrokerPutNums(putMessageResult.getAppendMessageResult().getMsgNum());
 
                 /**
                  * 如果Broker不是高速模式
@@ -517,6 +578,73 @@ public class SendMessageProcessor extends AbstractSendMessageProcessor implement
     }
 
 
+    /**
+     * 批量发送消息，整批消息写入同一个队列
+     */
+    private RemotingCommand sendBatchMessage(final ChannelHandlerContext ctx, //
+                                             final RemotingCommand request,//
+                                             final SendMessageContext mqtraceContext,//
+                                             final SendMessageRequestHeader requestHeader,//
+                                             final boolean asyncSend) throws RemotingCommandException {
+
+        final RemotingCommand response = RemotingCommand.createResponseCommand(SendMessageResponseHeader.class);
+        final SendMessageResponseHeader responseHeader = (SendMessageResponseHeader) response.readCustomHeader();
+
+        response.setOpaque(request.getOpaque());
+
+        if (log.isDebugEnabled()) {
+            log.debug("receive SendBatchMessage request command, " + request);
+        }
+
+        response.setCode(-1);
+        super.msgCheck(ctx, requestHeader, response);
+        if (response.getCode() != -1) {
+            return response;
+        }
+
+        super.batchMsgCheck(ctx, requestHeader, request, response);
+        if (response.getCode() != -1) {
+            return response;
+        }
+
+        int queueIdInt = requestHeader.getQueueId();
+        TopicConfig topicConfig = this.brokerController.getTopicConfigManager().selectTopicConfig(requestHeader.getTopic());
+        if (queueIdInt < 0) {
+            queueIdInt = Math.abs(this.random.nextInt() % 99999999) % topicConfig.getWriteQueueNums();
+        }
+
+        int sysFlag = requestHeader.getSysFlag();
+        if (TopicFilterType.MULTI_TAG == topicConfig.getTopicFilterType()) {
+            sysFlag |= MessageSysFlag.MultiTagsFlag;
+        }
+
+        MessageExtBatch messageExtBatch = new MessageExtBatch();
+        messageExtBatch.setTopic(requestHeader.getTopic());
+        messageExtBatch.setQueueId(queueIdInt);
+        messageExtBatch.setBody(request.getBody());
+        messageExtBatch.setFlag(requestHeader.getFlag());
+        MessageAccessor.setProperties(messageExtBatch, MessageDecoder.string2messageProperties(requestHeader.getProperties()));
+        messageExtBatch.setPropertiesString(requestHeader.getProperties());
+        messageExtBatch.setSysFlag(sysFlag);
+        messageExtBatch.setBornTimestamp(requestHeader.getBornTimestamp());
+        messageExtBatch.setBornHost(ctx.channel().remoteAddress());
+        messageExtBatch.setStoreHost(this.getStoreHost());
+        messageExtBatch.setReconsumeTimes(requestHeader.getReconsumeTimes() == null ? 0 : requestHeader.getReconsumeTimes());
+
+        if (asyncSend) {
+            this.brokerController.getMessageStore().asyncPutMessages(messageExtBatch,
+                    this.createPutMessageCallback(response, request, messageExtBatch, responseHeader, mqtraceContext, ctx, queueIdInt,
+                            requestHeader));
+            return null;
+        }
+
+        PutMessageResult putMessageResult = this.brokerController.getMessageStore().putMessages(messageExtBatch);
+
+        return this.handlePutMessageResult(putMessageResult, response, request, messageExtBatch, responseHeader, mqtraceContext, ctx,
+                queueIdInt, requestHeader);
+    }
+
+
     public SocketAddress getStoreHost() {
         return storeHost;
     }
@@ -0,0 +1,383 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.broker.qos;
+
+import com.alibaba.rocketmq.common.ThreadFactoryImpl;
+import com.alibaba.rocketmq.common.constant.LoggerName;
+import com.alibaba.rocketmq.store.stats.BrokerStatsManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * 拉消息请求调度器，每个消费组一个队列，按订阅组的pullWeight做平滑加权轮询，
+ * 并限制每个消费组同时占用的线程数和排队的请求数，避免一个回溯消费的组拖慢其他组或占满队列。<br>
+ * 请求在队列中的等待时间记录到BrokerStatsManager.GROUP_PULL_QUEUE_WAIT
+ */
+public class PullQosScheduler {
+    private static final Logger log = LoggerFactory.getLogger(LoggerName.BrokerLoggerName);
+
+    private final String name;
+    private final int threadNums;
+    private final int queueCapacity;
+    private final int groupQueueCapacity;
+    private final int groupInflightLimit;
+    private final BrokerStatsManager brokerStatsManager;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = this.lock.newCondition();
+    // 有排队请求或正在执行请求的消费组
+    private final HashMap<String/* group */, GroupLane> laneTable = new HashMap<String, GroupLane>(64);
+    private final ConcurrentHashMap<String/* group */, LaneExecutor> laneExecutorTable =
+            new ConcurrentHashMap<String, LaneExecutor>(64);
+    private final Thread[] workers;
+    private int queuedNums = 0;
+    private volatile boolean stopped = false;
+
+
+    public PullQosScheduler(final String name, final int threadNums, final int queueCapacity,
+                            final int groupQueueCapacity, final int groupInflightLimit,
+                            final BrokerStatsManager brokerStatsManager) {
+        this.name = name;
+        this.threadNums = threadNums;
+        this.queueCapacity = queueCapacity;
+        this.groupQueueCapacity = Math.max(1, groupQueueCapacity);
+        this.groupInflightLimit = Math.max(1, groupInflightLimit);
+        this.brokerStatsManager = brokerStatsManager;
+        this.workers = new Thread[threadNums];
+    }
+
+
+    public void start() {
+        ThreadFactoryImpl threadFactory = new ThreadFactoryImpl(this.name + "_");
+        for (int i = 0; i < this.threadNums; i++) {
+            this.workers[i] = threadFactory.newThread(new Worker());
+            this.workers[i].start();
+        }
+    }
+
+
+    /**
+     * 不再接收新请求，已经排队的请求全部执行完后工作线程退出
+     */
+    public void shutdown() {
+        this.lock.lock();
+        try {
+            this.stopped = true;
+            this.notEmpty.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+
+    /**
+     * 不再接收新请求，丢弃排队中的请求并返回，正在执行的请求执行完后工作线程退出
+     */
+    public List<Runnable> shutdownNow() {
+        List<Runnable> drained = new ArrayList<Runnable>();
+        this.lock.lock();
+        try {
+            this.stopped = true;
+            Iterator<GroupLane> it = this.laneTable.values().iterator();
+            while (it.hasNext()) {
+                GroupLane lane = it.next();
+                for (QueuedTask task : lane.tasks) {
+                    drained.add(task.runnable);
+                }
+                lane.tasks.clear();
+                if (0 == lane.inflight) {
+                    it.remove();
+                }
+            }
+            this.queuedNums = 0;
+            this.notEmpty.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+        return drained;
+    }
+
+
+    /**
+     * 返回提交到指定消费组队列的ExecutorService，供NettyRequestExecutorSelector使用，每个消费组复用同一个对象
+     */
+    public ExecutorService laneExecutor(final String group, final int weight) {
+        LaneExecutor executor = this.laneExecutorTable.get(group);
+        if (null == executor) {
+            executor = new LaneExecutor(group);
+            LaneExecutor prev = this.laneExecutorTable.putIfAbsent(group, executor);
+            if (prev != null) {
+                executor = prev;
+            }
+        }
+        executor.weight = weight;
+        return executor;
+    }
+
+
+    public void execute(final String group, final int weight, final Runnable task) {
+        this.lock.lock();
+        try {
+            if (this.stopped) {
+                throw new RejectedExecutionException(this.name + " has been shutdown");
+            }
+
+            // 先检查消费组自己的份额，一个组排满只拒绝这个组
+            GroupLane lane = this.laneTable.get(group);
+            if (lane != null && lane.tasks.size() >= this.groupQueueCapacity) {
+                throw new RejectedExecutionException(this.name + " queue of group " + group + " is full, queued: "
+                        + lane.tasks.size());
+            }
+
+            if (this.queuedNums >= this.queueCapacity) {
+                throw new RejectedExecutionException(this.name + " queue is full, queued: " + this.queuedNums);
+            }
+
+            if (null == lane) {
+                lane = new GroupLane(group);
+                this.laneTable.put(group, lane);
+            }
+            lane.weight = Math.max(1, weight);
+            lane.tasks.add(new QueuedTask(task, System.currentTimeMillis()));
+            this.queuedNums++;
+            this.notEmpty.signal();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+
+    /**
+     * 平滑加权轮询，跳过没有请求或者已达到并发上限的消费组
+     */
+    private GroupLane selectLane() {
+        GroupLane selected = null;
+        int totalWeight = 0;
+        for (GroupLane lane : this.laneTable.values()) {
+            if (lane.tasks.isEmpty() || lane.inflight >= this.groupInflightLimit) {
+                continue;
+            }
+
+            lane.currentWeight += lane.weight;
+            totalWeight += lane.weight;
+            if (null == selected || lane.currentWeight > selected.currentWeight) {
+                selected = lane;
+            }
+        }
+
+        if (selected != null) {
+            selected.currentWeight -= totalWeight;
+        }
+        return selected;
+    }
+
+
+    public int getQueuedNums() {
+        this.lock.lock();
+        try {
+            return this.queuedNums;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+
+    public int getInflightNums(final String group) {
+        this.lock.lock();
+        try {
+            GroupLane lane = this.laneTable.get(group);
+            return null == lane ? 0 : lane.inflight;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+
+    public String getName() {
+        return name;
+    }
+
+
+    @Override
+    public String toString() {
+        return "PullQosScheduler [name=" + name + ", threadNums=" + threadNums + ", queueCapacity=" + queueCapacity
+                + ", groupQueueCapacity=" + groupQueueCapacity + ", groupInflightLimit=" + groupInflightLimit + ", queuedNums=" + this.getQueuedNums() + "]";
+    }
+
+
+    class Worker implements Runnable {
+        @Override
+        public void run() {
+            while (true) {
+                GroupLane lane;
+                QueuedTask task;
+                PullQosScheduler.this.lock.lock();
+                try {
+                    while ((lane = PullQosScheduler.this.selectLane()) == null) {
+                        // 停止后要等排队的请求都被取走才退出，否则这些请求永远得不到响应
+                        if (PullQosScheduler.this.stopped && 0 == PullQosScheduler.this.queuedNums) {
+                            return;
+                        }
+                        PullQosScheduler.this.notEmpty.await();
+                    }
+
+                    task = lane.tasks.poll();
+                    PullQosScheduler.this.queuedNums--;
+                    lane.inflight++;
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    PullQosScheduler.this.lock.unlock();
+                }
+
+                if (PullQosScheduler.this.brokerStatsManager != null) {
+                    PullQosScheduler.this.brokerStatsManager.incGroupPullQueueWait(PullQosScheduler.this.name,
+                            lane.group, System.currentTimeMillis() - task.enqueueTimestamp);
+                }
+
+                try {
+                    task.runnable.run();
+                } catch (Throwable e) {
+                    log.warn(PullQosScheduler.this.name + " run task exception", e);
+                }
+
+                PullQosScheduler.this.lock.lock();
+                try {
+                    lane.inflight--;
+                    if (lane.tasks.isEmpty() && 0 == lane.inflight) {
+                        PullQosScheduler.this.laneTable.remove(lane.group);
+                    }
+                    if (PullQosScheduler.this.stopped) {
+                        PullQosScheduler.this.notEmpty.signalAll();
+                    } else {
+                        PullQosScheduler.this.notEmpty.signal();
+                    }
+                } finally {
+                    PullQosScheduler.this.lock.unlock();
+                }
+            }
+        }
+    }
+
+
+    class LaneExecutor extends AbstractExecutorService {
+        private final String group;
+        // 订阅组的pullWeight可以动态修改，每次选择时更新
+        private volatile int weight = 1;
+
+
+        LaneExecutor(String group) {
+            this.group = group;
+        }
+
+
+        @Override
+        public void execute(Runnable command) {
+            PullQosScheduler.this.execute(this.group, this.weight, command);
+        }
+
+
+        @Override
+        public void shutdown() {
+            PullQosScheduler.this.shutdown();
+        }
+
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return PullQosScheduler.this.shutdownNow();
+        }
+
+
+        @Override
+        public boolean isShutdown() {
+            return PullQosScheduler.this.stopped;
+        }
+
+
+        @Override
+        public boolean isTerminated() {
+            if (!PullQosScheduler.this.stopped) {
+                return false;
+            }
+            for (Thread worker : PullQosScheduler.this.workers) {
+                if (worker != null && worker.isAlive()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            final long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+            for (Thread worker : PullQosScheduler.this.workers) {
+                if (worker != null) {
+                    worker.join(Math.max(1, deadline - System.currentTimeMillis()));
+                }
+            }
+            return this.isTerminated();
+        }
+
+
+        @Override
+        public String toString() {
+            return PullQosScheduler.this.toString() + " group=" + this.group;
+        }
+    }
+
+
+    static class GroupLane {
+        private final String group;
+        private final LinkedList<QueuedTask> tasks = new LinkedList<QueuedTask>();
+        private int weight = 1;
+        private int currentWeight = 0;
+        private int inflight = 0;
+
+
+        GroupLane(String group) {
+            this.group = group;
+        }
+    }
+
+
+    static class QueuedTask {
+        private final Runnable runnable;
+        private final long enqueueTimestamp;
+
+
+        QueuedTask(Runnable runnable, long enqueueTimestamp) {
+            this.runnable = runnable;
+            this.enqueueTimestamp = enqueueTimestamp;
+        }
+    }
+}
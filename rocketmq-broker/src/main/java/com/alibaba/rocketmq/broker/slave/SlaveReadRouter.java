@@ -0,0 +1,223 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.broker.slave;
+
+import com.alibaba.rocketmq.broker.BrokerController;
+import com.alibaba.rocketmq.common.constant.LoggerName;
+import com.alibaba.rocketmq.common.subscription.SubscriptionGroupConfig;
+import com.alibaba.rocketmq.store.GetMessageResult;
+import com.alibaba.rocketmq.store.StoreUtil;
+import com.alibaba.rocketmq.store.config.BrokerRole;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+
+/**
+ * 自适应从Slave读<br>
+ * Master：拉取的数据已经不在PageCache中时，把消费组引导到复制跟上且负载最低的Slave，同一消费组尽量固定在一个Slave上；<br>
+ * Slave：拉取位置落后的字节数降到内存窗口的slaveReadCatchUpRatio以内时引导回Master，Master的PageCache只服务尾部读。<br>
+ * 两个方向都按CommitLog字节数判断，与Master上的suggestPullingFromSlave同一单位。
+ */
+public class SlaveReadRouter {
+    private static final Logger log = LoggerFactory.getLogger(LoggerName.BrokerLoggerName);
+    // 超过几个报告周期没有收到Slave状态认为Slave不可用
+    private static final int SlaveStateExpiredFactor = 3;
+    private static final long GroupRouteExpiredMillis = 1000 * 60 * 2;
+
+    private final BrokerController brokerController;
+    private final HashMap<Long/* brokerId */, SlaveState> slaveStateTable = new HashMap<Long, SlaveState>();
+    private final HashMap<String/* group */, GroupRoute> groupRouteTable = new HashMap<String, GroupRoute>(64);
+    private long lastScanTimestamp = System.currentTimeMillis();
+
+
+    public SlaveReadRouter(final BrokerController brokerController) {
+        this.brokerController = brokerController;
+    }
+
+
+    /**
+     * Master收到Slave的状态报告
+     */
+    public synchronized void updateSlaveState(final long brokerId, final long maxPhyOffset, final int pullQueuedNums) {
+        SlaveState state = this.slaveStateTable.get(brokerId);
+        if (null == state) {
+            state = new SlaveState(brokerId);
+            this.slaveStateTable.put(brokerId, state);
+            log.info("slave {} reported state first time, maxPhyOffset={}", brokerId, maxPhyOffset);
+        }
+        state.maxPhyOffset = maxPhyOffset;
+        state.pullQueuedNums = pullQueuedNums;
+        state.lastUpdateTimestamp = System.currentTimeMillis();
+    }
+
+
+    /**
+     * 计算建议客户端下次从哪个Broker拉取
+     */
+    public long suggestBrokerId(final String group, final GetMessageResult getMessageResult,
+                                final SubscriptionGroupConfig subscriptionGroupConfig) {
+        final long lag = getMessageResult.getPullingLagBytes();
+        if (BrokerRole.SLAVE == this.brokerController.getMessageStoreConfig().getBrokerRole()) {
+            if (lag <= this.catchUpLagBytes()) {
+                return subscriptionGroupConfig.getBrokerId();
+            }
+            return this.brokerController.getBrokerConfig().getBrokerId();
+        }
+
+        if (!getMessageResult.isSuggestPullingFromSlave()) {
+            return subscriptionGroupConfig.getBrokerId();
+        }
+
+        final long slaveBrokerId = this.selectSlave(group, lag);
+        return slaveBrokerId >= 0 ? slaveBrokerId : subscriptionGroupConfig.getBrokerId();
+    }
+
+
+    /**
+     * Master判断数据不在内存中的阈值乘以slaveReadCatchUpRatio
+     */
+    private long catchUpLagBytes() {
+        long memory = (long) (StoreUtil.TotalPhysicalMemorySize
+                * (this.brokerController.getMessageStoreConfig().getAccessMessageInMemoryMaxRatio() / 100.0));
+        return memory / 100 * this.brokerController.getBrokerConfig().getSlaveReadCatchUpRatio();
+    }
+
+
+    /**
+     * @return 没有可用的Slave时返回-1
+     */
+    public synchronized long selectSlave(final String group, final long lag) {
+        final long now = System.currentTimeMillis();
+        final long masterMaxPhyOffset = this.brokerController.getMessageStore().getMaxPhyOffset();
+        this.scanExpiredRoute(now);
+
+        GroupRoute route = this.groupRouteTable.get(group);
+        if (route != null && this.isAvailable(this.slaveStateTable.get(route.brokerId), masterMaxPhyOffset, now)) {
+            route.lastSelectTimestamp = now;
+            return route.brokerId;
+        }
+
+        SlaveState best = null;
+        for (SlaveState state : this.slaveStateTable.values()) {
+            if (!this.isAvailable(state, masterMaxPhyOffset, now)) {
+                continue;
+            }
+            if (null == best || state.load() < best.load()) {
+                best = state;
+            }
+        }
+
+        if (route != null) {
+            this.removeRoute(route);
+        }
+
+        if (null == best) {
+            return -1;
+        }
+
+        route = new GroupRoute(group, best.brokerId);
+        route.lastSelectTimestamp = now;
+        this.groupRouteTable.put(group, route);
+        best.steeredGroups++;
+        log.info("steer consumer group {} to slave {}, lag={}", group, best.brokerId, lag);
+        return best.brokerId;
+    }
+
+
+    private boolean isAvailable(final SlaveState state, final long masterMaxPhyOffset, final long now) {
+        return state != null
+                && now - state.lastUpdateTimestamp <= SlaveStateExpiredFactor
+                    * this.brokerController.getBrokerConfig().getSlaveStateReportInterval()
+                && masterMaxPhyOffset - state.maxPhyOffset <= this.brokerController.getMessageStoreConfig()
+                    .getHaSlaveFallbehindMax();
+    }
+
+
+    private void removeRoute(final GroupRoute route) {
+        this.groupRouteTable.remove(route.group);
+        SlaveState state = this.slaveStateTable.get(route.brokerId);
+        if (state != null && state.steeredGroups > 0) {
+            state.steeredGroups--;
+        }
+    }
+
+
+    private void scanExpiredRoute(final long now) {
+        if (now - this.lastScanTimestamp < GroupRouteExpiredMillis) {
+            return;
+        }
+
+        this.lastScanTimestamp = now;
+        Iterator<Map.Entry<String, GroupRoute>> it = this.groupRouteTable.entrySet().iterator();
+        while (it.hasNext()) {
+            GroupRoute route = it.next().getValue();
+            if (now - route.lastSelectTimestamp > GroupRouteExpiredMillis) {
+                it.remove();
+                SlaveState state = this.slaveStateTable.get(route.brokerId);
+                if (state != null && state.steeredGroups > 0) {
+                    state.steeredGroups--;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * @return 消费组当前被引导到的Slave，没有时返回-1
+     */
+    public synchronized long getSteeredBrokerId(final String group) {
+        GroupRoute route = this.groupRouteTable.get(group);
+        return null == route ? -1 : route.brokerId;
+    }
+
+
+    static class SlaveState {
+        private final long brokerId;
+        private long maxPhyOffset;
+        private int pullQueuedNums;
+        private long lastUpdateTimestamp;
+        // Master引导到该Slave的消费组数
+        private int steeredGroups;
+
+
+        SlaveState(long brokerId) {
+            this.brokerId = brokerId;
+        }
+
+
+        long load() {
+            return (long) this.pullQueuedNums + this.steeredGroups;
+        }
+    }
+
+
+    static class GroupRoute {
+        private final String group;
+        private final long brokerId;
+        private long lastSelectTimestamp;
+
+
+        GroupRoute(String group, long brokerId) {
+            this.group = group;
+            this.brokerId = brokerId;
+        }
+    }
+}
@@ -17,17 +17,24 @@
 package com.alibaba.rocketmq.broker.slave;
 
 import com.alibaba.rocketmq.broker.BrokerController;
+import com.alibaba.rocketmq.broker.offset.ConsumerOffsetManager;
 import com.alibaba.rocketmq.broker.subscription.SubscriptionGroupManager;
+import com.alibaba.rocketmq.client.exception.MQBrokerException;
 import com.alibaba.rocketmq.common.MixAll;
 import com.alibaba.rocketmq.common.constant.LoggerName;
+import com.alibaba.rocketmq.common.protocol.body.ConsumerOffsetDeltaWrapper;
 import com.alibaba.rocketmq.common.protocol.body.ConsumerOffsetSerializeWrapper;
 import com.alibaba.rocketmq.common.protocol.body.SubscriptionGroupWrapper;
 import com.alibaba.rocketmq.common.protocol.body.TopicConfigSerializeWrapper;
+import com.alibaba.rocketmq.common.protocol.header.ReportSlaveStateRequestHeader;
+import com.alibaba.rocketmq.remoting.exception.RemotingTimeoutException;
+import com.alibaba.rocketmq.remoting.protocol.RemotingSysResponseCode;
 import com.alibaba.rocketmq.store.config.StorePathConfigHelper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 /**
@@ -36,8 +43,18 @@ import java.io.IOException;
  */
 public class SlaveSynchronize {
     private static final Logger log = LoggerFactory.getLogger(LoggerName.BrokerLoggerName);
+    // 不支持增量同步的Master隔一段时间再试一次，Master可能已经在原地址升级
+    private static final long DeltaUnsupportedRetryInterval = 1000 * 60 * 10;
     private final BrokerController brokerController;
     private volatile String masterAddr = null;
+    // 已经同步到的Master消费进度版本
+    private volatile long offsetEpoch = -1;
+    private volatile long offsetRound = -1;
+    /**
+     * 不支持增量获取消费进度的Master地址及发现时间，期间直接全量同步，不再每次等待超时
+     */
+    private final ConcurrentHashMap<String/* masterAddr */, Long> deltaUnsupportedMasters =
+            new ConcurrentHashMap<String, Long>();
 
 
     public SlaveSynchronize(BrokerController brokerController) {
@@ -51,6 +68,9 @@ public class SlaveSynchronize {
 
 
     public void setMasterAddr(String masterAddr) {
+        if (masterAddr != null && !masterAddr.equals(this.masterAddr)) {
+            this.offsetEpoch = -1;
+        }
         this.masterAddr = masterAddr;
     }
 
@@ -63,6 +83,34 @@ public class SlaveSynchronize {
     }
 
 
+    /**
+     * 向Master报告复制进度和拉消息负载，Master据此引导回溯消费者到Slave
+     */
+    public void reportSlaveState() {
+        String masterAddrBak = this.masterAddr;
+        if (masterAddrBak != null) {
+            try {
+                int pullQueuedNums = 0;
+                if (this.brokerController.getHotPullScheduler() != null) {
+                    pullQueuedNums += this.brokerController.getHotPullScheduler().getQueuedNums();
+                }
+                if (this.brokerController.getColdPullScheduler() != null) {
+                    pullQueuedNums += this.brokerController.getColdPullScheduler().getQueuedNums();
+                }
+
+                ReportSlaveStateRequestHeader requestHeader = new ReportSlaveStateRequestHeader();
+                requestHeader.setBrokerId(this.brokerController.getBrokerConfig().getBrokerId());
+                requestHeader.setMaxPhyOffset(this.brokerController.getMessageStore().getMaxPhyOffset());
+                requestHeader.setPullQueuedNums(pullQueuedNums);
+                this.brokerController.getBrokerOuterAPI().reportSlaveState(masterAddrBak, requestHeader);
+            }
+            catch (Exception e) {
+                log.warn("reportSlaveState Exception, " + masterAddrBak, e);
+            }
+        }
+    }
+
+
     private void syncTopicConfig() {
         String masterAddrBak = this.masterAddr;
         if (masterAddrBak != null) {
@@ -93,12 +141,42 @@ public class SlaveSynchronize {
         String masterAddrBak = this.masterAddr;
         if (masterAddrBak != null) {
             try {
-                ConsumerOffsetSerializeWrapper offsetWrapper =
-                        this.brokerController.getBrokerOuterAPI().getAllConsumerOffset(masterAddrBak);
-                this.brokerController.getConsumerOffsetManager().getOffsetTable()
-                    .putAll(offsetWrapper.getOffsetTable());
-                this.brokerController.getConsumerOffsetManager().persist();
-                log.info("update slave consumer offset from master, {}", masterAddrBak);
+                ConsumerOffsetManager consumerOffsetManager = this.brokerController.getConsumerOffsetManager();
+                ConsumerOffsetDeltaWrapper deltaWrapper = null;
+                if (this.isDeltaSupported(masterAddrBak)) {
+                    try {
+                        deltaWrapper =
+                                this.brokerController.getBrokerOuterAPI().getConsumerOffsetDelta(masterAddrBak,
+                                    this.offsetEpoch, this.offsetRound);
+                    }
+                    catch (RemotingTimeoutException e) {
+                        // 老版本的Master不响应增量请求
+                        this.deltaUnsupportedMasters.put(masterAddrBak, System.currentTimeMillis());
+                        log.warn("getConsumerOffsetDelta timeout, full sync from now on, {}", masterAddrBak);
+                    }
+                    catch (MQBrokerException e) {
+                        if (e.getResponseCode() != RemotingSysResponseCode.REQUEST_CODE_NOT_SUPPORTED) {
+                            throw e;
+                        }
+                        this.deltaUnsupportedMasters.put(masterAddrBak, System.currentTimeMillis());
+                        log.warn("getConsumerOffsetDelta not supported, full sync from now on, {}", masterAddrBak);
+                    }
+                }
+
+                if (deltaWrapper != null) {
+                    consumerOffsetManager.applyOffsetTable(deltaWrapper.getOffsetTable());
+                    this.offsetEpoch = deltaWrapper.getEpoch();
+                    this.offsetRound = deltaWrapper.getRound();
+                    log.info("update slave consumer offset from master, {}, full: {}, {} entries", masterAddrBak,
+                        deltaWrapper.isFull(), deltaWrapper.getOffsetTable().size());
+                }
+                else {
+                    ConsumerOffsetSerializeWrapper offsetWrapper =
+                            this.brokerController.getBrokerOuterAPI().getAllConsumerOffset(masterAddrBak);
+                    consumerOffsetManager.applyOffsetTable(offsetWrapper.getOffsetTable());
+                    log.info("update slave consumer offset from master, {}", masterAddrBak);
+                }
+                consumerOffsetManager.persist();
             }
             catch (Exception e) {
                 log.error("syncConsumerOffset Exception, " + masterAddrBak, e);
@@ -107,6 +185,20 @@ public class SlaveSynchronize {
     }
 
 
+    private boolean isDeltaSupported(final String masterAddr) {
+        Long unsupportedTime = this.deltaUnsupportedMasters.get(masterAddr);
+        if (null == unsupportedTime) {
+            return true;
+        }
+
+        if (System.currentTimeMillis() - unsupportedTime >= DeltaUnsupportedRetryInterval) {
+            this.deltaUnsupportedMasters.remove(masterAddr);
+            return true;
+        }
+        return false;
+    }
+
+
     private void syncDelayOffset() {
         String masterAddrBak = this.masterAddr;
         if (masterAddrBak != null) {
@@ -0,0 +1,201 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.alibaba.rocketmq.broker.offset;
+
+import com.alibaba.rocketmq.broker.BrokerController;
+import com.alibaba.rocketmq.broker.BrokerPathConfigHelper;
+import com.alibaba.rocketmq.common.BrokerConfig;
+import com.alibaba.rocketmq.common.utils.IOTinyUtils;
+import com.alibaba.rocketmq.common.protocol.body.ConsumerOffsetDeltaWrapper;
+import com.alibaba.rocketmq.remoting.netty.NettyClientConfig;
+import com.alibaba.rocketmq.remoting.netty.NettyServerConfig;
+import com.alibaba.rocketmq.store.config.MessageStoreConfig;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class ConsumerOffsetJournalTest {
+    private String rootDir;
+    private BrokerController brokerController;
+
+
+    @Before
+    public void setUp() throws Exception {
+        this.rootDir = System.getProperty("java.io.tmpdir") + File.separator + "consumer_offset_journal_" + System.nanoTime();
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setStorePathRootDir(this.rootDir);
+        this.brokerController = new BrokerController(new BrokerConfig(), new NettyServerConfig(),
+            new NettyClientConfig(), messageStoreConfig);
+    }
+
+
+    @After
+    public void tearDown() throws Exception {
+        IOTinyUtils.delete(new File(this.rootDir));
+    }
+
+
+    private ConsumerOffsetManager reload() {
+        ConsumerOffsetManager consumerOffsetManager = new ConsumerOffsetManager(this.brokerController);
+        assertTrue(consumerOffsetManager.load());
+        return consumerOffsetManager;
+    }
+
+
+    @Test
+    public void test_persistAndReload() throws Exception {
+        ConsumerOffsetManager consumerOffsetManager = this.reload();
+        for (int i = 0; i < 100; i++) {
+            for (int id = 0; id < 16; id++) {
+                consumerOffsetManager.commitOffset("GROUP_" + i, "TOPIC_A", id, i * 1000 + id);
+            }
+        }
+        consumerOffsetManager.persist();
+
+        // 只有一个group变化，日志只追加这一条
+        long journalSize = journalFile().length();
+        consumerOffsetManager.commitOffset("GROUP_7", "TOPIC_A", 3, 1L << 40);
+        consumerOffsetManager.persist();
+        assertEquals(4 + 4 + 2 + "TOPIC_A@GROUP_7".length() + 4 + 16 * 12, journalFile().length() - journalSize);
+
+        consumerOffsetManager = this.reload();
+        assertEquals(1L << 40, consumerOffsetManager.queryOffset("GROUP_7", "TOPIC_A", 3));
+        assertEquals(99 * 1000 + 15, consumerOffsetManager.queryOffset("GROUP_99", "TOPIC_A", 15));
+
+        // 正常关闭后合并成快照，日志清空
+        consumerOffsetManager.commitOffset("GROUP_8", "TOPIC_A", 0, 8);
+        consumerOffsetManager.shutdown();
+        assertTrue(new File(BrokerPathConfigHelper.getConsumerOffsetSnapshotPath(this.rootDir)).exists());
+        assertEquals(20, journalFile().length());
+
+        consumerOffsetManager = this.reload();
+        assertEquals(8, consumerOffsetManager.queryOffset("GROUP_8", "TOPIC_A", 0));
+        assertEquals(1L << 40, consumerOffsetManager.queryOffset("GROUP_7", "TOPIC_A", 3));
+        assertEquals(100, consumerOffsetManager.getOffsetTable().size());
+        consumerOffsetManager.shutdown();
+    }
+
+
+    @Test
+    public void test_truncateTornRecord() throws Exception {
+        ConsumerOffsetManager consumerOffsetManager = this.reload();
+        consumerOffsetManager.commitOffset("GROUP", "TOPIC_A", 0, 100);
+        consumerOffsetManager.persist();
+        consumerOffsetManager.commitOffset("GROUP", "TOPIC_A", 0, 200);
+        consumerOffsetManager.persist();
+
+        // 模拟最后一条记录只写了一半
+        RandomAccessFile raf = new RandomAccessFile(journalFile(), "rw");
+        raf.setLength(raf.length() - 5);
+        raf.close();
+
+        consumerOffsetManager = this.reload();
+        assertEquals(100, consumerOffsetManager.queryOffset("GROUP", "TOPIC_A", 0));
+
+        // 尾部的垃圾数据解析出很大的长度
+        raf = new RandomAccessFile(journalFile(), "rw");
+        raf.seek(raf.length());
+        raf.writeInt(Integer.MAX_VALUE);
+        raf.writeInt(0);
+        raf.close();
+        consumerOffsetManager = this.reload();
+        assertEquals(100, consumerOffsetManager.queryOffset("GROUP", "TOPIC_A", 0));
+
+        // 截断后追加的记录能被正常重放
+        consumerOffsetManager.commitOffset("GROUP", "TOPIC_A", 0, 300);
+        consumerOffsetManager.persist();
+        consumerOffsetManager = this.reload();
+        assertEquals(300, consumerOffsetManager.queryOffset("GROUP", "TOPIC_A", 0));
+    }
+
+
+    @Test
+    public void test_toggleJournal() throws Exception {
+        ConsumerOffsetManager consumerOffsetManager = this.reload();
+        consumerOffsetManager.commitOffset("GROUP", "TOPIC_A", 0, 100);
+        consumerOffsetManager.shutdown();
+        Thread.sleep(20);
+
+        // 关闭二进制存储运行一段时间，进度只写到json
+        this.brokerController.getBrokerConfig().setConsumerOffsetJournalEnable(false);
+        consumerOffsetManager = this.reload();
+        assertEquals(100, consumerOffsetManager.queryOffset("GROUP", "TOPIC_A", 0));
+        consumerOffsetManager.commitOffset("GROUP", "TOPIC_A", 0, 200);
+        consumerOffsetManager.persist();
+        Thread.sleep(20);
+
+        // 重新打开后不能加载旧的快照和日志
+        this.brokerController.getBrokerConfig().setConsumerOffsetJournalEnable(true);
+        consumerOffsetManager = this.reload();
+        assertEquals(200, consumerOffsetManager.queryOffset("GROUP", "TOPIC_A", 0));
+        consumerOffsetManager.commitOffset("GROUP", "TOPIC_A", 0, 300);
+        consumerOffsetManager.persist();
+
+        // 二进制存储重新成为较新的一个
+        consumerOffsetManager = this.reload();
+        assertEquals(300, consumerOffsetManager.queryOffset("GROUP", "TOPIC_A", 0));
+        consumerOffsetManager.shutdown();
+    }
+
+
+    @Test
+    public void test_queryOffsetDelta() throws Exception {
+        ConsumerOffsetManager consumerOffsetManager = this.reload();
+        consumerOffsetManager.commitOffset("GROUP_A", "TOPIC_A", 0, 1);
+        consumerOffsetManager.commitOffset("GROUP_B", "TOPIC_A", 0, 1);
+        consumerOffsetManager.persist();
+
+        // 第一次同步是全量
+        ConsumerOffsetDeltaWrapper wrapper = consumerOffsetManager.queryOffsetDelta(-1, -1);
+        assertTrue(wrapper.isFull());
+        assertEquals(2, wrapper.getOffsetTable().size());
+
+        consumerOffsetManager.commitOffset("GROUP_A", "TOPIC_A", 0, 2);
+        consumerOffsetManager.persist();
+        consumerOffsetManager.commitOffset("GROUP_A", "TOPIC_A", 1, 3);
+        consumerOffsetManager.persist();
+
+        ConsumerOffsetDeltaWrapper delta = consumerOffsetManager.queryOffsetDelta(wrapper.getEpoch(), wrapper.getRound());
+        assertFalse(delta.isFull());
+        assertEquals(1, delta.getOffsetTable().size());
+        assertEquals(Long.valueOf(2), delta.getOffsetTable().get("TOPIC_A@GROUP_A").get(0));
+        assertEquals(Long.valueOf(3), delta.getOffsetTable().get("TOPIC_A@GROUP_A").get(1));
+
+        // 已经是最新
+        delta = consumerOffsetManager.queryOffsetDelta(delta.getEpoch(), delta.getRound());
+        assertFalse(delta.isFull());
+        assertTrue(delta.getOffsetTable().isEmpty());
+
+        // Master重启过
+        delta = consumerOffsetManager.queryOffsetDelta(delta.getEpoch() - 1, delta.getRound());
+        assertTrue(delta.isFull());
+        consumerOffsetManager.shutdown();
+    }
+
+
+    private File journalFile() {
+        return new File(BrokerPathConfigHelper.getConsumerOffsetJournalPath(this.rootDir));
+    }
+}
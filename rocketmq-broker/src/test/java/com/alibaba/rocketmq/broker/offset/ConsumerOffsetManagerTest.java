@@ -24,8 +24,11 @@ import java.util.Random;
 
 import org.junit.Test;
 
+import static org.junit.Assert.assertEquals;
+
 import com.alibaba.rocketmq.broker.BrokerController;
 import com.alibaba.rocketmq.common.BrokerConfig;
+import com.alibaba.rocketmq.common.protocol.body.UpdateConsumerOffsetBatchRequestBody;
 import com.alibaba.rocketmq.remoting.netty.NettyClientConfig;
 import com.alibaba.rocketmq.remoting.netty.NettyServerConfig;
 import com.alibaba.rocketmq.store.config.MessageStoreConfig;
@@ -66,4 +69,30 @@ public class ConsumerOffsetManagerTest {
 
         brokerController.shutdown();
     }
+
+
+    @Test
+    public void test_commitOffsetBatch() throws Exception {
+        ConsumerOffsetManager consumerOffsetManager = new ConsumerOffsetManager();
+        consumerOffsetManager.commitOffset("DIANPU_GROUP", "TOPIC_A", 0, 10);
+
+        UpdateConsumerOffsetBatchRequestBody requestBody = new UpdateConsumerOffsetBatchRequestBody();
+        requestBody.setConsumerGroup("DIANPU_GROUP");
+        for (int id = 0; id < 16; id++) {
+            requestBody.addOffset("TOPIC_A", id, 1000L + id);
+            requestBody.addOffset("TOPIC_B", id, 1L << 40);
+        }
+
+        // 经过一次编解码，和Broker收到的一样
+        UpdateConsumerOffsetBatchRequestBody decoded =
+                UpdateConsumerOffsetBatchRequestBody.decode(requestBody.encode(),
+                    UpdateConsumerOffsetBatchRequestBody.class);
+        consumerOffsetManager.commitOffset(decoded.getConsumerGroup(), decoded.getOffsetTable());
+
+        for (int id = 0; id < 16; id++) {
+            assertEquals(1000L + id, consumerOffsetManager.queryOffset("DIANPU_GROUP", "TOPIC_A", id));
+            assertEquals(1L << 40, consumerOffsetManager.queryOffset("DIANPU_GROUP", "TOPIC_B", id));
+        }
+        assertEquals(-1, consumerOffsetManager.queryOffset("DIANPU_GROUP", "TOPIC_C", 0));
+    }
 }
@@ -0,0 +1,222 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.broker.qos;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+
+public class PullQosSchedulerTest {
+
+    @Test
+    public void test_weighted_fair() throws Exception {
+        PullQosScheduler scheduler = new PullQosScheduler("TestPull", 1, 1000, 1000, 1, null);
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch blocker = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(40);
+        try {
+            scheduler.start();
+            // 占住唯一的线程，让后面的请求全部排队
+            scheduler.execute("Blocker", 1, new Runnable() {
+                @Override
+                public void run() {
+                    blocked.countDown();
+                    try {
+                        blocker.await();
+                    } catch (InterruptedException e) {
+                    }
+                }
+            });
+            assertTrue(blocked.await(10, TimeUnit.SECONDS));
+
+            ExecutorService laneA = scheduler.laneExecutor("GroupA", 3);
+            ExecutorService laneB = scheduler.laneExecutor("GroupB", 1);
+            for (int i = 0; i < 20; i++) {
+                laneA.execute(new Recorder("GroupA", order, done));
+                laneB.execute(new Recorder("GroupB", order, done));
+            }
+            assertEquals(40, scheduler.getQueuedNums());
+            blocker.countDown();
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+
+            // 两个组都有请求排队时按3:1调度
+            int countA = 0;
+            for (String group : order.subList(0, 16)) {
+                if ("GroupA".equals(group)) {
+                    countA++;
+                }
+            }
+            assertEquals(12, countA);
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+
+    @Test
+    public void test_group_inflight_limit() throws Exception {
+        PullQosScheduler scheduler = new PullQosScheduler("TestPull", 4, 2, 2, 1, null);
+        final AtomicInteger running = new AtomicInteger(0);
+        final AtomicInteger maxRunning = new AtomicInteger(0);
+        final CountDownLatch done = new CountDownLatch(2);
+        try {
+            scheduler.start();
+            for (int i = 0; i < 2; i++) {
+                scheduler.execute("GroupA", 1, new Runnable() {
+                    @Override
+                    public void run() {
+                        int now = running.incrementAndGet();
+                        if (now > maxRunning.get()) {
+                            maxRunning.set(now);
+                        }
+                        try {
+                            Thread.sleep(100);
+                        } catch (InterruptedException e) {
+                        }
+                        running.decrementAndGet();
+                        done.countDown();
+                    }
+                });
+            }
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            // 线程数足够，但同一个组同时只能执行一个请求
+            assertEquals(1, maxRunning.get());
+            // 任务结束后工作线程才释放inflight
+            for (int i = 0; i < 100 && scheduler.getInflightNums("GroupA") > 0; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, scheduler.getInflightNums("GroupA"));
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+
+    @Test(expected = RejectedExecutionException.class)
+    public void test_reject_when_queue_full() {
+        PullQosScheduler scheduler = new PullQosScheduler("TestPull", 1, 2, 100, 1, null);
+        Runnable noop = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+        // 没有启动工作线程，请求全部排队
+        scheduler.execute("GroupA", 1, noop);
+        scheduler.execute("GroupA", 1, noop);
+        scheduler.execute("GroupA", 1, noop);
+    }
+
+
+    @Test
+    public void test_reject_only_group_over_its_share() {
+        PullQosScheduler scheduler = new PullQosScheduler("TestPull", 1, 100, 2, 1, null);
+        Runnable noop = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+        // 没有启动工作线程，请求全部排队
+        scheduler.execute("GroupA", 1, noop);
+        scheduler.execute("GroupA", 1, noop);
+        try {
+            scheduler.execute("GroupA", 1, noop);
+            fail("GroupA is over its share");
+        } catch (RejectedExecutionException e) {
+        }
+        scheduler.execute("GroupB", 1, noop);
+        assertEquals(3, scheduler.getQueuedNums());
+        assertSame(scheduler.laneExecutor("GroupA", 1), scheduler.laneExecutor("GroupA", 2));
+        scheduler.shutdownNow();
+    }
+
+
+    @Test
+    public void test_shutdown_drains_queued() throws Exception {
+        PullQosScheduler scheduler = new PullQosScheduler("TestPull", 2, 100, 100, 1, null);
+        final CountDownLatch blocker = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(5);
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        scheduler.start();
+        // GroupA同时只能执行一个请求，停止时还有4个请求在排队
+        scheduler.execute("GroupA", 1, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    blocker.await();
+                } catch (InterruptedException e) {
+                }
+                done.countDown();
+            }
+        });
+        for (int i = 0; i < 4; i++) {
+            scheduler.execute("GroupA", 1, new Recorder("GroupA", order, done));
+        }
+        scheduler.shutdown();
+        blocker.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(4, order.size());
+        assertEquals(0, scheduler.getQueuedNums());
+    }
+
+
+    @Test
+    public void test_shutdownNow_returns_queued() {
+        PullQosScheduler scheduler = new PullQosScheduler("TestPull", 1, 100, 100, 1, null);
+        Runnable noop = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+        // 没有启动工作线程，请求全部排队
+        scheduler.execute("GroupA", 1, noop);
+        scheduler.execute("GroupB", 1, noop);
+        assertEquals(2, scheduler.shutdownNow().size());
+        assertEquals(0, scheduler.getQueuedNums());
+    }
+
+
+    static class Recorder implements Runnable {
+        private final String group;
+        private final List<String> order;
+        private final CountDownLatch done;
+
+
+        Recorder(String group, List<String> order, CountDownLatch done) {
+            this.group = group;
+            this.order = order;
+            this.done = done;
+        }
+
+
+        @Override
+        public void run() {
+            this.order.add(this.group);
+            this.done.countDown();
+        }
+    }
+}
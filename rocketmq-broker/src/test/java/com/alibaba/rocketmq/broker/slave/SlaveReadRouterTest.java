@@ -0,0 +1,117 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.broker.slave;
+
+import com.alibaba.rocketmq.broker.BrokerController;
+import com.alibaba.rocketmq.common.BrokerConfig;
+import com.alibaba.rocketmq.common.MixAll;
+import com.alibaba.rocketmq.common.subscription.SubscriptionGroupConfig;
+import com.alibaba.rocketmq.remoting.netty.NettyClientConfig;
+import com.alibaba.rocketmq.remoting.netty.NettyServerConfig;
+import com.alibaba.rocketmq.store.GetMessageResult;
+import com.alibaba.rocketmq.store.StoreUtil;
+import com.alibaba.rocketmq.store.config.BrokerRole;
+import com.alibaba.rocketmq.store.config.MessageStoreConfig;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+
+public class SlaveReadRouterTest {
+
+    private static void deleteFile(final File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                deleteFile(f);
+            }
+        }
+        file.delete();
+    }
+
+
+    private static GetMessageResult result(final boolean suggestPullingFromSlave, final long lagBytes) {
+        GetMessageResult getMessageResult = new GetMessageResult();
+        getMessageResult.setSuggestPullingFromSlave(suggestPullingFromSlave);
+        getMessageResult.setPullingLagBytes(lagBytes);
+        return getMessageResult;
+    }
+
+
+    private static BrokerController createBrokerController(final String storePath, final BrokerRole role) {
+        BrokerConfig brokerConfig = new BrokerConfig();
+        brokerConfig.setAdaptiveSlaveReadEnable(true);
+        brokerConfig.setBrokerId(BrokerRole.SLAVE == role ? 1 : MixAll.MASTER_ID);
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setStorePathRootDir(storePath);
+        messageStoreConfig.setStorePathCommitLog(storePath + File.separator + "commitlog");
+        messageStoreConfig.setBrokerRole(role);
+        return new BrokerController(brokerConfig, new NettyServerConfig(), new NettyClientConfig(), messageStoreConfig);
+    }
+
+
+    @Test
+    public void test_master_steer_to_least_loaded_slave() throws Exception {
+        String storePath = System.getProperty("java.io.tmpdir") + File.separator + "SlaveReadRouterTest-" + System.nanoTime();
+        BrokerController brokerController = createBrokerController(storePath, BrokerRole.ASYNC_MASTER);
+        try {
+            assertTrue(brokerController.initialize());
+            SlaveReadRouter router = brokerController.getSlaveReadRouter();
+            SubscriptionGroupConfig groupConfig = new SubscriptionGroupConfig();
+
+            // 没有Slave报告状态时留在Master
+            assertEquals(MixAll.MASTER_ID, router.suggestBrokerId("GroupA", result(true, 5000), groupConfig));
+
+            router.updateSlaveState(1, 0, 10);
+            router.updateSlaveState(2, 0, 0);
+
+            // 数据在内存中时不引导
+            assertEquals(MixAll.MASTER_ID, router.suggestBrokerId("GroupA", result(false, 5000), groupConfig));
+
+            assertEquals(2, router.suggestBrokerId("GroupA", result(true, 5000), groupConfig));
+            // 同一个消费组固定在同一个Slave上
+            router.updateSlaveState(2, 0, 20);
+            assertEquals(2, router.suggestBrokerId("GroupA", result(true, 5000), groupConfig));
+            assertEquals(1, router.suggestBrokerId("GroupB", result(true, 5000), groupConfig));
+            assertEquals(1, router.getSteeredBrokerId("GroupB"));
+        } finally {
+            brokerController.shutdown();
+            deleteFile(new File(storePath));
+        }
+    }
+
+
+    @Test
+    public void test_slave_steer_back_after_catch_up() throws Exception {
+        String storePath = System.getProperty("java.io.tmpdir") + File.separator + "SlaveReadRouterTest-" + System.nanoTime();
+        BrokerController brokerController = createBrokerController(storePath, BrokerRole.SLAVE);
+        try {
+            assertTrue(brokerController.initialize());
+            SlaveReadRouter router = brokerController.getSlaveReadRouter();
+            SubscriptionGroupConfig groupConfig = new SubscriptionGroupConfig();
+
+            // 落后字节数超过内存窗口的一半时留在Slave
+            assertEquals(1, router.suggestBrokerId("GroupA", result(false, StoreUtil.TotalPhysicalMemorySize), groupConfig));
+            assertEquals(MixAll.MASTER_ID, router.suggestBrokerId("GroupA", result(false, 100), groupConfig));
+        } finally {
+            brokerController.shutdown();
+            deleteFile(new File(storePath));
+        }
+    }
+}
@@ -22,8 +22,11 @@ import com.alibaba.rocketmq.client.producer.DefaultMQProducer;
 import com.alibaba.rocketmq.common.MixAll;
 import com.alibaba.rocketmq.common.UtilAll;
 import com.alibaba.rocketmq.common.message.Message;
+import com.alibaba.rocketmq.common.message.MessageConst;
+import com.alibaba.rocketmq.common.message.MessageDecoder;
 import com.alibaba.rocketmq.common.protocol.ResponseCode;
 
+import java.util.Collection;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -146,4 +149,51 @@ public class Validators {
                     "the message body size over max value, MAX: " + defaultMQProducer.getMaxMessageSize());
         }
     }
+
+
+    /**
+     * 批量消息必须是同一个Topic和waitStoreMsgOK，不支持延时消息、事务消息和重试队列，
+     * 编码后的Body整体不能超过maxMessageSize，与Broker端的检查一致
+     */
+    public static void checkBatchMessages(Collection<Message> msgs, DefaultMQProducer defaultMQProducer)
+            throws MQClientException {
+        if (null == msgs || msgs.isEmpty()) {
+            throw new MQClientException(ResponseCode.MESSAGE_ILLEGAL, "the messages of one batch should not be empty");
+        }
+
+        Message first = null;
+        long encodedSize = 0;
+        for (Message msg : msgs) {
+            Validators.checkMessage(msg, defaultMQProducer);
+            encodedSize += MessageDecoder.encodedMessageSize(msg);
+            if (msg.getDelayTimeLevel() > 0) {
+                throw new MQClientException(ResponseCode.MESSAGE_ILLEGAL, "TimeDelayLevel is not supported for batching");
+            }
+            if (msg.getTopic().startsWith(MixAll.RETRY_GROUP_TOPIC_PREFIX)) {
+                throw new MQClientException(ResponseCode.MESSAGE_ILLEGAL, "Retry Group is not supported for batching");
+            }
+            if (msg.getProperty(MessageConst.PROPERTY_TIMER_DELIVER_MS) != null) {
+                throw new MQClientException(ResponseCode.MESSAGE_ILLEGAL, "Timer message is not supported for batching");
+            }
+            if (Boolean.parseBoolean(msg.getProperty(MessageConst.PROPERTY_TRANSACTION_PREPARED))) {
+                throw new MQClientException(ResponseCode.MESSAGE_ILLEGAL,
+                        "Transaction message is not supported for batching");
+            }
+
+            if (null == first) {
+                first = msg;
+            } else if (!first.getTopic().equals(msg.getTopic())) {
+                throw new MQClientException(ResponseCode.MESSAGE_ILLEGAL,
+                        "The topic of the messages in one batch should be the same");
+            } else if (first.isWaitStoreMsgOK() != msg.isWaitStoreMsgOK()) {
+                throw new MQClientException(ResponseCode.MESSAGE_ILLEGAL,
+                        "The waitStoreMsgOK of the messages in one batch should the same");
+            }
+        }
+
+        if (encodedSize > defaultMQProducer.getMaxMessageSize()) {
+            throw new MQClientException(ResponseCode.MESSAGE_ILLEGAL, "the encoded batch size " + encodedSize
+                    + " over max value, MAX: " + defaultMQProducer.getMaxMessageSize());
+        }
+    }
 }
@@ -21,6 +21,7 @@ import com.alibaba.rocketmq.client.QueryResult;
 import com.alibaba.rocketmq.client.consumer.listener.MessageListener;
 import com.alibaba.rocketmq.client.consumer.listener.MessageListenerConcurrently;
 import com.alibaba.rocketmq.client.consumer.listener.MessageListenerOrderly;
+import com.alibaba.rocketmq.client.consumer.listener.ShardingKeySelector;
 import com.alibaba.rocketmq.client.consumer.rebalance.AllocateMessageQueueAveragely;
 import com.alibaba.rocketmq.client.consumer.store.OffsetStore;
 import com.alibaba.rocketmq.client.exception.MQBrokerException;
@@ -106,6 +107,15 @@ public class DefaultMQPushConsumer extends ClientConfig implements MQPushConsume
      * Flow control threshold
      */
     private int pullThresholdForQueue = 1000;
+    /**
+     * Flow control threshold of cached message body size per queue, in MiB
+     */
+    private int pullThresholdSizeForQueue = 100;
+    /**
+     * Flow control threshold of cached message body size across all push consumers
+     * of the same client instance, in MiB. Defaults to a quarter of the max heap
+     */
+    private int pullThresholdSizeForClient = (int) Math.max(1, Runtime.getRuntime().maxMemory() / 4 / 1024 / 1024);
     /**
      * Message pull Interval
      */
@@ -118,6 +128,19 @@ public class DefaultMQPushConsumer extends ClientConfig implements MQPushConsume
      * Batch pull size
      */
     private int pullBatchSize = 32;
+    /**
+     * Whether adapt the pull batch size of each queue to its consume rate, pullBatchSize is the upper bound
+     */
+    private boolean adaptivePullBatchEnable = true;
+    /**
+     * Orderly consumption lanes per locked queue. Messages of one queue are sharded onto lanes by
+     * shardingKeySelector and consumed in parallel, keeping order per sharding key. 1 disables it
+     */
+    private int consumeOrderlyShardingLanes = 1;
+    /**
+     * Sharding key of orderly consumption lanes, message keys are used if not set
+     */
+    private ShardingKeySelector shardingKeySelector;
 
     /**
      * Whether update subscription relationship when every pull
@@ -326,6 +349,26 @@ public class DefaultMQPushConsumer extends ClientConfig implements MQPushConsume
     }
 
 
+    public int getPullThresholdSizeForQueue() {
+        return pullThresholdSizeForQueue;
+    }
+
+
+    public void setPullThresholdSizeForQueue(int pullThresholdSizeForQueue) {
+        this.pullThresholdSizeForQueue = pullThresholdSizeForQueue;
+    }
+
+
+    public int getPullThresholdSizeForClient() {
+        return pullThresholdSizeForClient;
+    }
+
+
+    public void setPullThresholdSizeForClient(int pullThresholdSizeForClient) {
+        this.pullThresholdSizeForClient = pullThresholdSizeForClient;
+    }
+
+
     public Map<String, String> getSubscription() {
         return subscription;
     }
@@ -475,4 +518,34 @@ public class DefaultMQPushConsumer extends ClientConfig implements MQPushConsume
     public void setAdjustThreadPoolNumsThreshold(long adjustThreadPoolNumsThreshold) {
         this.adjustThreadPoolNumsThreshold = adjustThreadPoolNumsThreshold;
     }
+
+
+    public boolean isAdaptivePullBatchEnable() {
+        return adaptivePullBatchEnable;
+    }
+
+
+    public void setAdaptivePullBatchEnable(boolean adaptivePullBatchEnable) {
+        this.adaptivePullBatchEnable = adaptivePullBatchEnable;
+    }
+
+
+    public int getConsumeOrderlyShardingLanes() {
+        return consumeOrderlyShardingLanes;
+    }
+
+
+    public void setConsumeOrderlyShardingLanes(int consumeOrderlyShardingLanes) {
+        this.consumeOrderlyShardingLanes = consumeOrderlyShardingLanes;
+    }
+
+
+    public ShardingKeySelector getShardingKeySelector() {
+        return shardingKeySelector;
+    }
+
+
+    public void setShardingKeySelector(ShardingKeySelector shardingKeySelector) {
+        this.shardingKeySelector = shardingKeySelector;
+    }
 }
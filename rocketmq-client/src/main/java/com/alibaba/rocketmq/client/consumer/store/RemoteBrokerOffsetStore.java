@@ -16,10 +16,12 @@
  */
 package com.alibaba.rocketmq.client.consumer.store;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
@@ -34,9 +36,15 @@ import com.alibaba.rocketmq.client.log.ClientLogger;
 import com.alibaba.rocketmq.common.MixAll;
 import com.alibaba.rocketmq.common.UtilAll;
 import com.alibaba.rocketmq.common.message.MessageQueue;
+import com.alibaba.rocketmq.common.protocol.ResponseCode;
+import com.alibaba.rocketmq.common.protocol.body.UpdateConsumerOffsetBatchRequestBody;
 import com.alibaba.rocketmq.common.protocol.header.QueryConsumerOffsetRequestHeader;
 import com.alibaba.rocketmq.common.protocol.header.UpdateConsumerOffsetRequestHeader;
+import com.alibaba.rocketmq.remoting.InvokeCallback;
 import com.alibaba.rocketmq.remoting.exception.RemotingException;
+import com.alibaba.rocketmq.remoting.netty.ResponseFuture;
+import com.alibaba.rocketmq.remoting.protocol.RemotingCommand;
+import com.alibaba.rocketmq.remoting.protocol.RemotingSysResponseCode;
 
 
 /**
@@ -51,6 +59,15 @@ public class RemoteBrokerOffsetStore implements OffsetStore {
     private final AtomicLong storeTimesTotal = new AtomicLong(0);
     private ConcurrentHashMap<MessageQueue, AtomicLong> offsetTable =
             new ConcurrentHashMap<MessageQueue, AtomicLong>();
+    /**
+     * 上次提交到Broker的Offset，没有变化的队列不再提交
+     */
+    private final ConcurrentHashMap<MessageQueue, Long> committedTable = new ConcurrentHashMap<MessageQueue, Long>();
+    /**
+     * 不支持批量提交的Broker地址，退回到逐个队列提交
+     */
+    private final Set<String> batchUnsupportedBrokers =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
 
     public RemoteBrokerOffsetStore(MQClientInstance mQClientFactory, String groupName) {
@@ -146,7 +163,8 @@ public class RemoteBrokerOffsetStore implements OffsetStore {
     }
 
     /**
-     * 更新Queue Offset信息到broker
+     * 更新Queue Offset信息到broker，按Broker合并成一个批量请求，只提交有变化的队列<br>
+     * 每12次（默认1分钟）全量提交一次，防止Broker丢失进度后一直不再更新
      *
      * @param mqs
      */
@@ -157,53 +175,74 @@ public class RemoteBrokerOffsetStore implements OffsetStore {
 
         final HashSet<MessageQueue> unusedMQ = new HashSet<MessageQueue>();
         long times = this.storeTimesTotal.getAndIncrement();
-
-        if (mqs != null && !mqs.isEmpty()) {
-            for (MessageQueue mq : this.offsetTable.keySet()) {
-                /**
-                 * 从本地获取Offset信息
-                 */
-                AtomicLong offset = this.offsetTable.get(mq);
-                if (offset != null) {
-                    if (mqs.contains(mq)) {
-                        try {
-                            this.updateConsumeOffsetToBroker(mq, offset.get());
-                            if ((times % 12) == 0) {
-                                log.info("Group: {} ClientId: {} updateConsumeOffsetToBroker {} {}", //
-                                        this.groupName,//
-                                        this.mQClientFactory.getClientId(),//
-                                        mq, //
-                                        offset.get());
-                            }
-                        } catch (Exception e) {
-                            log.error("updateConsumeOffsetToBroker exception, " + mq.toString(), e);
+        final boolean full = (times % 12) == 0;
+        final Map<String/* brokerName */, Map<MessageQueue, Long>> brokerOffsets =
+                new HashMap<String, Map<MessageQueue, Long>>();
+
+        for (MessageQueue mq : this.offsetTable.keySet()) {
+            /**
+             * 从本地获取Offset信息
+             */
+            AtomicLong offset = this.offsetTable.get(mq);
+            if (offset != null) {
+                if (mqs.contains(mq)) {
+                    long value = offset.get();
+                    Long committed = this.committedTable.get(mq);
+                    if (full || null == committed || committed != value) {
+                        Map<MessageQueue, Long> offsets = brokerOffsets.get(mq.getBrokerName());
+                        if (null == offsets) {
+                            offsets = new HashMap<MessageQueue, Long>();
+                            brokerOffsets.put(mq.getBrokerName(), offsets);
                         }
-                    } else {
-                        /**
-                         * 移除不再使用的Queue Offset信息
-                         */
-                        unusedMQ.add(mq);
+                        offsets.put(mq, value);
                     }
+                } else {
+                    /**
+                     * 移除不再使用的Queue Offset信息
+                     */
+                    unusedMQ.add(mq);
+                }
+            }
+        }
+
+        for (Entry<String, Map<MessageQueue, Long>> entry : brokerOffsets.entrySet()) {
+            try {
+                this.updateConsumeOffsetToBroker(entry.getKey(), entry.getValue());
+                if (full) {
+                    log.info("Group: {} ClientId: {} updateConsumeOffsetToBroker {} {}", //
+                            this.groupName,//
+                            this.mQClientFactory.getClientId(),//
+                            entry.getKey(), //
+                            entry.getValue());
                 }
+            } catch (Exception e) {
+                log.error("updateConsumeOffsetToBroker exception, " + entry.getKey(), e);
             }
         }
 
         if (!unusedMQ.isEmpty()) {
             for (MessageQueue mq : unusedMQ) {
                 this.offsetTable.remove(mq);
+                this.committedTable.remove(mq);
                 log.info("remove unused mq, {}, {}", mq, this.groupName);
             }
         }
     }
 
 
+    /**
+     * 与persistAll一样走批量请求，Broker确认后才记为已提交
+     */
     @Override
     public void persist(MessageQueue mq) {
         AtomicLong offset = this.offsetTable.get(mq);
         if (offset != null) {
             try {
-                this.updateConsumeOffsetToBroker(mq, offset.get());
-                log.debug("updateConsumeOffsetToBroker {} {}", mq, offset.get());
+                long value = offset.get();
+                Map<MessageQueue, Long> offsets = new HashMap<MessageQueue, Long>(2);
+                offsets.put(mq, value);
+                this.updateConsumeOffsetToBroker(mq.getBrokerName(), offsets);
+                log.debug("updateConsumeOffsetToBroker {} {}", mq, value);
             } catch (Exception e) {
                 log.error("updateConsumeOffsetToBroker exception, " + mq.toString(), e);
             }
@@ -239,6 +278,75 @@ public class RemoteBrokerOffsetStore implements OffsetStore {
     }
 
 
+    /**
+     * 一次异步请求提交一个Broker上的多个队列，Broker确认后才记为已提交，老版本Broker不支持时逐个队列提交
+     */
+    private void updateConsumeOffsetToBroker(final String brokerName, final Map<MessageQueue, Long> offsets)
+            throws RemotingException, MQBrokerException, InterruptedException, MQClientException {
+        FindBrokerResult findBrokerResult = this.mQClientFactory.findBrokerAddressInAdmin(brokerName);
+        if (null == findBrokerResult) {
+            this.mQClientFactory.updateTopicRouteInfoFromNameServer(offsets.keySet().iterator().next().getTopic());
+            findBrokerResult = this.mQClientFactory.findBrokerAddressInAdmin(brokerName);
+        }
+
+        if (null == findBrokerResult) {
+            throw new MQClientException("The broker[" + brokerName + "] not exist", null);
+        }
+
+        final String brokerAddr = findBrokerResult.getBrokerAddr();
+        if (!this.batchUnsupportedBrokers.contains(brokerAddr)) {
+            UpdateConsumerOffsetBatchRequestBody requestBody = new UpdateConsumerOffsetBatchRequestBody();
+            requestBody.setConsumerGroup(this.groupName);
+            for (Entry<MessageQueue, Long> entry : offsets.entrySet()) {
+                requestBody.addOffset(entry.getKey().getTopic(), entry.getKey().getQueueId(), entry.getValue());
+            }
+
+            this.mQClientFactory.getMQClientAPIImpl().updateConsumerOffsetBatch(brokerAddr, requestBody,
+                    1000 * 3, new InvokeCallback() {
+                        @Override
+                        public void operationComplete(ResponseFuture responseFuture) {
+                            RemoteBrokerOffsetStore.this.onUpdateConsumeOffsetBatch(brokerAddr, offsets,
+                                    responseFuture.getResponseCommand());
+                        }
+                    });
+            return;
+        }
+
+        // 单个提交是oneway请求，无法确认，不记为已提交，下次继续提交
+        for (Entry<MessageQueue, Long> entry : offsets.entrySet()) {
+            this.updateConsumeOffsetToBroker(entry.getKey(), entry.getValue());
+        }
+    }
+
+
+    private void onUpdateConsumeOffsetBatch(final String brokerAddr, final Map<MessageQueue, Long> offsets,
+                                            final RemotingCommand response) {
+        if (null == response) {
+            log.warn("updateConsumeOffsetToBroker batch to {} failed, no response", brokerAddr);
+            return;
+        }
+
+        switch (response.getCode()) {
+            case ResponseCode.SUCCESS:
+                for (Entry<MessageQueue, Long> entry : offsets.entrySet()) {
+                    // 等待响应期间队列已经被移除的不再记录
+                    if (this.offsetTable.containsKey(entry.getKey())) {
+                        this.committedTable.put(entry.getKey(), entry.getValue());
+                    }
+                }
+                break;
+            case RemotingSysResponseCode.REQUEST_CODE_NOT_SUPPORTED:
+                this.batchUnsupportedBrokers.add(brokerAddr);
+                log.warn("broker {} does not support update consumer offset batch, fall back to one by one", brokerAddr);
+                break;
+            default:
+                log.warn("updateConsumeOffsetToBroker batch to {} failed, {} {}", brokerAddr, response.getCode(),
+                        response.getRemark());
+                break;
+        }
+    }
+
+
     private long fetchConsumeOffsetFromBroker(MessageQueue mq) throws RemotingException, MQBrokerException,
             InterruptedException, MQClientException {
         FindBrokerResult findBrokerResult = this.mQClientFactory.findBrokerAddressInAdmin(mq.getBrokerName());
@@ -265,6 +373,7 @@ public class RemoteBrokerOffsetStore implements OffsetStore {
     public void removeOffset(MessageQueue mq) {
         if (mq != null) {
             this.offsetTable.remove(mq);
+            this.committedTable.remove(mq);
             log.info("remove unnecessary messageQueue offset. mq={}, offsetTableSize={}", mq,
                     offsetTable.size());
         }
@@ -33,6 +33,7 @@ import com.alibaba.rocketmq.common.UtilAll;
 import com.alibaba.rocketmq.common.admin.ConsumeStats;
 import com.alibaba.rocketmq.common.admin.TopicStatsTable;
 import com.alibaba.rocketmq.common.message.Message;
+import com.alibaba.rocketmq.common.message.MessageBatch;
 import com.alibaba.rocketmq.common.message.MessageDecoder;
 import com.alibaba.rocketmq.common.message.MessageExt;
 import com.alibaba.rocketmq.common.message.MessageQueue;
@@ -234,7 +235,11 @@ public class MQClientAPIImpl {
          * send smart msg?
          * 作用是啥？
          */
-        if (sendSmartMsg) {
+        if (msg instanceof MessageBatch) {
+            // 批量消息总是使用V2请求头
+            SendMessageRequestHeaderV2 requestHeaderV2 = SendMessageRequestHeaderV2.createSendMessageRequestHeaderV2(requestHeader);
+            request = RemotingCommand.createRequestCommand(RequestCode.SEND_BATCH_MESSAGE, requestHeaderV2);
+        } else if (sendSmartMsg) {
             SendMessageRequestHeaderV2 requestHeaderV2 = SendMessageRequestHeaderV2.createSendMessageRequestHeaderV2(requestHeader);
             request = RemotingCommand.createRequestCommand(RequestCode.SEND_MESSAGE_V2, requestHeaderV2);
         } else {
@@ -700,6 +705,29 @@ public class MQClientAPIImpl {
     }
 
 
+    /**
+     * 异步批量更新一个消费组在一个Broker上的消费进度，不阻塞调用线程
+     *
+     * @param addr           Broker主节点地址
+     * @param requestBody
+     * @param timeoutMillis
+     * @param invokeCallback
+     * @throws RemotingException
+     * @throws InterruptedException
+     */
+    public void updateConsumerOffsetBatch(//
+                                          final String addr,//
+                                          final UpdateConsumerOffsetBatchRequestBody requestBody,//
+                                          final long timeoutMillis,//
+                                          final InvokeCallback invokeCallback//
+    ) throws RemotingException, InterruptedException {
+        RemotingCommand request = RemotingCommand.createRequestCommand(RequestCode.UPDATE_CONSUMER_OFFSET_BATCH, null);
+        request.setBody(requestBody.encode());
+
+        this.remotingClient.invokeAsync(addr, request, timeoutMillis, invokeCallback);
+    }
+
+
     /**
      * 发送心跳
      *
@@ -1446,6 +1474,31 @@ public class MQClientAPIImpl {
     }
 
 
+    /**
+     * 按属性索引查询消息位置，结果按属性值、存储时间排序，QUERY_NOT_FOUND时返回空结果
+     */
+    public QueryMessageByPropertyBody queryMessageByProperty(final String addr,
+            final QueryMessageByPropertyRequestHeader requestHeader, final long timeoutMillis)
+            throws RemotingConnectException, RemotingSendRequestException, RemotingTimeoutException, InterruptedException,
+            MQBrokerException {
+        RemotingCommand request = RemotingCommand.createRequestCommand(RequestCode.QUERY_MESSAGE_BY_PROPERTY, requestHeader);
+
+        RemotingCommand response = this.remotingClient.invokeSync(addr, request, timeoutMillis);
+        switch (response.getCode()) {
+            case ResponseCode.SUCCESS: {
+                return QueryMessageByPropertyBody.decode(response.getBody(), QueryMessageByPropertyBody.class);
+            }
+            case ResponseCode.QUERY_NOT_FOUND: {
+                return new QueryMessageByPropertyBody();
+            }
+            default:
+                break;
+        }
+
+        throw new MQBrokerException(response.getCode(), response.getRemark());
+    }
+
+
     public TopicList getTopicsByCluster(final String cluster, final long timeoutMillis) throws RemotingException, MQClientException,
             InterruptedException {
         GetTopicsByClusterRequestHeader requestHeader = new GetTopicsByClusterRequestHeader();
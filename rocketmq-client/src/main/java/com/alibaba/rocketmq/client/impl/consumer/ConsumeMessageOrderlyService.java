@@ -20,6 +20,7 @@ import com.alibaba.rocketmq.client.consumer.DefaultMQPushConsumer;
 import com.alibaba.rocketmq.client.consumer.listener.ConsumeOrderlyContext;
 import com.alibaba.rocketmq.client.consumer.listener.ConsumeOrderlyStatus;
 import com.alibaba.rocketmq.client.consumer.listener.MessageListenerOrderly;
+import com.alibaba.rocketmq.client.consumer.listener.ShardingKeySelector;
 import com.alibaba.rocketmq.client.hook.ConsumeMessageContext;
 import com.alibaba.rocketmq.client.log.ClientLogger;
 import com.alibaba.rocketmq.client.stat.ConsumerStatsManager;
@@ -35,7 +36,10 @@ import org.slf4j.Logger;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 
 /**
@@ -46,6 +50,8 @@ public class ConsumeMessageOrderlyService implements ConsumeMessageService {
     private static final Logger log = ClientLogger.getLog();
     private final static long MaxTimeConsumeContinuously = Long.parseLong(System.getProperty(
         "rocketmq.client.maxTimeConsumeContinuously", "60000"));
+    // 分发到lane时每次从ProcessQueue取出的消息条数
+    private final static int DispatchToLanesBatchSize = 32;
 
     private volatile boolean stopped = false;
 
@@ -56,6 +62,11 @@ public class ConsumeMessageOrderlyService implements ConsumeMessageService {
     private final ThreadPoolExecutor consumeExecutor;
     private final String consumerGroup;
     private final MessageQueueLock messageQueueLock = new MessageQueueLock();
+    /**
+     * 按key并行消费时每个队列的lane
+     */
+    private final ConcurrentHashMap<MessageQueue, ShardingLanes> shardingLanesTable =
+            new ConcurrentHashMap<MessageQueue, ShardingLanes>();
 
     private final ScheduledExecutorService scheduledExecutorService;
 
@@ -93,6 +104,30 @@ public class ConsumeMessageOrderlyService implements ConsumeMessageService {
                 }
             }, 1000 * 1, ProcessQueue.RebalanceLockInterval, TimeUnit.MILLISECONDS);
         }
+
+        if (this.defaultMQPushConsumer.getConsumeOrderlyShardingLanes() > 1) {
+            this.scheduledExecutorService.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    ConsumeMessageOrderlyService.this.removeDroppedShardingLanes();
+                }
+            }, 1000 * 1, ProcessQueue.RebalanceLockInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+
+    /**
+     * 队列被丢弃（负载均衡移走、Topic删除等）后清理它的lane，队列空闲时lane自己不会发现
+     */
+    void removeDroppedShardingLanes() {
+        Iterator<Map.Entry<MessageQueue, ShardingLanes>> it = this.shardingLanesTable.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<MessageQueue, ShardingLanes> next = it.next();
+            if (next.getValue().processQueue.isDropped()) {
+                it.remove();
+                log.info("remove sharding lanes of dropped message queue, {}", next.getKey());
+            }
+        }
     }
 
 
@@ -208,6 +243,11 @@ public class ConsumeMessageOrderlyService implements ConsumeMessageService {
                             break;
                         }
 
+                        if (ConsumeMessageOrderlyService.this.defaultMQPushConsumer.getConsumeOrderlyShardingLanes() > 1) {
+                            ConsumeMessageOrderlyService.this.dispatchToLanes(this.processQueue, this.messageQueue);
+                            break;
+                        }
+
                         final int consumeBatchSize =
                                 ConsumeMessageOrderlyService.this.defaultMQPushConsumer
                                     .getConsumeMessageBatchMaxSize();
@@ -319,6 +359,219 @@ public class ConsumeMessageOrderlyService implements ConsumeMessageService {
     }
 
 
+    int getShardingLanesNums() {
+        return this.shardingLanesTable.size();
+    }
+
+
+    /**
+     * 把队列中的消息按分片key分发到各个lane，并唤醒有消息的lane，在队列锁内执行
+     */
+    private void dispatchToLanes(final ProcessQueue processQueue, final MessageQueue messageQueue) {
+        ShardingLanes lanes = this.shardingLanesTable.get(messageQueue);
+        if (null == lanes || lanes.processQueue != processQueue) {
+            lanes = new ShardingLanes(processQueue, messageQueue,
+                this.defaultMQPushConsumer.getConsumeOrderlyShardingLanes());
+            this.shardingLanesTable.put(messageQueue, lanes);
+        }
+
+        for (List<MessageExt> msgs = processQueue.takeMessags(DispatchToLanesBatchSize); !msgs.isEmpty(); msgs =
+                processQueue.takeMessags(DispatchToLanesBatchSize)) {
+            for (MessageExt msg : msgs) {
+                lanes.dispatch(msg);
+            }
+        }
+
+        lanes.kickAll();
+    }
+
+    /**
+     * 一个队列内按分片key划分的lane，同一个key总是落在同一个lane上，lane内按顺序消费，lane之间并行<br>
+     * 每个lane消费成功后单独确认消息，ProcessQueue返回的第一条未确认消息的offset即所有lane中最小的位点
+     */
+    class ShardingLanes {
+        private final ProcessQueue processQueue;
+        private final MessageQueue messageQueue;
+        private final Lane[] lanes;
+
+
+        ShardingLanes(ProcessQueue processQueue, MessageQueue messageQueue, int laneNums) {
+            this.processQueue = processQueue;
+            this.messageQueue = messageQueue;
+            this.lanes = new Lane[laneNums];
+            for (int i = 0; i < laneNums; i++) {
+                this.lanes[i] = new Lane(this);
+            }
+        }
+
+
+        void dispatch(final MessageExt msg) {
+            ShardingKeySelector selector = ConsumeMessageOrderlyService.this.defaultMQPushConsumer.getShardingKeySelector();
+            String key = selector != null ? selector.select(msg) : msg.getKeys();
+            int index = key == null ? 0 : (key.hashCode() & Integer.MAX_VALUE) % this.lanes.length;
+            this.lanes[index].msgs.add(msg);
+        }
+
+
+        void kickAll() {
+            for (Lane lane : this.lanes) {
+                lane.kick();
+            }
+        }
+    }
+
+    class Lane implements Runnable {
+        private final ShardingLanes owner;
+        private final ConcurrentLinkedQueue<MessageExt> msgs = new ConcurrentLinkedQueue<MessageExt>();
+        private final AtomicBoolean running = new AtomicBoolean(false);
+
+
+        Lane(ShardingLanes owner) {
+            this.owner = owner;
+        }
+
+
+        void kick() {
+            if (!this.msgs.isEmpty() && this.running.compareAndSet(false, true)) {
+                ConsumeMessageOrderlyService.this.consumeExecutor.submit(this);
+            }
+        }
+
+
+        @Override
+        public void run() {
+            final ProcessQueue processQueue = this.owner.processQueue;
+            final MessageQueue messageQueue = this.owner.messageQueue;
+            final boolean clustering =
+                    MessageModel.CLUSTERING.equals(ConsumeMessageOrderlyService.this.defaultMQPushConsumerImpl
+                        .messageModel());
+            final long beginTime = System.currentTimeMillis();
+            for (;;) {
+                if (processQueue.isDropped()) {
+                    log.warn("the message queue not be able to consume, because it's dropped. {}", messageQueue);
+                    this.running.set(false);
+                    ConsumeMessageOrderlyService.this.shardingLanesTable.remove(messageQueue, this.owner);
+                    return;
+                }
+
+                // 锁丢失后停止，重新加锁后由队列的ConsumeRequest再次唤醒
+                if (clustering && (!processQueue.isLocked() || processQueue.isLockExpired())) {
+                    this.running.set(false);
+                    ConsumeMessageOrderlyService.this.tryLockLaterAndReconsume(messageQueue, processQueue, 10);
+                    return;
+                }
+
+                if (System.currentTimeMillis() - beginTime > MaxTimeConsumeContinuously) {
+                    ConsumeMessageOrderlyService.this.consumeExecutor.submit(this);
+                    return;
+                }
+
+                final int consumeBatchSize =
+                        ConsumeMessageOrderlyService.this.defaultMQPushConsumer.getConsumeMessageBatchMaxSize();
+                List<MessageExt> batch = new ArrayList<MessageExt>(consumeBatchSize);
+                Iterator<MessageExt> it = this.msgs.iterator();
+                while (batch.size() < consumeBatchSize && it.hasNext()) {
+                    batch.add(it.next());
+                }
+
+                if (batch.isEmpty()) {
+                    this.running.set(false);
+                    if (this.msgs.isEmpty() || !this.running.compareAndSet(false, true)) {
+                        return;
+                    }
+                    continue;
+                }
+
+                final ConsumeOrderlyContext context = new ConsumeOrderlyContext(messageQueue);
+                ConsumeOrderlyStatus status =
+                        ConsumeMessageOrderlyService.this.consumeInLane(batch, context, processQueue, messageQueue);
+                if (ConsumeOrderlyStatus.SUSPEND_CURRENT_QUEUE_A_MOMENT == status) {
+                    // 只暂停当前lane，其他key继续消费
+                    ConsumeMessageOrderlyService.this.getConsumerStatsManager().incConsumeFailedTPS(consumerGroup,
+                        messageQueue.getTopic(), batch.size());
+                    this.submitLater(context.getSuspendCurrentQueueTimeMillis());
+                    return;
+                }
+
+                // lane模式下总是自动提交，COMMIT和ROLLBACK按SUCCESS处理
+                for (int i = 0; i < batch.size(); i++) {
+                    this.msgs.poll();
+                }
+                ConsumeMessageOrderlyService.this.getConsumerStatsManager().incConsumeOKTPS(consumerGroup,
+                    messageQueue.getTopic(), batch.size());
+
+                long commitOffset = processQueue.removeMessage(batch);
+                if (commitOffset >= 0 && !processQueue.isDropped()) {
+                    ConsumeMessageOrderlyService.this.defaultMQPushConsumerImpl.getOffsetStore().updateOffset(
+                        messageQueue, commitOffset, true);
+                }
+            }
+        }
+
+
+        private void submitLater(final long suspendTimeMillis) {
+            long timeMillis = Math.min(30000, Math.max(10, suspendTimeMillis));
+            ConsumeMessageOrderlyService.this.scheduledExecutorService.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    ConsumeMessageOrderlyService.this.consumeExecutor.submit(Lane.this);
+                }
+            }, timeMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+
+    private ConsumeOrderlyStatus consumeInLane(final List<MessageExt> msgs, final ConsumeOrderlyContext context,
+            final ProcessQueue processQueue, final MessageQueue messageQueue) {
+        ConsumeMessageContext consumeMessageContext = null;
+        if (this.defaultMQPushConsumerImpl.hasHook()) {
+            consumeMessageContext = new ConsumeMessageContext();
+            consumeMessageContext.setConsumerGroup(this.consumerGroup);
+            consumeMessageContext.setMq(messageQueue);
+            consumeMessageContext.setMsgList(msgs);
+            consumeMessageContext.setSuccess(false);
+            this.defaultMQPushConsumerImpl.executeHookBefore(consumeMessageContext);
+        }
+
+        long beginTimestamp = System.currentTimeMillis();
+        ConsumeOrderlyStatus status = null;
+        processQueue.getLockConsumeShared().lock();
+        try {
+            if (!processQueue.isDropped()) {
+                status = this.messageListener.consumeMessage(Collections.unmodifiableList(msgs), context);
+            }
+        }
+        catch (Throwable e) {
+            log.warn("consumeMessage exception: {} Group: {} Msgs: {} MQ: {}",//
+                RemotingHelper.exceptionSimpleDesc(e),//
+                this.consumerGroup,//
+                msgs,//
+                messageQueue);
+        }
+        finally {
+            processQueue.getLockConsumeShared().unlock();
+        }
+
+        if (null == status || ConsumeOrderlyStatus.SUSPEND_CURRENT_QUEUE_A_MOMENT == status) {
+            log.warn("consumeMessage Orderly return not OK, Group: {} Msgs: {} MQ: {}",//
+                this.consumerGroup,//
+                msgs,//
+                messageQueue);
+            status = ConsumeOrderlyStatus.SUSPEND_CURRENT_QUEUE_A_MOMENT;
+        }
+
+        if (this.defaultMQPushConsumerImpl.hasHook()) {
+            consumeMessageContext.setStatus(status.toString());
+            consumeMessageContext.setSuccess(ConsumeOrderlyStatus.SUSPEND_CURRENT_QUEUE_A_MOMENT != status);
+            this.defaultMQPushConsumerImpl.executeHookAfter(consumeMessageContext);
+        }
+
+        this.getConsumerStatsManager().incConsumeRT(this.consumerGroup, messageQueue.getTopic(),
+            System.currentTimeMillis() - beginTimestamp);
+        return status;
+    }
+
+
     public boolean processConsumeResult(//
             final List<MessageExt> msgs, //
             final ConsumeOrderlyStatus status, //
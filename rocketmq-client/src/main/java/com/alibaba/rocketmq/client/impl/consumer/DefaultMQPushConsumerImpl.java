@@ -78,6 +78,10 @@ public class DefaultMQPushConsumerImpl implements MQConsumerInner {
      * Flow control interval
      */
     private static final long PullTimeDelayMillsWhenFlowControl = 50;
+    /**
+     * Max backoff when flow control lasts
+     */
+    private static final long PullTimeDelayMillsWhenFlowControlMax = 1000;
     /**
      * Delay some time when suspend pull service
      */
@@ -327,6 +331,7 @@ public class DefaultMQPushConsumerImpl implements MQConsumerInner {
 
     private long flowControlTimes1 = 0;
     private long flowControlTimes2 = 0;
+    private long flowControlTimes3 = 0;
 
 
     public void pullMessage(final PullRequest pullRequest) {
@@ -368,7 +373,7 @@ public class DefaultMQPushConsumerImpl implements MQConsumerInner {
          */
         long size = processQueue.getMsgCount().get();
         if (size > this.defaultMQPushConsumer.getPullThresholdForQueue()) {
-            this.executePullRequestLater(pullRequest, PullTimeDelayMillsWhenFlowControl);
+            this.executePullRequestLater(pullRequest, this.flowControlDelay(processQueue));
             if ((flowControlTimes1++ % 1000) == 0) {
                 log.warn("the consumer message buffer is full, so do flow control, {} {} {}", size,
                         pullRequest, flowControlTimes1);
@@ -376,6 +381,21 @@ public class DefaultMQPushConsumerImpl implements MQConsumerInner {
             return;
         }
 
+        /**
+         * 按缓存的消息体字节数流控，包括单个队列和整个客户端实例两级预算
+         */
+        long cachedSize = processQueue.getMsgSize().get();
+        long clientCachedSize = this.mqClientInstance.getCachedMsgSize().get();
+        if (cachedSize > this.pullThresholdSizeForQueueBytes()
+                || clientCachedSize > (long) this.defaultMQPushConsumer.getPullThresholdSizeForClient() * 1024 * 1024) {
+            this.executePullRequestLater(pullRequest, this.flowControlDelay(processQueue));
+            if ((flowControlTimes3++ % 1000) == 0) {
+                log.warn("the consumer message buffer size is full, so do flow control, {} {} {} {}", cachedSize,
+                        clientCachedSize, pullRequest, flowControlTimes3);
+            }
+            return;
+        }
+
         /**
          * Offset控制，防止Offset过大
          * 如果是串行模式，不做下面的控制
@@ -387,7 +407,7 @@ public class DefaultMQPushConsumerImpl implements MQConsumerInner {
              */
             if (processQueue.getMaxSpan() > this.defaultMQPushConsumer.getConsumeConcurrentlyMaxSpan()) {
 
-                this.executePullRequestLater(pullRequest, PullTimeDelayMillsWhenFlowControl);
+                this.executePullRequestLater(pullRequest, this.flowControlDelay(processQueue));
 
                 if ((flowControlTimes2++ % 1000) == 0) {
                     log.warn("the queue's messages, span too long, so do flow control, {} {} {}",
@@ -397,6 +417,8 @@ public class DefaultMQPushConsumerImpl implements MQConsumerInner {
             }
         }
 
+        processQueue.resetFlowControlTimes();
+
         /**
          * 获取该Topic下的订阅信息
          */
@@ -588,6 +610,14 @@ public class DefaultMQPushConsumerImpl implements MQConsumerInner {
             classFilter = sd.isClassFilterMode();
         }
 
+        /**
+         * 拉取数量根据本队列的消费速度自适应，pullBatchSize作为上限
+         */
+        int pullBatchSize = this.defaultMQPushConsumer.getPullBatchSize();
+        if (this.defaultMQPushConsumer.isAdaptivePullBatchEnable()) {
+            pullBatchSize = processQueue.adjustPullBatchSize(pullBatchSize, this.pullThresholdSizeForQueueBytes());
+        }
+
         int sysFlag = PullSysFlag.buildSysFlag(//
                 commitOffsetEnable, // commitOffset
                 true, // suspend 这里suspend的作用？？
@@ -601,7 +631,7 @@ public class DefaultMQPushConsumerImpl implements MQConsumerInner {
                     subExpression, // 2
                     subscriptionData.getSubVersion(), // 3
                     pullRequest.getNextOffset(), // 4
-                    this.defaultMQPushConsumer.getPullBatchSize(), // 5
+                    pullBatchSize, // 5
                     sysFlag, // 6
                     commitOffsetValue,// 7
                     BrokerSuspendMaxTimeMillis, // Broker的最大挂起时间 TODO:干吗用的
@@ -616,6 +646,16 @@ public class DefaultMQPushConsumerImpl implements MQConsumerInner {
     }
 
 
+    private long flowControlDelay(final ProcessQueue processQueue) {
+        return processQueue.nextFlowControlDelay(PullTimeDelayMillsWhenFlowControl, PullTimeDelayMillsWhenFlowControlMax);
+    }
+
+
+    private long pullThresholdSizeForQueueBytes() {
+        return (long) this.defaultMQPushConsumer.getPullThresholdSizeForQueue() * 1024 * 1024;
+    }
+
+
     public void executePullRequestImmediately(final PullRequest pullRequest) {
         this.mqClientInstance.getPullMessageService().executePullRequestImmediately(pullRequest);
     }
@@ -993,6 +1033,29 @@ public class DefaultMQPushConsumerImpl implements MQConsumerInner {
                     null);
         }
 
+        // pullThresholdSizeForQueue
+        if (this.defaultMQPushConsumer.getPullThresholdSizeForQueue() < 1
+                || this.defaultMQPushConsumer.getPullThresholdSizeForQueue() > 1024) {
+            throw new MQClientException("pullThresholdSizeForQueue Out of range [1, 1024]" //
+                    + FAQUrl.suggestTodo(FAQUrl.CLIENT_PARAMETER_CHECK_URL), //
+                    null);
+        }
+
+        // pullThresholdSizeForClient
+        if (this.defaultMQPushConsumer.getPullThresholdSizeForClient() < 1) {
+            throw new MQClientException("pullThresholdSizeForClient must be greater than 0" //
+                    + FAQUrl.suggestTodo(FAQUrl.CLIENT_PARAMETER_CHECK_URL), //
+                    null);
+        }
+
+        // consumeOrderlyShardingLanes
+        if (this.defaultMQPushConsumer.getConsumeOrderlyShardingLanes() < 1
+                || this.defaultMQPushConsumer.getConsumeOrderlyShardingLanes() > 1024) {
+            throw new MQClientException("consumeOrderlyShardingLanes Out of range [1, 1024]" //
+                    + FAQUrl.suggestTodo(FAQUrl.CLIENT_PARAMETER_CHECK_URL), //
+                    null);
+        }
+
         // pullInterval
         if (this.defaultMQPushConsumer.getPullInterval() < 0
                 || this.defaultMQPushConsumer.getPullInterval() > 65535) {
@@ -24,17 +24,22 @@ import org.slf4j.Logger;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 
 /**
  * Queue consumption snapshot
+ * <p>
+ * 消息按到达顺序编号（seq）存放在定长的Segment数组链表中，每个Segment保存一段连续seq的offset（long数组）和消息，
+ * 因为tag过滤会让offset不连续，所以按seq而不是offset寻址，offset在seq上单调递增，通过二分查找定位<br>
+ * putMessage只由拉消息线程调用，消费线程确认消息时把对应位置CAS为null，并增量推进第一条未确认消息的seq（低水位），
+ * 整个过程不加锁
  *
  * @author shijia.wxr
  */
@@ -44,20 +49,66 @@ public class ProcessQueue {
     public final static long RebalanceLockInterval = Long.parseLong(System.getProperty(
             "rocketmq.client.rebalance.lockInterval", "20000"));
 
+    private final static int SegmentSize = 256;
+
     private final Logger log = ClientLogger.getLog();
-    private final ReadWriteLock lockTreeMap = new ReentrantReadWriteLock();
-    private final TreeMap<Long, MessageExt> msgTreeMap = new TreeMap<Long, MessageExt>();
 
     /**
-     * TODO:
+     * 第一个还可能有未确认消息的Segment，确认推进后向后移动，之前的Segment即可回收
+     */
+    private final AtomicReference<Segment> head;
+    /**
+     * 最后一个Segment，只由拉消息线程访问
+     */
+    private Segment tail;
+    /**
+     * 第一条未确认消息的seq
+     */
+    private final AtomicLong lowSeq = new AtomicLong(0);
+    /**
+     * 最后一条放入的消息的seq
+     */
+    private volatile long highSeq = -1;
+    /**
+     * 顺序消费时已经取走还没有提交的消息为[lowSeq, takenSeq)，相当于原来的msgTreeMapTemp
+     */
+    private volatile long takenSeq = 0;
+
+    /**
+     * 最后一条放入的消息的offset
      */
-    private volatile long queueOffsetMax = 0L;
+    private volatile long queueOffsetMax = -1L;
 
     /**
      * 当前队列中还没有处理完的消息数量
      */
     private final AtomicLong msgCount = new AtomicLong();
 
+    /**
+     * 当前队列中还没有处理完的消息体总字节数
+     */
+    private final AtomicLong msgSize = new AtomicLong();
+
+    /**
+     * 同一个MQClientInstance下所有ProcessQueue缓存的消息字节数，队列被丢弃时清空，不再计入
+     */
+    private final AtomicLong clientMsgSize;
+
+    /**
+     * 消息体的平均大小，用于按字节预算约束拉取数量
+     */
+    private volatile int avgMsgSize = 0;
+
+    /**
+     * 根据消费快慢自适应的拉取数量，0表示还没有初始化
+     */
+    private volatile int pullBatchSize = 0;
+
+    /**
+     * 连续触发流控的次数，用于计算流控退避时间
+     */
+    private volatile int flowControlTimes = 0;
+
     private volatile boolean dropped = false;
     private volatile long lastPullTimestamp = System.currentTimeMillis();
     private final static long PullMaxIdleTime = Long.parseLong(System.getProperty(
@@ -65,17 +116,49 @@ public class ProcessQueue {
 
     private volatile long lastConsumeTimestamp = System.currentTimeMillis();
 
-    private final Lock lockConsume = new ReentrantLock();
+    /**
+     * 消费时持有写锁；顺序消费按key并行时各个lane持有读锁，Rebalance仍然可以通过写锁等待消费结束
+     */
+    private final ReadWriteLock lockConsume = new ReentrantReadWriteLock();
 
     private volatile boolean locked = false;
     private volatile long lastLockTimestamp = System.currentTimeMillis();
-    private volatile boolean consuming = false;
-    private final TreeMap<Long, MessageExt> msgTreeMapTemp = new TreeMap<Long, MessageExt>();
+    private final AtomicBoolean consuming = new AtomicBoolean(false);
     private final AtomicLong tryUnlockTimes = new AtomicLong(0);
 
     private volatile long msgAccCnt = 0;
 
 
+    static final class Segment {
+        final long baseSeq;
+        final long[] offsets = new long[SegmentSize];
+        final AtomicReferenceArray<MessageExt> msgs = new AtomicReferenceArray<MessageExt>(SegmentSize);
+        volatile Segment next;
+
+
+        Segment(final long baseSeq) {
+            this.baseSeq = baseSeq;
+        }
+
+
+        boolean contains(final long seq) {
+            return seq >= this.baseSeq && seq < this.baseSeq + SegmentSize;
+        }
+    }
+
+
+    public ProcessQueue() {
+        this(null);
+    }
+
+
+    public ProcessQueue(final AtomicLong clientMsgSize) {
+        this.clientMsgSize = clientMsgSize;
+        this.tail = new Segment(0);
+        this.head = new AtomicReference<Segment>(this.tail);
+    }
+
+
     public boolean isLockExpired() {
         boolean result = (System.currentTimeMillis() - this.lastLockTimestamp) > RebalanceLockMaxLiveTime;
         return result;
@@ -88,59 +171,76 @@ public class ProcessQueue {
     }
 
     /**
-     * 放入消息到ProcessQueue
+     * 放入消息到ProcessQueue，只由拉消息线程调用
      *
      * @param msgs
      * @return
      */
     public boolean putMessage(final List<MessageExt> msgs) {
         boolean dispatchToConsume = false;
-        try {
-            this.lockTreeMap.writeLock().lockInterruptibly();
-            try {
+
+        /**
+         * 按offset去除重复消息，统计有效消息数量，更新Offset
+         */
+        int validMsgCnt = 0;
+        long validMsgSize = 0;
+        long seq = this.highSeq;
+        for (MessageExt msg : msgs) {
+            final long offset = msg.getQueueOffset();
+            if (offset <= this.queueOffsetMax) {
+                continue;
+            }
+
+            seq++;
+            if (!this.tail.contains(seq)) {
+                Segment next = new Segment(seq);
+                this.tail.next = next;
+                this.tail = next;
+            }
+            int index = (int) (seq - this.tail.baseSeq);
+            this.tail.offsets[index] = offset;
+            this.tail.msgs.lazySet(index, msg);
+
+            validMsgCnt++;
+            validMsgSize += bodySize(msg);
+            this.queueOffsetMax = offset;
+        }
+
+        if (validMsgCnt > 0) {
+            // 先计数再发布，确认消息时计数不会出现负数
+            msgCount.addAndGet(validMsgCnt);
+            this.addMsgSize(validMsgSize);
+            this.highSeq = seq;
+
+            int batchAvg = (int) (validMsgSize / validMsgCnt);
+            this.avgMsgSize = this.avgMsgSize == 0 ? batchAvg : (this.avgMsgSize * 7 + batchAvg) / 8;
+        }
+
+        if (this.takenSeq <= this.highSeq && this.consuming.compareAndSet(false, true)) {
+            dispatchToConsume = true;
+        }
+
+        if (!msgs.isEmpty()) {
+            //获取最后一条消息的MaxOffSet
+            MessageExt messageExt = msgs.get(msgs.size() - 1);
+            String property = messageExt.getProperty(MessageConst.PROPERTY_MAX_OFFSET);
+            if (property != null) {
                 /**
-                 * 把消息放入treemap，根据offset值去除重复消息，统计有效消息数量，更新Offset
-                 *
-                 * 消息以Offset为Key放入了treemap，则默认会按照offset的升序排序
+                 * commitlog offset
+                 * 减去
+                 * 消息对应MessageQueue的Offset
                  *
                  */
-                int validMsgCnt = 0;
-                for (MessageExt msg : msgs) {
-                    MessageExt old = msgTreeMap.put(msg.getQueueOffset(), msg);
-                    if (null == old) {
-                        validMsgCnt++;
-                        this.queueOffsetMax = msg.getQueueOffset();
-                    }
+                long accTotal = Long.parseLong(property) - messageExt.getQueueOffset();
+                if (accTotal > 0) {
+                    this.msgAccCnt = accTotal;
                 }
-                msgCount.addAndGet(validMsgCnt);
-
-                if (!msgTreeMap.isEmpty() && !this.consuming) {
-                    dispatchToConsume = true;
-                    this.consuming = true;
-                }
-
-                if (!msgs.isEmpty()) {
-                    //获取最后一条消息的MaxOffSet
-                    MessageExt messageExt = msgs.get(msgs.size() - 1);
-                    String property = messageExt.getProperty(MessageConst.PROPERTY_MAX_OFFSET);
-                    if (property != null) {
-                        /**
-                         * commitlog offset
-                         * 减去
-                         * 消息对应MessageQueue的Offset
-                         *
-                         */
-                        long accTotal = Long.parseLong(property) - messageExt.getQueueOffset();
-                        if (accTotal > 0) {
-                            this.msgAccCnt = accTotal;
-                        }
-                    }
-                }
-            } finally {
-                this.lockTreeMap.writeLock().unlock();
             }
-        } catch (InterruptedException e) {
-            log.error("putMessage exception", e);
+        }
+
+        // 与setDropped交叉时由这里清掉刚放入的消息
+        if (this.dropped) {
+            this.clear();
         }
 
         return dispatchToConsume;
@@ -148,25 +248,23 @@ public class ProcessQueue {
 
 
     /**
-     * 获取当前队列中最后一条消息和第一条消息的Offset差值
+     * 获取当前队列中最后一条消息和第一条未确认消息的Offset差值
      *
      * @return
      */
     public long getMaxSpan() {
-        try {
-            this.lockTreeMap.readLock().lockInterruptibly();
-            try {
-                if (!this.msgTreeMap.isEmpty()) {
-                    return this.msgTreeMap.lastKey() - this.msgTreeMap.firstKey();
-                }
-            } finally {
-                this.lockTreeMap.readLock().unlock();
-            }
-        } catch (InterruptedException e) {
-            log.error("getMaxSpan exception", e);
+        if (this.msgCount.get() <= 0) {
+            return 0;
         }
 
-        return 0;
+        final long high = this.highSeq;
+        final long low = this.lowSeq.get();
+        if (low > high) {
+            return 0;
+        }
+
+        long first = this.offsetOf(low);
+        return first < 0 ? 0 : this.offsetOf(high) - first;
     }
 
     /**
@@ -178,61 +276,146 @@ public class ProcessQueue {
      * @return 返回待处理的消息的新的Offset
      */
     public long removeMessage(final List<MessageExt> msgs) {
-        long result = -1;
+        this.lastConsumeTimestamp = System.currentTimeMillis();
+
+        /**
+         * 移除处理过的消息
+         */
+        int removedCnt = 0;
+        long removedSize = 0;
+        for (MessageExt msg : msgs) {
+            long seq = this.findSeq(msg.getQueueOffset());
+            if (seq >= 0) {
+                MessageExt prev = this.ack(seq);
+                if (prev != null) {
+                    removedCnt++;
+                    removedSize += bodySize(prev);
+                }
+            }
+        }
 
-        final long now = System.currentTimeMillis();
+        if (removedCnt > 0) {
+            /**
+             * 更新现有消息数量
+             */
+            msgCount.addAndGet(-removedCnt);
+            this.addMsgSize(-removedSize);
+            this.advanceLowSeq();
+        } else if (msgCount.get() <= 0) {
+            return -1;
+        }
 
-        try {
-            this.lockTreeMap.writeLock().lockInterruptibly();
+        /**
+         * 如果还有消息，则把当前队列中剩余的第一条消息的Offset返回
+         */
+        final long high = this.highSeq;
+        final long low = this.lowSeq.get();
+        if (low <= high) {
+            long offset = this.offsetOf(low);
+            if (offset >= 0) {
+                return offset;
+            }
+        }
 
-            this.lastConsumeTimestamp = now;
+        return this.queueOffsetMax + 1;
+    }
 
-            try {
-                if (!msgTreeMap.isEmpty()) {
 
-                    /**
-                     * TODO: +1 ??
-                     */
-                    result = this.queueOffsetMax + 1;
+    /**
+     * 从head开始找到seq所在的Segment，seq已经被回收时返回null
+     */
+    private Segment segmentOf(final long seq) {
+        Segment seg = this.head.get();
+        while (seg != null && !seg.contains(seq)) {
+            if (seq < seg.baseSeq) {
+                return null;
+            }
+            seg = seg.next;
+        }
+        return seg;
+    }
 
-                    /**
-                     * 移除处理过的消息
-                     */
-                    int removedCnt = 0;
-                    for (MessageExt msg : msgs) {
-                        MessageExt prev = msgTreeMap.remove(msg.getQueueOffset());
-                        if (prev != null) {
-                            removedCnt--;
-                        }
-                    }
 
-                    /**
-                     * 更新现有消息数量
-                     */
-                    msgCount.addAndGet(removedCnt);
+    private long offsetOf(final long seq) {
+        Segment seg = this.segmentOf(seq);
+        return seg == null ? -1 : seg.offsets[(int) (seq - seg.baseSeq)];
+    }
+
+
+    private MessageExt msgOf(final long seq) {
+        Segment seg = this.segmentOf(seq);
+        return seg == null ? null : seg.msgs.get((int) (seq - seg.baseSeq));
+    }
 
 
-                    /**
-                     * 如果还有消息，则把当前队列中剩余的第一条消息的Offset返回
-                     */
-                    if (!msgTreeMap.isEmpty()) {
-                        result = msgTreeMap.firstKey();
+    /**
+     * 按offset二分查找还在队列中的消息的seq，找不到返回-1
+     */
+    private long findSeq(final long offset) {
+        final long high = this.highSeq;
+        Segment seg = this.head.get();
+        while (seg != null && seg.baseSeq <= high) {
+            int last = (int) (Math.min(high, seg.baseSeq + SegmentSize - 1) - seg.baseSeq);
+            if (seg.offsets[last] >= offset) {
+                int lo = 0;
+                int hi = last;
+                while (lo <= hi) {
+                    int mid = (lo + hi) >>> 1;
+                    long midOffset = seg.offsets[mid];
+                    if (midOffset < offset) {
+                        lo = mid + 1;
+                    } else if (midOffset > offset) {
+                        hi = mid - 1;
+                    } else {
+                        return seg.baseSeq + mid;
                     }
                 }
-
-            } finally {
-                this.lockTreeMap.writeLock().unlock();
+                return -1;
             }
-        } catch (Throwable t) {
-            log.error("removeMessage exception", t);
+            seg = seg.next;
         }
+        return -1;
+    }
 
-        return result;
+
+    /**
+     * 确认一条消息，返回被确认的消息，已经被确认过返回null。调用方负责扣减数量
+     */
+    private MessageExt ack(final long seq) {
+        Segment seg = this.segmentOf(seq);
+        if (seg != null) {
+            int index = (int) (seq - seg.baseSeq);
+            MessageExt msg = seg.msgs.get(index);
+            if (msg != null && seg.msgs.compareAndSet(index, msg, null)) {
+                return msg;
+            }
+        }
+        return null;
     }
 
 
-    public TreeMap<Long, MessageExt> getMsgTreeMap() {
-        return msgTreeMap;
+    /**
+     * 低水位越过所有已确认的消息，越过整个Segment后把head后移
+     */
+    private void advanceLowSeq() {
+        for (; ; ) {
+            long low = this.lowSeq.get();
+            if (low > this.highSeq) {
+                break;
+            }
+
+            Segment seg = this.segmentOf(low);
+            if (seg != null && seg.msgs.get((int) (low - seg.baseSeq)) != null) {
+                break;
+            }
+            this.lowSeq.compareAndSet(low, low + 1);
+        }
+
+        Segment h = this.head.get();
+        while (h.next != null && h.baseSeq + SegmentSize <= this.lowSeq.get()) {
+            this.head.compareAndSet(h, h.next);
+            h = this.head.get();
+        }
     }
 
 
@@ -241,13 +424,101 @@ public class ProcessQueue {
     }
 
 
+    public AtomicLong getMsgSize() {
+        return msgSize;
+    }
+
+
+    public int getAvgMsgSize() {
+        return avgMsgSize;
+    }
+
+
+    /**
+     * 根据本地还没有消费完的消息数调整下一次拉取的数量，在拉消息之前调用<br>
+     * 上一批消息基本消费完说明监听器的消费速度跟得上拉取，批量翻倍直到maxBatchSize；
+     * 积压超过两批说明消费慢，批量减半，最少拉1条<br>
+     * 同时按消息平均大小保证一次拉取不超过本队列剩余的字节预算
+     *
+     * @param maxBatchSize      配置的拉取数量上限
+     * @param thresholdSizeByte 本队列的字节预算
+     * @return 本次拉取的数量
+     */
+    public int adjustPullBatchSize(final int maxBatchSize, final long thresholdSizeByte) {
+        int batch = this.pullBatchSize;
+        if (batch <= 0 || batch > maxBatchSize) {
+            batch = maxBatchSize;
+        }
+
+        long cached = this.msgCount.get();
+        if (cached <= batch / 2) {
+            batch = Math.min(maxBatchSize, batch * 2);
+        } else if (cached > batch * 2L) {
+            batch = Math.max(1, batch / 2);
+        }
+        this.pullBatchSize = batch;
+
+        int avg = this.avgMsgSize;
+        if (avg > 0) {
+            long remain = thresholdSizeByte - this.msgSize.get();
+            batch = (int) Math.max(1, Math.min(batch, remain / avg));
+        }
+
+        return batch;
+    }
+
+
+    public int getPullBatchSize() {
+        return pullBatchSize;
+    }
+
+
+    /**
+     * 流控退避时间随连续流控次数翻倍增长，不超过maxDelay
+     */
+    public long nextFlowControlDelay(final long baseDelay, final long maxDelay) {
+        int times = this.flowControlTimes;
+        if (times < 16) {
+            this.flowControlTimes = times + 1;
+        }
+        return Math.min(maxDelay, baseDelay << Math.min(times, 16));
+    }
+
+
+    public void resetFlowControlTimes() {
+        this.flowControlTimes = 0;
+    }
+
+
+
     public boolean isDropped() {
         return dropped;
     }
 
 
+    /**
+     * 队列被丢弃后其中没有消费完的消息不再占用客户端的缓存预算
+     */
     public void setDropped(boolean dropped) {
         this.dropped = dropped;
+        if (dropped) {
+            this.clear();
+        }
+    }
+
+
+    private void addMsgSize(final long delta) {
+        if (delta != 0) {
+            this.msgSize.addAndGet(delta);
+            if (this.clientMsgSize != null) {
+                this.clientMsgSize.addAndGet(delta);
+            }
+        }
+    }
+
+
+    private static long bodySize(final MessageExt msg) {
+        return msg.getBody() == null ? 0 : msg.getBody().length;
     }
 
     public void setLocked(boolean locked) {
@@ -260,105 +531,102 @@ public class ProcessQueue {
     }
 
 
+    /**
+     * 顺序消费回滚，已经取走的消息重新消费
+     */
     public void rollback() {
-        try {
-            this.lockTreeMap.writeLock().lockInterruptibly();
-            try {
-                this.msgTreeMap.putAll(this.msgTreeMapTemp);
-                this.msgTreeMapTemp.clear();
-            } finally {
-                this.lockTreeMap.writeLock().unlock();
-            }
-        } catch (InterruptedException e) {
-            log.error("rollback exception", e);
-        }
+        this.takenSeq = this.lowSeq.get();
     }
 
 
+    /**
+     * 顺序消费提交，确认已经取走的消息
+     *
+     * @return 下一条要消费的消息的Offset，没有取走的消息返回-1
+     */
     public long commit() {
-        try {
-            this.lockTreeMap.writeLock().lockInterruptibly();
-            try {
-                Long offset = this.msgTreeMapTemp.lastKey();
-                msgCount.addAndGet(this.msgTreeMapTemp.size() * (-1));
-                this.msgTreeMapTemp.clear();
-                if (offset != null) {
-                    return offset + 1;
-                }
-            } finally {
-                this.lockTreeMap.writeLock().unlock();
-            }
-        } catch (InterruptedException e) {
-            log.error("commit exception", e);
+        final long taken = this.takenSeq;
+        final long low = this.lowSeq.get();
+        if (taken <= low) {
+            return -1;
         }
 
-        return -1;
+        long offset = this.offsetOf(taken - 1);
+        this.ackRange(low, taken - 1);
+        return offset < 0 ? -1 : offset + 1;
     }
 
 
+    /**
+     * 顺序消费时把最后取走的一批消息放回队列，msgs总是已取走消息的尾部
+     */
     public void makeMessageToCosumeAgain(List<MessageExt> msgs) {
-        try {
-            this.lockTreeMap.writeLock().lockInterruptibly();
-            try {
-                for (MessageExt msg : msgs) {
-                    this.msgTreeMapTemp.remove(msg.getQueueOffset());
-                    this.msgTreeMap.put(msg.getQueueOffset(), msg);
-                }
-            } finally {
-                this.lockTreeMap.writeLock().unlock();
-            }
-        } catch (InterruptedException e) {
-            log.error("makeMessageToCosumeAgain exception", e);
+        long minOffset = Long.MAX_VALUE;
+        for (MessageExt msg : msgs) {
+            minOffset = Math.min(minOffset, msg.getQueueOffset());
+        }
+
+        long seq = this.findSeq(minOffset);
+        if (seq >= 0 && seq < this.takenSeq) {
+            this.takenSeq = seq;
         }
     }
 
     public List<MessageExt> takeMessags(final int batchSize) {
         List<MessageExt> result = new ArrayList<MessageExt>(batchSize);
-        final long now = System.currentTimeMillis();
-        try {
-            this.lockTreeMap.writeLock().lockInterruptibly();
-            this.lastConsumeTimestamp = now;
-            try {
-                if (!this.msgTreeMap.isEmpty()) {
-                    for (int i = 0; i < batchSize; i++) {
-                        Map.Entry<Long, MessageExt> entry = this.msgTreeMap.pollFirstEntry();
-                        if (entry != null) {
-                            result.add(entry.getValue());
-                            msgTreeMapTemp.put(entry.getKey(), entry.getValue());
-                        } else {
-                            break;
-                        }
-                    }
+        this.lastConsumeTimestamp = System.currentTimeMillis();
+        for (; ; ) {
+            long seq = Math.max(this.takenSeq, this.lowSeq.get());
+            final long high = this.highSeq;
+            while (result.size() < batchSize && seq <= high) {
+                MessageExt msg = this.msgOf(seq);
+                if (msg != null) {
+                    result.add(msg);
                 }
+                seq++;
+            }
+            this.takenSeq = seq;
 
-                if (result.isEmpty()) {
-                    consuming = false;
-                }
-            } finally {
-                this.lockTreeMap.writeLock().unlock();
+            if (!result.isEmpty()) {
+                break;
+            }
+
+            // 先清除消费标记再检查是否有新消息，与putMessage交叉时至少有一方能看到对方
+            this.consuming.set(false);
+            if (this.takenSeq > this.highSeq || !this.consuming.compareAndSet(false, true)) {
+                break;
             }
-        } catch (InterruptedException e) {
-            log.error("take Messages exception", e);
         }
 
         return result;
     }
 
 
-    public void clear() {
-        try {
-            this.lockTreeMap.writeLock().lockInterruptibly();
-            try {
-                this.msgTreeMap.clear();
-                this.msgTreeMapTemp.clear();
-                this.msgCount.set(0);
-                this.queueOffsetMax = 0L;
-            } finally {
-                this.lockTreeMap.writeLock().unlock();
+    /**
+     * 确认[fromSeq, toSeq]之间还没有确认的消息
+     */
+    private void ackRange(final long fromSeq, final long toSeq) {
+        int removedCnt = 0;
+        long removedSize = 0;
+        for (long seq = fromSeq; seq <= toSeq; seq++) {
+            MessageExt prev = this.ack(seq);
+            if (prev != null) {
+                removedCnt++;
+                removedSize += bodySize(prev);
             }
-        } catch (InterruptedException e) {
-            log.error("rollback exception", e);
         }
+
+        if (removedCnt > 0) {
+            this.msgCount.addAndGet(-removedCnt);
+            this.addMsgSize(-removedSize);
+        }
+        this.advanceLowSeq();
+    }
+
+
+    public void clear() {
+        this.ackRange(this.lowSeq.get(), this.highSeq);
+        this.takenSeq = this.lowSeq.get();
     }
 
 
@@ -373,7 +641,12 @@ public class ProcessQueue {
 
 
     public Lock getLockConsume() {
-        return lockConsume;
+        return lockConsume.writeLock();
+    }
+
+
+    public Lock getLockConsumeShared() {
+        return lockConsume.readLock();
     }
 
 
@@ -408,32 +681,53 @@ public class ProcessQueue {
 
 
     public void fillProcessQueueInfo(final ProcessQueueInfo info) {
-        try {
-            this.lockTreeMap.readLock().lockInterruptibly();
+        final long high = this.highSeq;
+        final long low = this.lowSeq.get();
+        final long taken = Math.max(this.takenSeq, low);
+
+        long minOffset = -1;
+        long maxOffset = -1;
+        int count = 0;
+        for (long seq = low; seq <= high; seq++) {
+            if (seq == taken) {
+                if (count > 0) {
+                    info.setTransactionMsgMinOffset(minOffset);
+                    info.setTransactionMsgMaxOffset(maxOffset);
+                    info.setTransactionMsgCount(count);
+                }
+                minOffset = -1;
+                count = 0;
+            }
 
-            if (!this.msgTreeMap.isEmpty()) {
-                info.setCachedMsgMinOffset(this.msgTreeMap.firstKey());
-                info.setCachedMsgMaxOffset(this.msgTreeMap.lastKey());
-                info.setCachedMsgCount(this.msgTreeMap.size());
+            if (this.msgOf(seq) != null) {
+                long offset = this.offsetOf(seq);
+                if (count == 0) {
+                    minOffset = offset;
+                }
+                maxOffset = offset;
+                count++;
             }
+        }
 
-            if (!this.msgTreeMapTemp.isEmpty()) {
-                info.setTransactionMsgMinOffset(this.msgTreeMapTemp.firstKey());
-                info.setTransactionMsgMaxOffset(this.msgTreeMapTemp.lastKey());
-                info.setTransactionMsgCount(this.msgTreeMapTemp.size());
+        if (count > 0) {
+            if (taken > high) {
+                info.setTransactionMsgMinOffset(minOffset);
+                info.setTransactionMsgMaxOffset(maxOffset);
+                info.setTransactionMsgCount(count);
+            } else {
+                info.setCachedMsgMinOffset(minOffset);
+                info.setCachedMsgMaxOffset(maxOffset);
+                info.setCachedMsgCount(count);
             }
+        }
 
-            info.setLocked(this.locked);
-            info.setTryUnlockTimes(this.tryUnlockTimes.get());
-            info.setLastLockTimestamp(this.lastLockTimestamp);
+        info.setLocked(this.locked);
+        info.setTryUnlockTimes(this.tryUnlockTimes.get());
+        info.setLastLockTimestamp(this.lastLockTimestamp);
 
-            info.setDroped(this.dropped);
-            info.setLastPullTimestamp(this.lastPullTimestamp);
-            info.setLastConsumeTimestamp(this.lastConsumeTimestamp);
-        } catch (Exception e) {
-        } finally {
-            this.lockTreeMap.readLock().unlock();
-        }
+        info.setDroped(this.dropped);
+        info.setLastPullTimestamp(this.lastPullTimestamp);
+        info.setLastConsumeTimestamp(this.lastConsumeTimestamp);
     }
 
 
@@ -463,7 +463,7 @@ public abstract class RebalanceImpl {
                 pullRequest.setConsumerGroup(consumerGroup);
                 pullRequest.setMessageQueue(mq);
 
-                pullRequest.setProcessQueue(new ProcessQueue());
+                pullRequest.setProcessQueue(new ProcessQueue(this.mQClientFactory.getCachedMsgSize()));
 
                 /**
                  * 计算当前MessageQueue应该从哪里开始拉取消息
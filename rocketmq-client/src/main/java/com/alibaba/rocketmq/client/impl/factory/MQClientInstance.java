@@ -54,6 +54,7 @@ import java.net.DatagramSocket;
 import java.util.*;
 import java.util.Map.Entry;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -123,6 +124,11 @@ public class MQClientInstance {
 
     private final ConsumerStatsManager consumerStatsManager;
 
+    /**
+     * 本客户端实例下所有PushConsumer的ProcessQueue缓存的消息体总字节数
+     */
+    private final AtomicLong cachedMsgSize = new AtomicLong(0);
+
 
     public MQClientInstance(ClientConfig clientConfig, int instanceIndex, String clientId, RPCHook rpcHook) {
         this.clientConfig = clientConfig;
@@ -1397,6 +1403,11 @@ public class MQClientInstance {
     }
 
 
+    public AtomicLong getCachedMsgSize() {
+        return cachedMsgSize;
+    }
+
+
     public DefaultMQProducer getDefaultMQProducer() {
         return defaultMQProducer;
     }
@@ -66,6 +66,8 @@ public class DefaultMQProducerImpl implements MQProducerInner {
     private final ArrayList<SendMessageHook> sendMessageHookList = new ArrayList<SendMessageHook>();
     private ArrayList<CheckForbiddenHook> checkForbiddenHookList = new ArrayList<CheckForbiddenHook>();
     private final RPCHook rpcHook;
+    // 开启autoBatch时异步发送的攒批器
+    private ProduceAccumulator produceAccumulator;
 
 
     public DefaultMQProducerImpl(final DefaultMQProducer defaultMQProducer, RPCHook rpcHook) {
@@ -189,6 +191,14 @@ public class DefaultMQProducerImpl implements MQProducerInner {
                     mQClientFactory.start();
                 }
 
+                if (this.defaultMQProducer.isAutoBatch()) {
+                    this.produceAccumulator = new ProduceAccumulator(this, //
+                            this.defaultMQProducer.getBatchMaxBytes(), //
+                            this.defaultMQProducer.getBatchLingerMs(), //
+                            this.defaultMQProducer.getBatchTotalMaxBytes());
+                    this.produceAccumulator.start();
+                }
+
                 log.info("the producer [{}] start OK", this.defaultMQProducer.getProducerGroup());
                 this.serviceState = ServiceState.RUNNING;
                 break;
@@ -230,6 +240,10 @@ public class DefaultMQProducerImpl implements MQProducerInner {
             case CREATE_JUST:
                 break;
             case RUNNING:
+                if (this.produceAccumulator != null) {
+                    this.produceAccumulator.shutdown(this.defaultMQProducer.getSendMsgTimeout());
+                }
+
                 this.mQClientFactory.unregisterProducer(this.defaultMQProducer.getProducerGroup());
                 if (shutdownFactory) {
                     this.mQClientFactory.shutdown();
@@ -463,6 +477,13 @@ public class DefaultMQProducerImpl implements MQProducerInner {
 
     public void send(Message msg, SendCallback sendCallback, long timeout) throws MQClientException,
             RemotingException, InterruptedException {
+        if (this.produceAccumulator != null && ProduceAccumulator.canAccumulate(msg)) {
+            this.makeSureStateOK();
+            Validators.checkMessage(msg, this.defaultMQProducer);
+            this.produceAccumulator.append(msg, sendCallback, timeout);
+            return;
+        }
+
         try {
             this.sendDefaultImpl(msg, CommunicationMode.ASYNC, sendCallback, timeout);
         } catch (MQBrokerException e) {
@@ -744,7 +765,7 @@ public class DefaultMQProducerImpl implements MQProducerInner {
                 /**
                  * 尝试压缩消息
                  */
-                if (this.tryToCompressMessage(msg)) {
+                if (!(msg instanceof MessageBatch) && this.tryToCompressMessage(msg)) {
                     sysFlag |= MessageSysFlag.CompressedFlag;
                 }
 
@@ -950,6 +971,38 @@ public class DefaultMQProducerImpl implements MQProducerInner {
             throw new MQClientException("message's topic not equal mq's topic", null);
         }
 
+        if (this.produceAccumulator != null && ProduceAccumulator.canAccumulate(msg)) {
+            this.produceAccumulator.append(msg, mq, sendCallback, timeout);
+            return;
+        }
+
+        try {
+            this.sendKernelImpl(msg, mq, CommunicationMode.ASYNC, sendCallback, timeout);
+        } catch (MQBrokerException e) {
+            throw new MQClientException("unknow exception", e);
+        }
+    }
+
+
+    /**
+     * 由ProduceAccumulator调用，消息已经校验过，和普通异步发送一样选择队列
+     */
+    void sendAccumulated(Message msg, SendCallback sendCallback, long timeout)
+            throws MQClientException, RemotingException, InterruptedException {
+        try {
+            this.sendDefaultImpl(msg, CommunicationMode.ASYNC, sendCallback, timeout);
+        } catch (MQBrokerException e) {
+            throw new MQClientException("unknow exception", e);
+        }
+    }
+
+
+    /**
+     * 由ProduceAccumulator调用，消息已经校验过并选好队列
+     */
+    void sendAccumulated(Message msg, MessageQueue mq, SendCallback sendCallback, long timeout)
+            throws MQClientException, RemotingException, InterruptedException {
+        this.makeSureStateOK();
         try {
             this.sendKernelImpl(msg, mq, CommunicationMode.ASYNC, sendCallback, timeout);
         } catch (MQBrokerException e) {
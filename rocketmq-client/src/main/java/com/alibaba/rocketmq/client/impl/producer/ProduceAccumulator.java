@@ -0,0 +1,344 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.client.impl.producer;
+
+import com.alibaba.rocketmq.client.exception.MQClientException;
+import com.alibaba.rocketmq.client.log.ClientLogger;
+import com.alibaba.rocketmq.client.producer.SendCallback;
+import com.alibaba.rocketmq.client.producer.SendResult;
+import com.alibaba.rocketmq.common.MixAll;
+import com.alibaba.rocketmq.common.ServiceThread;
+import com.alibaba.rocketmq.common.message.Message;
+import com.alibaba.rocketmq.common.message.MessageBatch;
+import com.alibaba.rocketmq.common.message.MessageConst;
+import com.alibaba.rocketmq.common.message.MessageDecoder;
+import com.alibaba.rocketmq.common.message.MessageQueue;
+import org.slf4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * 异步发送攒批，send(msg, callback)的消息按Topic缓存，发送时再走正常的选队列及重试逻辑；
+ * 指定了MessageQueue的消息按队列缓存。达到batchMaxBytes或者等待超过batchLingerMs后合并成一个MessageBatch发送，
+ * 所有已缓存未确认的消息按编码后的大小计算，总大小不超过batchTotalMaxBytes，超过后发送线程阻塞等待
+ */
+public class ProduceAccumulator {
+    private static final Logger log = ClientLogger.getLog();
+
+    private final DefaultMQProducerImpl defaultMQProducerImpl;
+    // 未指定队列的消息，发送时再选择队列
+    private final ConcurrentHashMap<String/* topic */, MessageAccumulation> topicAccumulationTable =
+            new ConcurrentHashMap<String, MessageAccumulation>();
+    private final ConcurrentHashMap<MessageQueue, MessageAccumulation> queueAccumulationTable =
+            new ConcurrentHashMap<MessageQueue, MessageAccumulation>();
+    // 缓存及发送中的消息占用的字节数
+    private final Semaphore holdBytes;
+    private final int batchMaxBytes;
+    private final long batchLingerMs;
+    private final int batchTotalMaxBytes;
+    private final LingerFlushService lingerFlushService = new LingerFlushService();
+    private volatile boolean stopped = false;
+
+
+    public ProduceAccumulator(final DefaultMQProducerImpl defaultMQProducerImpl, final int batchMaxBytes,
+                              final long batchLingerMs, final int batchTotalMaxBytes) {
+        this.defaultMQProducerImpl = defaultMQProducerImpl;
+        this.batchMaxBytes = batchMaxBytes;
+        this.batchLingerMs = batchLingerMs;
+        this.batchTotalMaxBytes = batchTotalMaxBytes;
+        this.holdBytes = new Semaphore(batchTotalMaxBytes);
+    }
+
+
+    public void start() {
+        this.lingerFlushService.start();
+    }
+
+
+    /**
+     * 发出所有缓存的消息，并最多等待timeoutMillis让已发出的batch返回，之后才能关闭网络客户端
+     */
+    public void shutdown(final long timeoutMillis) {
+        this.stopped = true;
+        this.lingerFlushService.shutdown();
+        this.flushAll();
+
+        try {
+            if (this.holdBytes.tryAcquire(this.batchTotalMaxBytes, timeoutMillis, TimeUnit.MILLISECONDS)) {
+                this.holdBytes.release(this.batchTotalMaxBytes);
+            } else {
+                log.warn("wait for accumulated messages timeout, {}ms, unacknowledged bytes: {}", timeoutMillis,
+                        this.batchTotalMaxBytes - this.holdBytes.availablePermits());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /**
+     * 延时、定时、重试、事务消息以及不等待落盘的消息不参与攒批
+     */
+    public static boolean canAccumulate(final Message msg) {
+        if (msg instanceof MessageBatch) {
+            return false;
+        }
+        if (msg.getDelayTimeLevel() > 0) {
+            return false;
+        }
+        if (msg.getProperty(MessageConst.PROPERTY_TIMER_DELIVER_MS) != null) {
+            return false;
+        }
+        if (msg.getTopic().startsWith(MixAll.RETRY_GROUP_TOPIC_PREFIX)) {
+            return false;
+        }
+        if (Boolean.parseBoolean(msg.getProperty(MessageConst.PROPERTY_TRANSACTION_PREPARED))) {
+            return false;
+        }
+        return msg.isWaitStoreMsgOK();
+    }
+
+
+    /**
+     * 消息编码进MessageBatch以及在Broker端占用的大小：消息头、Body、Properties和Topic
+     */
+    static int encodedSize(final Message msg) {
+        return MessageDecoder.encodedMessageSize(msg) + msg.getTopic().getBytes(MessageDecoder.CHARSET_UTF8).length;
+    }
+
+
+    /**
+     * 缓存一条消息，发送时再选择队列，缓存已满时最多阻塞timeout毫秒
+     */
+    public void append(final Message msg, final SendCallback sendCallback, final long timeout)
+            throws MQClientException, InterruptedException {
+        this.append(this.topicAccumulationTable, msg.getTopic(), null, msg, sendCallback, timeout);
+    }
+
+
+    /**
+     * 缓存一条发往指定队列的消息，缓存已满时最多阻塞timeout毫秒
+     */
+    public void append(final Message msg, final MessageQueue mq, final SendCallback sendCallback, final long timeout)
+            throws MQClientException, InterruptedException {
+        this.append(this.queueAccumulationTable, mq, mq, msg, sendCallback, timeout);
+    }
+
+
+    private <K> void append(final ConcurrentHashMap<K, MessageAccumulation> table, final K key,
+                            final MessageQueue mq, final Message msg, final SendCallback sendCallback,
+                            final long timeout) throws MQClientException, InterruptedException {
+        if (this.stopped) {
+            throw new MQClientException("send accumulator has been shutdown", null);
+        }
+
+        final int size = Math.min(encodedSize(msg), this.batchTotalMaxBytes);
+        if (!this.holdBytes.tryAcquire(size, timeout, TimeUnit.MILLISECONDS)) {
+            throw new MQClientException("send accumulator is full, wait " + timeout + "ms, available bytes: "
+                    + this.holdBytes.availablePermits(), null);
+        }
+
+        for (; ; ) {
+            MessageAccumulation accumulation = table.get(key);
+            if (null == accumulation) {
+                accumulation = new MessageAccumulation(mq, timeout);
+                MessageAccumulation prev = table.putIfAbsent(key, accumulation);
+                if (prev != null) {
+                    accumulation = prev;
+                }
+            }
+
+            boolean appended = false;
+            boolean ready = false;
+            synchronized (accumulation) {
+                if (accumulation.closed) {
+                    continue;
+                }
+
+                // 单个batch不超过batchMaxBytes，放不下时先把已缓存的发出去，再放入新的batch
+                if (accumulation.messages.isEmpty() || accumulation.bytes + size <= this.batchMaxBytes) {
+                    accumulation.add(msg, sendCallback, size);
+                    appended = true;
+                }
+
+                if (!appended || accumulation.bytes >= this.batchMaxBytes) {
+                    accumulation.closed = true;
+                    table.remove(key, accumulation);
+                    ready = true;
+                }
+            }
+
+            if (ready) {
+                this.send(accumulation);
+            }
+
+            if (appended) {
+                break;
+            }
+        }
+    }
+
+
+    private void flushAll() {
+        this.flush(this.topicAccumulationTable, false);
+        this.flush(this.queueAccumulationTable, false);
+    }
+
+
+    private void flushExpired() {
+        this.flush(this.topicAccumulationTable, true);
+        this.flush(this.queueAccumulationTable, true);
+    }
+
+
+    private <K> void flush(final ConcurrentHashMap<K, MessageAccumulation> table, final boolean onlyExpired) {
+        final long now = System.currentTimeMillis();
+        Iterator<Map.Entry<K, MessageAccumulation>> it = table.entrySet().iterator();
+        while (it.hasNext()) {
+            MessageAccumulation accumulation = it.next().getValue();
+            if (onlyExpired && now - accumulation.createTimestamp < this.batchLingerMs) {
+                continue;
+            }
+            synchronized (accumulation) {
+                if (accumulation.closed) {
+                    continue;
+                }
+                accumulation.closed = true;
+                it.remove();
+            }
+            this.send(accumulation);
+        }
+    }
+
+
+    private void send(final MessageAccumulation accumulation) {
+        final List<SendCallback> callbacks = accumulation.callbacks;
+        final int bytes = accumulation.bytes;
+
+        SendCallback batchCallback = new SendCallback() {
+            @Override
+            public void onSuccess(SendResult sendResult) {
+                holdBytes.release(bytes);
+                String[] msgIds = sendResult.getMsgId() == null ? null : sendResult.getMsgId().split(",");
+                for (int i = 0; i < callbacks.size(); i++) {
+                    SendResult result = new SendResult(sendResult.getSendStatus(),
+                            msgIds != null && i < msgIds.length ? msgIds[i] : null, sendResult.getMessageQueue(),
+                            sendResult.getQueueOffset() + i);
+                    result.setTransactionId(sendResult.getTransactionId());
+                    try {
+                        callbacks.get(i).onSuccess(result);
+                    } catch (Throwable e) {
+                        log.warn("execute sendCallback onSuccess exception", e);
+                    }
+                }
+            }
+
+
+            @Override
+            public void onException(Throwable e) {
+                holdBytes.release(bytes);
+                for (SendCallback callback : callbacks) {
+                    try {
+                        callback.onException(e);
+                    } catch (Throwable ignored) {
+                        log.warn("execute sendCallback onException exception", ignored);
+                    }
+                }
+            }
+        };
+
+        try {
+            // 只有一条消息时不需要打包
+            final List<Message> messages = accumulation.messages;
+            Message msg;
+            if (messages.size() == 1) {
+                msg = messages.get(0);
+            } else {
+                MessageBatch batch = MessageBatch.generateFromList(messages);
+                batch.setBody(batch.encode());
+                msg = batch;
+            }
+
+            if (null == accumulation.mq) {
+                this.defaultMQProducerImpl.sendAccumulated(msg, batchCallback, accumulation.timeout);
+            } else {
+                this.defaultMQProducerImpl.sendAccumulated(msg, accumulation.mq, batchCallback, accumulation.timeout);
+            }
+        } catch (Throwable e) {
+            batchCallback.onException(e);
+        }
+    }
+
+
+    class MessageAccumulation {
+        // 为null时发送前再选择队列
+        private final MessageQueue mq;
+        private final long timeout;
+        private final long createTimestamp = System.currentTimeMillis();
+        private final List<Message> messages = new ArrayList<Message>();
+        private final List<SendCallback> callbacks = new ArrayList<SendCallback>();
+        private int bytes = 0;
+        private boolean closed = false;
+
+
+        MessageAccumulation(final MessageQueue mq, final long timeout) {
+            this.mq = mq;
+            this.timeout = timeout;
+        }
+
+
+        void add(final Message msg, final SendCallback sendCallback, final int size) {
+            this.messages.add(msg);
+            this.callbacks.add(sendCallback);
+            this.bytes += size;
+        }
+    }
+
+    /**
+     * 定时把等待超过batchLingerMs的消息发送出去
+     */
+    class LingerFlushService extends ServiceThread {
+        @Override
+        public void run() {
+            log.info(this.getServiceName() + " service started");
+
+            while (!this.isStoped()) {
+                try {
+                    this.waitForRunning(Math.max(1, batchLingerMs / 2));
+                    ProduceAccumulator.this.flushExpired();
+                } catch (Throwable e) {
+                    log.warn(this.getServiceName() + " service has exception. ", e);
+                }
+            }
+
+            log.info(this.getServiceName() + " service end");
+        }
+
+
+        @Override
+        public String getServiceName() {
+            return LingerFlushService.class.getSimpleName();
+        }
+    }
+}
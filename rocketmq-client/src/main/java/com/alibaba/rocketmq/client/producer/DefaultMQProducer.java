@@ -17,17 +17,21 @@
 package com.alibaba.rocketmq.client.producer;
 
 import com.alibaba.rocketmq.client.ClientConfig;
+import com.alibaba.rocketmq.client.Validators;
 import com.alibaba.rocketmq.client.QueryResult;
 import com.alibaba.rocketmq.client.exception.MQBrokerException;
 import com.alibaba.rocketmq.client.exception.MQClientException;
 import com.alibaba.rocketmq.client.impl.producer.DefaultMQProducerImpl;
 import com.alibaba.rocketmq.common.MixAll;
 import com.alibaba.rocketmq.common.message.Message;
+import com.alibaba.rocketmq.common.message.MessageBatch;
 import com.alibaba.rocketmq.common.message.MessageExt;
 import com.alibaba.rocketmq.common.message.MessageQueue;
+import com.alibaba.rocketmq.common.protocol.ResponseCode;
 import com.alibaba.rocketmq.remoting.RPCHook;
 import com.alibaba.rocketmq.remoting.exception.RemotingException;
 
+import java.util.Collection;
 import java.util.List;
 
 
@@ -50,6 +54,22 @@ public class DefaultMQProducer extends ClientConfig implements MQProducer {
     private int retryTimesWhenSendFailed = 2;
     private boolean retryAnotherBrokerWhenNotStoreOK = false;
     private int maxMessageSize = 1024 * 128;
+    /**
+     * 异步发送自动攒批，按MessageQueue合并成批量消息发送，回调仍然按条触发
+     */
+    private boolean autoBatch = false;
+    /**
+     * 单个批次的最大字节数，应小于maxMessageSize
+     */
+    private int batchMaxBytes = 1024 * 32;
+    /**
+     * 消息在攒批缓存中的最长等待时间
+     */
+    private long batchLingerMs = 10;
+    /**
+     * 已缓存未确认的消息总字节数，超过后发送线程阻塞
+     */
+    private int batchTotalMaxBytes = 1024 * 1024 * 32;
 
     /**
      * ""
@@ -209,6 +229,79 @@ public class DefaultMQProducer extends ClientConfig implements MQProducer {
     }
 
 
+    @Override
+    public SendResult send(Collection<Message> msgs) throws MQClientException, RemotingException, MQBrokerException,
+            InterruptedException {
+        return this.defaultMQProducerImpl.send(batch(msgs));
+    }
+
+
+    @Override
+    public SendResult send(Collection<Message> msgs, long timeout) throws MQClientException, RemotingException,
+            MQBrokerException, InterruptedException {
+        return this.defaultMQProducerImpl.send(batch(msgs), timeout);
+    }
+
+
+    @Override
+    public SendResult send(Collection<Message> msgs, MessageQueue mq) throws MQClientException, RemotingException,
+            MQBrokerException, InterruptedException {
+        return this.defaultMQProducerImpl.send(batch(msgs, mq), mq);
+    }
+
+
+    @Override
+    public SendResult send(Collection<Message> msgs, MessageQueue mq, long timeout) throws MQClientException,
+            RemotingException, MQBrokerException, InterruptedException {
+        return this.defaultMQProducerImpl.send(batch(msgs, mq), mq, timeout);
+    }
+
+
+    @Override
+    public void send(Collection<Message> msgs, SendCallback sendCallback) throws MQClientException, RemotingException,
+            InterruptedException {
+        this.defaultMQProducerImpl.send(batch(msgs), sendCallback);
+    }
+
+
+    @Override
+    public void send(Collection<Message> msgs, SendCallback sendCallback, long timeout) throws MQClientException,
+            RemotingException, InterruptedException {
+        this.defaultMQProducerImpl.send(batch(msgs), sendCallback, timeout);
+    }
+
+
+    @Override
+    public void sendOneway(Collection<Message> msgs) throws MQClientException, RemotingException, InterruptedException {
+        this.defaultMQProducerImpl.sendOneway(batch(msgs));
+    }
+
+
+    /**
+     * 把一组消息编码成一个MessageBatch，每条消息单独校验，编码后的Body整体受maxMessageSize限制
+     */
+    private MessageBatch batch(Collection<Message> msgs) throws MQClientException {
+        Validators.checkBatchMessages(msgs, this);
+        MessageBatch msgBatch = MessageBatch.generateFromList(msgs);
+        try {
+            msgBatch.setBody(msgBatch.encode());
+        } catch (IllegalArgumentException e) {
+            throw new MQClientException(ResponseCode.MESSAGE_ILLEGAL, "Failed to encode the MessageBatch, " + e);
+        }
+        return msgBatch;
+    }
+
+
+    private MessageBatch batch(Collection<Message> msgs, MessageQueue mq) throws MQClientException {
+        MessageBatch msgBatch = this.batch(msgs);
+        if (!msgBatch.getTopic().equals(mq.getTopic())) {
+            throw new MQClientException(ResponseCode.MESSAGE_ILLEGAL, "the topic of the batch not equal mq's topic, "
+                    + msgBatch.getTopic() + " " + mq.getTopic());
+        }
+        return msgBatch;
+    }
+
+
     @Override
     public void createTopic(String key, String newTopic, int queueNum) throws MQClientException {
         createTopic(key, newTopic, queueNum, 0);
@@ -349,4 +442,44 @@ public class DefaultMQProducer extends ClientConfig implements MQProducer {
     public void setSendMessageWithVIPChannel(final boolean sendMessageWithVIPChannel) {
         this.sendMessageWithVIPChannel = sendMessageWithVIPChannel;
     }
+
+
+    public boolean isAutoBatch() {
+        return autoBatch;
+    }
+
+
+    public void setAutoBatch(boolean autoBatch) {
+        this.autoBatch = autoBatch;
+    }
+
+
+    public int getBatchMaxBytes() {
+        return batchMaxBytes;
+    }
+
+
+    public void setBatchMaxBytes(int batchMaxBytes) {
+        this.batchMaxBytes = batchMaxBytes;
+    }
+
+
+    public long getBatchLingerMs() {
+        return batchLingerMs;
+    }
+
+
+    public void setBatchLingerMs(long batchLingerMs) {
+        this.batchLingerMs = batchLingerMs;
+    }
+
+
+    public int getBatchTotalMaxBytes() {
+        return batchTotalMaxBytes;
+    }
+
+
+    public void setBatchTotalMaxBytes(int batchTotalMaxBytes) {
+        this.batchTotalMaxBytes = batchTotalMaxBytes;
+    }
 }
@@ -23,6 +23,7 @@ import com.alibaba.rocketmq.common.message.Message;
 import com.alibaba.rocketmq.common.message.MessageQueue;
 import com.alibaba.rocketmq.remoting.exception.RemotingException;
 
+import java.util.Collection;
 import java.util.List;
 
 
@@ -103,4 +104,32 @@ public interface MQProducer extends MQAdmin {
 
      TransactionSendResult sendMessageInTransaction(final Message msg,
             final LocalTransactionExecuter tranExecuter, final Object arg) throws MQClientException;
+
+
+     SendResult send(final Collection<Message> msgs) throws MQClientException, RemotingException, MQBrokerException,
+            InterruptedException;
+
+
+     SendResult send(final Collection<Message> msgs, final long timeout) throws MQClientException,
+            RemotingException, MQBrokerException, InterruptedException;
+
+
+     SendResult send(final Collection<Message> msgs, final MessageQueue mq) throws MQClientException,
+            RemotingException, MQBrokerException, InterruptedException;
+
+
+     SendResult send(final Collection<Message> msgs, final MessageQueue mq, final long timeout)
+            throws MQClientException, RemotingException, MQBrokerException, InterruptedException;
+
+
+     void send(final Collection<Message> msgs, final SendCallback sendCallback) throws MQClientException,
+            RemotingException, InterruptedException;
+
+
+     void send(final Collection<Message> msgs, final SendCallback sendCallback, final long timeout)
+            throws MQClientException, RemotingException, InterruptedException;
+
+
+     void sendOneway(final Collection<Message> msgs) throws MQClientException, RemotingException,
+            InterruptedException;
 }
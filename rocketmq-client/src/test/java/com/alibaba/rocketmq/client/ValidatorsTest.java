@@ -17,9 +17,16 @@
 
 package com.alibaba.rocketmq.client;
 
+import com.alibaba.rocketmq.client.exception.MQClientException;
+import com.alibaba.rocketmq.client.producer.DefaultMQProducer;
+import com.alibaba.rocketmq.common.message.Message;
+import com.alibaba.rocketmq.common.protocol.ResponseCode;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.List;
+
 
 public class ValidatorsTest {
 
@@ -36,4 +43,44 @@ public class ValidatorsTest {
             Assert.assertTrue(false);
         }
     }
+
+
+    @Test
+    public void batchMessagesValidatorTest() throws MQClientException {
+        DefaultMQProducer producer = new DefaultMQProducer("ValidatorsTest");
+        List<Message> msgs = new ArrayList<Message>();
+        msgs.add(new Message("Hello", "a".getBytes()));
+        msgs.add(new Message("Hello", "b".getBytes()));
+        Validators.checkBatchMessages(msgs, producer);
+
+        Message timerMsg = new Message("Hello", "c".getBytes());
+        timerMsg.setDeliverTimeMs(System.currentTimeMillis() + 1000);
+        msgs.add(timerMsg);
+        try {
+            Validators.checkBatchMessages(msgs, producer);
+            Assert.fail("timer message should be rejected");
+        } catch (MQClientException e) {
+            Assert.assertEquals(ResponseCode.MESSAGE_ILLEGAL, e.getResponseCode());
+        }
+
+        msgs.set(2, new Message("World", "c".getBytes()));
+        try {
+            Validators.checkBatchMessages(msgs, producer);
+            Assert.fail("mixed topics should be rejected");
+        } catch (MQClientException e) {
+            Assert.assertEquals(ResponseCode.MESSAGE_ILLEGAL, e.getResponseCode());
+        }
+
+        // 每条Body都不超过上限，但编码后的Body整体超过
+        producer.setMaxMessageSize(1024);
+        msgs.clear();
+        msgs.add(new Message("Hello", new byte[1000]));
+        msgs.add(new Message("Hello", new byte[1000]));
+        try {
+            Validators.checkBatchMessages(msgs, producer);
+            Assert.fail("oversized batch should be rejected");
+        } catch (MQClientException e) {
+            Assert.assertEquals(ResponseCode.MESSAGE_ILLEGAL, e.getResponseCode());
+        }
+    }
 }
@@ -0,0 +1,186 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.client.impl.consumer;
+
+import com.alibaba.rocketmq.client.ClientConfig;
+import com.alibaba.rocketmq.client.consumer.DefaultMQPushConsumer;
+import com.alibaba.rocketmq.client.consumer.listener.ConsumeOrderlyContext;
+import com.alibaba.rocketmq.client.consumer.listener.ConsumeOrderlyStatus;
+import com.alibaba.rocketmq.client.consumer.listener.MessageListenerOrderly;
+import com.alibaba.rocketmq.client.consumer.store.OffsetStore;
+import com.alibaba.rocketmq.client.consumer.store.ReadOffsetType;
+import com.alibaba.rocketmq.client.impl.factory.MQClientInstance;
+import com.alibaba.rocketmq.common.message.MessageExt;
+import com.alibaba.rocketmq.common.message.MessageQueue;
+import com.alibaba.rocketmq.common.protocol.heartbeat.MessageModel;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class ConsumeMessageOrderlyServiceTest {
+
+    @Test
+    public void test_sharding_lanes() throws Exception {
+        final int keys = 8;
+        final int total = 400;
+        final ConcurrentHashMap<String, List<Long>> consumed = new ConcurrentHashMap<String, List<Long>>();
+        final AtomicInteger inflight = new AtomicInteger();
+        final AtomicInteger maxInflight = new AtomicInteger();
+        final AtomicBoolean suspended = new AtomicBoolean(false);
+
+        DefaultMQPushConsumer consumer = new DefaultMQPushConsumer("test_sharding_lanes");
+        consumer.setMessageModel(MessageModel.BROADCASTING);
+        consumer.setConsumeOrderlyShardingLanes(4);
+        consumer.setConsumeThreadMin(4);
+        DefaultMQPushConsumerImpl impl = consumer.getDefaultMQPushConsumerImpl();
+        impl.setmQClientFactory(new MQClientInstance(new ClientConfig(), 0, "test_sharding_lanes"));
+        final AtomicLong committed = new AtomicLong(-1);
+        impl.setOffsetStore(new MaxOffsetStore(committed));
+
+        ConsumeMessageOrderlyService service = new ConsumeMessageOrderlyService(impl, new MessageListenerOrderly() {
+            @Override
+            public ConsumeOrderlyStatus consumeMessage(List<MessageExt> msgs, ConsumeOrderlyContext context) {
+                int now = inflight.incrementAndGet();
+                while (true) {
+                    int max = maxInflight.get();
+                    if (now <= max || maxInflight.compareAndSet(max, now)) {
+                        break;
+                    }
+                }
+                try {
+                    MessageExt msg = msgs.get(0);
+                    // 某个key第一次消费失败，只阻塞这个key
+                    if ("key-3".equals(msg.getKeys()) && suspended.compareAndSet(false, true)) {
+                        context.setSuspendCurrentQueueTimeMillis(50);
+                        return ConsumeOrderlyStatus.SUSPEND_CURRENT_QUEUE_A_MOMENT;
+                    }
+                    consumed.get(msg.getKeys()).add(msg.getQueueOffset());
+                    Thread.sleep(1);
+                    return ConsumeOrderlyStatus.SUCCESS;
+                } catch (InterruptedException e) {
+                    return ConsumeOrderlyStatus.SUSPEND_CURRENT_QUEUE_A_MOMENT;
+                } finally {
+                    inflight.decrementAndGet();
+                }
+            }
+        });
+
+        List<MessageExt> msgs = new ArrayList<MessageExt>();
+        for (int i = 0; i < total; i++) {
+            MessageExt msg = new MessageExt();
+            msg.setQueueOffset(i);
+            msg.setKeys("key-" + (i % keys));
+            msgs.add(msg);
+        }
+        for (int i = 0; i < keys; i++) {
+            consumed.put("key-" + i, new CopyOnWriteArrayList<Long>());
+        }
+
+        MessageQueue mq = new MessageQueue("test_sharding_lanes", "broker-a", 0);
+        ProcessQueue pq = new ProcessQueue();
+        service.submitConsumeRequest(null, pq, mq, pq.putMessage(msgs.subList(0, 200)));
+        service.submitConsumeRequest(null, pq, mq, pq.putMessage(msgs.subList(200, total)));
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (pq.getMsgCount().get() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        // 队列被丢弃后清理它的lane
+        assertEquals(1, service.getShardingLanesNums());
+        pq.setDropped(true);
+        service.removeDroppedShardingLanes();
+        assertEquals(0, service.getShardingLanesNums());
+        service.shutdown();
+
+        assertEquals(0, pq.getMsgCount().get());
+        assertEquals(total, committed.get());
+        assertTrue(maxInflight.get() > 1);
+        for (int i = 0; i < keys; i++) {
+            List<Long> offsets = consumed.get("key-" + i);
+            assertEquals(total / keys, offsets.size());
+            for (int j = 0; j < offsets.size(); j++) {
+                assertEquals(i + (long) j * keys, offsets.get(j).longValue());
+            }
+        }
+    }
+
+
+    static class MaxOffsetStore implements OffsetStore {
+        private final AtomicLong committed;
+
+
+        MaxOffsetStore(AtomicLong committed) {
+            this.committed = committed;
+        }
+
+
+        @Override
+        public void load() {
+        }
+
+
+        @Override
+        public void updateOffset(MessageQueue mq, long offset, boolean increaseOnly) {
+            while (true) {
+                long prev = this.committed.get();
+                if (offset <= prev || this.committed.compareAndSet(prev, offset)) {
+                    break;
+                }
+            }
+        }
+
+
+        @Override
+        public long readOffset(MessageQueue mq, ReadOffsetType type) {
+            return this.committed.get();
+        }
+
+
+        @Override
+        public void persistAll(Set<MessageQueue> mqs) {
+        }
+
+
+        @Override
+        public void persist(MessageQueue mq) {
+        }
+
+
+        @Override
+        public void removeOffset(MessageQueue mq) {
+        }
+
+
+        @Override
+        public Map<MessageQueue, Long> cloneOffsetTable(String topic) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.client.impl.consumer;
+
+import com.alibaba.rocketmq.common.message.MessageExt;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class ProcessQueueTest {
+
+    private static List<MessageExt> buildMessages(long beginOffset, int nums, int bodySize) {
+        return buildMessages(beginOffset, nums, bodySize, 1);
+    }
+
+
+    private static List<MessageExt> buildMessages(long beginOffset, int nums, int bodySize, int step) {
+        List<MessageExt> msgs = new ArrayList<MessageExt>();
+        for (int i = 0; i < nums; i++) {
+            MessageExt msg = new MessageExt();
+            msg.setQueueOffset(beginOffset + i * step);
+            msg.setBody(new byte[bodySize]);
+            msgs.add(msg);
+        }
+        return msgs;
+    }
+
+
+    @Test
+    public void test_msg_size_accounting() {
+        AtomicLong clientMsgSize = new AtomicLong();
+        ProcessQueue pq1 = new ProcessQueue(clientMsgSize);
+        ProcessQueue pq2 = new ProcessQueue(clientMsgSize);
+
+        List<MessageExt> msgs = buildMessages(0, 10, 100);
+        pq1.putMessage(msgs);
+        // 重复的消息不计入
+        pq1.putMessage(buildMessages(5, 10, 100));
+        pq2.putMessage(buildMessages(0, 4, 1000));
+        assertEquals(1500, pq1.getMsgSize().get());
+        assertEquals(5500, clientMsgSize.get());
+
+        pq1.removeMessage(msgs.subList(0, 3));
+        assertEquals(1200, pq1.getMsgSize().get());
+        assertEquals(5200, clientMsgSize.get());
+
+        // 顺序消费的提交
+        pq2.takeMessags(2);
+        pq2.commit();
+        assertEquals(2000, pq2.getMsgSize().get());
+        assertEquals(3200, clientMsgSize.get());
+
+        // 丢弃的队列不再占用客户端预算，之后的消费也不会重复扣减
+        pq1.setDropped(true);
+        assertEquals(0, pq1.getMsgSize().get());
+        assertEquals(2000, clientMsgSize.get());
+        assertEquals(-1, pq1.removeMessage(msgs));
+        assertEquals(2000, clientMsgSize.get());
+
+        pq2.clear();
+        assertEquals(0, pq2.getMsgSize().get());
+        assertEquals(0, clientMsgSize.get());
+    }
+
+
+    @Test
+    public void test_adjust_pull_batch_size() {
+        ProcessQueue pq = new ProcessQueue();
+        // 本地没有积压，拉满
+        assertEquals(32, pq.adjustPullBatchSize(32, Long.MAX_VALUE));
+
+        // 消费慢，积压超过两批，逐步减半
+        List<MessageExt> msgs = buildMessages(0, 100, 10);
+        pq.putMessage(msgs);
+        assertEquals(16, pq.adjustPullBatchSize(32, Long.MAX_VALUE));
+        assertEquals(8, pq.adjustPullBatchSize(32, Long.MAX_VALUE));
+
+        // 消费跟上后翻倍恢复
+        pq.removeMessage(msgs);
+        assertEquals(16, pq.adjustPullBatchSize(32, Long.MAX_VALUE));
+        assertEquals(32, pq.adjustPullBatchSize(32, Long.MAX_VALUE));
+
+        // 受字节预算约束：平均10字节，剩余预算50字节
+        assertEquals(5, pq.adjustPullBatchSize(32, 50));
+        assertEquals(1, pq.adjustPullBatchSize(32, 0));
+    }
+
+
+    @Test
+    public void test_flow_control_backoff() {
+        ProcessQueue pq = new ProcessQueue();
+        assertEquals(50, pq.nextFlowControlDelay(50, 1000));
+        assertEquals(100, pq.nextFlowControlDelay(50, 1000));
+        assertEquals(200, pq.nextFlowControlDelay(50, 1000));
+        assertEquals(400, pq.nextFlowControlDelay(50, 1000));
+        assertEquals(800, pq.nextFlowControlDelay(50, 1000));
+        assertEquals(1000, pq.nextFlowControlDelay(50, 1000));
+        pq.resetFlowControlTimes();
+        assertEquals(50, pq.nextFlowControlDelay(50, 1000));
+    }
+
+
+    @Test
+    public void test_remove_out_of_order() {
+        ProcessQueue pq = new ProcessQueue();
+        // offset不连续（tag过滤），并且跨越多个Segment
+        List<MessageExt> msgs = buildMessages(1000, 600, 10, 3);
+        assertTrue(pq.putMessage(msgs.subList(0, 300)));
+        assertFalse(pq.putMessage(msgs.subList(300, 600)));
+        assertEquals(600, pq.getMsgCount().get());
+        assertEquals(599 * 3, pq.getMaxSpan());
+
+        // 第一条没有确认，低水位不动
+        assertEquals(1000, pq.removeMessage(msgs.subList(1, 400)));
+        assertEquals(201, pq.getMsgCount().get());
+        assertEquals(599 * 3, pq.getMaxSpan());
+
+        // 确认第一条后低水位越过所有已确认的消息
+        assertEquals(1000 + 400 * 3, pq.removeMessage(msgs.subList(0, 1)));
+        assertEquals(199 * 3, pq.getMaxSpan());
+
+        // 重复的offset和不在队列中的消息被忽略
+        pq.putMessage(msgs.subList(590, 600));
+        assertEquals(200, pq.getMsgCount().get());
+        assertEquals(1000 + 400 * 3, pq.removeMessage(buildMessages(1001, 1, 10)));
+
+        assertEquals(1000 + 600 * 3 - 2, pq.removeMessage(msgs.subList(400, 600)));
+        assertEquals(0, pq.getMsgCount().get());
+        assertEquals(0, pq.getMaxSpan());
+        assertEquals(-1, pq.removeMessage(msgs.subList(400, 600)));
+    }
+
+
+    @Test
+    public void test_orderly_take_commit() {
+        ProcessQueue pq = new ProcessQueue();
+        List<MessageExt> msgs = buildMessages(0, 10, 10);
+        assertTrue(pq.putMessage(msgs));
+
+        List<MessageExt> taken = pq.takeMessags(4);
+        assertEquals(0, taken.get(0).getQueueOffset());
+        assertEquals(4, pq.commit());
+        assertEquals(6, pq.getMsgCount().get());
+
+        // 回滚后重新取到同样的消息
+        taken = pq.takeMessags(2);
+        pq.rollback();
+        assertEquals(taken, pq.takeMessags(2));
+
+        // 不自动提交时暂停消费，最后一批放回
+        List<MessageExt> last = pq.takeMessags(2);
+        pq.makeMessageToCosumeAgain(last);
+        assertEquals(last, pq.takeMessags(2));
+        assertEquals(8, pq.commit());
+        assertEquals(2, pq.takeMessags(4).size());
+        assertEquals(10, pq.commit());
+        assertEquals(0, pq.getMsgCount().get());
+
+        // 取空之后放弃消费权，再次放入消息时重新派发
+        assertTrue(pq.takeMessags(2).isEmpty());
+        assertTrue(pq.putMessage(buildMessages(10, 2, 10)));
+        assertEquals(2, pq.takeMessags(4).size());
+    }
+
+
+    @Test
+    public void test_concurrent_remove() throws Exception {
+        final ProcessQueue pq = new ProcessQueue();
+        final List<MessageExt> msgs = buildMessages(0, 10000, 10);
+        final AtomicLong published = new AtomicLong();
+        final int threads = 4;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final int lane = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = lane; i < msgs.size(); i += threads) {
+                        while (published.get() <= i) {
+                            Thread.yield();
+                        }
+                        pq.removeMessage(Collections.singletonList(msgs.get(i)));
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+
+        for (int i = 0; i < msgs.size(); i += 100) {
+            pq.putMessage(msgs.subList(i, i + 100));
+            published.set(i + 100);
+        }
+        done.await();
+
+        assertEquals(0, pq.getMsgCount().get());
+        assertEquals(0, pq.getMsgSize().get());
+        assertEquals(0, pq.getMaxSpan());
+
+        // 低水位已经越过全部消息
+        pq.putMessage(buildMessages(10000, 2, 10));
+        assertEquals(10000, pq.removeMessage(buildMessages(10001, 1, 10)));
+    }
+}
@@ -0,0 +1,231 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.client.impl.consumer.benchmark;
+
+import com.alibaba.rocketmq.client.impl.consumer.ProcessQueue;
+import com.alibaba.rocketmq.common.message.MessageExt;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+
+/**
+ * ProcessQueue under one pull thread and concurrent consume threads, segment array vs the
+ * previous TreeMap + ReadWriteLock implementation.
+ * <p>
+ * The pull thread puts batches of 32 messages and checks getMaxSpan like DefaultMQPushConsumerImpl,
+ * backing off when 1000 messages are cached. Consume threads remove one message at a time like
+ * ConsumeMessageConcurrentlyService with consumeMessageBatchMaxSize=1.
+ * Compare the pull score, every pull moves a full batch through the queue, while consume also counts
+ * empty polls.
+ * <p>
+ * mvn -pl rocketmq-client test-compile -Dmaven.test.skip=false, then run main with the test classpath.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProcessQueueBenchmark {
+    private static final int PullBatchSize = 32;
+    private static final int PullThresholdForQueue = 1000;
+
+    @Param({"segment", "treeMap"})
+    private String impl;
+
+    private QueueAdapter queue;
+    private ConcurrentLinkedQueue<MessageExt> inflight;
+    private long nextOffset;
+
+
+    interface QueueAdapter {
+        void putMessage(List<MessageExt> msgs);
+
+        long removeMessage(List<MessageExt> msgs);
+
+        long getMaxSpan();
+
+        long getMsgCount();
+    }
+
+
+    /**
+     * Hot path of the previous ProcessQueue
+     */
+    static class TreeMapProcessQueue implements QueueAdapter {
+        private final ReadWriteLock lockTreeMap = new ReentrantReadWriteLock();
+        private final TreeMap<Long, MessageExt> msgTreeMap = new TreeMap<Long, MessageExt>();
+        private final AtomicLong msgCount = new AtomicLong();
+        private volatile long queueOffsetMax = 0L;
+
+
+        @Override
+        public void putMessage(List<MessageExt> msgs) {
+            this.lockTreeMap.writeLock().lock();
+            try {
+                int validMsgCnt = 0;
+                for (MessageExt msg : msgs) {
+                    MessageExt old = msgTreeMap.put(msg.getQueueOffset(), msg);
+                    if (null == old) {
+                        validMsgCnt++;
+                        this.queueOffsetMax = msg.getQueueOffset();
+                    }
+                }
+                msgCount.addAndGet(validMsgCnt);
+            } finally {
+                this.lockTreeMap.writeLock().unlock();
+            }
+        }
+
+
+        @Override
+        public long removeMessage(List<MessageExt> msgs) {
+            long result = -1;
+            this.lockTreeMap.writeLock().lock();
+            try {
+                if (!msgTreeMap.isEmpty()) {
+                    result = this.queueOffsetMax + 1;
+                    int removedCnt = 0;
+                    for (MessageExt msg : msgs) {
+                        MessageExt prev = msgTreeMap.remove(msg.getQueueOffset());
+                        if (prev != null) {
+                            removedCnt--;
+                        }
+                    }
+                    msgCount.addAndGet(removedCnt);
+                    if (!msgTreeMap.isEmpty()) {
+                        result = msgTreeMap.firstKey();
+                    }
+                }
+            } finally {
+                this.lockTreeMap.writeLock().unlock();
+            }
+            return result;
+        }
+
+
+        @Override
+        public long getMaxSpan() {
+            this.lockTreeMap.readLock().lock();
+            try {
+                if (!this.msgTreeMap.isEmpty()) {
+                    return this.msgTreeMap.lastKey() - this.msgTreeMap.firstKey();
+                }
+            } finally {
+                this.lockTreeMap.readLock().unlock();
+            }
+            return 0;
+        }
+
+
+        @Override
+        public long getMsgCount() {
+            return this.msgCount.get();
+        }
+    }
+
+
+    static class SegmentProcessQueue implements QueueAdapter {
+        private final ProcessQueue processQueue = new ProcessQueue();
+
+
+        @Override
+        public void putMessage(List<MessageExt> msgs) {
+            this.processQueue.putMessage(msgs);
+        }
+
+
+        @Override
+        public long removeMessage(List<MessageExt> msgs) {
+            return this.processQueue.removeMessage(msgs);
+        }
+
+
+        @Override
+        public long getMaxSpan() {
+            return this.processQueue.getMaxSpan();
+        }
+
+
+        @Override
+        public long getMsgCount() {
+            return this.processQueue.getMsgCount().get();
+        }
+    }
+
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        this.queue = "segment".equals(this.impl) ? new SegmentProcessQueue() : new TreeMapProcessQueue();
+        this.inflight = new ConcurrentLinkedQueue<MessageExt>();
+        this.nextOffset = 0;
+    }
+
+
+    @Benchmark
+    @Group("pullAndConsume")
+    @GroupThreads(1)
+    public long pull() {
+        long span = this.queue.getMaxSpan();
+        if (this.queue.getMsgCount() >= PullThresholdForQueue) {
+            return span;
+        }
+
+        List<MessageExt> msgs = new ArrayList<MessageExt>(PullBatchSize);
+        for (int i = 0; i < PullBatchSize; i++) {
+            MessageExt msg = new MessageExt();
+            msg.setQueueOffset(this.nextOffset++);
+            msgs.add(msg);
+        }
+        this.queue.putMessage(msgs);
+        this.inflight.addAll(msgs);
+        return span;
+    }
+
+
+    @Benchmark
+    @Group("pullAndConsume")
+    @GroupThreads(4)
+    public long consume() {
+        MessageExt msg = this.inflight.poll();
+        if (msg == null) {
+            return -1;
+        }
+        return this.queue.removeMessage(Collections.singletonList(msg));
+    }
+
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()//
+                .include(ProcessQueueBenchmark.class.getSimpleName())//
+                .build();
+        new Runner(opt).run();
+    }
+}
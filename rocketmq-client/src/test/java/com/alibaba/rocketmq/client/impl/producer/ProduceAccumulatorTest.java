@@ -0,0 +1,144 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.client.impl.producer;
+
+import com.alibaba.rocketmq.client.producer.DefaultMQProducer;
+import com.alibaba.rocketmq.client.producer.SendCallback;
+import com.alibaba.rocketmq.client.producer.SendResult;
+import com.alibaba.rocketmq.client.producer.SendStatus;
+import com.alibaba.rocketmq.common.message.Message;
+import com.alibaba.rocketmq.common.message.MessageBatch;
+import com.alibaba.rocketmq.common.message.MessageDecoder;
+import com.alibaba.rocketmq.common.message.MessageQueue;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class ProduceAccumulatorTest {
+    private final List<Message> sent = new CopyOnWriteArrayList<Message>();
+
+    private final DefaultMQProducerImpl producerImpl = new DefaultMQProducerImpl(new DefaultMQProducer("test")) {
+        @Override
+        void sendAccumulated(Message msg, SendCallback sendCallback, long timeout) {
+            this.sendAccumulated(msg, new MessageQueue(msg.getTopic(), "broker-b", 1), sendCallback, timeout);
+        }
+
+
+        @Override
+        void sendAccumulated(Message msg, MessageQueue mq, SendCallback sendCallback, long timeout) {
+            sent.add(msg);
+            int num = msg instanceof MessageBatch ? ((MessageBatch) msg).size() : 1;
+            StringBuilder msgIds = new StringBuilder();
+            for (int i = 0; i < num; i++) {
+                if (i > 0) {
+                    msgIds.append(",");
+                }
+                msgIds.append("id").append(i);
+            }
+            sendCallback.onSuccess(new SendResult(SendStatus.SEND_OK, msgIds.toString(), mq, 100));
+        }
+    };
+
+
+    @Test
+    public void test_flush_by_size_and_linger() throws Exception {
+        final int size = ProduceAccumulator.encodedSize(new Message("TopicTest", new byte[10]));
+        ProduceAccumulator accumulator = new ProduceAccumulator(producerImpl, size * 10, 50, 1024 * 1024);
+        accumulator.start();
+
+        MessageQueue mq = new MessageQueue("TopicTest", "broker-a", 0);
+        final CountDownLatch latch = new CountDownLatch(15);
+        final AtomicLong offsetSum = new AtomicLong();
+        SendCallback callback = new SendCallback() {
+            @Override
+            public void onSuccess(SendResult sendResult) {
+                offsetSum.addAndGet(sendResult.getQueueOffset());
+                latch.countDown();
+            }
+
+
+            @Override
+            public void onException(Throwable e) {
+            }
+        };
+
+        // 10条凑满一批立即发送，剩下5条等linger超时
+        for (int i = 0; i < 15; i++) {
+            accumulator.append(new Message("TopicTest", new byte[10]), mq, callback, 1000);
+        }
+        assertEquals(1, sent.size());
+        assertEquals(10, ((MessageBatch) sent.get(0)).size());
+
+        assertTrue(latch.await(3, TimeUnit.SECONDS));
+        assertEquals(2, sent.size());
+        assertEquals(5, ((MessageBatch) sent.get(1)).size());
+        assertEquals(100 * 15 + 45 + 10, offsetSum.get());
+
+        accumulator.shutdown(1000);
+    }
+
+
+    @Test
+    public void test_select_queue_when_send() throws Exception {
+        ProduceAccumulator accumulator = new ProduceAccumulator(producerImpl, 1024, 10000, 1024 * 1024);
+        accumulator.start();
+
+        final MessageQueue expected = new MessageQueue("TopicTest", "broker-b", 1);
+        final AtomicLong matched = new AtomicLong();
+        SendCallback callback = new SendCallback() {
+            @Override
+            public void onSuccess(SendResult sendResult) {
+                if (expected.equals(sendResult.getMessageQueue())) {
+                    matched.incrementAndGet();
+                }
+            }
+
+
+            @Override
+            public void onException(Throwable e) {
+            }
+        };
+
+        for (int i = 0; i < 3; i++) {
+            accumulator.append(new Message("TopicTest", new byte[10]), callback, 1000);
+        }
+        assertEquals(0, sent.size());
+
+        // 关闭时把缓存的消息发出去
+        accumulator.shutdown(1000);
+        assertEquals(1, sent.size());
+        assertEquals(3, ((MessageBatch) sent.get(0)).size());
+        assertEquals(3, matched.get());
+    }
+
+
+    @Test
+    public void test_count_encoded_size() {
+        Message msg = new Message("TopicTest", "TagA", "KeyA", new byte[10]);
+        // Properties和Topic也要计入缓存大小
+        assertEquals(MessageDecoder.encodeMessage(msg).length + "TopicTest".length(),
+                ProduceAccumulator.encodedSize(msg));
+    }
+}
@@ -80,6 +80,49 @@ public class BrokerConfig {
     private boolean highSpeedMode = false;
 
     private boolean transferMsgByHeap = false;
+    /**
+     * 拉消息时按请求选择传输方式：数据不在PageCache或者总大小不超过transferMsgByHeapMaxBytes时走堆内拷贝，
+     * 否则通过FileRegion零拷贝传输；默认关闭，关闭时由transferMsgByHeap决定
+     */
+    private boolean transferMsgAdaptive = false;
+    private int transferMsgByHeapMaxBytes = 1024 * 4;
+    /**
+     * 同步刷盘或者同步复制时发消息线程不等待，由刷盘线程或者slave确认后写回响应
+     */
+    private boolean asyncSendEnable = false;
+    /**
+     * 要读取的数据已经不在内存中的拉消息请求交给单独的线程池，缺页不会阻塞实时消费者
+     */
+    private boolean coldPullRouteEnable = true;
+    private int coldPullMessageThreadPoolNums = 8 + Runtime.getRuntime().availableProcessors();
+    private int coldPullThreadPoolQueueCapacity = 100000;
+    /**
+     * 拉消息请求按消费组加权公平调度，权重取订阅组的pullWeight，默认关闭
+     */
+    private boolean pullQosEnable = false;
+    // 每个消费组同时占用的拉消息线程数上限
+    private int pullQosGroupInflightLimit = 16;
+    private int coldPullGroupInflightLimit = 4;
+    // 每个消费组排队的拉消息请求数上限，超过时只拒绝该组的请求
+    private int pullQosGroupQueueCapacity = 10000;
+    private int coldPullGroupQueueCapacity = 10000;
+    /**
+     * 自适应从Slave读：Master把数据已不在内存中的消费者引导到负载最低且复制跟上的Slave，
+     * 消费进度追上后Slave再把消费者引导回Master
+     */
+    private boolean adaptiveSlaveReadEnable = false;
+    // Slave报告状态的间隔
+    private long slaveStateReportInterval = 1000 * 5;
+    // 在Slave上拉取位置落后CommitLog末尾的字节数不超过内存窗口(accessMessageInMemoryMaxRatio)的该百分比时引导回Master，
+    // 与Master引导到Slave使用同一单位，小于100留出回差避免来回切换
+    private int slaveReadCatchUpRatio = 50;
+    /**
+     * 消费进度以二进制快照加增量日志的方式存储，每轮只追加变化的部分，
+     * consumerOffset.json只按consumerOffsetJsonPersistInterval定期写和Broker正常关闭时写，
+     * 启动时加载json和二进制存储中较新的一个
+     */
+    private boolean consumerOffsetJournalEnable = true;
+    private long consumerOffsetJsonPersistInterval = 1000 * 60 * 10;
 
 
     public boolean isTransferMsgByHeap() {
@@ -89,6 +132,31 @@ public class BrokerConfig {
     public void setTransferMsgByHeap(final boolean transferMsgByHeap) {
         this.transferMsgByHeap = transferMsgByHeap;
     }
+
+    public boolean isTransferMsgAdaptive() {
+        return transferMsgAdaptive;
+    }
+
+    public void setTransferMsgAdaptive(final boolean transferMsgAdaptive) {
+        this.transferMsgAdaptive = transferMsgAdaptive;
+    }
+
+    public int getTransferMsgByHeapMaxBytes() {
+        return transferMsgByHeapMaxBytes;
+    }
+
+    public void setTransferMsgByHeapMaxBytes(final int transferMsgByHeapMaxBytes) {
+        this.transferMsgByHeapMaxBytes = transferMsgByHeapMaxBytes;
+    }
+
+    public boolean isAsyncSendEnable() {
+        return asyncSendEnable;
+    }
+
+    public void setAsyncSendEnable(final boolean asyncSendEnable) {
+        this.asyncSendEnable = asyncSendEnable;
+    }
+
     public static String localHostName() {
         try {
             return InetAddress.getLocalHost().getHostName();
@@ -375,4 +443,134 @@ public class BrokerConfig {
     public void setClientManageThreadPoolNums(int clientManageThreadPoolNums) {
         this.clientManageThreadPoolNums = clientManageThreadPoolNums;
     }
+
+
+    public boolean isColdPullRouteEnable() {
+        return coldPullRouteEnable;
+    }
+
+
+    public void setColdPullRouteEnable(boolean coldPullRouteEnable) {
+        this.coldPullRouteEnable = coldPullRouteEnable;
+    }
+
+
+    public int getColdPullMessageThreadPoolNums() {
+        return coldPullMessageThreadPoolNums;
+    }
+
+
+    public void setColdPullMessageThreadPoolNums(int coldPullMessageThreadPoolNums) {
+        this.coldPullMessageThreadPoolNums = coldPullMessageThreadPoolNums;
+    }
+
+
+    public int getColdPullThreadPoolQueueCapacity() {
+        return coldPullThreadPoolQueueCapacity;
+    }
+
+
+    public void setColdPullThreadPoolQueueCapacity(int coldPullThreadPoolQueueCapacity) {
+        this.coldPullThreadPoolQueueCapacity = coldPullThreadPoolQueueCapacity;
+    }
+
+
+    public boolean isPullQosEnable() {
+        return pullQosEnable;
+    }
+
+
+    public void setPullQosEnable(boolean pullQosEnable) {
+        this.pullQosEnable = pullQosEnable;
+    }
+
+
+    public int getPullQosGroupInflightLimit() {
+        return pullQosGroupInflightLimit;
+    }
+
+
+    public void setPullQosGroupInflightLimit(int pullQosGroupInflightLimit) {
+        this.pullQosGroupInflightLimit = pullQosGroupInflightLimit;
+    }
+
+
+    public int getColdPullGroupInflightLimit() {
+        return coldPullGroupInflightLimit;
+    }
+
+
+    public void setColdPullGroupInflightLimit(int coldPullGroupInflightLimit) {
+        this.coldPullGroupInflightLimit = coldPullGroupInflightLimit;
+    }
+
+
+    public int getPullQosGroupQueueCapacity() {
+        return pullQosGroupQueueCapacity;
+    }
+
+
+    public void setPullQosGroupQueueCapacity(int pullQosGroupQueueCapacity) {
+        this.pullQosGroupQueueCapacity = pullQosGroupQueueCapacity;
+    }
+
+
+    public int getColdPullGroupQueueCapacity() {
+        return coldPullGroupQueueCapacity;
+    }
+
+
+    public void setColdPullGroupQueueCapacity(int coldPullGroupQueueCapacity) {
+        this.coldPullGroupQueueCapacity = coldPullGroupQueueCapacity;
+    }
+
+
+    public boolean isAdaptiveSlaveReadEnable() {
+        return adaptiveSlaveReadEnable;
+    }
+
+
+    public void setAdaptiveSlaveReadEnable(boolean adaptiveSlaveReadEnable) {
+        this.adaptiveSlaveReadEnable = adaptiveSlaveReadEnable;
+    }
+
+
+    public long getSlaveStateReportInterval() {
+        return slaveStateReportInterval;
+    }
+
+
+    public void setSlaveStateReportInterval(long slaveStateReportInterval) {
+        this.slaveStateReportInterval = slaveStateReportInterval;
+    }
+
+
+    public int getSlaveReadCatchUpRatio() {
+        return slaveReadCatchUpRatio;
+    }
+
+
+    public void setSlaveReadCatchUpRatio(int slaveReadCatchUpRatio) {
+        this.slaveReadCatchUpRatio = slaveReadCatchUpRatio;
+    }
+
+
+    public boolean isConsumerOffsetJournalEnable() {
+        return consumerOffsetJournalEnable;
+    }
+
+
+    public void setConsumerOffsetJournalEnable(boolean consumerOffsetJournalEnable) {
+        this.consumerOffsetJournalEnable = consumerOffsetJournalEnable;
+    }
+
+
+    public long getConsumerOffsetJsonPersistInterval() {
+        return consumerOffsetJsonPersistInterval;
+    }
+
+
+    public void setConsumerOffsetJsonPersistInterval(long consumerOffsetJsonPersistInterval) {
+        this.consumerOffsetJsonPersistInterval = consumerOffsetJsonPersistInterval;
+    }
 }
@@ -0,0 +1,67 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.common.message;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+
+/**
+ * 批量消息，同一批消息必须是同一个Topic，发送时编码成一个请求Body，由Broker在一次加锁中写入CommitLog
+ * 不支持延时消息、事务消息和重试队列，这些限制由客户端的Validators.checkBatchMessages统一校验
+ */
+public class MessageBatch extends Message implements Iterable<Message> {
+    private static final long serialVersionUID = 621335151046335557L;
+
+    private final List<Message> messages;
+
+
+    private MessageBatch(List<Message> messages) {
+        this.messages = messages;
+    }
+
+
+    public byte[] encode() {
+        return MessageDecoder.encodeMessages(this.messages);
+    }
+
+
+    @Override
+    public Iterator<Message> iterator() {
+        return this.messages.iterator();
+    }
+
+
+    public int size() {
+        return this.messages.size();
+    }
+
+
+    /**
+     * 用已经校验过的一组消息生成批量消息，Topic和waitStoreMsgOK取第一条消息的
+     */
+    public static MessageBatch generateFromList(Collection<Message> messages) {
+        List<Message> messageList = new ArrayList<Message>(messages);
+        Message first = messageList.get(0);
+        MessageBatch messageBatch = new MessageBatch(messageList);
+        messageBatch.setTopic(first.getTopic());
+        messageBatch.setWaitStoreMsgOK(first.isWaitStoreMsgOK());
+        return messageBatch;
+    }
+}
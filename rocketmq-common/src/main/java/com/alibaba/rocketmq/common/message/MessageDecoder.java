@@ -115,6 +115,7 @@ public class MessageDecoder {
         byte topicLen = (byte) topics.length;
         String properties = messageProperties2String(messageExt.getProperties());
         byte[] propertiesBytes = properties.getBytes(CHARSET_UTF8);
+        checkPropertiesLength(propertiesBytes);
         short propertiesLength = (short) propertiesBytes.length;
         int sysFlag = messageExt.getSysFlag();
         byte[] newBody = messageExt.getBody();
@@ -349,6 +350,125 @@ public class MessageDecoder {
         return msgExts;
     }
 
+    /**
+     * 单条消息编码进批量消息Body后的大小，与{@link #encodeMessage(Message)}的结果长度一致
+     */
+    public static int encodedMessageSize(final Message message) {
+        final int bodyLen = message.getBody() == null ? 0 : message.getBody().length;
+        final int propertiesLen = messageProperties2String(message.getProperties()).getBytes(CHARSET_UTF8).length;
+        return 4 // 1 TOTALSIZE
+                + 4 // 2 MAGICCODE
+                + 4 // 3 BODYCRC
+                + 4 // 4 FLAG
+                + 4 + bodyLen // 5 BODY
+                + 2 + propertiesLen; // 6 PROPERTIES
+    }
+
+
+    /**
+     * 批量发送时单条消息的编码格式，Broker端据此展开成CommitLog中的多条消息
+     *
+     * |4 TOTALSIZE|4 MAGICCODE|4 BODYCRC|4 FLAG|4 BODYLENGTH|BODY|2 PROPERTIESLENGTH|PROPERTIES|
+     */
+    public static byte[] encodeMessage(Message message) {
+        byte[] body = message.getBody();
+        int bodyLen = body == null ? 0 : body.length;
+        String properties = messageProperties2String(message.getProperties());
+        byte[] propertiesBytes = properties.getBytes(CHARSET_UTF8);
+        checkPropertiesLength(propertiesBytes);
+        short propertiesLength = (short) propertiesBytes.length;
+        int storeSize = 4 // 1 TOTALSIZE
+                + 4 // 2 MAGICCODE
+                + 4 // 3 BODYCRC
+                + 4 // 4 FLAG
+                + 4 + bodyLen // 5 BODY
+                + 2 + propertiesLength; // 6 PROPERTIES
+        ByteBuffer byteBuffer = ByteBuffer.allocate(storeSize);
+        // 1 TOTALSIZE
+        byteBuffer.putInt(storeSize);
+        // 2 MAGICCODE, not used by broker
+        byteBuffer.putInt(0);
+        // 3 BODYCRC, computed by broker
+        byteBuffer.putInt(0);
+        // 4 FLAG
+        byteBuffer.putInt(message.getFlag());
+        // 5 BODY
+        byteBuffer.putInt(bodyLen);
+        if (bodyLen > 0) {
+            byteBuffer.put(body);
+        }
+        // 6 PROPERTIES
+        byteBuffer.putShort(propertiesLength);
+        byteBuffer.put(propertiesBytes);
+
+        return byteBuffer.array();
+    }
+
+
+    /**
+     * 属性长度按short存储，超长时直接截断会破坏后面的消息
+     */
+    private static void checkPropertiesLength(final byte[] propertiesBytes) {
+        if (propertiesBytes.length > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("the message properties length " + propertiesBytes.length
+                    + " over max value " + Short.MAX_VALUE);
+        }
+    }
+
+
+    public static byte[] encodeMessages(List<Message> messages) {
+        List<byte[]> encodedMessages = new ArrayList<byte[]>(messages.size());
+        int allSize = 0;
+        for (Message message : messages) {
+            byte[] tmp = encodeMessage(message);
+            encodedMessages.add(tmp);
+            allSize += tmp.length;
+        }
+
+        byte[] allBytes = new byte[allSize];
+        int pos = 0;
+        for (byte[] bytes : encodedMessages) {
+            System.arraycopy(bytes, 0, allBytes, pos, bytes.length);
+            pos += bytes.length;
+        }
+        return allBytes;
+    }
+
+
+    public static Message decodeMessage(ByteBuffer byteBuffer) {
+        Message message = new Message();
+
+        // 1 TOTALSIZE
+        byteBuffer.getInt();
+        // 2 MAGICCODE
+        byteBuffer.getInt();
+        // 3 BODYCRC
+        byteBuffer.getInt();
+        // 4 FLAG
+        message.setFlag(byteBuffer.getInt());
+        // 5 BODY
+        int bodyLen = byteBuffer.getInt();
+        byte[] body = new byte[bodyLen];
+        byteBuffer.get(body);
+        message.setBody(body);
+        // 6 PROPERTIES
+        short propertiesLen = byteBuffer.getShort();
+        byte[] propertiesBytes = new byte[propertiesLen];
+        byteBuffer.get(propertiesBytes);
+        message.setProperties(string2messageProperties(new String(propertiesBytes, CHARSET_UTF8)));
+
+        return message;
+    }
+
+
+    public static List<Message> decodeMessages(ByteBuffer byteBuffer) {
+        List<Message> msgs = new ArrayList<Message>();
+        while (byteBuffer.hasRemaining()) {
+            msgs.add(decodeMessage(byteBuffer));
+        }
+        return msgs;
+    }
+
     public static final char NAME_VALUE_SEPARATOR = 1;
     public static final char PROPERTY_SEPARATOR = 2;
 
@@ -112,4 +112,18 @@ public class RequestCode {
 
     public static final int GET_BROKER_CONSUME_STATS = 317;
 
+    public static final int SEND_BATCH_MESSAGE = 320;
+
+    // 按用户属性索引查询消息位置，不返回消息内容
+    public static final int QUERY_MESSAGE_BY_PROPERTY = 321;
+
+    // Slave向Master报告复制进度和负载，用于把回溯消费者引导到Slave
+    public static final int REPORT_SLAVE_STATE = 322;
+
+    // 一次提交一个消费组在一个Broker上的所有队列的消费进度
+    public static final int UPDATE_CONSUMER_OFFSET_BATCH = 323;
+
+    // Slave从Master增量同步消费进度
+    public static final int GET_CONSUMER_OFFSET_DELTA = 324;
+
 }
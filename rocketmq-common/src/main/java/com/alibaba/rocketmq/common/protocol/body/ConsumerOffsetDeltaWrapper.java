@@ -0,0 +1,74 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.common.protocol.body;
+
+import com.alibaba.rocketmq.remoting.protocol.RemotingSerializable;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * 消费进度增量，epoch标识Master的一次启动，round是Master持久化消费进度的轮次，
+ * full为true时offsetTable是全量数据
+ */
+public class ConsumerOffsetDeltaWrapper extends RemotingSerializable {
+    private long epoch;
+    private long round;
+    private boolean full;
+    private ConcurrentHashMap<String/* topic@group */, ConcurrentHashMap<Integer, Long>> offsetTable =
+            new ConcurrentHashMap<String, ConcurrentHashMap<Integer, Long>>();
+
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+
+    public void setEpoch(long epoch) {
+        this.epoch = epoch;
+    }
+
+
+    public long getRound() {
+        return round;
+    }
+
+
+    public void setRound(long round) {
+        this.round = round;
+    }
+
+
+    public boolean isFull() {
+        return full;
+    }
+
+
+    public void setFull(boolean full) {
+        this.full = full;
+    }
+
+
+    public ConcurrentHashMap<String, ConcurrentHashMap<Integer, Long>> getOffsetTable() {
+        return offsetTable;
+    }
+
+
+    public void setOffsetTable(ConcurrentHashMap<String, ConcurrentHashMap<Integer, Long>> offsetTable) {
+        this.offsetTable = offsetTable;
+    }
+}
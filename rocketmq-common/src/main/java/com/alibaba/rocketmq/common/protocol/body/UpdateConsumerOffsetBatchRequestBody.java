@@ -0,0 +1,62 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.alibaba.rocketmq.common.protocol.body;
+
+import com.alibaba.rocketmq.remoting.protocol.RemotingSerializable;
+
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * 批量更新消费进度，一个消费组在一个Broker上所有有变化的队列
+ */
+public class UpdateConsumerOffsetBatchRequestBody extends RemotingSerializable {
+    private String consumerGroup;
+    private Map<String/* topic */, Map<Integer/* queueId */, Long>> offsetTable =
+            new HashMap<String, Map<Integer, Long>>();
+
+
+    public void addOffset(final String topic, final int queueId, final long offset) {
+        Map<Integer, Long> queueOffsets = this.offsetTable.get(topic);
+        if (null == queueOffsets) {
+            queueOffsets = new HashMap<Integer, Long>();
+            this.offsetTable.put(topic, queueOffsets);
+        }
+        queueOffsets.put(queueId, offset);
+    }
+
+
+    public String getConsumerGroup() {
+        return consumerGroup;
+    }
+
+
+    public void setConsumerGroup(String consumerGroup) {
+        this.consumerGroup = consumerGroup;
+    }
+
+
+    public Map<String, Map<Integer, Long>> getOffsetTable() {
+        return offsetTable;
+    }
+
+
+    public void setOffsetTable(Map<String, Map<Integer, Long>> offsetTable) {
+        this.offsetTable = offsetTable;
+    }
+}
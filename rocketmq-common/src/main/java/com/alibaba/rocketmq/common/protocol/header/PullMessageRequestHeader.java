@@ -24,12 +24,15 @@ import com.alibaba.rocketmq.remoting.CommandCustomHeader;
 import com.alibaba.rocketmq.remoting.annotation.CFNotNull;
 import com.alibaba.rocketmq.remoting.annotation.CFNullable;
 import com.alibaba.rocketmq.remoting.exception.RemotingCommandException;
+import com.alibaba.rocketmq.remoting.protocol.FastCodesHeader;
+import com.alibaba.rocketmq.remoting.protocol.RocketMQSerializable;
+import io.netty.buffer.ByteBuf;
 
 
 /**
  * @author shijia.wxr
  */
-public class PullMessageRequestHeader implements CommandCustomHeader {
+public class PullMessageRequestHeader implements CommandCustomHeader, FastCodesHeader {
     @CFNotNull
     private String consumerGroup;
     @CFNotNull
@@ -57,6 +60,47 @@ public class PullMessageRequestHeader implements CommandCustomHeader {
     }
 
 
+    @Override
+    public void encode(ByteBuf out) {
+        RocketMQSerializable.writeExtField(out, "consumerGroup", this.consumerGroup);
+        RocketMQSerializable.writeExtField(out, "topic", this.topic);
+        RocketMQSerializable.writeExtField(out, "queueId", this.queueId);
+        RocketMQSerializable.writeExtField(out, "queueOffset", this.queueOffset);
+        RocketMQSerializable.writeExtField(out, "maxMsgNums", this.maxMsgNums);
+        RocketMQSerializable.writeExtField(out, "sysFlag", this.sysFlag);
+        RocketMQSerializable.writeExtField(out, "commitOffset", this.commitOffset);
+        RocketMQSerializable.writeExtField(out, "suspendTimeoutMillis", this.suspendTimeoutMillis);
+        RocketMQSerializable.writeExtField(out, "subscription", this.subscription);
+        RocketMQSerializable.writeExtField(out, "subVersion", this.subVersion);
+    }
+
+
+    @Override
+    public void decodeField(String name, String value) {
+        if ("consumerGroup".equals(name)) {
+            this.consumerGroup = value;
+        } else if ("topic".equals(name)) {
+            this.topic = value;
+        } else if ("queueId".equals(name)) {
+            this.queueId = Integer.parseInt(value);
+        } else if ("queueOffset".equals(name)) {
+            this.queueOffset = Long.parseLong(value);
+        } else if ("maxMsgNums".equals(name)) {
+            this.maxMsgNums = Integer.parseInt(value);
+        } else if ("sysFlag".equals(name)) {
+            this.sysFlag = Integer.parseInt(value);
+        } else if ("commitOffset".equals(name)) {
+            this.commitOffset = Long.parseLong(value);
+        } else if ("suspendTimeoutMillis".equals(name)) {
+            this.suspendTimeoutMillis = Long.parseLong(value);
+        } else if ("subscription".equals(name)) {
+            this.subscription = value;
+        } else if ("subVersion".equals(name)) {
+            this.subVersion = Long.parseLong(value);
+        }
+    }
+
+
     public String getConsumerGroup() {
         return consumerGroup;
     }
@@ -23,12 +23,15 @@ package com.alibaba.rocketmq.common.protocol.header;
 import com.alibaba.rocketmq.remoting.CommandCustomHeader;
 import com.alibaba.rocketmq.remoting.annotation.CFNotNull;
 import com.alibaba.rocketmq.remoting.exception.RemotingCommandException;
+import com.alibaba.rocketmq.remoting.protocol.FastCodesHeader;
+import com.alibaba.rocketmq.remoting.protocol.RocketMQSerializable;
+import io.netty.buffer.ByteBuf;
 
 
 /**
  * @author shijia.wxr
  */
-public class PullMessageResponseHeader implements CommandCustomHeader {
+public class PullMessageResponseHeader implements CommandCustomHeader, FastCodesHeader {
     @CFNotNull
     private Long suggestWhichBrokerId;
     @CFNotNull
@@ -44,6 +47,29 @@ public class PullMessageResponseHeader implements CommandCustomHeader {
     }
 
 
+    @Override
+    public void encode(ByteBuf out) {
+        RocketMQSerializable.writeExtField(out, "suggestWhichBrokerId", this.suggestWhichBrokerId);
+        RocketMQSerializable.writeExtField(out, "nextBeginOffset", this.nextBeginOffset);
+        RocketMQSerializable.writeExtField(out, "minOffset", this.minOffset);
+        RocketMQSerializable.writeExtField(out, "maxOffset", this.maxOffset);
+    }
+
+
+    @Override
+    public void decodeField(String name, String value) {
+        if ("suggestWhichBrokerId".equals(name)) {
+            this.suggestWhichBrokerId = Long.parseLong(value);
+        } else if ("nextBeginOffset".equals(name)) {
+            this.nextBeginOffset = Long.parseLong(value);
+        } else if ("minOffset".equals(name)) {
+            this.minOffset = Long.parseLong(value);
+        } else if ("maxOffset".equals(name)) {
+            this.maxOffset = Long.parseLong(value);
+        }
+    }
+
+
     public Long getNextBeginOffset() {
         return nextBeginOffset;
     }
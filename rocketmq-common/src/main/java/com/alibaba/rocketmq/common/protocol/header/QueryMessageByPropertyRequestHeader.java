@@ -0,0 +1,132 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.common.protocol.header;
+
+import com.alibaba.rocketmq.remoting.CommandCustomHeader;
+import com.alibaba.rocketmq.remoting.annotation.CFNotNull;
+import com.alibaba.rocketmq.remoting.annotation.CFNullable;
+import com.alibaba.rocketmq.remoting.exception.RemotingCommandException;
+
+
+/**
+ * 按属性值查询：endValue为空时精确匹配beginValue，prefix为true时按beginValue前缀匹配，
+ * 否则查询[beginValue, endValue]范围内的属性值
+ */
+public class QueryMessageByPropertyRequestHeader implements CommandCustomHeader {
+    @CFNotNull
+    private String topic;
+    @CFNotNull
+    private String propertyKey;
+    @CFNotNull
+    private String beginValue;
+    @CFNullable
+    private String endValue;
+    @CFNotNull
+    private Boolean prefix;
+    @CFNotNull
+    private Integer maxNum;
+    @CFNotNull
+    private Long beginTimestamp;
+    @CFNotNull
+    private Long endTimestamp;
+
+
+    @Override
+    public void checkFields() throws RemotingCommandException {
+
+    }
+
+
+    public String getTopic() {
+        return topic;
+    }
+
+
+    public void setTopic(String topic) {
+        this.topic = topic;
+    }
+
+
+    public String getPropertyKey() {
+        return propertyKey;
+    }
+
+
+    public void setPropertyKey(String propertyKey) {
+        this.propertyKey = propertyKey;
+    }
+
+
+    public String getBeginValue() {
+        return beginValue;
+    }
+
+
+    public void setBeginValue(String beginValue) {
+        this.beginValue = beginValue;
+    }
+
+
+    public String getEndValue() {
+        return endValue;
+    }
+
+
+    public void setEndValue(String endValue) {
+        this.endValue = endValue;
+    }
+
+
+    public Boolean getPrefix() {
+        return prefix;
+    }
+
+
+    public void setPrefix(Boolean prefix) {
+        this.prefix = prefix;
+    }
+
+
+    public Integer getMaxNum() {
+        return maxNum;
+    }
+
+
+    public void setMaxNum(Integer maxNum) {
+        this.maxNum = maxNum;
+    }
+
+
+    public Long getBeginTimestamp() {
+        return beginTimestamp;
+    }
+
+
+    public void setBeginTimestamp(Long beginTimestamp) {
+        this.beginTimestamp = beginTimestamp;
+    }
+
+
+    public Long getEndTimestamp() {
+        return endTimestamp;
+    }
+
+
+    public void setEndTimestamp(Long endTimestamp) {
+        this.endTimestamp = endTimestamp;
+    }
+}
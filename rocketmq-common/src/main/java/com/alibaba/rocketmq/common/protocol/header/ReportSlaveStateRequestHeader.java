@@ -0,0 +1,70 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.common.protocol.header;
+
+import com.alibaba.rocketmq.remoting.CommandCustomHeader;
+import com.alibaba.rocketmq.remoting.annotation.CFNotNull;
+import com.alibaba.rocketmq.remoting.exception.RemotingCommandException;
+
+
+/**
+ * Slave定时向Master报告复制进度和拉消息负载
+ */
+public class ReportSlaveStateRequestHeader implements CommandCustomHeader {
+    @CFNotNull
+    private Long brokerId;
+    @CFNotNull
+    private Long maxPhyOffset;
+    @CFNotNull
+    private Integer pullQueuedNums;
+
+
+    @Override
+    public void checkFields() throws RemotingCommandException {
+
+    }
+
+
+    public Long getBrokerId() {
+        return brokerId;
+    }
+
+
+    public void setBrokerId(Long brokerId) {
+        this.brokerId = brokerId;
+    }
+
+
+    public Long getMaxPhyOffset() {
+        return maxPhyOffset;
+    }
+
+
+    public void setMaxPhyOffset(Long maxPhyOffset) {
+        this.maxPhyOffset = maxPhyOffset;
+    }
+
+
+    public Integer getPullQueuedNums() {
+        return pullQueuedNums;
+    }
+
+
+    public void setPullQueuedNums(Integer pullQueuedNums) {
+        this.pullQueuedNums = pullQueuedNums;
+    }
+}
@@ -21,12 +21,15 @@ import com.alibaba.rocketmq.remoting.CommandCustomHeader;
 import com.alibaba.rocketmq.remoting.annotation.CFNotNull;
 import com.alibaba.rocketmq.remoting.annotation.CFNullable;
 import com.alibaba.rocketmq.remoting.exception.RemotingCommandException;
+import com.alibaba.rocketmq.remoting.protocol.FastCodesHeader;
+import com.alibaba.rocketmq.remoting.protocol.RocketMQSerializable;
+import io.netty.buffer.ByteBuf;
 
 
 /**
  * @author shijia.wxr
  */
-public class SendMessageRequestHeaderV2 implements CommandCustomHeader {
+public class SendMessageRequestHeaderV2 implements CommandCustomHeader, FastCodesHeader {
     @CFNotNull
     private String a;// producerGroup;
     @CFNotNull
@@ -56,6 +59,50 @@ public class SendMessageRequestHeaderV2 implements CommandCustomHeader {
     }
 
 
+    @Override
+    public void encode(ByteBuf out) {
+        RocketMQSerializable.writeExtField(out, "a", this.a);
+        RocketMQSerializable.writeExtField(out, "b", this.b);
+        RocketMQSerializable.writeExtField(out, "c", this.c);
+        RocketMQSerializable.writeExtField(out, "d", this.d);
+        RocketMQSerializable.writeExtField(out, "e", this.e);
+        RocketMQSerializable.writeExtField(out, "f", this.f);
+        RocketMQSerializable.writeExtField(out, "g", this.g);
+        RocketMQSerializable.writeExtField(out, "h", this.h);
+        RocketMQSerializable.writeExtField(out, "i", this.i);
+        RocketMQSerializable.writeExtField(out, "j", this.j);
+        RocketMQSerializable.writeExtField(out, "k", this.k);
+    }
+
+
+    @Override
+    public void decodeField(String name, String value) {
+        if ("a".equals(name)) {
+            this.a = value;
+        } else if ("b".equals(name)) {
+            this.b = value;
+        } else if ("c".equals(name)) {
+            this.c = value;
+        } else if ("d".equals(name)) {
+            this.d = Integer.parseInt(value);
+        } else if ("e".equals(name)) {
+            this.e = Integer.parseInt(value);
+        } else if ("f".equals(name)) {
+            this.f = Integer.parseInt(value);
+        } else if ("g".equals(name)) {
+            this.g = Long.parseLong(value);
+        } else if ("h".equals(name)) {
+            this.h = Integer.parseInt(value);
+        } else if ("i".equals(name)) {
+            this.i = value;
+        } else if ("j".equals(name)) {
+            this.j = Integer.parseInt(value);
+        } else if ("k".equals(name)) {
+            this.k = Boolean.parseBoolean(value);
+        }
+    }
+
+
     public static SendMessageRequestHeader createSendMessageRequestHeaderV1(
             final SendMessageRequestHeaderV2 v2) {
         SendMessageRequestHeader v1 = new SendMessageRequestHeader();
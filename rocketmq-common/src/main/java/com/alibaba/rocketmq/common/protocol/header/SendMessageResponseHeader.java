@@ -23,12 +23,15 @@ package com.alibaba.rocketmq.common.protocol.header;
 import com.alibaba.rocketmq.remoting.CommandCustomHeader;
 import com.alibaba.rocketmq.remoting.annotation.CFNotNull;
 import com.alibaba.rocketmq.remoting.exception.RemotingCommandException;
+import com.alibaba.rocketmq.remoting.protocol.FastCodesHeader;
+import com.alibaba.rocketmq.remoting.protocol.RocketMQSerializable;
+import io.netty.buffer.ByteBuf;
 
 
 /**
  * @author shijia.wxr
  */
-public class SendMessageResponseHeader implements CommandCustomHeader {
+public class SendMessageResponseHeader implements CommandCustomHeader, FastCodesHeader {
     @CFNotNull
     private String msgId;
     @CFNotNull
@@ -43,6 +46,29 @@ public class SendMessageResponseHeader implements CommandCustomHeader {
     }
 
 
+    @Override
+    public void encode(ByteBuf out) {
+        RocketMQSerializable.writeExtField(out, "msgId", this.msgId);
+        RocketMQSerializable.writeExtField(out, "queueId", this.queueId);
+        RocketMQSerializable.writeExtField(out, "queueOffset", this.queueOffset);
+        RocketMQSerializable.writeExtField(out, "transactionId", this.transactionId);
+    }
+
+
+    @Override
+    public void decodeField(String name, String value) {
+        if ("msgId".equals(name)) {
+            this.msgId = value;
+        } else if ("queueId".equals(name)) {
+            this.queueId = Integer.parseInt(value);
+        } else if ("queueOffset".equals(name)) {
+            this.queueOffset = Long.parseLong(value);
+        } else if ("transactionId".equals(name)) {
+            this.transactionId = value;
+        }
+    }
+
+
     public String getMsgId() {
         return msgId;
     }
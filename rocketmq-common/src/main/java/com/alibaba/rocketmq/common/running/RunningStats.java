@@ -22,4 +22,6 @@ public enum RunningStats {
     commitLogDiskRatio,
     consumeQueueDiskRatio,
     scheduleMessageOffset,
+    timerMessageOffset,
+    timerMessageBacklog,
 }
@@ -32,6 +32,8 @@ public class SubscriptionGroupConfig {
     private int retryMaxTimes = 16;
     private long brokerId = MixAll.MASTER_ID;
     private long whichBrokerWhenConsumeSlowly = 1;
+    // 拉消息线程池中的调度权重，权重越大分到的线程时间越多
+    private int pullWeight = 1;
 
     public String getGroupName() {
         return groupName;
@@ -118,6 +120,16 @@ public class SubscriptionGroupConfig {
     }
 
 
+    public int getPullWeight() {
+        return pullWeight;
+    }
+
+
+    public void setPullWeight(int pullWeight) {
+        this.pullWeight = pullWeight;
+    }
+
+
     @Override
     public int hashCode() {
         final int prime = 31;
@@ -127,6 +139,7 @@ public class SubscriptionGroupConfig {
         result = prime * result + (consumeEnable ? 1231 : 1237);
         result = prime * result + (consumeFromMinEnable ? 1231 : 1237);
         result = prime * result + ((groupName == null) ? 0 : groupName.hashCode());
+        result = prime * result + pullWeight;
         result = prime * result + retryMaxTimes;
         result = prime * result + retryQueueNums;
         result =
@@ -157,6 +170,8 @@ public class SubscriptionGroupConfig {
                 return false;
         } else if (!groupName.equals(other.groupName))
             return false;
+        if (pullWeight != other.pullWeight)
+            return false;
         if (retryMaxTimes != other.retryMaxTimes)
             return false;
         if (retryQueueNums != other.retryQueueNums)
@@ -173,6 +188,6 @@ public class SubscriptionGroupConfig {
                 + ", consumeFromMinEnable=" + consumeFromMinEnable + ", consumeBroadcastEnable="
                 + consumeBroadcastEnable + ", retryQueueNums=" + retryQueueNums + ", retryMaxTimes="
                 + retryMaxTimes + ", brokerId=" + brokerId + ", whichBrokerWhenConsumeSlowly="
-                + whichBrokerWhenConsumeSlowly + "]";
+                + whichBrokerWhenConsumeSlowly + ", pullWeight=" + pullWeight + "]";
     }
 }
@@ -0,0 +1,128 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.common.protocol;
+
+import com.alibaba.rocketmq.common.protocol.header.PullMessageRequestHeader;
+import com.alibaba.rocketmq.common.protocol.header.SendMessageRequestHeaderV2;
+import com.alibaba.rocketmq.remoting.protocol.RemotingCommand;
+import com.alibaba.rocketmq.remoting.protocol.SerializeType;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+
+public class FastCodesHeaderTest {
+
+    private static SendMessageRequestHeaderV2 createHeader() {
+        SendMessageRequestHeaderV2 header = new SendMessageRequestHeaderV2();
+        header.setA("ProducerGroup");
+        header.setB("TopicTest");
+        header.setC("TBW102");
+        header.setD(4);
+        header.setE(3);
+        header.setF(0);
+        header.setG(1400000000000L);
+        header.setH(1);
+        header.setI("TAGS\u0001TagA\u0002中文\u0001值\u0002");
+        header.setK(true);
+        return header;
+    }
+
+
+    private static void assertHeader(SendMessageRequestHeaderV2 header) {
+        assertEquals("ProducerGroup", header.getA());
+        assertEquals("TopicTest", header.getB());
+        assertEquals("TBW102", header.getC());
+        assertEquals(Integer.valueOf(4), header.getD());
+        assertEquals(Integer.valueOf(3), header.getE());
+        assertEquals(Integer.valueOf(0), header.getF());
+        assertEquals(Long.valueOf(1400000000000L), header.getG());
+        assertEquals(Integer.valueOf(1), header.getH());
+        assertEquals("TAGS\u0001TagA\u0002中文\u0001值\u0002", header.getI());
+        assertNull(header.getJ());
+        assertTrue(header.isK());
+    }
+
+
+    private static RemotingCommand fastRoundTrip(RemotingCommand cmd) {
+        // 初始容量很小，同时验证写入过程中的扩容
+        ByteBuf out = Unpooled.buffer(8);
+        cmd.fastEncodeHeader(out);
+        out.writeBytes(cmd.getBody());
+        assertEquals(out.readableBytes() - 4, out.readInt());
+        return RemotingCommand.decode(out);
+    }
+
+
+    @Test
+    public void test_fast_round_trip() throws Exception {
+        for (SerializeType type : SerializeType.values()) {
+            RemotingCommand cmd = RemotingCommand.createRequestCommand(RequestCode.SEND_MESSAGE_V2, createHeader());
+            cmd.setSerializeTypeCurrentRPC(type);
+            cmd.setRemark("remark");
+            cmd.addExtField("extra", "value");
+            cmd.setBody(new byte[]{1, 2, 3});
+
+            RemotingCommand decoded = fastRoundTrip(cmd);
+            assertEquals(type, decoded.getSerializeTypeCurrentRPC());
+            assertEquals(RequestCode.SEND_MESSAGE_V2, decoded.getCode());
+            assertEquals(cmd.getOpaque(), decoded.getOpaque());
+            assertEquals("remark", decoded.getRemark());
+            assertArrayEquals(new byte[]{1, 2, 3}, decoded.getBody());
+            assertHeader((SendMessageRequestHeaderV2) decoded
+                    .decodeCommandCustomHeader(SendMessageRequestHeaderV2.class));
+            assertEquals("value", decoded.getExtFields().get("extra"));
+            assertEquals("TopicTest", decoded.getExtFields().get("b"));
+        }
+    }
+
+
+    @Test
+    public void test_compatible_with_legacy_codec() throws Exception {
+        // 旧编码 -> 新解码
+        RemotingCommand cmd = RemotingCommand.createRequestCommand(RequestCode.SEND_MESSAGE_V2, createHeader());
+        cmd.setSerializeTypeCurrentRPC(SerializeType.ROCKETMQ);
+        cmd.setBody(new byte[]{1});
+        ByteBuffer legacy = cmd.encode();
+        legacy.getInt();
+        RemotingCommand decoded = RemotingCommand.decode(Unpooled.wrappedBuffer(legacy));
+        assertHeader((SendMessageRequestHeaderV2) decoded
+                .decodeCommandCustomHeader(SendMessageRequestHeaderV2.class));
+
+        // 新编码 -> 旧解码，extFields已反序列化为HashMap
+        PullMessageRequestHeader pull = new PullMessageRequestHeader();
+        pull.setConsumerGroup("ConsumerGroup");
+        pull.setQueueOffset(100L);
+        cmd = RemotingCommand.createRequestCommand(RequestCode.PULL_MESSAGE, pull);
+        cmd.setSerializeTypeCurrentRPC(SerializeType.ROCKETMQ);
+        ByteBuf out = Unpooled.buffer();
+        cmd.fastEncodeHeader(out);
+        out.readInt();
+        byte[] frame = new byte[out.readableBytes()];
+        out.readBytes(frame);
+        decoded = RemotingCommand.decode(frame);
+        assertEquals("ConsumerGroup", decoded.getExtFields().get("consumerGroup"));
+        PullMessageRequestHeader pullDecoded =
+                (PullMessageRequestHeader) decoded.decodeCommandCustomHeader(PullMessageRequestHeader.class);
+        assertEquals(Long.valueOf(100L), pullDecoded.getQueueOffset());
+        assertNull(pullDecoded.getTopic());
+    }
+}
@@ -0,0 +1,179 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.common.protocol.benchmark;
+
+import com.alibaba.rocketmq.common.protocol.RequestCode;
+import com.alibaba.rocketmq.common.protocol.header.SendMessageRequestHeaderV2;
+import com.alibaba.rocketmq.remoting.CommandCustomHeader;
+import com.alibaba.rocketmq.remoting.exception.RemotingCommandException;
+import com.alibaba.rocketmq.remoting.protocol.RemotingCommand;
+import com.alibaba.rocketmq.remoting.protocol.SerializeType;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * SendMessageRequestHeaderV2 encode/decode, reflective path vs FastCodesHeader path.
+ * <p>
+ * The reflective baseline uses ReflectiveHeaderV2, a copy of the header fields
+ * without FastCodesHeader, so both paths carry exactly the same extFields.
+ * <p>
+ * mvn -pl rocketmq-common test-compile -Dmaven.test.skip=false, then run main with the test classpath.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SendMessageHeaderCodecBenchmark {
+    @Param({"ROCKETMQ", "JSON"})
+    private String serializeType;
+
+    private SendMessageRequestHeaderV2 fastHeader;
+    private ReflectiveHeaderV2 reflectiveHeader;
+    private byte[] body;
+    private byte[] reflectiveFrame;
+    private ByteBuf fastFrame;
+
+
+    public static class ReflectiveHeaderV2 implements CommandCustomHeader {
+        private String a;
+        private String b;
+        private String c;
+        private Integer d;
+        private Integer e;
+        private Integer f;
+        private Long g;
+        private Integer h;
+        private String i;
+        private Integer j;
+        private boolean k;
+
+
+        @Override
+        public void checkFields() throws RemotingCommandException {
+        }
+    }
+
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        this.fastHeader = new SendMessageRequestHeaderV2();
+        this.fastHeader.setA("please_rename_unique_group_name");
+        this.fastHeader.setB("SendMessageHeaderCodecBenchmark");
+        this.fastHeader.setC("TBW102");
+        this.fastHeader.setD(4);
+        this.fastHeader.setE(3);
+        this.fastHeader.setF(0);
+        this.fastHeader.setG(System.currentTimeMillis());
+        this.fastHeader.setH(0);
+        this.fastHeader.setI("TAGS\u0001TagA\u0002KEYS\u0001OrderID188\u0002WAIT\u0001true\u0002");
+        this.fastHeader.setJ(0);
+        this.fastHeader.setK(false);
+
+        this.reflectiveHeader = new ReflectiveHeaderV2();
+        this.reflectiveHeader.a = this.fastHeader.getA();
+        this.reflectiveHeader.b = this.fastHeader.getB();
+        this.reflectiveHeader.c = this.fastHeader.getC();
+        this.reflectiveHeader.d = this.fastHeader.getD();
+        this.reflectiveHeader.e = this.fastHeader.getE();
+        this.reflectiveHeader.f = this.fastHeader.getF();
+        this.reflectiveHeader.g = this.fastHeader.getG();
+        this.reflectiveHeader.h = this.fastHeader.getH();
+        this.reflectiveHeader.i = this.fastHeader.getI();
+        this.reflectiveHeader.j = this.fastHeader.getJ();
+        this.reflectiveHeader.k = this.fastHeader.isK();
+
+        this.body = new byte[128];
+
+        ByteBuffer frame = this.newCommand(this.reflectiveHeader).encode();
+        // NettyDecoder strips the total length before decoding
+        frame.getInt();
+        this.reflectiveFrame = new byte[frame.remaining()];
+        frame.get(this.reflectiveFrame);
+
+        this.fastFrame = PooledByteBufAllocator.DEFAULT.directBuffer(512);
+        this.newCommand(this.fastHeader).fastEncodeHeader(this.fastFrame);
+        this.fastFrame.writeBytes(this.body);
+        this.fastFrame.skipBytes(4);
+        this.fastFrame.markReaderIndex();
+    }
+
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.fastFrame.release();
+    }
+
+
+    private RemotingCommand newCommand(CommandCustomHeader header) {
+        RemotingCommand cmd = RemotingCommand.createRequestCommand(RequestCode.SEND_MESSAGE_V2, header);
+        cmd.setSerializeTypeCurrentRPC(SerializeType.valueOf(this.serializeType));
+        cmd.setBody(this.body);
+        return cmd;
+    }
+
+
+    @Benchmark
+    public ByteBuffer encodeReflective() {
+        return this.newCommand(this.reflectiveHeader).encodeHeader();
+    }
+
+
+    @Benchmark
+    public int encodeFast() {
+        ByteBuf out = PooledByteBufAllocator.DEFAULT.directBuffer(512);
+        try {
+            this.newCommand(this.fastHeader).fastEncodeHeader(out);
+            return out.writerIndex();
+        } finally {
+            out.release();
+        }
+    }
+
+
+    @Benchmark
+    public CommandCustomHeader decodeReflective() throws RemotingCommandException {
+        RemotingCommand cmd = RemotingCommand.decode(ByteBuffer.wrap(this.reflectiveFrame));
+        return cmd.decodeCommandCustomHeader(ReflectiveHeaderV2.class);
+    }
+
+
+    @Benchmark
+    public CommandCustomHeader decodeFast() throws RemotingCommandException {
+        this.fastFrame.resetReaderIndex();
+        RemotingCommand cmd = RemotingCommand.decode(this.fastFrame);
+        return cmd.decodeCommandCustomHeader(SendMessageRequestHeaderV2.class);
+    }
+
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()//
+                .include(SendMessageHeaderCodecBenchmark.class.getSimpleName())//
+                .build();
+        new Runner(opt).run();
+    }
+}
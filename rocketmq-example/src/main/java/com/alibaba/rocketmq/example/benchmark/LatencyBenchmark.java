@@ -0,0 +1,187 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.example.benchmark;
+
+import com.alibaba.rocketmq.client.consumer.DefaultMQPushConsumer;
+import com.alibaba.rocketmq.client.consumer.listener.ConsumeConcurrentlyContext;
+import com.alibaba.rocketmq.client.consumer.listener.ConsumeConcurrentlyStatus;
+import com.alibaba.rocketmq.client.consumer.listener.MessageListenerConcurrently;
+import com.alibaba.rocketmq.client.producer.DefaultMQProducer;
+import com.alibaba.rocketmq.common.consumer.ConsumeFromWhere;
+import com.alibaba.rocketmq.common.message.Message;
+import com.alibaba.rocketmq.common.message.MessageExt;
+import com.alibaba.rocketmq.srvutil.ServerUtil;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.PosixParser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+
+
+/**
+ * 生产到消费的端到端延迟，生产者和消费者在同一个进程内，用System.nanoTime()计时，
+ * 按固定速率发送，模拟空闲Broker，每10秒输出一次p50/p99/p999
+ */
+public class LatencyBenchmark {
+    private static final String SendNanoTimeProperty = "BENCHMARK_SEND_NANO";
+
+
+    public static Options buildCommandlineOptions(final Options options) {
+        Option opt = new Option("t", "topic", true, "Topic name, Default: BenchmarkLatency");
+        opt.setRequired(false);
+        options.addOption(opt);
+
+        opt = new Option("r", "rate", true, "Messages sent per second, Default: 100");
+        opt.setRequired(false);
+        options.addOption(opt);
+
+        opt = new Option("s", "messageSize", true, "Message Size, Default: 128");
+        opt.setRequired(false);
+        options.addOption(opt);
+
+        return options;
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        Options options = ServerUtil.buildCommandlineOptions(new Options());
+        CommandLine commandLine = ServerUtil.parseCmdLine("latencyBenchmark", args, buildCommandlineOptions(options), new PosixParser());
+        if (null == commandLine) {
+            System.exit(-1);
+        }
+
+        final String topic = commandLine.hasOption('t') ? commandLine.getOptionValue('t').trim() : "BenchmarkLatency";
+        final int rate = commandLine.hasOption('r') ? Integer.parseInt(commandLine.getOptionValue('r')) : 100;
+        final int messageSize = commandLine.hasOption('s') ? Integer.parseInt(commandLine.getOptionValue('s')) : 128;
+
+        System.out.printf("topic %s rate %d messageSize %d\n", topic, rate, messageSize);
+
+        final LatencyRecorder recorder = new LatencyRecorder();
+
+        DefaultMQPushConsumer consumer = new DefaultMQPushConsumer("benchmark_latency_consumer");
+        consumer.setInstanceName(Long.toString(System.currentTimeMillis()));
+        consumer.setConsumeFromWhere(ConsumeFromWhere.CONSUME_FROM_LAST_OFFSET);
+        if (commandLine.hasOption('n')) {
+            consumer.setNamesrvAddr(commandLine.getOptionValue('n'));
+        }
+        consumer.subscribe(topic, "*");
+        consumer.registerMessageListener(new MessageListenerConcurrently() {
+            @Override
+            public ConsumeConcurrentlyStatus consumeMessage(List<MessageExt> msgs, ConsumeConcurrentlyContext context) {
+                final long now = System.nanoTime();
+                for (MessageExt msg : msgs) {
+                    String sendNano = msg.getUserProperty(SendNanoTimeProperty);
+                    if (sendNano != null) {
+                        recorder.record(now - Long.parseLong(sendNano));
+                    }
+                }
+                return ConsumeConcurrentlyStatus.CONSUME_SUCCESS;
+            }
+        });
+        consumer.start();
+
+        final DefaultMQProducer producer = new DefaultMQProducer("benchmark_latency_producer");
+        producer.setInstanceName(Long.toString(System.currentTimeMillis()));
+        if (commandLine.hasOption('n')) {
+            producer.setNamesrvAddr(commandLine.getOptionValue('n'));
+        }
+        producer.setCompressMsgBodyOverHowmuch(Integer.MAX_VALUE);
+        producer.start();
+
+        final Timer timer = new Timer("BenchmarkTimerThread", true);
+        timer.scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    long[] samples = recorder.drain();
+                    if (samples.length == 0) {
+                        System.out.printf("Produce to consume latency: no message received\n");
+                        return;
+                    }
+
+                    Arrays.sort(samples);
+                    System.out.printf("Produce to consume latency(us) count: %d p50: %d p99: %d p999: %d max: %d\n"//
+                        , samples.length//
+                        , percentile(samples, 0.50) / 1000//
+                        , percentile(samples, 0.99) / 1000//
+                        , percentile(samples, 0.999) / 1000//
+                        , samples[samples.length - 1] / 1000//
+                    );
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }, 10000, 10000);
+
+        final byte[] body = new byte[messageSize];
+        Arrays.fill(body, (byte) 'a');
+        final long intervalNanos = 1000L * 1000 * 1000 / Math.max(1, rate);
+        long nextSendTime = System.nanoTime();
+        while (true) {
+            long sleepNanos = nextSendTime - System.nanoTime();
+            if (sleepNanos > 0) {
+                Thread.sleep(sleepNanos / 1000000, (int) (sleepNanos % 1000000));
+            }
+            nextSendTime += intervalNanos;
+
+            try {
+                Message msg = new Message(topic, body);
+                msg.putUserProperty(SendNanoTimeProperty, String.valueOf(System.nanoTime()));
+                producer.send(msg);
+            } catch (Exception e) {
+                e.printStackTrace();
+                Thread.sleep(1000);
+            }
+        }
+    }
+
+
+    private static long percentile(final long[] sorted, final double percentile) {
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.min(Math.max(index, 0), sorted.length - 1)];
+    }
+}
+
+
+class LatencyRecorder {
+    private List<Long> samples = new ArrayList<Long>();
+
+
+    public synchronized void record(final long latencyNanos) {
+        this.samples.add(latencyNanos);
+    }
+
+
+    public long[] drain() {
+        List<Long> current;
+        synchronized (this) {
+            current = this.samples;
+            this.samples = new ArrayList<Long>();
+        }
+
+        long[] result = new long[current.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = current.get(i);
+        }
+        return result;
+    }
+}
@@ -226,10 +226,20 @@ public abstract class NettyRemotingAbstract {
             };
 
             /**
-             * 提交给Processor对应的线程池处理
+             * 提交给Processor对应的线程池处理，Processor可以按请求选择其他线程池
              */
+            ExecutorService selected = null;
+            if (pair.getObject1() instanceof NettyRequestExecutorSelector) {
+                try {
+                    selected = ((NettyRequestExecutorSelector) pair.getObject1()).selectExecutor(cmd);
+                } catch (Throwable e) {
+                    plog.warn("select request executor exception", e);
+                }
+            }
+            final ExecutorService executor = (null == selected) ? pair.getObject2() : selected;
+
             try {
-                pair.getObject2().submit(run);
+                executor.submit(run);
             } catch (RejectedExecutionException e) {
                 /**
                  * 如果队列满了，服务降级
@@ -237,7 +247,7 @@ public abstract class NettyRemotingAbstract {
                 if ((System.currentTimeMillis() % 10000) == 0) {
                     plog.warn(RemotingHelper.parseChannelRemoteAddr(ctx.channel()) //
                             + ", too many requests and system thread pool busy, RejectedExecutionException " //
-                            + pair.getObject2().toString() //
+                            + executor.toString() //
                             + " request code: " + cmd.getCode());
                 }
 
@@ -0,0 +1,37 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.remoting.protocol;
+
+import io.netty.buffer.ByteBuf;
+
+
+/**
+ * 热点请求头手写编解码，绕开RemotingCommand中基于反射的字段读写，
+ * 只在ROCKETMQ序列化方式下直接写入Netty ByteBuf
+ */
+public interface FastCodesHeader {
+    /**
+     * 按extFields的ROCKETMQ格式（keySize+key+valSize+val）写出所有非空字段
+     */
+    void encode(ByteBuf out);
+
+
+    /**
+     * 解码单个字段，未知字段忽略
+     */
+    void decodeField(String name, String value);
+}
@@ -21,6 +21,7 @@ import com.alibaba.rocketmq.remoting.CommandCustomHeader;
 import com.alibaba.rocketmq.remoting.annotation.CFNotNull;
 import com.alibaba.rocketmq.remoting.common.RemotingHelper;
 import com.alibaba.rocketmq.remoting.exception.RemotingCommandException;
+import io.netty.buffer.ByteBuf;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -73,6 +74,10 @@ public class RemotingCommand {
     private String remark;
 
     private HashMap<String, String> extFields;
+    /**
+     * ROCKETMQ序列化方式下extFields的原始字节，按需反序列化
+     */
+    private transient byte[] extFieldsBytes;
 
 
     private transient CommandCustomHeader customHeader;
@@ -199,6 +204,7 @@ public class RemotingCommand {
     public void makeCustomHeaderToNet() {
         if (this.customHeader != null) {
             Field[] fields = getClazzFields(customHeader.getClass());
+            this.materializeExtFields();
             if (null == this.extFields) {
                 this.extFields = new HashMap<String, String>();
             }
@@ -259,6 +265,26 @@ public class RemotingCommand {
             return null;
         }
 
+        if (objectHeader instanceof FastCodesHeader) {
+            FastCodesHeader fastHeader = (FastCodesHeader) objectHeader;
+            if (this.extFieldsBytes != null) {
+                RocketMQSerializable.extFieldsDecode(this.extFieldsBytes, fastHeader);
+            } else if (this.extFields != null) {
+                for (Map.Entry<String, String> entry : this.extFields.entrySet()) {
+                    try {
+                        fastHeader.decodeField(entry.getKey(), entry.getValue());
+                    } catch (Throwable e) {
+                    }
+                }
+            } else {
+                return objectHeader;
+            }
+
+            objectHeader.checkFields();
+            return objectHeader;
+        }
+
+        this.materializeExtFields();
         if (this.extFields != null) {
             Field[] fields = getClazzFields(classHeader);
             for (Field field : fields) {
@@ -406,6 +432,59 @@ public class RemotingCommand {
     }
 
 
+    /**
+     * 直接写入Netty分配的ByteBuf，ROCKETMQ序列化方式下FastCodesHeader不走反射
+     */
+    public void fastEncodeHeader(ByteBuf out) {
+        int bodySize = this.body != null ? this.body.length : 0;
+        int beginIndex = out.writerIndex();
+        // length + header length，稍后回填
+        out.writeLong(0);
+        int headerSize;
+        if (SerializeType.ROCKETMQ == serializeTypeCurrentRPC) {
+            if (this.customHeader != null && !(this.customHeader instanceof FastCodesHeader)) {
+                this.makeCustomHeaderToNet();
+            }
+            headerSize = RocketMQSerializable.rocketMQProtocolEncode(this, out);
+        } else {
+            this.makeCustomHeaderToNet();
+            byte[] header = RemotingSerializable.encode(this);
+            headerSize = header.length;
+            out.writeBytes(header);
+        }
+        out.setInt(beginIndex, 4 + headerSize + bodySize);
+        out.setBytes(beginIndex + 4, markProtocolType(headerSize, serializeTypeCurrentRPC));
+    }
+
+
+    public static RemotingCommand decode(final ByteBuf byteBuf) {
+        int length = byteBuf.readableBytes();
+        int oriHeaderLen = byteBuf.readInt();
+        int headerLength = getHeaderLength(oriHeaderLen);
+        SerializeType type = getProtocolType(oriHeaderLen);
+
+        RemotingCommand cmd;
+        if (SerializeType.ROCKETMQ == type) {
+            cmd = RocketMQSerializable.rocketMQProtocolDecode(byteBuf, headerLength);
+            cmd.setSerializeTypeCurrentRPC(type);
+        } else {
+            byte[] headerData = new byte[headerLength];
+            byteBuf.readBytes(headerData);
+            cmd = headerDecode(headerData, type);
+        }
+
+        int bodyLength = length - 4 - headerLength;
+        byte[] bodyData = null;
+        if (bodyLength > 0) {
+            bodyData = new byte[bodyLength];
+            byteBuf.readBytes(bodyData);
+        }
+        cmd.body = bodyData;
+
+        return cmd;
+    }
+
+
     public static RemotingCommand decode(final byte[] array) {
         ByteBuffer byteBuffer = ByteBuffer.wrap(array);
         return decode(byteBuffer);
@@ -561,12 +640,28 @@ public class RemotingCommand {
 
 
     public HashMap<String, String> getExtFields() {
+        this.materializeExtFields();
         return extFields;
     }
 
 
     public void setExtFields(HashMap<String, String> extFields) {
         this.extFields = extFields;
+        this.extFieldsBytes = null;
+    }
+
+
+    void setExtFieldsBytes(byte[] extFieldsBytes) {
+        this.extFields = null;
+        this.extFieldsBytes = extFieldsBytes;
+    }
+
+
+    private void materializeExtFields() {
+        if (this.extFieldsBytes != null) {
+            this.extFields = RocketMQSerializable.mapDeserialize(this.extFieldsBytes);
+            this.extFieldsBytes = null;
+        }
     }
 
 
@@ -576,6 +671,7 @@ public class RemotingCommand {
 
 
     public void addExtField(String key, String value) {
+        this.materializeExtFields();
         if (null == extFields) {
             extFields = new HashMap<String, String>();
         }
@@ -605,7 +701,7 @@ public class RemotingCommand {
     @Override
     public String toString() {
         return "RemotingCommand [code=" + code + ", language=" + language + ", version=" + version + ", opaque=" + opaque + ", flag(B)="
-                + Integer.toBinaryString(flag) + ", remark=" + remark + ", extFields=" + extFields + ", serializeTypeCurrentRPC="
+                + Integer.toBinaryString(flag) + ", remark=" + remark + ", extFields=" + getExtFields() + ", serializeTypeCurrentRPC="
                 + serializeTypeCurrentRPC + "]";
     }
 
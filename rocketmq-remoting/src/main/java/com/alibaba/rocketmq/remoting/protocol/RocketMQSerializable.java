@@ -16,6 +16,9 @@
  */
 package com.alibaba.rocketmq.remoting.protocol;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.HashMap;
@@ -133,6 +136,138 @@ public class RocketMQSerializable {
     }
 
 
+    /**
+     * 直接写入ByteBuf，customHeader实现了FastCodesHeader时不经过extFields
+     *
+     * @return 写入的头部长度
+     */
+    public static int rocketMQProtocolEncode(RemotingCommand cmd, ByteBuf out) {
+        int beginIndex = out.writerIndex();
+        // int code(~32767)
+        out.writeShort((short) cmd.getCode());
+        // LanguageCode language
+        out.writeByte(cmd.getLanguage().getCode());
+        // int version(~32767)
+        out.writeShort((short) cmd.getVersion());
+        // int opaque
+        out.writeInt(cmd.getOpaque());
+        // int flag
+        out.writeInt(cmd.getFlag());
+        // String remark
+        if (cmd.getRemark() != null && cmd.getRemark().length() > 0) {
+            writeStr(out, false, cmd.getRemark());
+        } else {
+            out.writeInt(0);
+        }
+
+        // HashMap<String, String> extFields
+        int extLenIndex = out.writerIndex();
+        out.writeInt(0);
+        HashMap<String, String> extFields = cmd.getExtFields();
+        if (extFields != null) {
+            for (Map.Entry<String, String> entry : extFields.entrySet()) {
+                if (entry.getKey() != null && entry.getValue() != null) {
+                    writeStr(out, true, entry.getKey());
+                    writeStr(out, false, entry.getValue());
+                }
+            }
+        }
+        // 放在extFields之后，解码时同名字段以customHeader为准
+        if (cmd.readCustomHeader() instanceof FastCodesHeader) {
+            ((FastCodesHeader) cmd.readCustomHeader()).encode(out);
+        }
+        out.setInt(extLenIndex, out.writerIndex() - extLenIndex - 4);
+
+        return out.writerIndex() - beginIndex;
+    }
+
+
+    /**
+     * 从ByteBuf解码，extFields保留原始字节，用到时再反序列化
+     */
+    public static RemotingCommand rocketMQProtocolDecode(final ByteBuf headerBuffer, final int headerLength) {
+        final int endIndex = headerBuffer.readerIndex() + headerLength;
+        RemotingCommand cmd = new RemotingCommand();
+        // int code(~32767)
+        cmd.setCode(headerBuffer.readShort());
+        // LanguageCode language
+        cmd.setLanguage(LanguageCode.valueOf(headerBuffer.readByte()));
+        // int version(~32767)
+        cmd.setVersion(headerBuffer.readShort());
+        // int opaque
+        cmd.setOpaque(headerBuffer.readInt());
+        // int flag
+        cmd.setFlag(headerBuffer.readInt());
+        // String remark
+        int remarkLength = headerBuffer.readInt();
+        if (remarkLength > 0) {
+            cmd.setRemark(headerBuffer.toString(headerBuffer.readerIndex(), remarkLength, CHARSET_UTF8));
+            headerBuffer.skipBytes(remarkLength);
+        }
+
+        // HashMap<String, String> extFields
+        int extFieldsLength = headerBuffer.readInt();
+        if (extFieldsLength > 0) {
+            byte[] extFieldsBytes = new byte[extFieldsLength];
+            headerBuffer.readBytes(extFieldsBytes);
+            cmd.setExtFieldsBytes(extFieldsBytes);
+        }
+
+        headerBuffer.readerIndex(endIndex);
+        return cmd;
+    }
+
+
+    /**
+     * 写入一个extFields键值对，value为null时不写
+     */
+    public static void writeExtField(ByteBuf out, String key, Object value) {
+        if (value != null) {
+            writeStr(out, true, key);
+            writeStr(out, false, value.toString());
+        }
+    }
+
+
+    private static void writeStr(ByteBuf out, boolean useShortLength, String str) {
+        int lenIndex = out.writerIndex();
+        if (useShortLength) {
+            out.writeShort(0);
+        } else {
+            out.writeInt(0);
+        }
+        int len = ByteBufUtil.writeUtf8(out, str);
+        if (useShortLength) {
+            out.setShort(lenIndex, len);
+        } else {
+            out.setInt(lenIndex, len);
+        }
+    }
+
+
+    /**
+     * 遍历extFields原始字节，逐个字段回调，不构造HashMap
+     */
+    public static void extFieldsDecode(final byte[] bytes, final FastCodesHeader header) {
+        ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
+        while (byteBuffer.hasRemaining()) {
+            short keySize = byteBuffer.getShort();
+            String key = new String(bytes, byteBuffer.position(), keySize, CHARSET_UTF8);
+            byteBuffer.position(byteBuffer.position() + keySize);
+
+            int valSize = byteBuffer.getInt();
+            String val = new String(bytes, byteBuffer.position(), valSize, CHARSET_UTF8);
+            byteBuffer.position(byteBuffer.position() + valSize);
+
+            try {
+                header.decodeField(key, val);
+            } catch (Throwable e) {
+                // 与反射解码保持一致，格式错误的字段忽略
+            }
+        }
+    }
+
+
     public static byte[] mapSerialize(HashMap<String, String> map) {
         // keySize+key+valSize+val
         // keySize+key+valSize+val
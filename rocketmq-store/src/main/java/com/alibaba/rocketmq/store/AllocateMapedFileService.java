@@ -174,7 +174,13 @@ public class AllocateMapedFileService extends ServiceThread {
                 /**
                  * 创建MapedFile
                  */
-                MapedFile mapedFile = new MapedFile(req.getFilePath(), req.getFileSize());
+                MapedFile mapedFile;
+                // messageStore为null时（单独使用MapedFileQueue）按普通文件创建
+                if (this.messageStore != null && this.messageStore.getMessageStoreConfig().isTransientStorePoolEnable()) {
+                    mapedFile = new MapedFile(req.getFilePath(), req.getFileSize(), this.messageStore.getTransientStorePool());
+                } else {
+                    mapedFile = new MapedFile(req.getFilePath(), req.getFileSize());
+                }
 
                 long eclipseTime = UtilAll.computeEclipseTimeMilliseconds(beginTime);
                 if (eclipseTime > 10) {
@@ -191,7 +197,9 @@ public class AllocateMapedFileService extends ServiceThread {
                  * 就执行warmMappedFile
                  */
                 // pre write mappedFile
-                if (mapedFile.getFileSize() >= this.messageStore.getMessageStoreConfig().getMapedFileSizeCommitLog() //
+                if (this.messageStore != null //
+                        && //
+                        mapedFile.getFileSize() >= this.messageStore.getMessageStoreConfig().getMapedFileSizeCommitLog() //
                         && //
                         this.messageStore.getMessageStoreConfig().isWarmMapedFileEnable()) {
 
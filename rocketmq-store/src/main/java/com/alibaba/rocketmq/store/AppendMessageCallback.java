@@ -36,4 +36,16 @@ public interface AppendMessageCallback {
      */
     AppendMessageResult doAppend(final long fileFromOffset, final ByteBuffer byteBuffer,
                                  final int maxBlank, final Object msg);
+
+
+    /**
+     * After batched message serialization, write MapedByteBuffer
+     *
+     * @param byteBuffer
+     * @param maxBlank
+     * @param messageExtBatch, backed up by a byte array
+     * @return How many bytes to write
+     */
+    AppendMessageResult doAppend(final long fileFromOffset, final ByteBuffer byteBuffer,
+                                 final int maxBlank, final MessageExtBatch messageExtBatch);
 }
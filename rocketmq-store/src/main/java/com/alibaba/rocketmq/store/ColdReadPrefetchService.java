@@ -0,0 +1,227 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store;
+
+import com.alibaba.rocketmq.common.ServiceThread;
+import com.alibaba.rocketmq.common.constant.LoggerName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * 落后的消费者顺序追赶时，异步把该队列后续消息所在的CommitLog区间预读到PageCache，
+ * 缺页发生在预读线程中而不是拉消息线程中。<br>
+ * 同一队列连续coldReadPrefetchSequentialHits次从上次的nextBeginOffset开始拉取不在内存中的数据时才预读。
+ */
+public class ColdReadPrefetchService extends ServiceThread {
+    private static final Logger log = LoggerFactory.getLogger(LoggerName.StoreLoggerName);
+    // 一次预读最多扫描的ConsumeQueue记录数
+    private static final int MaxPrefetchUnits = 1024;
+    // 相邻消息间隔不超过该值时合并成一个区间
+    private static final int MergeGapBytes = 1024 * 64;
+    private static final long ReadStateExpiredMillis = 1000 * 60 * 2;
+
+    private final DefaultMessageStore defaultMessageStore;
+    private final ConcurrentHashMap<String/* topic@queueId */, QueueReadState> readStateTable =
+            new ConcurrentHashMap<String, QueueReadState>(64);
+    private final LinkedBlockingQueue<QueueReadState> requestQueue = new LinkedBlockingQueue<QueueReadState>(1024);
+    private final AtomicLong prefetchTimes = new AtomicLong(0);
+    private final AtomicLong prefetchBytes = new AtomicLong(0);
+    private long lastCleanTimestamp = System.currentTimeMillis();
+
+
+    public ColdReadPrefetchService(final DefaultMessageStore defaultMessageStore) {
+        this.defaultMessageStore = defaultMessageStore;
+    }
+
+
+    /**
+     * getMessage读到不在内存中的数据后调用
+     */
+    public void onColdRead(final String topic, final int queueId, final long offset, final long nextBeginOffset) {
+        final String key = topic + "@" + queueId;
+        QueueReadState state = this.readStateTable.get(key);
+        if (null == state) {
+            state = new QueueReadState(topic, queueId);
+            QueueReadState prev = this.readStateTable.putIfAbsent(key, state);
+            if (prev != null) {
+                state = prev;
+            }
+        }
+
+        synchronized (state) {
+            state.sequentialHits = (offset == state.nextOffset) ? state.sequentialHits + 1 : 1;
+            state.nextOffset = nextBeginOffset;
+            state.lastReadTimestamp = System.currentTimeMillis();
+            if (!state.pending
+                    && state.sequentialHits >= this.defaultMessageStore.getMessageStoreConfig().getColdReadPrefetchSequentialHits()) {
+                state.pending = this.requestQueue.offer(state);
+            }
+        }
+    }
+
+
+    /**
+     * 队列是否正在顺序追赶不在内存中的数据
+     */
+    public boolean isSequentialColdReader(final String topic, final int queueId) {
+        QueueReadState state = this.readStateTable.get(topic + "@" + queueId);
+        return state != null
+                && state.sequentialHits >= this.defaultMessageStore.getMessageStoreConfig().getColdReadPrefetchSequentialHits()
+                && System.currentTimeMillis() - state.lastReadTimestamp < ReadStateExpiredMillis;
+    }
+
+
+    private void prefetch(final QueueReadState state) {
+        final long fromOffset;
+        synchronized (state) {
+            fromOffset = state.nextOffset;
+            state.pending = false;
+        }
+
+        ConsumeQueue consumeQueue = this.defaultMessageStore.findConsumeQueue(state.topic, state.queueId);
+        SelectMapedBufferResult bufferConsumeQueue = consumeQueue.getIndexBuffer(fromOffset);
+        if (null == bufferConsumeQueue) {
+            return;
+        }
+
+        final int mapedFileSize = this.defaultMessageStore.getMessageStoreConfig().getMapedFileSizeCommitLog();
+        final int prefetchSize = this.defaultMessageStore.getMessageStoreConfig().getColdReadPrefetchSize();
+        long rangeBegin = -1;
+        long rangeEnd = -1;
+        long total = 0;
+        try {
+            for (int i = 0; i < bufferConsumeQueue.getSize() && i < MaxPrefetchUnits * ConsumeQueue.CQStoreUnitSize
+                    && total < prefetchSize; i += ConsumeQueue.CQStoreUnitSize) {
+                long offsetPy = bufferConsumeQueue.getByteBuffer().getLong();
+                int sizePy = bufferConsumeQueue.getByteBuffer().getInt();
+                bufferConsumeQueue.getByteBuffer().getLong();
+
+                // 上次已经预读过的区间
+                if (offsetPy + sizePy <= state.prefetchedPhyOffset) {
+                    continue;
+                }
+
+                if (rangeEnd >= 0 && offsetPy >= rangeEnd && offsetPy - rangeEnd <= MergeGapBytes
+                        && rangeBegin / mapedFileSize == offsetPy / mapedFileSize) {
+                    rangeEnd = offsetPy + sizePy;
+                } else {
+                    this.prefetchRange(rangeBegin, rangeEnd);
+                    rangeBegin = offsetPy;
+                    rangeEnd = offsetPy + sizePy;
+                }
+                total += sizePy;
+            }
+        } finally {
+            bufferConsumeQueue.release();
+        }
+
+        this.prefetchRange(rangeBegin, rangeEnd);
+        if (rangeEnd > state.prefetchedPhyOffset) {
+            state.prefetchedPhyOffset = rangeEnd;
+        }
+    }
+
+
+    private void prefetchRange(final long rangeBegin, final long rangeEnd) {
+        if (rangeBegin < 0 || rangeEnd <= rangeBegin) {
+            return;
+        }
+
+        this.defaultMessageStore.getCommitLog().prefetch(rangeBegin, (int) (rangeEnd - rangeBegin),
+                this.defaultMessageStore.getMessageStoreConfig().isColdReadPrefetchMadviseEnable());
+        this.prefetchTimes.incrementAndGet();
+        this.prefetchBytes.addAndGet(rangeEnd - rangeBegin);
+    }
+
+
+    private void cleanExpiredReadState() {
+        final long now = System.currentTimeMillis();
+        if (now - this.lastCleanTimestamp < ReadStateExpiredMillis) {
+            return;
+        }
+
+        this.lastCleanTimestamp = now;
+        Iterator<Map.Entry<String, QueueReadState>> it = this.readStateTable.entrySet().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().getValue().lastReadTimestamp > ReadStateExpiredMillis) {
+                it.remove();
+            }
+        }
+    }
+
+
+    @Override
+    public void run() {
+        log.info(this.getServiceName() + " service started");
+
+        while (!this.isStoped()) {
+            try {
+                QueueReadState state = this.requestQueue.poll(1000, TimeUnit.MILLISECONDS);
+                if (state != null) {
+                    this.prefetch(state);
+                }
+                this.cleanExpiredReadState();
+            } catch (Exception e) {
+                log.warn(this.getServiceName() + " service has exception. ", e);
+            }
+        }
+
+        log.info(this.getServiceName() + " service end");
+    }
+
+
+    @Override
+    public String getServiceName() {
+        return ColdReadPrefetchService.class.getSimpleName();
+    }
+
+
+    public long getPrefetchTimes() {
+        return prefetchTimes.get();
+    }
+
+
+    public long getPrefetchBytes() {
+        return prefetchBytes.get();
+    }
+
+
+    static class QueueReadState {
+        private final String topic;
+        private final int queueId;
+        private long nextOffset = -1;
+        private int sequentialHits = 0;
+        private volatile long lastReadTimestamp = System.currentTimeMillis();
+        private boolean pending = false;
+        // 只由预读线程访问
+        private long prefetchedPhyOffset = 0;
+
+
+        QueueReadState(String topic, int queueId) {
+            this.topic = topic;
+            this.queueId = queueId;
+        }
+    }
+}
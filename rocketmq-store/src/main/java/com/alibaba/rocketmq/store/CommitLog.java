@@ -17,6 +17,7 @@
 package com.alibaba.rocketmq.store;
 
 import com.alibaba.rocketmq.common.ServiceThread;
+import com.alibaba.rocketmq.common.ThreadFactoryImpl;
 import com.alibaba.rocketmq.common.UtilAll;
 import com.alibaba.rocketmq.common.constant.LoggerName;
 import com.alibaba.rocketmq.common.message.MessageAccessor;
@@ -26,8 +27,11 @@ import com.alibaba.rocketmq.common.message.MessageExt;
 import com.alibaba.rocketmq.common.sysflag.MessageSysFlag;
 import com.alibaba.rocketmq.store.config.BrokerRole;
 import com.alibaba.rocketmq.store.config.FlushDiskType;
+import com.alibaba.rocketmq.store.config.MessageStoreConfig;
 import com.alibaba.rocketmq.store.ha.HAService;
 import com.alibaba.rocketmq.store.schedule.ScheduleMessageService;
+import com.alibaba.rocketmq.store.tiered.TieredCommitLog;
+import com.alibaba.rocketmq.store.timer.TimerMessageService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -37,6 +41,9 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 
 
@@ -51,6 +58,12 @@ public class CommitLog {
     public final static int MessageMagicCode = 0xAABBCCDD ^ 1880681586 + 8;
     // End of file empty MAGIC CODE cbd43194
     private final static int BlankMagicCode = 0xBBCCDDEE ^ 1880681586 + 8;
+    // File at the end of the minimum fixed length empty
+    private static final int END_FILE_MIN_BLANK_LENGTH = 4 + 4;
+    // Fields patched into the encoded message under the put message lock
+    private static final int QueueOffsetPostion = 20;
+    private static final int PhysicOffsetPostion = MessageDecoder.MessagePhysicOffsetPostion;
+    private static final int StoreTimestampPostion = MessageDecoder.MessageStoreTimestampPostion;
     private final MapedFileQueue mapedFileQueue;
     private final DefaultMessageStore defaultMessageStore;
 
@@ -59,8 +72,28 @@ public class CommitLog {
      */
     private final FlushCommitLogService flushCommitLogService;
 
+    /**
+     * 堆外缓冲区提交服务，把TransientStorePool中的数据写入FileChannel
+     */
+    private final FlushCommitLogService commitLogService;
+
     private final AppendMessageCallback appendMessageCallback;
 
+    /**
+     * 每个发送线程独占一个编码缓冲区，消息在锁外完成序列化
+     */
+    private final ThreadLocal<MessageExtEncoder> putMessageThreadLocal;
+
+    /**
+     * 写CommitLog的锁，只保护位置分配与内存拷贝
+     */
+    private final PutMessageLock putMessageLock;
+
+    /**
+     * 异步写入的完成回调在这里执行，应答编码与发送后钩子不占用刷盘和复制线程
+     */
+    private final ExecutorService putMessageCompletionExecutor;
+
     /**
      * 存储 topic-queueid与offset对应关系
      */
@@ -79,7 +112,24 @@ public class CommitLog {
             this.flushCommitLogService = new FlushRealTimeService();
         }
 
-        this.appendMessageCallback = new DefaultAppendMessageCallback(defaultMessageStore.getMessageStoreConfig().getMaxMessageSize());
+        this.commitLogService = new CommitRealTimeService();
+
+        this.appendMessageCallback = new DefaultAppendMessageCallback();
+        final int maxMessageSize = defaultMessageStore.getMessageStoreConfig().getMaxMessageSize();
+        this.putMessageThreadLocal = new ThreadLocal<MessageExtEncoder>() {
+            @Override
+            protected MessageExtEncoder initialValue() {
+                return new MessageExtEncoder(maxMessageSize);
+            }
+        };
+
+        this.putMessageLock =
+                defaultMessageStore.getMessageStoreConfig().isUseReentrantLockWhenPutMessage() ? new PutMessageReentrantLock()
+                        : new PutMessageSpinLock();
+
+        this.putMessageCompletionExecutor =
+                Executors.newFixedThreadPool(defaultMessageStore.getMessageStoreConfig().getPutMessageCompletionThreadNums(),
+                    new ThreadFactoryImpl("PutMessageCompletionThread_"));
     }
 
 
@@ -92,11 +142,29 @@ public class CommitLog {
 
     public void start() {
         this.flushCommitLogService.start();
+
+        if (this.defaultMessageStore.getMessageStoreConfig().isTransientStorePoolEnable()) {
+            this.commitLogService.start();
+        }
     }
 
 
     public void shutdown() {
+        if (this.defaultMessageStore.getMessageStoreConfig().isTransientStorePoolEnable()) {
+            this.commitLogService.shutdown();
+        }
+
         this.flushCommitLogService.shutdown();
+
+        // 刷盘服务退出前已唤醒所有请求，等待剩余回调执行完
+        this.putMessageCompletionExecutor.shutdown();
+        try {
+            if (!this.putMessageCompletionExecutor.awaitTermination(3000, TimeUnit.MILLISECONDS)) {
+                log.warn("put message completion executor not terminated in 3000ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
 
@@ -144,6 +212,40 @@ public class CommitLog {
     }
 
 
+    /**
+     * 分层存储时只删除已经上传到冷存储的文件
+     */
+    public int deleteExpiredFile(//
+                                 final long expiredTime, //
+                                 final int deleteFilesInterval, //
+                                 final long intervalForcibly,//
+                                 final boolean cleanImmediately,//
+                                 final long maxDeletableOffset//
+    ) {
+        return this.mapedFileQueue.deleteExpiredFileByTime(expiredTime, deleteFilesInterval, intervalForcibly, cleanImmediately,
+                maxDeletableOffset);
+    }
+
+
+    /**
+     * 已经写满并且刷盘的文件，不包括正在写的最后一个文件
+     */
+    public List<MapedFile> getSealedMapedFiles() {
+        List<MapedFile> sealed = new ArrayList<MapedFile>();
+        Object[] mfs = this.mapedFileQueue.copyMapedFiles(0);
+        if (mfs != null) {
+            final long committedWhere = this.mapedFileQueue.getCommittedWhere();
+            for (int i = 0; i < mfs.length - 1; i++) {
+                MapedFile mapedFile = (MapedFile) mfs[i];
+                if (mapedFile.isAvailable() && mapedFile.getFileFromOffset() + mapedFile.getFileSize() <= committedWhere) {
+                    sealed.add(mapedFile);
+                }
+            }
+        }
+        return sealed;
+    }
+
+
     /**
      * Read CommitLog data, use data replication
      */
@@ -154,6 +256,17 @@ public class CommitLog {
 
     public SelectMapedBufferResult getData(final long offset, final boolean returnFirstOnNotFound) {
         int mapedFileSize = this.defaultMessageStore.getMessageStoreConfig().getMapedFileSizeCommitLog();
+        /**
+         * 落后很多的Slave从冷存储同步本地已经删除的数据
+         */
+        final TieredCommitLog tieredCommitLog = this.defaultMessageStore.getTieredCommitLog();
+        if (tieredCommitLog != null && offset < this.getMinOffset()) {
+            SelectMapedBufferResult result = tieredCommitLog.getData(offset);
+            if (result != null) {
+                return result;
+            }
+        }
+
         MapedFile mapedFile = this.mapedFileQueue.findMapedFileByOffset(offset, returnFirstOnNotFound);
         if (mapedFile != null) {
             int pos = (int) (offset % mapedFileSize);
@@ -214,6 +327,7 @@ public class CommitLog {
 
             processOffset += mapedFileOffset;
             this.mapedFileQueue.setCommittedWhere(processOffset);
+            this.mapedFileQueue.setWriteBufferCommittedWhere(processOffset);
             this.mapedFileQueue.truncateDirtyFiles(processOffset);
         }
     }
@@ -311,13 +425,14 @@ public class CommitLog {
 
             long tagsCode = 0;
             String keys = "";
+            Map<String, String> propertiesMap = null;
 
             // 17 properties
             short propertiesLength = byteBuffer.getShort();
             if (propertiesLength > 0) {
                 byteBuffer.get(bytesContent, 0, propertiesLength);
                 String properties = new String(bytesContent, 0, propertiesLength, MessageDecoder.CHARSET_UTF8);
-                Map<String, String> propertiesMap = MessageDecoder.string2messageProperties(properties);
+                propertiesMap = MessageDecoder.string2messageProperties(properties);
 
                 keys = propertiesMap.get(MessageConst.PROPERTY_KEYS);
                 String tags = propertiesMap.get(MessageConst.PROPERTY_TAGS);
@@ -341,6 +456,12 @@ public class CommitLog {
                                             .computeDeliverTimestamp(delayLevel, storeTimestamp);
                         }
                     }
+
+                    // tagsCode of timer message is the deliver time
+                    t = propertiesMap.get(MessageConst.PROPERTY_TIMER_DELIVER_MS);
+                    if (TimerMessageService.TIMER_TOPIC.equals(topic) && t != null) {
+                        tagsCode = Long.parseLong(t);
+                    }
                 }
             }
 
@@ -352,7 +473,7 @@ public class CommitLog {
                 return new DispatchRequest(totalSize, false/* success */);
             }
 
-            return new DispatchRequest(//
+            DispatchRequest dispatchRequest = new DispatchRequest(//
                     topic,// 1
                     queueId,// 2
                     physicOffset,// 3
@@ -364,6 +485,8 @@ public class CommitLog {
                     sysFlag,// 9
                     preparedTransactionOffset// 10
             );
+            dispatchRequest.setPropertiesMap(propertiesMap);
+            return dispatchRequest;
         } catch (Exception e) {
         }
 
@@ -455,6 +578,7 @@ public class CommitLog {
 
             processOffset += mapedFileOffset;
             this.mapedFileQueue.setCommittedWhere(processOffset);
+            this.mapedFileQueue.setWriteBufferCommittedWhere(processOffset);
             this.mapedFileQueue.truncateDirtyFiles(processOffset);
 
             // Clear ConsumeQueue redundant data
@@ -463,6 +587,7 @@ public class CommitLog {
         // Commitlog case files are deleted
         else {
             this.mapedFileQueue.setCommittedWhere(0);
+            this.mapedFileQueue.setWriteBufferCommittedWhere(0);
             this.defaultMessageStore.destroyLogics();
         }
     }
@@ -513,6 +638,34 @@ public class CommitLog {
      * @return
      */
     public PutMessageResult putMessage(final MessageExtBrokerInner msg) {
+        PutMessageResult putMessageResult = this.appendMessage(msg);
+        if (putMessageResult.isOk()) {
+            this.handleDiskFlush(putMessageResult.getAppendMessageResult(), putMessageResult, msg);
+            this.handleHA(putMessageResult.getAppendMessageResult(), putMessageResult, msg);
+        }
+
+        return putMessageResult;
+    }
+
+
+    /**
+     * 异步添加消息，同步刷盘时由GroupCommitService刷盘完成后回调，不占用调用线程
+     */
+    public void asyncPutMessage(final MessageExtBrokerInner msg, final PutMessageCallback callback) {
+        PutMessageResult putMessageResult = this.appendMessage(msg);
+        if (!putMessageResult.isOk()) {
+            callback.onComplete(putMessageResult);
+            return;
+        }
+
+        this.handleDiskFlushAsync(putMessageResult, msg, callback);
+    }
+
+
+    /**
+     * 写入CommitLog，不处理刷盘和复制
+     */
+    private PutMessageResult appendMessage(final MessageExtBrokerInner msg) {
         // Set the storage time
         msg.setStoreTimestamp(System.currentTimeMillis());
         // Set the message body BODY CRC (consider the most appropriate setting
@@ -548,12 +701,54 @@ public class CommitLog {
 
                 msg.setTopic(topic);
                 msg.setQueueId(queueId);
+            } else if (this.defaultMessageStore.getTimerMessageService() != null) {
+                // Timer Delivery
+                String t = msg.getProperty(MessageConst.PROPERTY_TIMER_DELIVER_MS);
+                long deliverMs = 0;
+                if (t != null) {
+                    try {
+                        deliverMs = Long.parseLong(t);
+                    } catch (NumberFormatException e) {
+                        log.warn("illegal timer deliver time {}, deliver it now", t);
+                    }
+                }
+
+                if (deliverMs > msg.getStoreTimestamp()) {
+                    deliverMs = this.defaultMessageStore.getTimerMessageService().correctDeliverTimestamp(msg.getStoreTimestamp(), deliverMs);
+                    topic = TimerMessageService.TIMER_TOPIC;
+                    queueId = 0;
+
+                    // Backup real topic, queueId
+                    MessageAccessor.putProperty(msg, MessageConst.PROPERTY_TIMER_DELIVER_MS, String.valueOf(deliverMs));
+                    MessageAccessor.putProperty(msg, MessageConst.PROPERTY_REAL_TOPIC, msg.getTopic());
+                    MessageAccessor.putProperty(msg, MessageConst.PROPERTY_REAL_QUEUE_ID, String.valueOf(msg.getQueueId()));
+                    msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+
+                    msg.setTopic(topic);
+                    msg.setQueueId(queueId);
+                }
             }
         }
 
+        /**
+         * 锁外完成消息序列化，锁内只需要分配写入位置、回填offset并拷贝
+         */
+        MessageExtEncoder encoder = this.putMessageThreadLocal.get();
+        AppendMessageStatus encodeStatus = encoder.encode(msg);
+        switch (encodeStatus) {
+            case PUT_OK:
+                break;
+            case MESSAGE_SIZE_EXCEEDED:
+            case PROPERTIES_SIZE_EXCEEDED:
+                return new PutMessageResult(PutMessageStatus.MESSAGE_ILLEGAL, new AppendMessageResult(encodeStatus));
+            default:
+                return new PutMessageResult(PutMessageStatus.UNKNOWN_ERROR, new AppendMessageResult(encodeStatus));
+        }
+
         long eclipseTimeInLock = 0;
         MapedFile mapedFile = this.mapedFileQueue.getLastMapedFileWithLock();
-        synchronized (this) {
+        this.putMessageLock.lock();
+        try {
             long beginLockTimestamp = this.defaultMessageStore.getSystemClock().now();
 
             // Here settings are stored timestamp, in order to ensure an orderly
@@ -601,20 +796,39 @@ public class CommitLog {
             }
 
             eclipseTimeInLock = this.defaultMessageStore.getSystemClock().now() - beginLockTimestamp;
-        } // end of synchronized
+        } finally {
+            this.putMessageLock.unlock();
+        }
 
         if (eclipseTimeInLock > 500) {
             log.warn("[NOTIFYME]putMessage in lock eclipse time(ms) " + eclipseTimeInLock);
         }
 
+        /**
+         * 创建消息ID，只依赖写入位置，不需要在锁内完成
+         * 注意：对于消费失败重新发回给Broker的消息，它的消息ID也是重新创建的
+         */
+        result.setMsgId(encoder.createMessageId(msg.getStoreHostBytes(), result.getWroteOffset()));
+
         PutMessageResult putMessageResult = new PutMessageResult(PutMessageStatus.PUT_OK, result);
 
+        // 消息已经可读，立即唤醒分发线程；使用堆外缓冲区时要等提交后才可读，由CommitRealTimeService唤醒
+        if (!this.defaultMessageStore.getMessageStoreConfig().isTransientStorePoolEnable()) {
+            this.defaultMessageStore.wakeupReputMessageService();
+        }
+
         // Statistics
         storeStatsService.getSinglePutMessageTopicTimesTotal(msg.getTopic()).incrementAndGet();
         storeStatsService.getSinglePutMessageTopicSizeTotal(topic).addAndGet(result.getWroteBytes());
 
-        GroupCommitRequest request = null;
+        return putMessageResult;
+    }
 
+
+    /**
+     * 刷盘处理，同步刷盘时等待刷盘完成
+     */
+    private void handleDiskFlush(final AppendMessageResult result, final PutMessageResult putMessageResult, final MessageExt msg) {
         /**
          * 如果是同步刷盘
          */
@@ -624,7 +838,8 @@ public class CommitLog {
             GroupCommitService service = (GroupCommitService) this.flushCommitLogService;
             if (msg.isWaitStoreMsgOK()) {
 
-                request = new GroupCommitRequest(result.getWroteOffset() + result.getWroteBytes());
+                GroupCommitRequest request = new GroupCommitRequest(result.getWroteOffset() + result.getWroteBytes(),
+                        this.defaultMessageStore.getMessageStoreConfig().getSyncFlushTimeout());
 
                 service.putRequest(request);
 
@@ -643,22 +858,123 @@ public class CommitLog {
         else {
             /**
              * 异步刷盘，直接唤醒异步刷盘线程
+             * 使用堆外缓冲区时先唤醒提交线程，提交完成后由它唤醒刷盘线程
              */
-            this.flushCommitLogService.wakeup();
+            if (!this.defaultMessageStore.getMessageStoreConfig().isTransientStorePoolEnable()) {
+                this.flushCommitLogService.wakeup();
+            } else {
+                this.commitLogService.wakeup();
+            }
         }
+    }
+
+
+    /**
+     * 同步刷盘时把完成回调挂在GroupCommitRequest上，由GroupCommitService刷盘后执行，
+     * 刷盘完成后再按需等待slave确认
+     */
+    private void handleDiskFlushAsync(final PutMessageResult putMessageResult, final MessageExt msg, final PutMessageCallback callback) {
+        final MessageStoreConfig messageStoreConfig = this.defaultMessageStore.getMessageStoreConfig();
+        if (FlushDiskType.SYNC_FLUSH != messageStoreConfig.getFlushDiskType() || !msg.isWaitStoreMsgOK()) {
+            this.handleDiskFlush(putMessageResult.getAppendMessageResult(), putMessageResult, msg);
+            this.handleHAAsync(putMessageResult, msg, callback);
+            return;
+        }
+
+        final AppendMessageResult result = putMessageResult.getAppendMessageResult();
+        GroupCommitRequest request = new GroupCommitRequest(result.getWroteOffset() + result.getWroteBytes(),
+                messageStoreConfig.getSyncFlushTimeout()) {
+            @Override
+            protected void onComplete(boolean flushOK) {
+                if (!flushOK || System.currentTimeMillis() > this.getDeadLine()) {
+                    log.error("do groupcommit, wait for flush failed, topic: " + msg.getTopic() + " tags: " + msg.getTags()
+                            + " client address: " + msg.getBornHostString());
+                    putMessageResult.setPutMessageStatus(PutMessageStatus.FLUSH_DISK_TIMEOUT);
+                }
+                CommitLog.this.executeCompletion(new Runnable() {
+                    @Override
+                    public void run() {
+                        CommitLog.this.handleHAAsync(putMessageResult, msg, callback);
+                    }
+                });
+            }
+        };
+
+        ((GroupCommitService) this.flushCommitLogService).putRequest(request);
+    }
+
+
+    /**
+     * 刷盘或复制线程只负责唤醒，回调交给完成线程池执行；线程池已关闭时在当前线程执行，保证回调不丢
+     */
+    private void executeCompletion(final Runnable task) {
+        try {
+            this.putMessageCompletionExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.run();
+        }
+    }
+
+
+    /**
+     * 同步复制时把完成回调挂在GroupCommitRequest上，slave确认的offset超过消息结尾时
+     * 由GroupTransferService回调，超时时间从提交请求开始计算
+     */
+    private void handleHAAsync(final PutMessageResult putMessageResult, final MessageExt msg, final PutMessageCallback callback) {
+        if (BrokerRole.SYNC_MASTER != this.defaultMessageStore.getMessageStoreConfig().getBrokerRole() || !msg.isWaitStoreMsgOK()) {
+            callback.onComplete(putMessageResult);
+            return;
+        }
+
+        final AppendMessageResult result = putMessageResult.getAppendMessageResult();
+        HAService service = this.defaultMessageStore.getHaService();
+        if (!service.isSlaveOK(result.getWroteOffset() + result.getWroteBytes())) {
+            // Tell the producer, slave not available
+            putMessageResult.setPutMessageStatus(PutMessageStatus.SLAVE_NOT_AVAILABLE);
+            callback.onComplete(putMessageResult);
+            return;
+        }
+
+        GroupCommitRequest request = new GroupCommitRequest(result.getWroteOffset() + result.getWroteBytes(),
+                this.defaultMessageStore.getMessageStoreConfig().getSyncFlushTimeout()) {
+            @Override
+            protected void onComplete(boolean transferOK) {
+                if (!transferOK) {
+                    log.error("do sync transfer other node, wait return, but failed, topic: " + msg.getTopic() + " tags: "
+                            + msg.getTags() + " client address: " + msg.getBornHostString());
+                    putMessageResult.setPutMessageStatus(PutMessageStatus.FLUSH_SLAVE_TIMEOUT);
+                }
+                CommitLog.this.executeCompletion(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onComplete(putMessageResult);
+                    }
+                });
+            }
+        };
+
+        service.putRequest(request);
 
-        // Synchronous write double
         /**
-         * 同步复制
+         * 唤醒HAConnection中的Write线程
          */
+        service.getWaitNotifyObject().wakeupAll();
+    }
+
+
+    /**
+     * 同步复制时等待数据复制到slave
+     * 如果是异步复制，由HAService在后台把数据传给slave
+     */
+    private void handleHA(final AppendMessageResult result, final PutMessageResult putMessageResult, final MessageExt msg) {
+        // Synchronous write double
         if (BrokerRole.SYNC_MASTER == this.defaultMessageStore.getMessageStoreConfig().getBrokerRole()) {
             HAService service = this.defaultMessageStore.getHaService();
             if (msg.isWaitStoreMsgOK()) {
                 // Determine whether to wait
                 if (service.isSlaveOK(result.getWroteOffset() + result.getWroteBytes())) {
-                    if (null == request) {
-                        request = new GroupCommitRequest(result.getWroteOffset() + result.getWroteBytes());
-                    }
+                    GroupCommitRequest request = new GroupCommitRequest(result.getWroteOffset() + result.getWroteBytes(),
+                            this.defaultMessageStore.getMessageStoreConfig().getSyncFlushTimeout());
 
                     service.putRequest(request);
 
@@ -671,7 +987,6 @@ public class CommitLog {
                      * 等待数据复制到slave中
                      */
                     boolean flushOK =
-                            // TODO
                             request.waitForFlush(this.defaultMessageStore.getMessageStoreConfig().getSyncFlushTimeout());
 
                     if (!flushOK) {
@@ -687,10 +1002,126 @@ public class CommitLog {
                 }
             }
         }
+    }
+
+
+    /**
+     * 批量写入消息，整批消息在一次加锁中写入，队列offset连续
+     *
+     * @param messageExtBatch
+     * @return
+     */
+    public PutMessageResult putMessages(final MessageExtBatch messageExtBatch) {
+        PutMessageResult putMessageResult = this.appendMessages(messageExtBatch);
+        if (putMessageResult.isOk()) {
+            this.handleDiskFlush(putMessageResult.getAppendMessageResult(), putMessageResult, messageExtBatch);
+            this.handleHA(putMessageResult.getAppendMessageResult(), putMessageResult, messageExtBatch);
+        }
+
+        return putMessageResult;
+    }
+
+
+    public void asyncPutMessages(final MessageExtBatch messageExtBatch, final PutMessageCallback callback) {
+        PutMessageResult putMessageResult = this.appendMessages(messageExtBatch);
+        if (!putMessageResult.isOk()) {
+            callback.onComplete(putMessageResult);
+            return;
+        }
+
+        this.handleDiskFlushAsync(putMessageResult, messageExtBatch, callback);
+    }
+
+
+    private PutMessageResult appendMessages(final MessageExtBatch messageExtBatch) {
+        messageExtBatch.setStoreTimestamp(System.currentTimeMillis());
+        AppendMessageResult result;
+
+        StoreStatsService storeStatsService = this.defaultMessageStore.getStoreStatsService();
+
+        final int tranType = MessageSysFlag.getTransactionValue(messageExtBatch.getSysFlag());
+        if (tranType != MessageSysFlag.TransactionNotType) {
+            return new PutMessageResult(PutMessageStatus.MESSAGE_ILLEGAL, null);
+        }
+        if (messageExtBatch.getDelayTimeLevel() > 0) {
+            return new PutMessageResult(PutMessageStatus.MESSAGE_ILLEGAL, null);
+        }
+
         /**
-         * 如果是异步复制，SLAVE端启动一个线程，不断从Master拉取数据
-         * TODO:线程在哪里？？没找到到
+         * 锁外把整批消息序列化成CommitLog格式
          */
+        MessageExtEncoder encoder = this.putMessageThreadLocal.get();
+        AppendMessageStatus encodeStatus = encoder.encode(messageExtBatch);
+        switch (encodeStatus) {
+            case PUT_OK:
+                break;
+            case MESSAGE_SIZE_EXCEEDED:
+            case PROPERTIES_SIZE_EXCEEDED:
+                return new PutMessageResult(PutMessageStatus.MESSAGE_ILLEGAL, new AppendMessageResult(encodeStatus));
+            default:
+                return new PutMessageResult(PutMessageStatus.UNKNOWN_ERROR, new AppendMessageResult(encodeStatus));
+        }
+
+        long eclipseTimeInLock = 0;
+        MapedFile mapedFile = this.mapedFileQueue.getLastMapedFileWithLock();
+        this.putMessageLock.lock();
+        try {
+            long beginLockTimestamp = this.defaultMessageStore.getSystemClock().now();
+
+            // Here settings are stored timestamp, in order to ensure an orderly
+            // global
+            messageExtBatch.setStoreTimestamp(beginLockTimestamp);
+
+            if (null == mapedFile || mapedFile.isFull()) {
+                mapedFile = this.mapedFileQueue.getLastMapedFile();
+            }
+
+            if (null == mapedFile) {
+                log.error("create maped file1 error, topic: {} clientAddr: {}", messageExtBatch.getTopic(), messageExtBatch.getBornHostString());
+                return new PutMessageResult(PutMessageStatus.CREATE_MAPEDFILE_FAILED, null);
+            }
+
+            result = mapedFile.appendMessages(messageExtBatch, this.appendMessageCallback);
+            switch (result.getStatus()) {
+                case PUT_OK:
+                    break;
+                case END_OF_FILE:
+                    // Create a new file, re-write the messages
+                    mapedFile = this.mapedFileQueue.getLastMapedFile();
+                    if (null == mapedFile) {
+                        log.error("create maped file2 error, topic: {} clientAddr: {}", messageExtBatch.getTopic(), messageExtBatch.getBornHostString());
+                        return new PutMessageResult(PutMessageStatus.CREATE_MAPEDFILE_FAILED, result);
+                    }
+                    result = mapedFile.appendMessages(messageExtBatch, this.appendMessageCallback);
+                    break;
+                case MESSAGE_SIZE_EXCEEDED:
+                case PROPERTIES_SIZE_EXCEEDED:
+                    return new PutMessageResult(PutMessageStatus.MESSAGE_ILLEGAL, result);
+                case UNKNOWN_ERROR:
+                default:
+                    return new PutMessageResult(PutMessageStatus.UNKNOWN_ERROR, result);
+            }
+
+            eclipseTimeInLock = this.defaultMessageStore.getSystemClock().now() - beginLockTimestamp;
+        } finally {
+            this.putMessageLock.unlock();
+        }
+
+        if (eclipseTimeInLock > 500) {
+            log.warn("[NOTIFYME]putMessages in lock eclipse time(ms) " + eclipseTimeInLock);
+        }
+
+        result.setMsgId(encoder.createBatchMessageIds(messageExtBatch.getStoreHostBytes(), result.getWroteOffset()));
+
+        PutMessageResult putMessageResult = new PutMessageResult(PutMessageStatus.PUT_OK, result);
+
+        if (!this.defaultMessageStore.getMessageStoreConfig().isTransientStorePoolEnable()) {
+            this.defaultMessageStore.wakeupReputMessageService();
+        }
+
+        // Statistics
+        storeStatsService.getSinglePutMessageTopicTimesTotal(messageExtBatch.getTopic()).addAndGet(result.getMsgNum());
+        storeStatsService.getSinglePutMessageTopicSizeTotal(messageExtBatch.getTopic()).addAndGet(result.getWroteBytes());
 
         return putMessageResult;
     }
@@ -701,7 +1132,7 @@ public class CommitLog {
      * occurs, it returns -1
      */
     public long pickupStoretimestamp(final long offset, final int size) {
-        if (offset > this.getMinOffset()) {
+        if (offset >= this.defaultMessageStore.getMinPhyOffset()) {
             SelectMapedBufferResult result = this.getMessage(offset, size);
             if (null != result) {
                 try {
@@ -718,6 +1149,14 @@ public class CommitLog {
 
     public SelectMapedBufferResult getMessage(final long offset, final int size) {
         int mapedFileSize = this.defaultMessageStore.getMessageStoreConfig().getMapedFileSizeCommitLog();
+        /**
+         * 本地文件已经删除的消息从冷存储读取
+         */
+        final TieredCommitLog tieredCommitLog = this.defaultMessageStore.getTieredCommitLog();
+        if (tieredCommitLog != null && offset < this.getMinOffset()) {
+            return tieredCommitLog.getMessage(offset, size);
+        }
+
         /**
          * 先找到offset所在的文件
          */
@@ -736,6 +1175,23 @@ public class CommitLog {
     }
 
 
+    /**
+     * 把本地CommitLog中[offset, offset + size)预读到PageCache，不跨越文件
+     */
+    public boolean prefetch(final long offset, final int size, final boolean madvise) {
+        if (offset < this.getMinOffset()) {
+            return false;
+        }
+
+        int mapedFileSize = this.defaultMessageStore.getMessageStoreConfig().getMapedFileSizeCommitLog();
+        MapedFile mapedFile = this.mapedFileQueue.findMapedFileByOffset(offset);
+        if (mapedFile != null) {
+            return mapedFile.prefetch((int) (offset % mapedFileSize), size, madvise);
+        }
+        return false;
+    }
+
+
     public HashMap<String, Long> getTopicQueueTable() {
         return topicQueueTable;
     }
@@ -759,15 +1215,25 @@ public class CommitLog {
      * @return
      */
     public boolean appendData(long startOffset, byte[] data) {
-        synchronized (this) {
+        boolean result;
+        this.putMessageLock.lock();
+        try {
             MapedFile mapedFile = this.mapedFileQueue.getLastMapedFile(startOffset);
             if (null == mapedFile) {
                 log.error("appendData getLastMapedFile error  " + startOffset);
                 return false;
             }
 
-            return mapedFile.appendMessage(data);
+            result = mapedFile.appendMessage(data);
+        } finally {
+            this.putMessageLock.unlock();
+        }
+
+        // Slave收到复制数据后与putMessage一样立即唤醒分发线程，使用堆外缓冲区时由CommitRealTimeService唤醒
+        if (result && !this.defaultMessageStore.getMessageStoreConfig().isTransientStorePoolEnable()) {
+            this.defaultMessageStore.wakeupReputMessageService();
         }
+        return result;
     }
 
 
@@ -778,6 +1244,68 @@ public class CommitLog {
     abstract class FlushCommitLogService extends ServiceThread {
     }
 
+    /**
+     * 把堆外缓冲区中的消息批量写入FileChannel，之后再由FlushRealTimeService刷盘
+     */
+    class CommitRealTimeService extends FlushCommitLogService {
+        private static final int RetryTimesOver = 3;
+        private long lastCommitTimestamp = 0;
+
+
+        @Override
+        public String getServiceName() {
+            return CommitRealTimeService.class.getSimpleName();
+        }
+
+
+        @Override
+        public void run() {
+            CommitLog.log.info(this.getServiceName() + " service started");
+
+            while (!this.isStoped()) {
+                int interval = CommitLog.this.defaultMessageStore.getMessageStoreConfig().getCommitIntervalCommitLog();
+
+                int commitDataLeastPages = CommitLog.this.defaultMessageStore.getMessageStoreConfig().getCommitCommitLogLeastPages();
+
+                int commitDataThoroughInterval =
+                        CommitLog.this.defaultMessageStore.getMessageStoreConfig().getCommitCommitLogThoroughInterval();
+
+                long begin = System.currentTimeMillis();
+                if (begin >= (this.lastCommitTimestamp + commitDataThoroughInterval)) {
+                    this.lastCommitTimestamp = begin;
+                    commitDataLeastPages = 0;
+                }
+
+                try {
+                    boolean result = CommitLog.this.mapedFileQueue.commitWriteBuffer(commitDataLeastPages);
+                    long end = System.currentTimeMillis();
+                    if (!result) {
+                        this.lastCommitTimestamp = end;
+                        // 有新数据写入FileChannel，唤醒刷盘线程和分发线程
+                        CommitLog.this.flushCommitLogService.wakeup();
+                        CommitLog.this.defaultMessageStore.wakeupReputMessageService();
+                    }
+
+                    if (end - begin > 500) {
+                        CommitLog.log.info("Commit data to file costs {} ms", end - begin);
+                    }
+
+                    this.waitForRunning(interval);
+                } catch (Exception e) {
+                    CommitLog.log.error(this.getServiceName() + " service has exception. ", e);
+                }
+            }
+
+            boolean result = false;
+            for (int i = 0; i < RetryTimesOver && !result; i++) {
+                result = CommitLog.this.mapedFileQueue.commitWriteBuffer(0);
+                CommitLog.log.info(this.getServiceName() + " service shutdown, retry " + (i + 1) + " times " + (result ? "OK" : "Not OK"));
+            }
+
+            CommitLog.log.info(this.getServiceName() + " service end");
+        }
+    }
+
     /**
      * 异步刷盘具体实现类
      */
@@ -865,12 +1393,15 @@ public class CommitLog {
 
     public class GroupCommitRequest {
         private final long nextOffset;
+        // 超过这个时间还没有完成，按超时处理
+        private final long deadLine;
         private final CountDownLatch countDownLatch = new CountDownLatch(1);
         private volatile boolean flushOK = false;
 
 
-        public GroupCommitRequest(long nextOffset) {
+        public GroupCommitRequest(long nextOffset, long timeoutMillis) {
             this.nextOffset = nextOffset;
+            this.deadLine = System.currentTimeMillis() + timeoutMillis;
         }
 
 
@@ -879,9 +1410,26 @@ public class CommitLog {
         }
 
 
+        public long getDeadLine() {
+            return deadLine;
+        }
+
+
         public void wakeupCustomer(final boolean flushOK) {
             this.flushOK = flushOK;
             this.countDownLatch.countDown();
+            try {
+                this.onComplete(flushOK);
+            } catch (Throwable e) {
+                log.warn("GroupCommitRequest complete callback exception", e);
+            }
+        }
+
+
+        /**
+         * 异步等待的请求在这里处理结果，在刷盘或者复制线程中执行，只做轻量工作，回调应转交完成线程池
+         */
+        protected void onComplete(final boolean flushOK) {
         }
 
 
@@ -927,13 +1475,11 @@ public class CommitLog {
                 for (GroupCommitRequest req : this.requestsRead) {
                     // There may be a message in the next file, so a maximum of
                     // two times the flush
-                    boolean flushOK = false;
+                    // 刷盘后重新判断，否则跨文件的请求第二次刷盘成功也会被当作失败
+                    boolean flushOK = CommitLog.this.mapedFileQueue.getCommittedWhere() >= req.getNextOffset();
                     for (int i = 0; (i < 2) && !flushOK; i++) {
+                        CommitLog.this.mapedFileQueue.commit(0);
                         flushOK = (CommitLog.this.mapedFileQueue.getCommittedWhere() >= req.getNextOffset());
-
-                        if (!flushOK) {
-                            CommitLog.this.mapedFileQueue.commit(0);
-                        }
                     }
 
                     req.wakeupCustomer(flushOK);
@@ -1001,28 +1547,258 @@ public class CommitLog {
         }
     }
 
-    class DefaultAppendMessageCallback implements AppendMessageCallback {
-        // File at the end of the minimum fixed length empty
-        private static final int END_FILE_MIN_BLANK_LENGTH = 4 + 4;
+    /**
+     * 序列化消息，除写入位置、队列offset和存储时间外的内容都在锁外完成
+     */
+    class MessageExtEncoder {
         private final ByteBuffer msgIdMemory;
         // Store the message content
-        private final ByteBuffer msgStoreItemMemory;
+        private final ByteBuffer encoderBuffer;
         // The maximum length of the message
         private final int maxMessageSize;
+        // topic-queueid of the last encoded message
+        private String topicQueueKey;
 
 
-        DefaultAppendMessageCallback(final int size) {
+        MessageExtEncoder(final int size) {
             this.msgIdMemory = ByteBuffer.allocate(MessageDecoder.MSG_ID_LENGTH);
-            this.msgStoreItemMemory = ByteBuffer.allocate(size + END_FILE_MIN_BLANK_LENGTH);
+            this.encoderBuffer = ByteBuffer.allocate(size + END_FILE_MIN_BLANK_LENGTH);
             this.maxMessageSize = size;
         }
 
 
-        public ByteBuffer getMsgStoreItemMemory() {
-            return msgStoreItemMemory;
+        /**
+         * 序列化消息到encoderBuffer，QUEUEOFFSET、PHYSICALOFFSET、STORETIMESTAMP先占位，
+         * 在锁内由DefaultAppendMessageCallback回填
+         *
+         * @param msgInner
+         * @return PUT_OK表示序列化成功
+         */
+        public AppendMessageStatus encode(final MessageExtBrokerInner msgInner) {
+            this.topicQueueKey = msgInner.getTopic() + "-" + msgInner.getQueueId();
+
+            /**
+             * 序列化消息
+             * Serialize message
+             */
+            final byte[] propertiesData =
+                    msgInner.getPropertiesString() == null ? null : msgInner.getPropertiesString().getBytes(MessageDecoder.CHARSET_UTF8);
+            if (propertiesData != null && propertiesData.length > Short.MAX_VALUE) {
+                log.warn("putMessage message properties length too long. length={}", propertiesData.length);
+                return AppendMessageStatus.PROPERTIES_SIZE_EXCEEDED;
+            }
+
+            // 消息属性长度
+            final short propertiesLength = propertiesData == null ? 0 : (short) propertiesData.length;
+
+            final byte[] topicData = msgInner.getTopic().getBytes(MessageDecoder.CHARSET_UTF8);
+
+            //Topic长度
+            final int topicLength = topicData == null ? 0 : topicData.length;
+            //消息内容长度
+            final int bodyLength = msgInner.getBody() == null ? 0 : msgInner.getBody().length;
+
+            // 消息总长度
+            final int msgLen = calMsgLength(bodyLength, topicLength, propertiesLength);
+
+            // Exceeds the maximum message
+            if (msgLen > this.maxMessageSize) {
+                CommitLog.log.warn("message size exceeded, msg total size: " + msgLen + ", msg body size: " + bodyLength
+                        + ", maxMessageSize: " + this.maxMessageSize);
+                return AppendMessageStatus.MESSAGE_SIZE_EXCEEDED;
+            }
+
+            // Initialization of storage space
+            this.encoderBuffer.clear();
+            // 1 TOTALSIZE
+            this.encoderBuffer.putInt(msgLen);
+            // 2 MAGICCODE
+            this.encoderBuffer.putInt(CommitLog.MessageMagicCode);
+            // 3 BODYCRC
+            this.encoderBuffer.putInt(msgInner.getBodyCRC());
+            // 4 QUEUEID
+            this.encoderBuffer.putInt(msgInner.getQueueId());
+            // 5 FLAG
+            this.encoderBuffer.putInt(msgInner.getFlag());
+            // 6 QUEUEOFFSET, filled in lock
+            this.encoderBuffer.putLong(0);
+            // 7 PHYSICALOFFSET, filled in lock
+            this.encoderBuffer.putLong(0);
+            // 8 SYSFLAG
+            this.encoderBuffer.putInt(msgInner.getSysFlag());
+            // 9 BORNTIMESTAMP
+            this.encoderBuffer.putLong(msgInner.getBornTimestamp());
+            // 10 BORNHOST
+            this.encoderBuffer.put(msgInner.getBornHostBytes());
+            // 11 STORETIMESTAMP, filled in lock
+            this.encoderBuffer.putLong(0);
+            // 12 STOREHOSTADDRESS
+            this.encoderBuffer.put(msgInner.getStoreHostBytes());
+            // 13 RECONSUMETIMES
+            this.encoderBuffer.putInt(msgInner.getReconsumeTimes());
+            // 14 Prepared Transaction Offset
+            this.encoderBuffer.putLong(msgInner.getPreparedTransactionOffset());
+            // 15 BODY
+            this.encoderBuffer.putInt(bodyLength);
+            if (bodyLength > 0)
+                this.encoderBuffer.put(msgInner.getBody());
+            // 16 TOPIC
+            this.encoderBuffer.put((byte) topicLength);
+            this.encoderBuffer.put(topicData);
+            // 17 PROPERTIES
+            this.encoderBuffer.putShort(propertiesLength);
+            if (propertiesLength > 0)
+                this.encoderBuffer.put(propertiesData);
+
+            this.encoderBuffer.flip();
+            return AppendMessageStatus.PUT_OK;
         }
 
 
+        /**
+         * 把客户端编码的批量消息展开成多条CommitLog格式的消息，每条消息的offset和时间戳同样在锁内回填
+         *
+         * @param messageExtBatch
+         * @return PUT_OK表示序列化成功
+         */
+        public AppendMessageStatus encode(final MessageExtBatch messageExtBatch) {
+            this.topicQueueKey = messageExtBatch.getTopic() + "-" + messageExtBatch.getQueueId();
+            this.encoderBuffer.clear();
+
+            final byte[] topicData = messageExtBatch.getTopic().getBytes(MessageDecoder.CHARSET_UTF8);
+            final int topicLength = topicData.length;
+            final byte[] bornHostData = messageExtBatch.getBornHostBytes().array();
+            final byte[] storeHostData = messageExtBatch.getStoreHostBytes().array();
+
+            final byte[] batchBody = messageExtBatch.getBody();
+            final ByteBuffer messagesByteBuff = ByteBuffer.wrap(batchBody);
+            int totalMsgLen = 0;
+            while (messagesByteBuff.hasRemaining()) {
+                // Broker已经校验过格式，这里防止截断的Body抛出BufferUnderflowException
+                if (messagesByteBuff.remaining() < 4 * 5 + 2) {
+                    log.warn("putMessages message header truncated. remaining={}", messagesByteBuff.remaining());
+                    return AppendMessageStatus.MESSAGE_SIZE_EXCEEDED;
+                }
+                // 1 TOTALSIZE
+                messagesByteBuff.getInt();
+                // 2 MAGICCODE
+                messagesByteBuff.getInt();
+                // 3 BODYCRC
+                messagesByteBuff.getInt();
+                // 4 FLAG
+                final int flag = messagesByteBuff.getInt();
+                // 5 BODY
+                final int bodyLen = messagesByteBuff.getInt();
+                final int bodyPos = messagesByteBuff.position();
+                if (bodyLen < 0 || bodyLen > messagesByteBuff.remaining() - 2) {
+                    log.warn("putMessages message body length illegal. bodyLen={}", bodyLen);
+                    return AppendMessageStatus.MESSAGE_SIZE_EXCEEDED;
+                }
+                final int bodyCrc = UtilAll.crc32(batchBody, bodyPos, bodyLen);
+                messagesByteBuff.position(bodyPos + bodyLen);
+                // 6 PROPERTIES
+                final short propertiesLen = messagesByteBuff.getShort();
+                final int propertiesPos = messagesByteBuff.position();
+                if (propertiesLen < 0 || propertiesLen > messagesByteBuff.remaining()) {
+                    log.warn("putMessages message properties length illegal. propertiesLen={}", propertiesLen);
+                    return AppendMessageStatus.PROPERTIES_SIZE_EXCEEDED;
+                }
+                messagesByteBuff.position(propertiesPos + propertiesLen);
+
+                final int msgLen = calMsgLength(bodyLen, topicLength, propertiesLen);
+                totalMsgLen += msgLen;
+                // Exceeds the maximum message
+                if (totalMsgLen > this.maxMessageSize) {
+                    CommitLog.log.warn("message batch size exceeded, msg total size: " + totalMsgLen + ", maxMessageSize: "
+                            + this.maxMessageSize);
+                    return AppendMessageStatus.MESSAGE_SIZE_EXCEEDED;
+                }
+
+                // 1 TOTALSIZE
+                this.encoderBuffer.putInt(msgLen);
+                // 2 MAGICCODE
+                this.encoderBuffer.putInt(CommitLog.MessageMagicCode);
+                // 3 BODYCRC
+                this.encoderBuffer.putInt(bodyCrc);
+                // 4 QUEUEID
+                this.encoderBuffer.putInt(messageExtBatch.getQueueId());
+                // 5 FLAG
+                this.encoderBuffer.putInt(flag);
+                // 6 QUEUEOFFSET, filled in lock
+                this.encoderBuffer.putLong(0);
+                // 7 PHYSICALOFFSET, filled in lock
+                this.encoderBuffer.putLong(0);
+                // 8 SYSFLAG
+                this.encoderBuffer.putInt(messageExtBatch.getSysFlag());
+                // 9 BORNTIMESTAMP
+                this.encoderBuffer.putLong(messageExtBatch.getBornTimestamp());
+                // 10 BORNHOST
+                this.encoderBuffer.put(bornHostData);
+                // 11 STORETIMESTAMP, filled in lock
+                this.encoderBuffer.putLong(0);
+                // 12 STOREHOSTADDRESS
+                this.encoderBuffer.put(storeHostData);
+                // 13 RECONSUMETIMES
+                this.encoderBuffer.putInt(messageExtBatch.getReconsumeTimes());
+                // 14 Prepared Transaction Offset, batch does not support transaction
+                this.encoderBuffer.putLong(0);
+                // 15 BODY
+                this.encoderBuffer.putInt(bodyLen);
+                if (bodyLen > 0)
+                    this.encoderBuffer.put(batchBody, bodyPos, bodyLen);
+                // 16 TOPIC
+                this.encoderBuffer.put((byte) topicLength);
+                this.encoderBuffer.put(topicData);
+                // 17 PROPERTIES
+                this.encoderBuffer.putShort(propertiesLen);
+                if (propertiesLen > 0)
+                    this.encoderBuffer.put(batchBody, propertiesPos, propertiesLen);
+            }
+
+            this.encoderBuffer.flip();
+            return AppendMessageStatus.PUT_OK;
+        }
+
+
+        public String createMessageId(final ByteBuffer storeHost, final long wroteOffset) {
+            return MessageDecoder.createMessageId(this.msgIdMemory, storeHost, wroteOffset);
+        }
+
+
+        /**
+         * 批量消息的ID，按写入顺序用逗号分隔
+         */
+        public String createBatchMessageIds(final ByteBuffer storeHost, final long wroteOffset) {
+            StringBuilder msgIds = new StringBuilder();
+            for (int pos = 0; pos < this.encoderBuffer.limit(); pos += this.encoderBuffer.getInt(pos)) {
+                if (msgIds.length() > 0) {
+                    msgIds.append(',');
+                }
+                storeHost.rewind();
+                msgIds.append(MessageDecoder.createMessageId(this.msgIdMemory, storeHost, wroteOffset + pos));
+            }
+            return msgIds.toString();
+        }
+
+
+        public ByteBuffer getEncoderBuffer() {
+            return encoderBuffer;
+        }
+
+
+        public String getTopicQueueKey() {
+            return topicQueueKey;
+        }
+    }
+
+    /**
+     * 在锁内执行，消息已经由当前线程的MessageExtEncoder序列化完成
+     */
+    class DefaultAppendMessageCallback implements AppendMessageCallback {
+        // Blank record written at the end of file
+        private final ByteBuffer blankMemory = ByteBuffer.allocate(END_FILE_MIN_BLANK_LENGTH);
+
+
         /**
          * 写消息
          *
@@ -1035,6 +1811,9 @@ public class CommitLog {
         public AppendMessageResult doAppend(final long fileFromOffset, final ByteBuffer byteBuffer, final int maxBlank, final Object msg) {
             // STORETIMESTAMP + STOREHOSTADDRESS + OFFSET <br>
             MessageExtBrokerInner msgInner = (MessageExtBrokerInner) msg;
+            MessageExtEncoder encoder = CommitLog.this.putMessageThreadLocal.get();
+            ByteBuffer encoded = encoder.getEncoderBuffer();
+            final int msgLen = encoded.limit();
 
             /**
              * 物理Offset
@@ -1042,17 +1821,11 @@ public class CommitLog {
             // PHY OFFSET
             long wroteOffset = fileFromOffset + byteBuffer.position();
 
-            /**
-             * 创建消息ID
-             * 注意：对于消费失败重新发回给Broker的消息，它的消息ID也是重新创建的
-             */
-            String msgId = MessageDecoder.createMessageId(this.msgIdMemory, msgInner.getStoreHostBytes(), wroteOffset);
-
             /**
              * ConsumerQueue信息
              */
             // Record ConsumeQueue information
-            String key = msgInner.getTopic() + "-" + msgInner.getQueueId();
+            String key = encoder.getTopicQueueKey();
             Long queueOffset = CommitLog.this.topicQueueTable.get(key);
 
             if (null == queueOffset) {
@@ -1075,44 +1848,13 @@ public class CommitLog {
                     break;
             }
 
-            /**
-             * 序列化消息
-             * Serialize message
-             */
-            final byte[] propertiesData =
-                    msgInner.getPropertiesString() == null ? null : msgInner.getPropertiesString().getBytes(MessageDecoder.CHARSET_UTF8);
-            if (propertiesData.length > Short.MAX_VALUE) {
-                log.warn("putMessage message properties length too long. length={}", propertiesData.length);
-                return new AppendMessageResult(AppendMessageStatus.PROPERTIES_SIZE_EXCEEDED);
-            }
-
-            // 消息属性长度
-            final short propertiesLength = propertiesData == null ? 0 : (short) propertiesData.length;
-
-            final byte[] topicData = msgInner.getTopic().getBytes(MessageDecoder.CHARSET_UTF8);
-
-            //Topic长度
-            final int topicLength = topicData == null ? 0 : topicData.length;
-            //消息内容长度
-            final int bodyLength = msgInner.getBody() == null ? 0 : msgInner.getBody().length;
-
-            // 消息总长度
-            final int msgLen = calMsgLength(bodyLength, topicLength, propertiesLength);
-
-            // Exceeds the maximum message
-            if (msgLen > this.maxMessageSize) {
-                CommitLog.log.warn("message size exceeded, msg total size: " + msgLen + ", msg body size: " + bodyLength
-                        + ", maxMessageSize: " + this.maxMessageSize);
-                return new AppendMessageResult(AppendMessageStatus.MESSAGE_SIZE_EXCEEDED);
-            }
-
             // Determines whether there is sufficient free space
             if ((msgLen + END_FILE_MIN_BLANK_LENGTH) > maxBlank) {
-                this.resetMsgStoreItemMemory(maxBlank);
+                this.blankMemory.clear();
                 // 1 TOTALSIZE
-                this.msgStoreItemMemory.putInt(maxBlank);
+                this.blankMemory.putInt(maxBlank);
                 // 2 MAGICCODE
-                this.msgStoreItemMemory.putInt(CommitLog.BlankMagicCode);
+                this.blankMemory.putInt(CommitLog.BlankMagicCode);
                 // 3 The remaining space may be any value
                 //
 
@@ -1120,63 +1862,28 @@ public class CommitLog {
                  * 数据写入commitlog在内存中的byteBuffer
                  */
                 // Here the length of the specially set maxBlank
-                byteBuffer.put(this.msgStoreItemMemory.array(), 0, maxBlank);
+                byteBuffer.put(this.blankMemory.array(), 0, END_FILE_MIN_BLANK_LENGTH);
 
-                return new AppendMessageResult(AppendMessageStatus.END_OF_FILE, wroteOffset, maxBlank, msgId, msgInner.getStoreTimestamp(),
+                return new AppendMessageResult(AppendMessageStatus.END_OF_FILE, wroteOffset, maxBlank, null, msgInner.getStoreTimestamp(),
                         queueOffset);
             }
 
-            // Initialization of storage space
-            this.resetMsgStoreItemMemory(msgLen);
-            // 1 TOTALSIZE
-            this.msgStoreItemMemory.putInt(msgLen);
-            // 2 MAGICCODE
-            this.msgStoreItemMemory.putInt(CommitLog.MessageMagicCode);
-            // 3 BODYCRC
-            this.msgStoreItemMemory.putInt(msgInner.getBodyCRC());
-            // 4 QUEUEID
-            this.msgStoreItemMemory.putInt(msgInner.getQueueId());
-            // 5 FLAG
-            this.msgStoreItemMemory.putInt(msgInner.getFlag());
             // 6 QUEUEOFFSET
-            this.msgStoreItemMemory.putLong(queueOffset);
+            encoded.putLong(QueueOffsetPostion, queueOffset);
             // 7 PHYSICALOFFSET
-            this.msgStoreItemMemory.putLong(fileFromOffset + byteBuffer.position());
-            // 8 SYSFLAG
-            this.msgStoreItemMemory.putInt(msgInner.getSysFlag());
-            // 9 BORNTIMESTAMP
-            this.msgStoreItemMemory.putLong(msgInner.getBornTimestamp());
-            // 10 BORNHOST
-            this.msgStoreItemMemory.put(msgInner.getBornHostBytes());
+            encoded.putLong(PhysicOffsetPostion, wroteOffset);
             // 11 STORETIMESTAMP
-            this.msgStoreItemMemory.putLong(msgInner.getStoreTimestamp());
-            // 12 STOREHOSTADDRESS
-            this.msgStoreItemMemory.put(msgInner.getStoreHostBytes());
-            // 13 RECONSUMETIMES
-            this.msgStoreItemMemory.putInt(msgInner.getReconsumeTimes());
-            // 14 Prepared Transaction Offset
-            this.msgStoreItemMemory.putLong(msgInner.getPreparedTransactionOffset());
-            // 15 BODY
-            this.msgStoreItemMemory.putInt(bodyLength);
-            if (bodyLength > 0)
-                this.msgStoreItemMemory.put(msgInner.getBody());
-            // 16 TOPIC
-            this.msgStoreItemMemory.put((byte) topicLength);
-            this.msgStoreItemMemory.put(topicData);
-            // 17 PROPERTIES
-            this.msgStoreItemMemory.putShort(propertiesLength);
-            if (propertiesLength > 0)
-                this.msgStoreItemMemory.put(propertiesData);
+            encoded.putLong(StoreTimestampPostion, msgInner.getStoreTimestamp());
 
             /**
              * 数据写入commitlog在内存中的byteBuffer
              */
             // Write messages to the queue buffer
-            byteBuffer.put(this.msgStoreItemMemory.array(), 0, msgLen);
+            byteBuffer.put(encoded.array(), 0, msgLen);
 
 
             AppendMessageResult result =
-                    new AppendMessageResult(AppendMessageStatus.PUT_OK, wroteOffset, msgLen, msgId, msgInner.getStoreTimestamp(),
+                    new AppendMessageResult(AppendMessageStatus.PUT_OK, wroteOffset, msgLen, null, msgInner.getStoreTimestamp(),
                             queueOffset);
 
             switch (tranType) {
@@ -1199,17 +1906,66 @@ public class CommitLog {
         }
 
 
-        private void resetMsgStoreItemMemory(final int length) {
-            this.msgStoreItemMemory.flip();
-            this.msgStoreItemMemory.limit(length);
+        public AppendMessageResult doAppend(final long fileFromOffset, final ByteBuffer byteBuffer, final int maxBlank,
+                                            final MessageExtBatch messageExtBatch) {
+            MessageExtEncoder encoder = CommitLog.this.putMessageThreadLocal.get();
+            ByteBuffer encoded = encoder.getEncoderBuffer();
+            final int totalMsgLen = encoded.limit();
+
+            // PHY OFFSET
+            long wroteOffset = fileFromOffset + byteBuffer.position();
+
+            String key = encoder.getTopicQueueKey();
+            Long queueOffset = CommitLog.this.topicQueueTable.get(key);
+            if (null == queueOffset) {
+                queueOffset = 0L;
+                CommitLog.this.topicQueueTable.put(key, queueOffset);
+            }
+            final long beginQueueOffset = queueOffset;
+
+            // 整批消息放不下时在文件末尾写入空白，整批写到下一个文件
+            if ((totalMsgLen + END_FILE_MIN_BLANK_LENGTH) > maxBlank) {
+                this.blankMemory.clear();
+                // 1 TOTALSIZE
+                this.blankMemory.putInt(maxBlank);
+                // 2 MAGICCODE
+                this.blankMemory.putInt(CommitLog.BlankMagicCode);
+                byteBuffer.put(this.blankMemory.array(), 0, END_FILE_MIN_BLANK_LENGTH);
+                return new AppendMessageResult(AppendMessageStatus.END_OF_FILE, wroteOffset, maxBlank, null,
+                        messageExtBatch.getStoreTimestamp(), beginQueueOffset);
+            }
+
+            int msgNum = 0;
+            for (int pos = 0; pos < totalMsgLen; pos += encoded.getInt(pos)) {
+                // 6 QUEUEOFFSET
+                encoded.putLong(pos + QueueOffsetPostion, queueOffset++);
+                // 7 PHYSICALOFFSET
+                encoded.putLong(pos + PhysicOffsetPostion, wroteOffset + pos);
+                // 11 STORETIMESTAMP
+                encoded.putLong(pos + StoreTimestampPostion, messageExtBatch.getStoreTimestamp());
+                msgNum++;
+            }
+
+            // Write messages to the queue buffer
+            byteBuffer.put(encoded.array(), 0, totalMsgLen);
+
+            AppendMessageResult result = new AppendMessageResult(AppendMessageStatus.PUT_OK, wroteOffset, totalMsgLen, null,
+                    messageExtBatch.getStoreTimestamp(), beginQueueOffset);
+            result.setMsgNum(msgNum);
+            CommitLog.this.topicQueueTable.put(key, queueOffset);
+
+            return result;
         }
     }
 
 
     public void removeQueurFromTopicQueueTable(final String topic, final int queueId) {
         String key = topic + "-" + queueId;
-        synchronized (this) {
+        this.putMessageLock.lock();
+        try {
             this.topicQueueTable.remove(key);
+        } finally {
+            this.putMessageLock.unlock();
         }
 
         log.info("removeQueurFromTopicQueueTable OK Topic: {} QueueId: {}", topic, queueId);
@@ -17,6 +17,7 @@
 package com.alibaba.rocketmq.store;
 
 import com.alibaba.rocketmq.common.constant.LoggerName;
+import com.alibaba.rocketmq.store.config.StorePathConfigHelper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -39,6 +40,16 @@ public class ConsumeQueue {
      */
     private final MapedFileQueue mapedFileQueue;
 
+    /**
+     * 存储时间索引，未开启或离线工具加载时为null
+     */
+    private final ConsumeQueueTimeIndex timeIndex;
+
+    /**
+     * 标签Bloom过滤器，未开启或离线工具加载时为null
+     */
+    private final ConsumeQueueTagBloom tagBloom;
+
 
     private final String topic;
     private final int queueId;
@@ -52,6 +63,8 @@ public class ConsumeQueue {
 
     private long maxPhysicOffset = -1;
     private volatile long minLogicOffset = 0;
+    // 恢复时时间索引落后的区间[from, to)，由后台补齐，没有时为null
+    private long[] timeIndexRebuildRange;
 
 
     /**
@@ -82,6 +95,32 @@ public class ConsumeQueue {
 
         this.mapedFileQueue = new MapedFileQueue(queueDir, mapedFileSize, null);
 
+        if (defaultMessageStore != null
+                && defaultMessageStore.getMessageStoreConfig().isConsumeQueueTimeIndexEnable()) {
+            this.timeIndex = new ConsumeQueueTimeIndex(//
+                    StorePathConfigHelper.getStorePathConsumeQueueTimeIndex(defaultMessageStore
+                            .getMessageStoreConfig().getStorePathRootDir()),//
+                    topic,//
+                    queueId,//
+                    mapedFileSize);
+        } else {
+            this.timeIndex = null;
+        }
+
+        if (defaultMessageStore != null
+                && defaultMessageStore.getMessageStoreConfig().isConsumeQueueTagBloomEnable()
+                && defaultMessageStore.getMessageStoreConfig().getConsumeQueueTagBloomBlockUnits() > 0) {
+            this.tagBloom = new ConsumeQueueTagBloom(//
+                    StorePathConfigHelper.getStorePathConsumeQueueTagBloom(defaultMessageStore
+                            .getMessageStoreConfig().getStorePathRootDir()),//
+                    topic,//
+                    queueId,//
+                    mapedFileSize,//
+                    defaultMessageStore.getMessageStoreConfig().getConsumeQueueTagBloomBlockUnits());
+        } else {
+            this.tagBloom = null;
+        }
+
         this.byteBufferIndex = ByteBuffer.allocate(CQStoreUnitSize);
     }
 
@@ -89,6 +128,13 @@ public class ConsumeQueue {
     public boolean load() {
         boolean result = this.mapedFileQueue.load();
         log.info("load consume queue " + this.topic + "-" + this.queueId + " " + (result ? "OK" : "Failed"));
+        if (result && this.timeIndex != null && !this.timeIndex.load()) {
+            // 时间索引只用于加速查找，加载失败时回退到读CommitLog
+            log.warn("load consume queue time index " + this.topic + "-" + this.queueId + " Failed");
+        }
+        if (result && this.tagBloom != null && !this.tagBloom.load()) {
+            log.warn("load consume queue tag bloom " + this.topic + "-" + this.queueId + " Failed");
+        }
         return result;
     }
 
@@ -143,11 +189,207 @@ public class ConsumeQueue {
 
             processOffset += mapedFileOffset;
             this.mapedFileQueue.truncateDirtyFiles(processOffset);
+            if (this.timeIndex != null) {
+                this.timeIndex.truncate(processOffset);
+            }
+        } else if (this.timeIndex != null) {
+            this.timeIndex.truncate(0);
+        }
+
+        this.recoverTimeIndex();
+        this.recoverTagBloom();
+    }
+
+
+    /**
+     * 时间索引落后于ConsumeQueue时（刚开启时间索引，或者宕机丢失了未刷盘的部分），先用0补齐，
+     * 保证之后的写入与ConsumeQueue对齐；逐条读CommitLog的补齐留给后台{@link #rebuildTimeIndex()}，
+     * 补齐前这些位置的查询回退到CommitLog，不阻塞启动
+     */
+    private void recoverTimeIndex() {
+        if (null == this.timeIndex) {
+            return;
+        }
+
+        final long minIndex = this.mapedFileQueue.getMinOffset() / CQStoreUnitSize;
+        final long maxIndex = this.getMaxOffsetInQuque();
+        this.timeIndex.resetIfBefore(minIndex);
+
+        final long index = Math.max(this.timeIndex.getMaxIndex(), minIndex);
+        if (index >= maxIndex) {
+            return;
+        }
+
+        // 先写起始位置，索引为空时第一个文件从这里开始
+        if (!this.timeIndex.putStoreTimestamp(index, 0) || !this.timeIndex.putStoreTimestamp(maxIndex - 1, 0)) {
+            log.warn("pad time index of {}-{} failed, from {} to {}", this.topic, this.queueId, index, maxIndex);
+            return;
+        }
+
+        synchronized (this) {
+            long from = index;
+            if (this.timeIndexRebuildRange != null) {
+                from = Math.min(from, this.timeIndexRebuildRange[0]);
+            }
+            this.timeIndexRebuildRange = new long[]{from, maxIndex};
+        }
+        log.info("time index of {}-{} lags from {} to {}, rebuild it in background", this.topic, this.queueId, index,
+                maxIndex);
+    }
+
+
+    public synchronized boolean isTimeIndexRebuildPending() {
+        return this.timeIndexRebuildRange != null;
+    }
+
+
+    /**
+     * 按ConsumeQueue中的物理位置从CommitLog读取存储时间，补齐恢复时落后的时间索引。
+     * 线程被中断或队列被截断时提前结束
+     */
+    public void rebuildTimeIndex() {
+        final long[] range;
+        synchronized (this) {
+            range = this.timeIndexRebuildRange;
+            this.timeIndexRebuildRange = null;
         }
+        if (null == range) {
+            return;
+        }
+
+        long index = Math.max(range[0], this.getMinOffsetInQuque());
+        final long maxIndex = Math.min(range[1], this.getMaxOffsetInQuque());
+        final long beginTime = System.currentTimeMillis();
+        while (index < maxIndex && !Thread.currentThread().isInterrupted()) {
+            MapedFile mapedFile = this.mapedFileQueue.findMapedFileByOffset(index * CQStoreUnitSize);
+            if (null == mapedFile) {
+                break;
+            }
+
+            SelectMapedBufferResult result =
+                    mapedFile.selectMapedBuffer((int) (index * CQStoreUnitSize % this.mapedFileSize));
+            if (null == result) {
+                break;
+            }
+
+            try {
+                for (int i = 0; i < result.getSize() && index < maxIndex
+                        && !Thread.currentThread().isInterrupted(); i += CQStoreUnitSize, index++) {
+                    long phyOffset = result.getByteBuffer().getLong();
+                    int size = result.getByteBuffer().getInt();
+                    result.getByteBuffer().getLong();
+                    // CommitLog已删除的位置保持为0，查询时回退
+                    long storeTimestamp = this.defaultMessageStore.getCommitLog().pickupStoretimestamp(phyOffset, size);
+                    if (storeTimestamp > 0 && !this.timeIndex.fillStoreTimestamp(index, storeTimestamp)) {
+                        log.warn("rebuild time index of {}-{} stopped at {}", this.topic, this.queueId, index);
+                        return;
+                    }
+                }
+            } finally {
+                result.release();
+            }
+        }
+
+        log.info("rebuild time index of {}-{} from {} to {} done at {}, cost {}ms", this.topic, this.queueId, range[0],
+                range[1], index, System.currentTimeMillis() - beginTime);
     }
 
+    /**
+     * 过滤器文件晚于ConsumeQueue刷盘，操作系统宕机后最后一个文件的过滤器可能缺位，造成误跳过。
+     * 之前的过滤器文件在写下一个文件的第一条记录前已经刷盘，所以只用ConsumeQueue中的tagsCode
+     * 重建最后一条记录所在文件的全部过滤器
+     */
+    private void recoverTagBloom() {
+        if (null == this.tagBloom) {
+            return;
+        }
+
+        final int unitsPerFile = this.mapedFileSize / CQStoreUnitSize;
+        final long maxIndex = this.getMaxOffsetInQuque();
+        final long fileStartIndex = maxIndex > 0 ? (maxIndex - 1) - (maxIndex - 1) % unitsPerFile : 0;
+        this.tagBloom.recover(fileStartIndex);
+
+        if (fileStartIndex < maxIndex) {
+            MapedFile mapedFile = this.mapedFileQueue.findMapedFileByOffset(fileStartIndex * CQStoreUnitSize);
+            if (null == mapedFile) {
+                return;
+            }
+
+            SelectMapedBufferResult result =
+                    mapedFile.selectMapedBuffer((int) (fileStartIndex * CQStoreUnitSize % this.mapedFileSize));
+            if (result != null) {
+                try {
+                    for (long index = fileStartIndex; index < maxIndex; index++) {
+                        result.getByteBuffer().getLong();
+                        result.getByteBuffer().getInt();
+                        long tagsCode = result.getByteBuffer().getLong();
+                        this.tagBloom.putTagsCode(index, tagsCode);
+                    }
+                } finally {
+                    result.release();
+                }
+            }
+        }
+    }
+
+
+    /**
+     * 有时间索引时用每个文件最后一条消息的存储时间定位文件，否则按文件修改时间
+     */
+    private MapedFile findMapedFileByTime(final long timestamp) {
+        if (null == this.timeIndex) {
+            return this.mapedFileQueue.getMapedFileByTime(timestamp);
+        }
+
+        Object[] mfs = this.mapedFileQueue.copyMapedFiles(0);
+        if (null == mfs) {
+            return null;
+        }
+
+        for (Object mf : mfs) {
+            MapedFile mapedFile = (MapedFile) mf;
+            long lastIndex = (mapedFile.getFileFromOffset() + mapedFile.getWrotePostion()) / CQStoreUnitSize - 1;
+            long lastStoreTime = lastIndex >= 0 ? this.timeIndex.getStoreTimestamp(lastIndex) : 0;
+            if (lastStoreTime <= 0 && lastIndex >= 0) {
+                // 升级前写入的文件没有时间索引，每个文件只读一次CommitLog
+                lastStoreTime = this.pickupStoretimestampFromCommitLog(mapedFile, lastIndex);
+            }
+            if (lastStoreTime <= 0) {
+                lastStoreTime = mapedFile.getLastModifiedTimestamp();
+            }
+
+            if (lastStoreTime >= timestamp) {
+                return mapedFile;
+            }
+        }
+
+        return (MapedFile) mfs[mfs.length - 1];
+    }
+
+
+    private long pickupStoretimestampFromCommitLog(final MapedFile mapedFile, final long index) {
+        int pos = (int) (index * CQStoreUnitSize - mapedFile.getFileFromOffset());
+        if (pos < 0) {
+            return -1;
+        }
+
+        SelectMapedBufferResult sbr = mapedFile.selectMapedBuffer(pos, CQStoreUnitSize);
+        if (sbr != null) {
+            try {
+                long phyOffset = sbr.getByteBuffer().getLong();
+                int size = sbr.getByteBuffer().getInt();
+                return this.defaultMessageStore.getCommitLog().pickupStoretimestamp(phyOffset, size);
+            } finally {
+                sbr.release();
+            }
+        }
+
+        return -1;
+    }
+
+
     public long getOffsetInQueueByTime(final long timestamp) {
-        MapedFile mapedFile = this.mapedFileQueue.getMapedFileByTime(timestamp);
+        MapedFile mapedFile = this.findMapedFileByTime(timestamp);
         if (mapedFile != null) {
             long offset = 0;
             int low =
@@ -159,8 +401,11 @@ public class ConsumeQueue {
             long leftIndexValue = -1L, rightIndexValue = -1L;
 
             SelectMapedBufferResult sbr = mapedFile.selectMapedBuffer(0);
+            SelectMapedBufferResult timeSbr =
+                    this.timeIndex != null ? this.timeIndex.selectIndexBuffer(mapedFile.getFileFromOffset()) : null;
             if (null != sbr) {
                 ByteBuffer byteBuffer = sbr.getByteBuffer();
+                ByteBuffer timeBuffer = timeSbr != null ? timeSbr.getByteBuffer() : null;
                 high = byteBuffer.limit() - CQStoreUnitSize;
                 try {
                     while (high >= low) {
@@ -169,8 +414,16 @@ public class ConsumeQueue {
                         long phyOffset = byteBuffer.getLong();
                         int size = byteBuffer.getInt();
 
-                        long storeTime =
-                                this.defaultMessageStore.getCommitLog().pickupStoretimestamp(phyOffset, size);
+                        long storeTime = 0;
+                        int timePos = midOffset / CQStoreUnitSize * ConsumeQueueTimeIndex.UnitSize;
+                        if (timeBuffer != null && timePos + ConsumeQueueTimeIndex.UnitSize <= timeBuffer.limit()) {
+                            storeTime = timeBuffer.getLong(timePos);
+                        }
+
+                        // 时间索引缺失时才读CommitLog
+                        if (storeTime <= 0) {
+                            storeTime = this.defaultMessageStore.getCommitLog().pickupStoretimestamp(phyOffset, size);
+                        }
                         if (storeTime < 0) {
                             return 0;
                         } else if (storeTime == timestamp) {
@@ -204,7 +457,12 @@ public class ConsumeQueue {
                     return (mapedFile.getFileFromOffset() + offset) / CQStoreUnitSize;
                 } finally {
                     sbr.release();
+                    if (timeSbr != null) {
+                        timeSbr.release();
+                    }
                 }
+            } else if (timeSbr != null) {
+                timeSbr.release();
             }
         }
 
@@ -212,6 +470,16 @@ public class ConsumeQueue {
     }
 
     public void truncateDirtyLogicFiles(long phyOffet) {
+        this.truncateDirtyLogicFiles0(phyOffet);
+        if (this.timeIndex != null) {
+            this.timeIndex.truncate(this.mapedFileQueue.getMaxOffset());
+        }
+        this.recoverTimeIndex();
+        this.recoverTagBloom();
+    }
+
+
+    private void truncateDirtyLogicFiles0(long phyOffet) {
         int logicFileSize = this.mapedFileSize;
 
         this.maxPhysicOffset = phyOffet - 1;
@@ -293,7 +561,14 @@ public class ConsumeQueue {
 
 
     public boolean commit(final int flushLeastPages) {
-        return this.mapedFileQueue.commit(flushLeastPages);
+        boolean result = this.mapedFileQueue.commit(flushLeastPages);
+        if (this.timeIndex != null) {
+            result = this.timeIndex.commit(flushLeastPages) && result;
+        }
+        if (this.tagBloom != null) {
+            this.tagBloom.commit();
+        }
+        return result;
     }
 
 
@@ -307,6 +582,18 @@ public class ConsumeQueue {
 
         int cnt = this.mapedFileQueue.deleteExpiredFileByOffset(offset, CQStoreUnitSize);
         this.correctMinOffset(offset);
+        if (this.timeIndex != null) {
+            MapedFile firstMapedFile = this.mapedFileQueue.getFirstMapedFileOnLock();
+            if (firstMapedFile != null) {
+                this.timeIndex.deleteExpiredFile(firstMapedFile.getFileFromOffset());
+            }
+        }
+        if (this.tagBloom != null) {
+            MapedFile firstMapedFile = this.mapedFileQueue.getFirstMapedFileOnLock();
+            if (firstMapedFile != null) {
+                this.tagBloom.deleteExpiredFile(firstMapedFile.getFileFromOffset());
+            }
+        }
         return cnt;
     }
 
@@ -348,7 +635,7 @@ public class ConsumeQueue {
         final int MaxRetries = 30;
         boolean canWrite = this.defaultMessageStore.getRunningFlags().isWriteable();
         for (int i = 0; i < MaxRetries && canWrite; i++) {
-            boolean result = this.putMessagePostionInfo(offset, size, tagsCode, logicOffset);
+            boolean result = this.putMessagePostionInfo(offset, size, tagsCode, storeTimestamp, logicOffset);
             if (result) {
                 this.defaultMessageStore.getStoreCheckpoint().setLogicsMsgTimestamp(storeTimestamp);
                 return;
@@ -370,7 +657,7 @@ public class ConsumeQueue {
 
 
     private boolean putMessagePostionInfo(final long offset, final int size, final long tagsCode,
-                                          final long cqOffset) {
+                                          final long storeTimestamp, final long cqOffset) {
         if (offset <= this.maxPhysicOffset) {
             return true;
         }
@@ -407,8 +694,17 @@ public class ConsumeQueue {
                 }
             }
 
+            // 过滤器先于记录写入，拉消息时看到的记录一定已经在过滤器中
+            if (this.tagBloom != null) {
+                this.tagBloom.putTagsCode(cqOffset, tagsCode);
+            }
+
             this.maxPhysicOffset = offset;
-            return mapedFile.appendMessage(this.byteBufferIndex.array());
+            boolean result = mapedFile.appendMessage(this.byteBufferIndex.array());
+            if (result && this.timeIndex != null) {
+                this.timeIndex.putStoreTimestamp(cqOffset, storeTimestamp);
+            }
+            return result;
         }
 
         return false;
@@ -470,6 +766,31 @@ public class ConsumeQueue {
         this.maxPhysicOffset = -1;
         this.minLogicOffset = 0;
         this.mapedFileQueue.destroy();
+        if (this.timeIndex != null) {
+            this.timeIndex.destroy();
+        }
+        if (this.tagBloom != null) {
+            this.tagBloom.destroy();
+        }
+    }
+
+    /**
+     * 从时间索引读取消息存储时间，不访问CommitLog
+     *
+     * @return 未开启时间索引或该位置时间未知时返回-1
+     */
+    public long getStoreTimestampInQueue(final long index) {
+        if (this.timeIndex != null && index * CQStoreUnitSize >= this.minLogicOffset) {
+            long storeTime = this.timeIndex.getStoreTimestamp(index);
+            if (storeTime > 0) {
+                return storeTime;
+            }
+        }
+        return -1;
+    }
+
+    public ConsumeQueueTagBloom getTagBloom() {
+        return tagBloom;
     }
 
     public long getMinLogicOffset() {
@@ -0,0 +1,302 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store;
+
+import com.alibaba.rocketmq.common.constant.LoggerName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Set;
+
+
+/**
+ * ConsumeQueue的标签Bloom过滤器，每blockUnits条记录对应一个BloomBytes字节的过滤器。<br>
+ * 文件与ConsumeQueue文件一一对齐，Broker端按标签过滤时可以整块跳过不可能匹配的记录。<br>
+ * 过滤器先于ConsumeQueue记录写入，读到的记录一定已经在过滤器中；全0的过滤器表示未知，必须逐条扫描。
+ */
+public class ConsumeQueueTagBloom {
+    public static final int BloomBytes = 16;
+    private static final int BloomBits = BloomBytes * 8;
+    private static final int HashCount = 3;
+    private static final Logger log = LoggerFactory.getLogger(LoggerName.StoreLoggerName);
+    private static final byte[] BlankBloom = new byte[BloomBytes];
+
+    private final MapedFileQueue mapedFileQueue;
+    private final int blockUnits;
+    private final int unitsPerFile;
+    private final int mapedFileSize;
+    private final int mapedFileSizeLogics;
+
+    /**
+     * 上次刷盘后修改过的文件，过滤器是原地修改的，不能依赖写位置判断是否需要刷盘
+     */
+    private volatile MapedFile dirtyMapedFile;
+    private volatile boolean modified = false;
+    // 过滤器落后ConsumeQueue超过一个文件后不再维护，直到重启恢复前都按不存在处理
+    private volatile boolean available = true;
+
+
+    /**
+     * @param storePath           过滤器存储根目录
+     * @param topic               Topic
+     * @param queueId             队列ID
+     * @param mapedFileSizeLogics 对应ConsumeQueue的文件大小
+     * @param blockUnits          每个过滤器覆盖的ConsumeQueue记录数
+     */
+    public ConsumeQueueTagBloom(final String storePath, final String topic, final int queueId,
+                                final int mapedFileSizeLogics, final int blockUnits) {
+        this.blockUnits = blockUnits;
+        this.mapedFileSizeLogics = mapedFileSizeLogics;
+        this.unitsPerFile = mapedFileSizeLogics / ConsumeQueue.CQStoreUnitSize;
+        this.mapedFileSize = (this.unitsPerFile + blockUnits - 1) / blockUnits * BloomBytes;
+
+        String queueDir = storePath//
+                + File.separator + topic//
+                + File.separator + queueId;//
+
+        this.mapedFileQueue = new MapedFileQueue(queueDir, this.mapedFileSize, null);
+    }
+
+
+    private static int bloomHash(final int tagsCode, final int i) {
+        int h2 = tagsCode * 0x9E3779B9;
+        h2 ^= h2 >>> 16;
+        int bit = (tagsCode + i * h2) % BloomBits;
+        return bit < 0 ? bit + BloomBits : bit;
+    }
+
+
+    /**
+     * @return 第index条ConsumeQueue记录所在过滤器的位置
+     */
+    private long toBloomOffset(final long index) {
+        long fileIndex = index / this.unitsPerFile;
+        long blockInFile = (index % this.unitsPerFile) / this.blockUnits;
+        return fileIndex * this.mapedFileSize + blockInFile * BloomBytes;
+    }
+
+
+    /**
+     * @return 第index条记录在所在块中的序号，块按ConsumeQueue文件对齐
+     */
+    public int offsetInBlock(final long index) {
+        return (int) (index % this.unitsPerFile % this.blockUnits);
+    }
+
+
+    public int getBlockUnits() {
+        return blockUnits;
+    }
+
+
+    public boolean load() {
+        return this.mapedFileQueue.load();
+    }
+
+
+    /**
+     * 截断到第index条记录所在文件的起始位置，之后的过滤器需要调用方用ConsumeQueue中的数据重建。
+     * 过滤器在该位置之前有缺失时全部删除，之前的ConsumeQueue文件按没有过滤器处理
+     *
+     * @param index ConsumeQueue文件的第一条记录
+     */
+    public void recover(final long index) {
+        final long bloomOffset = this.toBloomOffset(index);
+        final long maxOffset = this.mapedFileQueue.getMaxOffset();
+        if (maxOffset > 0 && maxOffset < bloomOffset) {
+            log.warn("tag bloom is behind consume queue, max: {} expect: {}, destroy it", maxOffset, bloomOffset);
+            this.mapedFileQueue.destroy();
+        } else {
+            this.mapedFileQueue.truncateDirtyFiles(bloomOffset);
+        }
+
+        this.dirtyMapedFile = null;
+        this.modified = false;
+        this.available = true;
+    }
+
+
+    /**
+     * 将第index条记录的tagsCode加入过滤器，必须在ConsumeQueue记录可见之前调用
+     */
+    public void putTagsCode(final long index, final long tagsCode) {
+        final long expectOffset = this.toBloomOffset(index);
+
+        MapedFile lastMapedFile = this.mapedFileQueue.getLastMapedFileWithLock();
+        if (lastMapedFile != null
+                && expectOffset < lastMapedFile.getFileFromOffset() + lastMapedFile.getWrotePostion()) {
+            // 块已经开始，原地置位；更早的文件只会在重放时出现，过滤器已经包含这些记录
+            if (expectOffset >= lastMapedFile.getFileFromOffset()) {
+                this.setBits(lastMapedFile, (int) (expectOffset - lastMapedFile.getFileFromOffset()), (int) tagsCode);
+            }
+            return;
+        }
+
+        while (true) {
+            MapedFile mapedFile = this.mapedFileQueue.getLastMapedFile(expectOffset);
+            if (null == mapedFile) {
+                return;
+            }
+
+            long currentOffset = mapedFile.getFileFromOffset() + mapedFile.getWrotePostion();
+            long fileTailOffset = mapedFile.getFileFromOffset() + this.mapedFileSize;
+            if (expectOffset < currentOffset) {
+                return;
+            }
+
+            if (expectOffset >= fileTailOffset + this.mapedFileSize) {
+                if (this.available) {
+                    this.available = false;
+                    log.warn("tag bloom is behind too much, file: {} expect: {} current: {}, disable it",
+                            mapedFile.getFileName(), expectOffset, currentOffset);
+                }
+                return;
+            }
+
+            // 中间缺失的块保持全0，读取时按未知处理
+            long until = Math.min(expectOffset, fileTailOffset);
+            for (long pos = currentOffset; pos < until; pos += BloomBytes) {
+                mapedFile.appendMessage(BlankBloom);
+            }
+
+            if (expectOffset < fileTailOffset) {
+                mapedFile.appendMessage(BlankBloom);
+                this.setBits(mapedFile, (int) (expectOffset - mapedFile.getFileFromOffset()), (int) tagsCode);
+                return;
+            }
+        }
+    }
+
+
+    private void setBits(final MapedFile mapedFile, final int pos, final int tagsCode) {
+        ByteBuffer byteBuffer = mapedFile.getMappedByteBuffer();
+        for (int i = 0; i < HashCount; i++) {
+            int bit = bloomHash(tagsCode, i);
+            int bytePos = pos + (bit >>> 3);
+            byteBuffer.put(bytePos, (byte) (byteBuffer.get(bytePos) | (1 << (bit & 7))));
+        }
+
+        MapedFile dirty = this.dirtyMapedFile;
+        if (dirty != mapedFile) {
+            // 切换文件时把上一个文件刷盘
+            if (dirty != null) {
+                this.force(dirty);
+            }
+            this.dirtyMapedFile = mapedFile;
+        }
+        this.modified = true;
+    }
+
+
+    /**
+     * 获取与ConsumeQueue文件对齐的过滤器文件内容
+     *
+     * @param logicFileFromOffset ConsumeQueue文件的起始位置
+     * @return 不存在或者过滤器已经不可用时返回null
+     */
+    public SelectMapedBufferResult selectBloomBuffer(final long logicFileFromOffset) {
+        if (!this.available) {
+            return null;
+        }
+
+        final long bloomOffset = logicFileFromOffset / this.mapedFileSizeLogics * this.mapedFileSize;
+        MapedFile firstMapedFile = this.mapedFileQueue.getFirstMapedFileOnLock();
+        if (null == firstMapedFile || bloomOffset < firstMapedFile.getFileFromOffset()
+                || bloomOffset >= this.mapedFileQueue.getMaxOffset()) {
+            return null;
+        }
+
+        MapedFile mapedFile = this.mapedFileQueue.findMapedFileByOffset(bloomOffset);
+        if (mapedFile != null && mapedFile.getFileFromOffset() == bloomOffset) {
+            return mapedFile.selectMapedBuffer(0);
+        }
+
+        return null;
+    }
+
+
+    /**
+     * 判断第index条记录所在块是否可能包含codeSet中的标签
+     *
+     * @param bloomBuffer selectBloomBuffer返回的内容，必须与index在同一个ConsumeQueue文件
+     * @return false表示整块都不匹配，可以跳过
+     */
+    public boolean mayContain(final ByteBuffer bloomBuffer, final long index, final Set<Integer> codeSet) {
+        final int pos = (int) ((index % this.unitsPerFile) / this.blockUnits * BloomBytes);
+        if (pos + BloomBytes > bloomBuffer.limit()) {
+            return true;
+        }
+
+        boolean blank = true;
+        for (int i = 0; i < BloomBytes && blank; i++) {
+            blank = bloomBuffer.get(pos + i) == 0;
+        }
+        if (blank) {
+            return true;
+        }
+
+        for (Integer code : codeSet) {
+            boolean hit = true;
+            for (int i = 0; i < HashCount && hit; i++) {
+                int bit = bloomHash(code, i);
+                hit = (bloomBuffer.get(pos + (bit >>> 3)) & (1 << (bit & 7))) != 0;
+            }
+            if (hit) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
+    /**
+     * 删除ConsumeQueue最小文件之前的过滤器文件
+     */
+    public int deleteExpiredFile(final long logicFileFromOffset) {
+        return this.mapedFileQueue.deleteFilesBeforeOffset(logicFileFromOffset / this.mapedFileSizeLogics
+                * this.mapedFileSize);
+    }
+
+
+    public void commit() {
+        MapedFile dirty = this.dirtyMapedFile;
+        if (this.modified && dirty != null) {
+            this.modified = false;
+            this.force(dirty);
+        }
+    }
+
+
+    private void force(final MapedFile mapedFile) {
+        if (mapedFile.hold()) {
+            try {
+                mapedFile.getMappedByteBuffer().force();
+            } finally {
+                mapedFile.release();
+            }
+        }
+    }
+
+
+    public void destroy() {
+        this.dirtyMapedFile = null;
+        this.mapedFileQueue.destroy();
+    }
+}
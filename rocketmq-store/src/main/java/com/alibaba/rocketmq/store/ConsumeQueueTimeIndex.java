@@ -0,0 +1,245 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store;
+
+import com.alibaba.rocketmq.common.constant.LoggerName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+
+/**
+ * ConsumeQueue的存储时间索引，与ConsumeQueue逐条对齐，每条8字节记录消息的storeTimestamp。<br>
+ * 第N条ConsumeQueue记录对应的时间位于N * UnitSize处，按时间查找队列位置时不必再随机读CommitLog。<br>
+ * 落后于ConsumeQueue的部分在启动恢复时先用0对齐，再由后台从CommitLog补齐；值为0表示该位置时间未知
+ * （尚未补齐、CommitLog已删除或写入失败），调用方需回退到CommitLog读取。
+ */
+public class ConsumeQueueTimeIndex {
+    public static final int UnitSize = 8;
+    private static final Logger log = LoggerFactory.getLogger(LoggerName.StoreLoggerName);
+    private static final byte[] BlankUnit = new byte[UnitSize];
+
+    private final MapedFileQueue mapedFileQueue;
+    private final int mapedFileSize;
+    private final ByteBuffer byteBufferUnit = ByteBuffer.allocate(UnitSize);
+
+
+    /**
+     * @param storePath            时间索引存储根目录
+     * @param topic                Topic
+     * @param queueId              队列ID
+     * @param mapedFileSizeLogics  对应ConsumeQueue的文件大小
+     */
+    public ConsumeQueueTimeIndex(final String storePath, final String topic, final int queueId,
+                                 final int mapedFileSizeLogics) {
+        this.mapedFileSize = mapedFileSizeLogics / ConsumeQueue.CQStoreUnitSize * UnitSize;
+
+        String queueDir = storePath//
+                + File.separator + topic//
+                + File.separator + queueId;//
+
+        this.mapedFileQueue = new MapedFileQueue(queueDir, this.mapedFileSize, null);
+    }
+
+
+    public static long toIndexOffset(final long logicOffset) {
+        return logicOffset / ConsumeQueue.CQStoreUnitSize * UnitSize;
+    }
+
+
+    public boolean load() {
+        return this.mapedFileQueue.load();
+    }
+
+
+    /**
+     * 与ConsumeQueue恢复或截断后的位置对齐
+     *
+     * @param logicOffset ConsumeQueue的字节位置
+     */
+    public void truncate(final long logicOffset) {
+        this.mapedFileQueue.truncateDirtyFiles(toIndexOffset(logicOffset));
+    }
+
+
+    /**
+     * 已经写入的记录条数
+     */
+    public long getMaxIndex() {
+        return this.mapedFileQueue.getMaxOffset() / UnitSize;
+    }
+
+
+    /**
+     * 已有的时间索引与ConsumeQueue之间有文件级的空洞时（关闭索引期间ConsumeQueue过期删除），丢弃全部重建
+     *
+     * @param minIndex ConsumeQueue第一个文件的起始条数
+     */
+    public void resetIfBefore(final long minIndex) {
+        final long maxIndex = this.getMaxIndex();
+        if (maxIndex > 0 && maxIndex < minIndex) {
+            log.warn("time index is behind the consume queue, destroy it. index: {} consume queue min index: {}",
+                    maxIndex, minIndex);
+            this.mapedFileQueue.destroy();
+        }
+    }
+
+
+    /**
+     * 写入第cqOffset条记录的存储时间，落后的位置用0补齐
+     *
+     * @return false表示文件创建失败
+     */
+    public boolean putStoreTimestamp(final long cqOffset, final long storeTimestamp) {
+        final long expectOffset = cqOffset * UnitSize;
+        while (true) {
+            MapedFile mapedFile = this.mapedFileQueue.getLastMapedFile(expectOffset);
+            if (null == mapedFile) {
+                return false;
+            }
+
+            long currentOffset = mapedFile.getFileFromOffset() + mapedFile.getWrotePostion();
+            if (expectOffset < currentOffset) {
+                // 重放已经写过的位置
+                return true;
+            }
+
+            long fileTailOffset = mapedFile.getFileFromOffset() + this.mapedFileSize;
+            long until = Math.min(expectOffset, fileTailOffset);
+            for (long pos = currentOffset; pos < until; pos += UnitSize) {
+                mapedFile.appendMessage(BlankUnit);
+            }
+
+            if (expectOffset < fileTailOffset) {
+                this.byteBufferUnit.clear();
+                this.byteBufferUnit.putLong(storeTimestamp);
+                return mapedFile.appendMessage(this.byteBufferUnit.array());
+            }
+        }
+    }
+
+
+    /**
+     * 在已经用0补齐的位置原地写入存储时间，不移动写位置，供后台补齐使用
+     *
+     * @return false表示该位置已不存在（被截断或过期删除）
+     */
+    public boolean fillStoreTimestamp(final long cqOffset, final long storeTimestamp) {
+        final long indexOffset = cqOffset * UnitSize;
+        if (indexOffset + UnitSize > this.mapedFileQueue.getMaxOffset()) {
+            return false;
+        }
+
+        MapedFile firstMapedFile = this.mapedFileQueue.getFirstMapedFileOnLock();
+        if (null == firstMapedFile || indexOffset < firstMapedFile.getFileFromOffset()) {
+            return false;
+        }
+
+        MapedFile mapedFile = this.mapedFileQueue.findMapedFileByOffset(indexOffset);
+        if (mapedFile != null) {
+            SelectMapedBufferResult result =
+                    mapedFile.selectMapedBuffer((int) (indexOffset % this.mapedFileSize), UnitSize);
+            if (result != null) {
+                try {
+                    // 只填写未知的位置，不覆盖分发线程写入的时间
+                    if (0 == result.getByteBuffer().getLong(0)) {
+                        result.getByteBuffer().putLong(0, storeTimestamp);
+                    }
+                    return true;
+                } finally {
+                    result.release();
+                }
+            }
+        }
+
+        return false;
+    }
+
+
+    /**
+     * 获取与ConsumeQueue文件对齐的时间索引文件内容
+     *
+     * @param logicFileFromOffset ConsumeQueue文件的起始位置
+     * @return 不存在时返回null
+     */
+    public SelectMapedBufferResult selectIndexBuffer(final long logicFileFromOffset) {
+        final long indexOffset = toIndexOffset(logicFileFromOffset);
+        MapedFile firstMapedFile = this.mapedFileQueue.getFirstMapedFileOnLock();
+        if (null == firstMapedFile || indexOffset < firstMapedFile.getFileFromOffset()
+                || indexOffset >= this.mapedFileQueue.getMaxOffset()) {
+            return null;
+        }
+
+        MapedFile mapedFile = this.mapedFileQueue.findMapedFileByOffset(indexOffset);
+        if (mapedFile != null && mapedFile.getFileFromOffset() == indexOffset) {
+            return mapedFile.selectMapedBuffer(0);
+        }
+
+        return null;
+    }
+
+
+    /**
+     * @return 0表示时间未知
+     */
+    public long getStoreTimestamp(final long cqOffset) {
+        final long indexOffset = cqOffset * UnitSize;
+        if (indexOffset + UnitSize > this.mapedFileQueue.getMaxOffset()) {
+            return 0;
+        }
+
+        MapedFile firstMapedFile = this.mapedFileQueue.getFirstMapedFileOnLock();
+        if (null == firstMapedFile || indexOffset < firstMapedFile.getFileFromOffset()) {
+            return 0;
+        }
+
+        MapedFile mapedFile = this.mapedFileQueue.findMapedFileByOffset(indexOffset);
+        if (mapedFile != null) {
+            SelectMapedBufferResult result =
+                    mapedFile.selectMapedBuffer((int) (indexOffset % this.mapedFileSize), UnitSize);
+            if (result != null) {
+                try {
+                    return result.getByteBuffer().getLong();
+                } finally {
+                    result.release();
+                }
+            }
+        }
+
+        return 0;
+    }
+
+
+    /**
+     * 删除ConsumeQueue最小位置之前的时间索引文件
+     */
+    public int deleteExpiredFile(final long minLogicOffset) {
+        return this.mapedFileQueue.deleteFilesBeforeOffset(toIndexOffset(minLogicOffset));
+    }
+
+
+    public boolean commit(final int flushLeastPages) {
+        return this.mapedFileQueue.commit(flushLeastPages);
+    }
+
+
+    public void destroy() {
+        this.mapedFileQueue.destroy();
+    }
+}
@@ -29,9 +29,13 @@ import com.alibaba.rocketmq.store.config.MessageStoreConfig;
 import com.alibaba.rocketmq.store.config.StorePathConfigHelper;
 import com.alibaba.rocketmq.store.ha.HAService;
 import com.alibaba.rocketmq.store.index.IndexService;
+import com.alibaba.rocketmq.store.index.PropertyIndexService;
+import com.alibaba.rocketmq.store.index.QueryPropertyIndexResult;
 import com.alibaba.rocketmq.store.index.QueryOffsetResult;
 import com.alibaba.rocketmq.store.schedule.ScheduleMessageService;
+import com.alibaba.rocketmq.store.timer.TimerMessageService;
 import com.alibaba.rocketmq.store.stats.BrokerStatsManager;
+import com.alibaba.rocketmq.store.tiered.TieredCommitLog;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -42,7 +46,9 @@ import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
@@ -74,13 +80,32 @@ public class DefaultMessageStore implements MessageStore {
      * 索引服务
      */
     private final IndexService indexService;
+    // 用户属性二级索引
+    private final PropertyIndexService propertyIndexService;
+    // 落后消费者的PageCache预读
+    private final ColdReadPrefetchService coldReadPrefetchService;
+    // 分层存储，未开启时为null
+    private final TieredCommitLog tieredCommitLog;
     /**
      * 文件预分配服务
      */
     private final AllocateMapedFileService allocateMapedFileService;
+    /**
+     * 堆外写缓冲池
+     */
+    private final TransientStorePool transientStorePool;
     private final ReputMessageService reputMessageService;
+    /**
+     * 并行分发，未开启时为null，由ReputMessageService直接分发
+     */
+    private final DispatchConsumeQueueService[] dispatchConsumeQueueServices;
+    private final DispatchIndexService dispatchIndexService;
+    // 已解析但还未写入ConsumeQueue的消息字节数
+    private final AtomicLong dispatchInFlightBytes = new AtomicLong(0);
     private final HAService haService;
     private final ScheduleMessageService scheduleMessageService;
+    // null when timerWheelEnable is off
+    private final TimerMessageService timerMessageService;
     private final StoreStatsService storeStatsService;
     private final RunningFlags runningFlags = new RunningFlags();
     private final SystemClock systemClock = new SystemClock(1);
@@ -89,6 +114,9 @@ public class DefaultMessageStore implements MessageStore {
     private AtomicLong printTimes = new AtomicLong(0);
     private final ScheduledExecutorService scheduledExecutorService = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryImpl(
             "StoreScheduledThread"));
+    // 启动时落后的ConsumeQueue时间索引在后台补齐，不阻塞启动
+    private final ExecutorService timeIndexRebuildExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryImpl(
+            "ConsumeQueueTimeIndexRebuildThread"));
     private final BrokerStatsManager brokerStatsManager;
     private final MessageArrivingListener messageArrivingListener;
     private final BrokerConfig brokerConfig;
@@ -102,6 +130,7 @@ public class DefaultMessageStore implements MessageStore {
         this.brokerStatsManager = brokerStatsManager;
         this.allocateMapedFileService = new AllocateMapedFileService(this);
         this.commitLog = new CommitLog(this);
+        this.tieredCommitLog = messageStoreConfig.isTieredStorageEnable() ? new TieredCommitLog(this) : null;
         this.consumeQueueTable = new ConcurrentHashMap<String/* topic */, ConcurrentHashMap<Integer/* queueId */, ConsumeQueue>>(32);
 
         this.flushConsumeQueueService = new FlushConsumeQueueService();
@@ -109,10 +138,29 @@ public class DefaultMessageStore implements MessageStore {
         this.cleanConsumeQueueService = new CleanConsumeQueueService();
         this.storeStatsService = new StoreStatsService();
         this.indexService = new IndexService(this);
+        this.propertyIndexService = new PropertyIndexService(this);
+        this.coldReadPrefetchService = new ColdReadPrefetchService(this);
         this.haService = new HAService(this);
 
         this.reputMessageService = new ReputMessageService();
+        if (messageStoreConfig.isParallelDispatchEnable()) {
+            final int threadNums = Math.max(1, messageStoreConfig.getDispatchConsumeQueueThreadNums());
+            this.dispatchConsumeQueueServices = new DispatchConsumeQueueService[threadNums];
+            for (int i = 0; i < threadNums; i++) {
+                this.dispatchConsumeQueueServices[i] = new DispatchConsumeQueueService(i, messageStoreConfig.getDispatchMaxInFlight());
+            }
+            this.dispatchIndexService = new DispatchIndexService(messageStoreConfig.getDispatchMaxInFlight());
+        } else {
+            this.dispatchConsumeQueueServices = null;
+            this.dispatchIndexService = null;
+        }
         this.scheduleMessageService = new ScheduleMessageService(this);
+        this.timerMessageService = messageStoreConfig.isTimerWheelEnable() ? new TimerMessageService(this) : null;
+
+        this.transientStorePool = new TransientStorePool(messageStoreConfig);
+        if (messageStoreConfig.isTransientStorePoolEnable()) {
+            this.transientStorePool.init();
+        }
 
         this.allocateMapedFileService.start();
         this.indexService.start();
@@ -127,6 +175,51 @@ public class DefaultMessageStore implements MessageStore {
                 logic.truncateDirtyLogicFiles(phyOffset);
             }
         }
+
+        if (!this.shutdown) {
+            this.rebuildTimeIndex();
+        }
+    }
+
+
+    /**
+     * 后台补齐恢复时落后的时间索引，补齐前查询回退到CommitLog
+     */
+    private void rebuildTimeIndex() {
+        if (!this.messageStoreConfig.isConsumeQueueTimeIndexEnable()) {
+            return;
+        }
+
+        final List<ConsumeQueue> pending = new ArrayList<ConsumeQueue>();
+        for (ConcurrentHashMap<Integer, ConsumeQueue> maps : this.consumeQueueTable.values()) {
+            for (ConsumeQueue logic : maps.values()) {
+                if (logic.isTimeIndexRebuildPending()) {
+                    pending.add(logic);
+                }
+            }
+        }
+
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        log.info("rebuild time index of {} consume queues in background", pending.size());
+        this.timeIndexRebuildExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                for (ConsumeQueue logic : pending) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        return;
+                    }
+
+                    try {
+                        logic.rebuildTimeIndex();
+                    } catch (Throwable e) {
+                        log.error("rebuild time index of " + logic.getTopic() + "-" + logic.getQueueId() + " failed", e);
+                    }
+                }
+            }
+        });
     }
 
 
@@ -139,7 +232,13 @@ public class DefaultMessageStore implements MessageStore {
             if (null != scheduleMessageService) {
                 result = result && this.scheduleMessageService.load();
             }
+            if (null != timerMessageService) {
+                result = result && this.timerMessageService.load();
+            }
             result = result && this.commitLog.load();
+            if (null != tieredCommitLog) {
+                result = result && this.tieredCommitLog.load();
+            }
             result = result && this.loadConsumeQueue();
 
             if (result) {
@@ -147,6 +246,7 @@ public class DefaultMessageStore implements MessageStore {
                         new StoreCheckpoint(StorePathConfigHelper.getStoreCheckpoint(this.messageStoreConfig.getStorePathRootDir()));
 
                 this.indexService.load(lastExitOK);
+                result = this.propertyIndexService.load();
 
                 this.recover(lastExitOK);
 
@@ -215,13 +315,13 @@ public class DefaultMessageStore implements MessageStore {
 
 
     public void cleanExpiredConsumerQueue() {
-        long minCommitLogOffset = this.commitLog.getMinOffset();
+        long minCommitLogOffset = this.getMinPhyOffset();
 
         Iterator<Entry<String, ConcurrentHashMap<Integer, ConsumeQueue>>> it = this.consumeQueueTable.entrySet().iterator();
         while (it.hasNext()) {
             Entry<String, ConcurrentHashMap<Integer, ConsumeQueue>> next = it.next();
             String topic = next.getKey();
-            if (!topic.equals(ScheduleMessageService.SCHEDULE_TOPIC)) {
+            if (!topic.equals(ScheduleMessageService.SCHEDULE_TOPIC) && !topic.equals(TimerMessageService.TIMER_TOPIC)) {
                 ConcurrentHashMap<Integer, ConsumeQueue> queueTable = next.getValue();
                 Iterator<Entry<Integer, ConsumeQueue>> itQT = queueTable.entrySet().iterator();
                 while (itQT.hasNext()) {
@@ -268,9 +368,32 @@ public class DefaultMessageStore implements MessageStore {
             this.scheduleMessageService.start();
         }
 
+        if (this.timerMessageService != null && SLAVE != messageStoreConfig.getBrokerRole()) {
+            this.timerMessageService.start();
+        }
+
+        if (this.dispatchConsumeQueueServices != null) {
+            for (DispatchConsumeQueueService service : this.dispatchConsumeQueueServices) {
+                service.start();
+            }
+            this.dispatchIndexService.start();
+        }
+
+        this.propertyIndexService.start();
+
+        if (this.messageStoreConfig.isColdReadPrefetchEnable()) {
+            this.coldReadPrefetchService.start();
+        }
+
+        if (this.tieredCommitLog != null) {
+            this.tieredCommitLog.start();
+        }
+
         this.reputMessageService.setReputFromOffset(this.commitLog.getMaxOffset());
         this.reputMessageService.start();
 
+        this.rebuildTimeIndex();
+
         this.haService.start();
 
         this.createTempFile();
@@ -283,6 +406,7 @@ public class DefaultMessageStore implements MessageStore {
             this.shutdown = true;
 
             this.scheduledExecutorService.shutdown();
+            this.timeIndexRebuildExecutor.shutdownNow();
 
             try {
                 Thread.sleep(1000 * 3);
@@ -294,17 +418,40 @@ public class DefaultMessageStore implements MessageStore {
                 this.scheduleMessageService.shutdown();
             }
 
+            if (this.timerMessageService != null) {
+                this.timerMessageService.shutdown();
+            }
+
             this.haService.shutdown();
 
             this.storeStatsService.shutdown();
+            // 先停止分发并等分发线程处理完已解析的请求，再停止索引和ConsumeQueue刷盘，
+            // 保证分发中写入的ConsumeQueue和索引在退出前都被刷盘
+            this.reputMessageService.shutdown();
+            if (this.dispatchConsumeQueueServices != null) {
+                for (DispatchConsumeQueueService service : this.dispatchConsumeQueueServices) {
+                    service.shutdown();
+                }
+                this.dispatchIndexService.shutdown();
+            }
             this.indexService.shutdown();
+            this.propertyIndexService.shutdown();
+            if (this.tieredCommitLog != null) {
+                this.tieredCommitLog.shutdown();
+            }
             this.flushConsumeQueueService.shutdown();
             this.commitLog.shutdown();
-            this.reputMessageService.shutdown();
+            if (this.messageStoreConfig.isColdReadPrefetchEnable()) {
+                this.coldReadPrefetchService.shutdown();
+            }
             this.allocateMapedFileService.shutdown();
             this.storeCheckpoint.flush();
             this.storeCheckpoint.shutdown();
 
+            if (this.messageStoreConfig.isTransientStorePoolEnable()) {
+                this.transientStorePool.destroy();
+            }
+
             if (this.runningFlags.isWriteable()) {
                 this.deleteFile(StorePathConfigHelper.getAbortFile(this.messageStoreConfig.getStorePathRootDir()));
             } else {
@@ -318,6 +465,10 @@ public class DefaultMessageStore implements MessageStore {
         this.destroyLogics();
         this.commitLog.destroy();
         this.indexService.destroy();
+        this.propertyIndexService.destroy();
+        if (this.timerMessageService != null) {
+            this.timerMessageService.destroy();
+        }
         this.deleteFile(StorePathConfigHelper.getAbortFile(this.messageStoreConfig.getStorePathRootDir()));
         this.deleteFile(StorePathConfigHelper.getStoreCheckpoint(this.messageStoreConfig.getStorePathRootDir()));
     }
@@ -333,15 +484,14 @@ public class DefaultMessageStore implements MessageStore {
 
 
     /**
-     * 存储消息
+     * 检查当前是否可以写入消息
      *
-     * @param msg 待存储消息
-     * @return
+     * @return 不能写入时返回对应状态，可以写入时返回null
      */
-    public PutMessageResult putMessage(MessageExtBrokerInner msg) {
+    private PutMessageStatus checkStoreStatus() {
         if (this.shutdown) {
             log.warn("message store has shutdown, so putMessage is forbidden");
-            return new PutMessageResult(PutMessageStatus.SERVICE_NOT_AVAILABLE, null);
+            return PutMessageStatus.SERVICE_NOT_AVAILABLE;
         }
 
         /**
@@ -353,7 +503,7 @@ public class DefaultMessageStore implements MessageStore {
                 log.warn("message store is slave mode, so putMessage is forbidden ");
             }
 
-            return new PutMessageResult(PutMessageStatus.SERVICE_NOT_AVAILABLE, null);
+            return PutMessageStatus.SERVICE_NOT_AVAILABLE;
         }
 
         /**
@@ -369,11 +519,103 @@ public class DefaultMessageStore implements MessageStore {
                 log.warn("message store is not writeable, so putMessage is forbidden " + this.runningFlags.getFlagBits());
             }
 
-            return new PutMessageResult(PutMessageStatus.SERVICE_NOT_AVAILABLE, null);
+            return PutMessageStatus.SERVICE_NOT_AVAILABLE;
         } else {
             this.printTimes.set(0);
         }
 
+        return null;
+    }
+
+
+    /**
+     * 存储消息
+     *
+     * @param msg 待存储消息
+     * @return
+     */
+    public PutMessageResult putMessage(MessageExtBrokerInner msg) {
+        PutMessageResult checkResult = this.checkMessage(msg);
+        if (checkResult != null) {
+            return checkResult;
+        }
+
+        /**
+         * 向CommitLog提交消息
+         */
+        long beginTime = this.getSystemClock().now();
+        PutMessageResult result = this.commitLog.putMessage(msg);
+        this.statPutMessage("putMessage", beginTime, result);
+        return result;
+    }
+
+
+    /**
+     * 批量存储消息
+     *
+     * @param messageExtBatch 待存储的批量消息
+     * @return
+     */
+    public PutMessageResult putMessages(MessageExtBatch messageExtBatch) {
+        PutMessageResult checkResult = this.checkMessages(messageExtBatch);
+        if (checkResult != null) {
+            return checkResult;
+        }
+
+        long beginTime = this.getSystemClock().now();
+        PutMessageResult result = this.commitLog.putMessages(messageExtBatch);
+        this.statPutMessage("putMessages", beginTime, result);
+        return result;
+    }
+
+
+    @Override
+    public void asyncPutMessage(final MessageExtBrokerInner msg, final PutMessageCallback callback) {
+        PutMessageResult checkResult = this.checkMessage(msg);
+        if (checkResult != null) {
+            callback.onComplete(checkResult);
+            return;
+        }
+
+        final long beginTime = this.getSystemClock().now();
+        this.commitLog.asyncPutMessage(msg, new PutMessageCallback() {
+            @Override
+            public void onComplete(PutMessageResult putMessageResult) {
+                DefaultMessageStore.this.statPutMessage("asyncPutMessage", beginTime, putMessageResult);
+                callback.onComplete(putMessageResult);
+            }
+        });
+    }
+
+
+    @Override
+    public void asyncPutMessages(final MessageExtBatch messageExtBatch, final PutMessageCallback callback) {
+        PutMessageResult checkResult = this.checkMessages(messageExtBatch);
+        if (checkResult != null) {
+            callback.onComplete(checkResult);
+            return;
+        }
+
+        final long beginTime = this.getSystemClock().now();
+        this.commitLog.asyncPutMessages(messageExtBatch, new PutMessageCallback() {
+            @Override
+            public void onComplete(PutMessageResult putMessageResult) {
+                DefaultMessageStore.this.statPutMessage("asyncPutMessages", beginTime, putMessageResult);
+                callback.onComplete(putMessageResult);
+            }
+        });
+    }
+
+
+    /**
+     * 检查存储状态和消息合法性，可以写入时返回null
+     */
+    private PutMessageResult checkMessage(MessageExtBrokerInner msg) {
+        PutMessageStatus storeStatus = this.checkStoreStatus();
+        if (storeStatus != null) {
+            return new PutMessageResult(storeStatus, null);
+        }
+
         /**
          * Topic长度超过127
          */
@@ -390,33 +632,44 @@ public class DefaultMessageStore implements MessageStore {
             return new PutMessageResult(PutMessageStatus.PROPERTIES_SIZE_EXCEEDED, null);
         }
 
+        return null;
+    }
 
-        /**
-         * 向CommitLog提交消息
-         */
-        long beginTime = this.getSystemClock().now();
-        PutMessageResult result = this.commitLog.putMessage(msg);
-        long eclipseTime = this.getSystemClock().now() - beginTime;
+
+    private PutMessageResult checkMessages(MessageExtBatch messageExtBatch) {
+        PutMessageStatus storeStatus = this.checkStoreStatus();
+        if (storeStatus != null) {
+            return new PutMessageResult(storeStatus, null);
+        }
+
+        if (messageExtBatch.getTopic().length() > Byte.MAX_VALUE) {
+            log.warn("putMessages message topic length too long " + messageExtBatch.getTopic().length());
+            return new PutMessageResult(PutMessageStatus.MESSAGE_ILLEGAL, null);
+        }
+
+        if (messageExtBatch.getBody() == null || messageExtBatch.getBody().length > this.messageStoreConfig.getMaxMessageSize()) {
+            log.warn("putMessages body length too long or empty");
+            return new PutMessageResult(PutMessageStatus.MESSAGE_ILLEGAL, null);
+        }
+
+        return null;
+    }
 
 
+    /**
+     * 按照耗时时间不同，统计数据矩阵，并统计失败次数
+     */
+    private void statPutMessage(final String action, final long beginTime, final PutMessageResult result) {
+        long eclipseTime = this.getSystemClock().now() - beginTime;
         if (eclipseTime > 1000) {
-            log.warn("putMessage not in lock eclipse time(ms) " + eclipseTime);
+            log.warn(action + " not in lock eclipse time(ms) " + eclipseTime);
         }
 
-        /**
-         * 按照耗时时间不同，统计数据矩阵
-         * 详见方法实现
-         */
         this.storeStatsService.setPutMessageEntireTimeMax(eclipseTime);
 
-        /**
-         * 失败次数统计
-         */
         if (null == result || !result.isOk()) {
             this.storeStatsService.getPutMessageFailedTimes().incrementAndGet();
         }
-
-        return result;
     }
 
 
@@ -539,6 +792,7 @@ public class DefaultMessageStore implements MessageStore {
                  */
                 SelectMapedBufferResult bufferConsumeQueue = consumeQueue.getIndexBuffer(offset);
                 if (bufferConsumeQueue != null) {
+                    SelectMapedBufferResult bufferTagBloom = null;
                     try {
                         status = GetMessageStatus.NO_MATCHED_MESSAGE;
 
@@ -554,10 +808,34 @@ public class DefaultMessageStore implements MessageStore {
 
                         final boolean diskFallRecorded = this.messageStoreConfig.isDiskFallRecorded();
 
+                        /**
+                         * 按标签订阅时取出与ConsumeQueue文件对齐的Bloom过滤器，整块跳过不匹配的记录，
+                         * 跳过的记录不计入MaxFilterMessageCount
+                         */
+                        final ConsumeQueueTagBloom tagBloom = consumeQueue.getTagBloom();
+                        if (tagBloom != null && subscriptionData != null && !subscriptionData.isClassFilterMode()
+                                && !SubscriptionData.SUB_ALL.equals(subscriptionData.getSubString())
+                                && !subscriptionData.getCodeSet().isEmpty()) {
+                            bufferTagBloom = tagBloom.selectBloomBuffer(bufferConsumeQueue.getMapedFile().getFileFromOffset());
+                        }
+                        int skippedBytes = 0;
+
                         /**
                          * 一条一条的取消息
                          */
-                        for (; i < bufferConsumeQueue.getSize() && i < MaxFilterMessageCount; i += ConsumeQueue.CQStoreUnitSize) {
+                        for (; i < bufferConsumeQueue.getSize() && i - skippedBytes < MaxFilterMessageCount; i += ConsumeQueue.CQStoreUnitSize) {
+                            if (bufferTagBloom != null) {
+                                int skip = this.skipUnmatchedBlocks(tagBloom, bufferTagBloom.getByteBuffer(), subscriptionData,
+                                        offset, i, bufferConsumeQueue.getSize());
+                                if (skip > 0) {
+                                    i += skip;
+                                    skippedBytes += skip;
+                                    if (i >= bufferConsumeQueue.getSize()) {
+                                        break;
+                                    }
+                                    bufferConsumeQueue.getByteBuffer().position(i);
+                                }
+                            }
 
                             /**
                              * 读取Message内容
@@ -667,6 +945,13 @@ public class DefaultMessageStore implements MessageStore {
                             }
                         }
 
+                        if (bufferTagBloom != null) {
+                            this.storeStatsService.getGetMessageFilterSkippedUnits().addAndGet(skippedBytes / ConsumeQueue.CQStoreUnitSize);
+                        }
+                        if (subscriptionData != null && !SubscriptionData.SUB_ALL.equals(subscriptionData.getSubString())) {
+                            this.storeStatsService.getGetMessageFilterScannedUnits().addAndGet((i - skippedBytes) / ConsumeQueue.CQStoreUnitSize);
+                        }
+
                         //记录客户端拉取消息的offset落后于commitlog最大Offset的值
                         if (diskFallRecorded) {
                             long fallBehind = maxOffsetPy - maxPhyOffsetPulling;
@@ -693,8 +978,20 @@ public class DefaultMessageStore implements MessageStore {
                          * 超过了设置的最大内存大小可能导致master内存不足，所以建议从slave机器获取
                          */
                         getResult.setSuggestPullingFromSlave(diff > memory);
+                        getResult.setPullingLagBytes(diff);
+
+                        /**
+                         * 拉取的数据已经不在内存中，异步预读该队列后续消息
+                         */
+                        if (diff > memory && status == GetMessageStatus.FOUND
+                                && this.messageStoreConfig.isColdReadPrefetchEnable()) {
+                            this.coldReadPrefetchService.onColdRead(topic, queueId, offset, nextBeginOffset);
+                        }
                     } finally {
                         bufferConsumeQueue.release();
+                        if (bufferTagBloom != null) {
+                            bufferTagBloom.release();
+                        }
                     }
                 } else {
                     /**
@@ -741,6 +1038,36 @@ public class DefaultMessageStore implements MessageStore {
         return getResult;
     }
 
+    /**
+     * 从块边界开始连续跳过Bloom过滤器判定为不匹配的块
+     *
+     * @param startIndex    本次拉取的起始逻辑位置
+     * @param pos           当前在ConsumeQueue缓冲区中的字节位置
+     * @param size          ConsumeQueue缓冲区大小
+     * @return 跳过的字节数
+     */
+    private int skipUnmatchedBlocks(final ConsumeQueueTagBloom tagBloom, final ByteBuffer bloomBuffer,
+                                    final SubscriptionData subscriptionData, final long startIndex, final int pos, final int size) {
+        final int blockUnits = tagBloom.getBlockUnits();
+        int current = pos;
+        while (current < size) {
+            long index = startIndex + current / ConsumeQueue.CQStoreUnitSize;
+            int offsetInBlock = tagBloom.offsetInBlock(index);
+            if (current != 0 && offsetInBlock != 0) {
+                break;
+            }
+
+            if (tagBloom.mayContain(bloomBuffer, index, subscriptionData.getCodeSet())) {
+                break;
+            }
+
+            current += (blockUnits - offsetInBlock) * ConsumeQueue.CQStoreUnitSize;
+        }
+
+        return Math.min(current, size) - pos;
+    }
+
+
     public long getMaxOffsetInQuque(String topic, int queueId) {
         ConsumeQueue logic = this.findConsumeQueue(topic, queueId);
         if (logic != null) {
@@ -850,6 +1177,9 @@ public class DefaultMessageStore implements MessageStore {
             if (this.scheduleMessageService != null) {
                 this.scheduleMessageService.buildRunningStats(result);
             }
+            if (this.timerMessageService != null) {
+                this.timerMessageService.buildRunningStats(result);
+            }
         }
 
         result.put(RunningStats.commitLogMinOffset.name(), String.valueOf(DefaultMessageStore.this.getMinPhyOffset()));
@@ -871,6 +1201,11 @@ public class DefaultMessageStore implements MessageStore {
         if (logicQueue != null) {
             long minLogicOffset = logicQueue.getMinLogicOffset();
 
+            long storeTimeInQueue = logicQueue.getStoreTimestampInQueue(minLogicOffset / ConsumeQueue.CQStoreUnitSize);
+            if (storeTimeInQueue > 0) {
+                return storeTimeInQueue;
+            }
+
             SelectMapedBufferResult result = logicQueue.getIndexBuffer(minLogicOffset / ConsumeQueue.CQStoreUnitSize);
             if (result != null) {
                 try {
@@ -893,6 +1228,11 @@ public class DefaultMessageStore implements MessageStore {
     public long getMessageStoreTimeStamp(String topic, int queueId, long offset) {
         ConsumeQueue logicQueue = this.findConsumeQueue(topic, queueId);
         if (logicQueue != null) {
+            long storeTimeInQueue = logicQueue.getStoreTimestampInQueue(offset);
+            if (storeTimeInQueue > 0) {
+                return storeTimeInQueue;
+            }
+
             SelectMapedBufferResult result = logicQueue.getIndexBuffer(offset);
             if (result != null) {
                 try {
@@ -959,6 +1299,13 @@ public class DefaultMessageStore implements MessageStore {
     }
 
 
+    @Override
+    public QueryPropertyIndexResult queryMessageByProperty(String topic, String propertyKey, String beginValue,
+            String endValue, boolean prefix, int maxNum, long begin, long end) {
+        return this.propertyIndexService.queryOffset(topic, propertyKey, beginValue, endValue, prefix, maxNum, begin, end);
+    }
+
+
     @Override
     public QueryMessageResult queryMessage(String topic, String key, int maxNum, long begin, long end) {
         QueryMessageResult queryMessageResult = new QueryMessageResult();
@@ -1037,6 +1384,16 @@ public class DefaultMessageStore implements MessageStore {
     }
 
 
+    public TieredCommitLog getTieredCommitLog() {
+        return tieredCommitLog;
+    }
+
+
+    public ColdReadPrefetchService getColdReadPrefetchService() {
+        return coldReadPrefetchService;
+    }
+
+
     public CommitLog getCommitLog() {
         return commitLog;
     }
@@ -1224,7 +1581,7 @@ public class DefaultMessageStore implements MessageStore {
 
     private void recoverTopicQueueTable() {
         HashMap<String/* topic-queueid */, Long/* offset */> table = new HashMap<String, Long>(1024);
-        long minPhyOffset = this.commitLog.getMinOffset();
+        long minPhyOffset = this.getMinPhyOffset();
         for (ConcurrentHashMap<Integer, ConsumeQueue> maps : this.consumeQueueTable.values()) {
             for (ConsumeQueue logic : maps.values()) {
                 String key = logic.getTopic() + "-" + logic.getQueueId();
@@ -1257,6 +1614,11 @@ public class DefaultMessageStore implements MessageStore {
     }
 
 
+    public TransientStorePool getTransientStorePool() {
+        return transientStorePool;
+    }
+
+
     public StoreStatsService getStoreStatsService() {
         return storeStatsService;
     }
@@ -1287,6 +1649,11 @@ public class DefaultMessageStore implements MessageStore {
     }
 
 
+    public TimerMessageService getTimerMessageService() {
+        return timerMessageService;
+    }
+
+
     public RunningFlags getRunningFlags() {
         return runningFlags;
     }
@@ -1381,12 +1748,20 @@ public class DefaultMessageStore implements MessageStore {
 
                 fileReservedTime *= 60 * 60 * 1000;
 
+                /**
+                 * 分层存储时只删除已经上传的文件，磁盘写满后不再等待上传
+                 */
+                long maxDeletableOffset = Long.MAX_VALUE;
+                if (DefaultMessageStore.this.tieredCommitLog != null && DefaultMessageStore.this.runningFlags.isWriteable()) {
+                    maxDeletableOffset = DefaultMessageStore.this.tieredCommitLog.getDeletableOffset();
+                }
+
                 /**
                  * 删除文件
                  */
                 deleteCount =
                         DefaultMessageStore.this.commitLog.deleteExpiredFile(fileReservedTime, deletePhysicFilesInterval,
-                                destroyMapedFileIntervalForcibly, cleanAtOnce);
+                                destroyMapedFileIntervalForcibly, cleanAtOnce, maxDeletableOffset);
                 if (deleteCount > 0) {
                     // TODO
                 } else if (spacefull) {
@@ -1517,7 +1892,7 @@ public class DefaultMessageStore implements MessageStore {
             /**
              * 物理文件的开始Offset
              */
-            long minOffset = DefaultMessageStore.this.commitLog.getMinOffset();
+            long minOffset = DefaultMessageStore.this.getMinPhyOffset();
 
             /**
              * 如果物理文件的开始Offset发生了变化（说明物理文件有一部分被删除了)
@@ -1546,6 +1921,7 @@ public class DefaultMessageStore implements MessageStore {
                 }
 
                 DefaultMessageStore.this.indexService.deleteExpiredFile(minOffset);
+                DefaultMessageStore.this.propertyIndexService.deleteExpiredFile(minOffset);
             }
         }
 
@@ -1639,7 +2015,22 @@ public class DefaultMessageStore implements MessageStore {
 
 
     public void doDispatch(DispatchRequest req) {
+        this.dispatchConsumeQueue(req);
 
+        /**
+         * 更新索引
+         */
+        if (DefaultMessageStore.this.getMessageStoreConfig().isMessageIndexEnable()) {
+            DefaultMessageStore.this.indexService.buildIndex(req);
+        }
+
+        if (DefaultMessageStore.this.propertyIndexService.isEnable()) {
+            DefaultMessageStore.this.propertyIndexService.buildIndex(req);
+        }
+    }
+
+
+    private void dispatchConsumeQueue(DispatchRequest req) {
         final int tranType = MessageSysFlag.getTransactionValue(req.getSysFlag());
         switch (tranType) {
             case MessageSysFlag.TransactionNotType:
@@ -1654,12 +2045,183 @@ public class DefaultMessageStore implements MessageStore {
             case MessageSysFlag.TransactionRollbackType:
                 break;
         }
+    }
+
+
+    /**
+     * 如果当前实例不是SLAVE，并且是长轮询模式，则触发listener，告知数据已经到达
+     */
+    private void notifyMessageArriving(DispatchRequest req) {
+        if (BrokerRole.SLAVE != DefaultMessageStore.this.getMessageStoreConfig().getBrokerRole()
+                && DefaultMessageStore.this.brokerConfig.isLongPollingEnable()) {
+            DefaultMessageStore.this.messageArrivingListener.arriving(req.getTopic(),
+                    req.getQueueId(), req.getConsumeQueueOffset() + 1);
+        }
+    }
+
+
+    /**
+     * 交给并行分发线程处理，同一topic-queueId总是落在同一个线程上；队列满时阻塞解析线程
+     */
+    private void putDispatchRequest(DispatchRequest req) throws InterruptedException {
+        final int shard = Math.abs((31 * req.getTopic().hashCode() + req.getQueueId()) % this.dispatchConsumeQueueServices.length);
+        this.dispatchInFlightBytes.addAndGet(req.getMsgSize());
+        try {
+            this.dispatchConsumeQueueServices[shard].putRequest(req);
+        } catch (InterruptedException e) {
+            this.dispatchInFlightBytes.addAndGet(-req.getMsgSize());
+            throw e;
+        }
+
+        if (this.messageStoreConfig.isMessageIndexEnable() || this.propertyIndexService.isEnable()) {
+            this.dispatchIndexService.putRequest(req);
+        }
+    }
+
+
+    abstract class AbstractDispatchService extends ServiceThread {
+        private final LinkedBlockingQueue<DispatchRequest> requestQueue;
+
+
+        public AbstractDispatchService(final int maxInFlight) {
+            this.requestQueue = new LinkedBlockingQueue<DispatchRequest>(Math.max(1, maxInFlight));
+        }
+
+
+        public void putRequest(final DispatchRequest req) throws InterruptedException {
+            this.requestQueue.put(req);
+        }
+
+
+        protected abstract void dispatch(final DispatchRequest req);
+
 
         /**
-         * 更新索引
+         * 一次处理的最大请求数，大于1时队列中积压的请求通过dispatch(List)批量处理
          */
-        if (DefaultMessageStore.this.getMessageStoreConfig().isMessageIndexEnable()) {
-            DefaultMessageStore.this.indexService.buildIndex(req);
+        protected int maxBatchSize() {
+            return 1;
+        }
+
+
+        protected void dispatch(final List<DispatchRequest> reqs) {
+            for (DispatchRequest req : reqs) {
+                try {
+                    this.dispatch(req);
+                } catch (Exception e) {
+                    DefaultMessageStore.log.warn(this.thread.getName() + " service has exception. ", e);
+                }
+            }
+        }
+
+
+        @Override
+        public void run() {
+            DefaultMessageStore.log.info(this.thread.getName() + " service started");
+
+            final int maxBatchSize = this.maxBatchSize();
+            final List<DispatchRequest> batch = new ArrayList<DispatchRequest>(Math.max(1, maxBatchSize));
+            while (!this.isStoped()) {
+                try {
+                    DispatchRequest req = this.requestQueue.poll(100, TimeUnit.MILLISECONDS);
+                    if (req != null) {
+                        if (maxBatchSize > 1) {
+                            batch.add(req);
+                            this.requestQueue.drainTo(batch, maxBatchSize - 1);
+                            this.dispatch(batch);
+                        } else {
+                            this.dispatch(req);
+                        }
+                    }
+                } catch (Exception e) {
+                    DefaultMessageStore.log.warn(this.thread.getName() + " service has exception. ", e);
+                } finally {
+                    batch.clear();
+                }
+            }
+
+            // 退出前处理完已经解析的请求
+            for (DispatchRequest req = this.requestQueue.poll(); req != null; req = this.requestQueue.poll()) {
+                try {
+                    this.dispatch(req);
+                } catch (Exception e) {
+                    DefaultMessageStore.log.warn(this.thread.getName() + " service has exception. ", e);
+                }
+            }
+
+            DefaultMessageStore.log.info(this.thread.getName() + " service end");
+        }
+    }
+
+
+    /**
+     * 写ConsumeQueue并通知长轮询
+     */
+    class DispatchConsumeQueueService extends AbstractDispatchService {
+        public DispatchConsumeQueueService(final int index, final int maxInFlight) {
+            super(maxInFlight);
+            this.thread.setName(this.getServiceName() + "-" + index);
+        }
+
+
+        @Override
+        protected void dispatch(DispatchRequest req) {
+            try {
+                DefaultMessageStore.this.dispatchConsumeQueue(req);
+                DefaultMessageStore.this.notifyMessageArriving(req);
+            } finally {
+                DefaultMessageStore.this.dispatchInFlightBytes.addAndGet(-req.getMsgSize());
+            }
+        }
+
+
+        @Override
+        public String getServiceName() {
+            return DispatchConsumeQueueService.class.getSimpleName();
+        }
+    }
+
+
+    /**
+     * 构建消息索引，IndexFile只能单线程写，积压的请求整批写入
+     */
+    class DispatchIndexService extends AbstractDispatchService {
+        public DispatchIndexService(final int maxInFlight) {
+            super(maxInFlight);
+        }
+
+
+        @Override
+        protected void dispatch(DispatchRequest req) {
+            if (DefaultMessageStore.this.messageStoreConfig.isMessageIndexEnable()) {
+                DefaultMessageStore.this.indexService.buildIndex(req);
+            }
+            if (DefaultMessageStore.this.propertyIndexService.isEnable()) {
+                DefaultMessageStore.this.propertyIndexService.buildIndex(req);
+            }
+        }
+
+
+        @Override
+        protected int maxBatchSize() {
+            return DefaultMessageStore.this.messageStoreConfig.getIndexBuildBatchSize();
+        }
+
+
+        @Override
+        protected void dispatch(List<DispatchRequest> reqs) {
+            if (DefaultMessageStore.this.messageStoreConfig.isMessageIndexEnable()) {
+                DefaultMessageStore.this.indexService.buildIndex(reqs);
+            }
+            if (DefaultMessageStore.this.propertyIndexService.isEnable()) {
+                DefaultMessageStore.this.propertyIndexService.buildIndex(reqs);
+            }
+        }
+
+
+        @Override
+        public String getServiceName() {
+            return DispatchIndexService.class.getSimpleName();
         }
     }
 
@@ -1703,11 +2265,12 @@ public class DefaultMessageStore implements MessageStore {
 
 
         public long behind() {
-            return DefaultMessageStore.this.commitLog.getMaxOffset() - this.reputFromOffset;
+            return DefaultMessageStore.this.commitLog.getMaxOffset() - this.reputFromOffset
+                    + DefaultMessageStore.this.dispatchInFlightBytes.get();
         }
 
 
-        private void doReput() {
+        private void doReput() throws InterruptedException {
             /**
              * 如果已经分发的offset小于commitLog中的物理offset值，就把新的offset值进行分发
              */
@@ -1738,15 +2301,11 @@ public class DefaultMessageStore implements MessageStore {
                                     /**
                                      * 分发数据
                                      */
-                                    DefaultMessageStore.this.doDispatch(dispatchRequest);
-                                    /**
-                                     * 如果当前实例不是SLAVE，并且是长轮询模式，则触发listener，告知数据已经到达
-                                     */
-                                    if (BrokerRole.SLAVE != DefaultMessageStore.this.getMessageStoreConfig().getBrokerRole()
-                                            && DefaultMessageStore.this.brokerConfig.isLongPollingEnable()) {
-
-                                        DefaultMessageStore.this.messageArrivingListener.arriving(dispatchRequest.getTopic(),
-                                                dispatchRequest.getQueueId(), dispatchRequest.getConsumeQueueOffset() + 1);
+                                    if (DefaultMessageStore.this.dispatchConsumeQueueServices != null) {
+                                        DefaultMessageStore.this.putDispatchRequest(dispatchRequest);
+                                    } else {
+                                        DefaultMessageStore.this.doDispatch(dispatchRequest);
+                                        DefaultMessageStore.this.notifyMessageArriving(dispatchRequest);
                                     }
                                     // bugfix By shijia
                                     this.reputFromOffset += size;
@@ -1790,14 +2349,36 @@ public class DefaultMessageStore implements MessageStore {
         }
 
 
+        /**
+         * CommitLog每次有新数据可读都会调用，分发线程忙时只读一次volatile变量
+         */
+        @Override
+        public void wakeup() {
+            if (!this.hasNotified) {
+                super.wakeup();
+            }
+        }
+
+
         @Override
         public void run() {
             DefaultMessageStore.log.info(this.getServiceName() + " service started");
 
+            // 空闲时等待时间逐步加倍，有数据写入时由CommitLog唤醒
+            long idleInterval = 1;
             while (!this.isStoped()) {
                 try {
-                    Thread.sleep(1);
+                    final long lastReputFromOffset = this.reputFromOffset;
                     this.doReput();
+
+                    if (this.reputFromOffset != lastReputFromOffset) {
+                        idleInterval = 1;
+                    } else {
+                        idleInterval = Math.min(idleInterval * 2,
+                                Math.max(1, DefaultMessageStore.this.messageStoreConfig.getReputMaxIdleInterval()));
+                    }
+
+                    this.waitForRunning(idleInterval);
                 } catch (Exception e) {
                     DefaultMessageStore.log.warn(this.getServiceName() + " service has exception. ", e);
                 }
@@ -1836,7 +2417,14 @@ public class DefaultMessageStore implements MessageStore {
 
     @Override
     public long getMinPhyOffset() {
-        return this.commitLog.getMinOffset();
+        long minOffset = this.commitLog.getMinOffset();
+        if (this.tieredCommitLog != null) {
+            long coldMinOffset = this.tieredCommitLog.getMinOffset();
+            if (coldMinOffset >= 0 && (minOffset < 0 || coldMinOffset < minOffset)) {
+                return coldMinOffset;
+            }
+        }
+        return minOffset;
     }
 
 
@@ -1852,7 +2440,8 @@ public class DefaultMessageStore implements MessageStore {
         while (it.hasNext()) {
             Entry<String, ConcurrentHashMap<Integer, ConsumeQueue>> next = it.next();
             String topic = next.getKey();
-            if (!topics.contains(topic) && !topic.equals(ScheduleMessageService.SCHEDULE_TOPIC)) {
+            if (!topics.contains(topic) && !topic.equals(ScheduleMessageService.SCHEDULE_TOPIC)
+                    && !topic.equals(TimerMessageService.TIMER_TOPIC)) {
                 ConcurrentHashMap<Integer, ConsumeQueue> queueTable = next.getValue();
                 for (ConsumeQueue cq : queueTable.values()) {
                     cq.destroy();
@@ -1982,11 +2571,55 @@ public class DefaultMessageStore implements MessageStore {
     }
 
 
+    @Override
+    public boolean estimateInDiskByConsumeOffset(final String topic, final int queueId, long consumeOffset) {
+        ConcurrentHashMap<Integer, ConsumeQueue> map = this.consumeQueueTable.get(topic);
+        if (null == map) {
+            return false;
+        }
+        ConsumeQueue consumeQueue = map.get(queueId);
+        if (null == consumeQueue) {
+            return false;
+        }
+
+        final long lagNums = consumeQueue.getMaxOffsetInQuque() - consumeOffset;
+        if (lagNums <= 0) {
+            return false;
+        }
+
+        final long averageSize = this.storeStatsService.getPutMessageAverageSize(topic);
+        if (averageSize <= 0) {
+            // 重启后或只回放的Topic没有写入统计，按ConsumeQueue记录的物理offset判断
+            SelectMapedBufferResult bufferConsumeQueue = consumeQueue.getIndexBuffer(consumeOffset);
+            if (null == bufferConsumeQueue) {
+                return false;
+            }
+            try {
+                final long offsetPy = bufferConsumeQueue.getByteBuffer().getLong();
+                return this.checkInDiskByCommitOffset(offsetPy, this.commitLog.getMaxOffset());
+            } finally {
+                bufferConsumeQueue.release();
+            }
+        }
+
+        long memory = (long) (StoreUtil.TotalPhysicalMemorySize * (this.messageStoreConfig.getAccessMessageInMemoryMaxRatio() / 100.0));
+        return lagNums > memory / averageSize;
+    }
+
+
     public BrokerStatsManager getBrokerStatsManager() {
         return brokerStatsManager;
     }
 
 
+    /**
+     * CommitLog有新数据可读时唤醒分发线程
+     */
+    public void wakeupReputMessageService() {
+        this.reputMessageService.wakeup();
+    }
+
+
     public long dispatchBehindBytes() {
         return this.reputMessageService.behind();
     }
@@ -16,6 +16,9 @@
  */
 package com.alibaba.rocketmq.store;
 
+import java.util.Map;
+
+
 /**
  * @author shijia.wxr
  */
@@ -31,6 +34,8 @@ public class DispatchRequest {
     private final boolean success;
     private final int sysFlag;
     private final long preparedTransactionOffset;
+    // 消息属性，供属性索引使用，解析失败的请求为null
+    private Map<String, String> propertiesMap;
 
 
     public DispatchRequest(//
@@ -161,4 +166,14 @@ public class DispatchRequest {
     public boolean isSuccess() {
         return success;
     }
+
+
+    public Map<String, String> getPropertiesMap() {
+        return propertiesMap;
+    }
+
+
+    public void setPropertiesMap(Map<String, String> propertiesMap) {
+        this.propertiesMap = propertiesMap;
+    }
 }
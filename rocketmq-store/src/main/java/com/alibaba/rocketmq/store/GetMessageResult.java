@@ -55,6 +55,10 @@ public class GetMessageResult {
      * 是否建议从slave节点获取数据
      */
     private boolean suggestPullingFromSlave = false;
+    /**
+     * CommitLog最大offset与本次拉取到的最大物理offset的差值，单位字节
+     */
+    private long pullingLagBytes = 0;
 
 
     private int msgCount4Commercial = 0;
@@ -157,6 +161,16 @@ public class GetMessageResult {
         this.suggestPullingFromSlave = suggestPullingFromSlave;
     }
 
+    public long getPullingLagBytes() {
+        return pullingLagBytes;
+    }
+
+
+    public void setPullingLagBytes(long pullingLagBytes) {
+        this.pullingLagBytes = pullingLagBytes;
+    }
+
+
     public int getMsgCount4Commercial() {
         return msgCount4Commercial;
     }
@@ -19,6 +19,9 @@ package com.alibaba.rocketmq.store;
 import com.alibaba.rocketmq.common.UtilAll;
 import com.alibaba.rocketmq.common.constant.LoggerName;
 import com.alibaba.rocketmq.store.config.FlushDiskType;
+import com.sun.jna.Native;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -68,7 +71,16 @@ public class MapedFile extends ReferenceResource {
     private final MappedByteBuffer mappedByteBuffer;
     private final AtomicInteger wrotePostion = new AtomicInteger(0);
     private final AtomicInteger committedPosition = new AtomicInteger(0);
+    /**
+     * 堆外缓冲区中已经写入FileChannel的位置，只有使用TransientStorePool时才有意义
+     */
+    private final AtomicInteger writeBufferCommittedPosition = new AtomicInteger(0);
     private FileChannel fileChannel;
+    /**
+     * Message will put to here first, and then reput to FileChannel if writeBuffer is not null.
+     */
+    private volatile ByteBuffer writeBuffer = null;
+    private TransientStorePool transientStorePool = null;
     private volatile long storeTimestamp = 0;
     private boolean firstCreateInQueue = false;
 
@@ -107,6 +119,16 @@ public class MapedFile extends ReferenceResource {
     }
 
 
+    public MapedFile(final String fileName, final int fileSize, final TransientStorePool transientStorePool) throws IOException {
+        this(fileName, fileSize);
+        this.transientStorePool = transientStorePool;
+        this.writeBuffer = transientStorePool.borrowBuffer();
+        if (null == this.writeBuffer) {
+            log.warn("transient store pool exhausted, " + this.fileName + " falls back to write mapped buffer directly");
+        }
+    }
+
+
     public static void ensureDirOK(final String dirName) {
         if (dirName != null) {
             File f = new File(dirName);
@@ -229,20 +251,37 @@ public class MapedFile extends ReferenceResource {
     }
 
     public AppendMessageResult appendMessage(final Object msg, final AppendMessageCallback cb) {
+        return this.appendMessagesInner(msg, cb);
+    }
+
+
+    /**
+     * 批量写入消息，整批消息要么都写入当前文件，要么都不写入
+     */
+    public AppendMessageResult appendMessages(final MessageExtBatch messageExtBatch, final AppendMessageCallback cb) {
+        return this.appendMessagesInner(messageExtBatch, cb);
+    }
+
+
+    private AppendMessageResult appendMessagesInner(final Object msg, final AppendMessageCallback cb) {
         assert msg != null;
         assert cb != null;
 
         int currentPos = this.wrotePostion.get();
 
         if (currentPos < this.fileSize) {
-            ByteBuffer byteBuffer = this.mappedByteBuffer.slice();
+            ByteBuffer byteBuffer = this.writeBuffer != null ? this.writeBuffer.slice() : this.mappedByteBuffer.slice();
             byteBuffer.position(currentPos);
 
             /**
              * 写入消息
              */
-            AppendMessageResult result =
-                    cb.doAppend(this.getFileFromOffset(), byteBuffer, this.fileSize - currentPos, msg);
+            AppendMessageResult result;
+            if (msg instanceof MessageExtBatch) {
+                result = cb.doAppend(this.getFileFromOffset(), byteBuffer, this.fileSize - currentPos, (MessageExtBatch) msg);
+            } else {
+                result = cb.doAppend(this.getFileFromOffset(), byteBuffer, this.fileSize - currentPos, msg);
+            }
 
             this.wrotePostion.addAndGet(result.getWroteBytes());
 
@@ -263,7 +302,7 @@ public class MapedFile extends ReferenceResource {
         int currentPos = this.wrotePostion.get();
 
         if ((currentPos + data.length) <= this.fileSize) {
-            ByteBuffer byteBuffer = this.mappedByteBuffer.slice();
+            ByteBuffer byteBuffer = this.writeBuffer != null ? this.writeBuffer.slice() : this.mappedByteBuffer.slice();
             byteBuffer.position(currentPos);
             byteBuffer.put(data);
             this.wrotePostion.addAndGet(data.length);
@@ -287,11 +326,19 @@ public class MapedFile extends ReferenceResource {
              */
             if (this.hold()) {
 
-                //写的位置
-                int value = this.wrotePostion.get();
+                //可读的位置，使用堆外缓冲区时只有已经提交到FileChannel的数据才需要刷盘
+                int value = this.getReadPosition();
 
                 //刷盘
-                this.mappedByteBuffer.force();
+                try {
+                    if (this.transientStorePool != null) {
+                        this.fileChannel.force(false);
+                    } else {
+                        this.mappedByteBuffer.force();
+                    }
+                } catch (IOException e) {
+                    log.error("Error occurred when force data to disk.", e);
+                }
 
                 //更新刷盘位置到写的位置
                 this.committedPosition.set(value);
@@ -302,7 +349,7 @@ public class MapedFile extends ReferenceResource {
                 this.release();
             } else {
                 log.warn("in commit, hold failed, commit offset = " + this.committedPosition.get());
-                this.committedPosition.set(this.wrotePostion.get());
+                this.committedPosition.set(this.getReadPosition());
             }
         }
 
@@ -310,6 +357,89 @@ public class MapedFile extends ReferenceResource {
     }
 
 
+    /**
+     * 把堆外缓冲区中的数据写入FileChannel
+     *
+     * @param commitLeastPages 最少提交页数
+     * @return 返回当前已经提交的位置
+     */
+    public int commitWriteBuffer(final int commitLeastPages) {
+        if (this.writeBuffer == null) {
+            // no need to commit data to file channel, so just regard wrotePostion as committed
+            return this.wrotePostion.get();
+        }
+
+        if (this.isAbleToCommitWriteBuffer(commitLeastPages)) {
+            if (this.hold()) {
+                int lastCommittedPosition = this.writeBufferCommittedPosition.get();
+                int writePos = this.wrotePostion.get();
+                if (writePos > lastCommittedPosition) {
+                    try {
+                        ByteBuffer byteBuffer = this.writeBuffer.slice();
+                        byteBuffer.position(lastCommittedPosition);
+                        byteBuffer.limit(writePos);
+                        int position = lastCommittedPosition;
+                        while (byteBuffer.hasRemaining()) {
+                            position += this.fileChannel.write(byteBuffer, position);
+                        }
+                        this.writeBufferCommittedPosition.set(writePos);
+                    } catch (IOException e) {
+                        log.error("Error occurred when commit data to FileChannel.", e);
+                    }
+                }
+                this.release();
+            } else {
+                log.warn("in commitWriteBuffer, hold failed, commit offset = " + this.writeBufferCommittedPosition.get());
+            }
+        }
+
+        // All dirty data has been committed to FileChannel.
+        if (this.writeBuffer != null && this.fileSize == this.writeBufferCommittedPosition.get()) {
+            this.transientStorePool.returnBuffer(this.writeBuffer);
+            this.writeBuffer = null;
+        }
+
+        return this.writeBufferCommittedPosition.get();
+    }
+
+
+    private boolean isAbleToCommitWriteBuffer(final int commitLeastPages) {
+        int commit = this.writeBufferCommittedPosition.get();
+        int write = this.wrotePostion.get();
+
+        if (this.isFull()) {
+            return true;
+        }
+
+        if (commitLeastPages > 0) {
+            return ((write / OS_PAGE_SIZE) - (commit / OS_PAGE_SIZE)) >= commitLeastPages;
+        }
+
+        return write > commit;
+    }
+
+
+    /**
+     * 可以被读取的位置
+     * 使用堆外缓冲区时，只有提交到FileChannel的数据才能通过mappedByteBuffer读取到
+     *
+     * @return
+     */
+    public int getReadPosition() {
+        return this.writeBuffer == null ? this.wrotePostion.get() : this.writeBufferCommittedPosition.get();
+    }
+
+
+    public int getWriteBufferCommittedPosition() {
+        return writeBufferCommittedPosition.get();
+    }
+
+
+    public void setWriteBufferCommittedPosition(int pos) {
+        this.writeBufferCommittedPosition.set(pos);
+    }
+
+
     public int getCommittedPosition() {
         return committedPosition.get();
     }
@@ -328,10 +458,10 @@ public class MapedFile extends ReferenceResource {
      */
     private boolean isAbleToFlush(final int flushLeastPages) {
         int flush = this.committedPosition.get();
-        int write = this.wrotePostion.get();
+        int write = this.getReadPosition();
 
-        // 如果当前文件已经写满了，允许刷盘
-        if (this.isFull()) {
+        // 如果当前文件已经写满并且全部可读，允许刷盘
+        if (this.fileSize == write) {
             return true;
         }
 
@@ -362,7 +492,7 @@ public class MapedFile extends ReferenceResource {
      * @return
      */
     public SelectMapedBufferResult selectMapedBuffer(int pos, int size) {
-        if ((pos + size) <= this.wrotePostion.get()) {
+        if ((pos + size) <= this.getReadPosition()) {
             if (this.hold()) {
                 ByteBuffer byteBuffer = this.mappedByteBuffer.slice();
                 byteBuffer.position(pos);
@@ -382,13 +512,14 @@ public class MapedFile extends ReferenceResource {
     }
 
     public SelectMapedBufferResult selectMapedBuffer(int pos) {
-        if (pos < this.wrotePostion.get() && pos >= 0) {
+        int readPosition = this.getReadPosition();
+        if (pos < readPosition && pos >= 0) {
             if (this.hold()) {
 
                 ByteBuffer byteBuffer = this.mappedByteBuffer.slice();
                 byteBuffer.position(pos);
 
-                int size = this.wrotePostion.get() - pos;
+                int size = readPosition - pos;
 
                 ByteBuffer byteBufferNew = byteBuffer.slice();
                 byteBufferNew.limit(size);
@@ -422,6 +553,10 @@ public class MapedFile extends ReferenceResource {
         }
 
         clean(this.mappedByteBuffer);
+        if (this.writeBuffer != null) {
+            this.transientStorePool.returnBuffer(this.writeBuffer);
+            this.writeBuffer = null;
+        }
         TotalMapedVitualMemory.addAndGet(this.fileSize * (-1));
         TotalMapedFiles.decrementAndGet();
         log.info("unmap file[REF:" + currentRef + "] " + this.fileName + " OK");
@@ -511,6 +646,41 @@ public class MapedFile extends ReferenceResource {
     }
 
 
+    /**
+     * 预读[pos, pos + size)到PageCache，madvise不可用时逐页读取一个字节
+     *
+     * @return 是否通过madvise完成
+     */
+    public boolean prefetch(final int pos, final int size, final boolean madvise) {
+        final int end = Math.min(pos + size, this.fileSize);
+        final int alignedPos = pos - pos % OS_PAGE_SIZE;
+        if (end <= alignedPos || !this.hold()) {
+            return false;
+        }
+
+        try {
+            if (madvise) {
+                try {
+                    Pointer pointer = Native.getDirectBufferPointer(this.mappedByteBuffer).share(alignedPos);
+                    if (LibC.INSTANCE.madvise(pointer, new NativeLong(end - alignedPos), LibC.MADV_WILLNEED) == 0) {
+                        return true;
+                    }
+                } catch (Throwable e) {
+                    log.warn("madvise " + this.fileName + " failed, touch pages instead. " + e);
+                }
+            }
+
+            ByteBuffer byteBuffer = this.mappedByteBuffer.slice();
+            for (int i = alignedPos; i < end; i += OS_PAGE_SIZE) {
+                byteBuffer.get(i);
+            }
+            return false;
+        } finally {
+            this.release();
+        }
+    }
+
+
     public int getWrotePostion() {
         return wrotePostion.get();
     }
@@ -48,6 +48,10 @@ public class MapedFileQueue {
     private final ReadWriteLock readWriteLock = new ReentrantReadWriteLock();
     private final AllocateMapedFileService allocateMapedFileService;
     private long committedWhere = 0;
+    /**
+     * 堆外缓冲区已经提交到FileChannel的位置
+     */
+    private long writeBufferCommittedWhere = 0;
     private volatile long storeTimestamp = 0;
 
     public MapedFileQueue(final String storePath, int mapedFileSize,
@@ -116,7 +120,7 @@ public class MapedFileQueue {
     }
 
 
-    private Object[] copyMapedFiles(final int reservedMapedFiles) {
+    Object[] copyMapedFiles(final int reservedMapedFiles) {
         Object[] mfs = null;
 
         try {
@@ -143,6 +147,7 @@ public class MapedFileQueue {
                 if (offset >= file.getFileFromOffset()) {
                     file.setWrotePostion((int) (offset % this.mapedFileSize));
                     file.setCommittedPosition((int) (offset % this.mapedFileSize));
+                    file.setWriteBufferCommittedPosition((int) (offset % this.mapedFileSize));
                 } else {
                     file.destroy(1000);
                     willRemoveFiles.add(file);
@@ -190,6 +195,7 @@ public class MapedFileQueue {
 
                     mapedFile.setWrotePostion(this.mapedFileSize);
                     mapedFile.setCommittedPosition(this.mapedFileSize);
+                    mapedFile.setWriteBufferCommittedPosition(this.mapedFileSize);
                     this.mapedFiles.add(mapedFile);
                     log.info("load " + file.getPath() + " OK");
                 } catch (IOException e) {
@@ -323,7 +329,7 @@ public class MapedFileQueue {
             if (!this.mapedFiles.isEmpty()) {
                 int lastIndex = this.mapedFiles.size() - 1;
                 MapedFile mapedFile = this.mapedFiles.get(lastIndex);
-                return mapedFile.getFileFromOffset() + mapedFile.getWrotePostion();
+                return mapedFile.getFileFromOffset() + mapedFile.getReadPosition();
             }
         } catch (Exception e) {
             log.error("getMinOffset has exception.", e);
@@ -363,6 +369,20 @@ public class MapedFileQueue {
                                        final int deleteFilesInterval, //
                                        final long intervalForcibly,//
                                        final boolean cleanImmediately//
+    ) {
+        return this.deleteExpiredFileByTime(expiredTime, deleteFilesInterval, intervalForcibly, cleanImmediately, Long.MAX_VALUE);
+    }
+
+
+    /**
+     * @param maxDeletableOffset 只删除结束位置不超过该值的文件
+     */
+    public int deleteExpiredFileByTime(//
+                                       final long expiredTime, //
+                                       final int deleteFilesInterval, //
+                                       final long intervalForcibly,//
+                                       final boolean cleanImmediately,//
+                                       final long maxDeletableOffset//
     ) {
         Object[] mfs = this.copyMapedFiles(0);
 
@@ -381,6 +401,9 @@ public class MapedFileQueue {
                  * 将要被删除的文件
                  */
                 MapedFile mapedFile = (MapedFile) mfs[i];
+                if (mapedFile.getFileFromOffset() + mapedFile.getFileSize() > maxDeletableOffset) {
+                    break;
+                }
 
                 /**
                  * 最大存活时间
@@ -507,6 +530,36 @@ public class MapedFileQueue {
         return deleteCount;
     }
 
+    /**
+     * 删除文件尾小于等于offset的文件，最后一个文件保留
+     *
+     * @param offset 仍在使用的最小位置
+     * @return 删除的文件个数
+     */
+    public int deleteFilesBeforeOffset(long offset) {
+        Object[] mfs = this.copyMapedFiles(0);
+
+        List<MapedFile> files = new ArrayList<MapedFile>();
+        int deleteCount = 0;
+        if (null != mfs) {
+            int mfsLength = mfs.length - 1;
+            for (int i = 0; i < mfsLength && deleteCount < DeleteFilesBatchMax; i++) {
+                MapedFile mapedFile = (MapedFile) mfs[i];
+                if (mapedFile.getFileFromOffset() + this.mapedFileSize <= offset && mapedFile.destroy(1000 * 60)) {
+                    files.add(mapedFile);
+                    deleteCount++;
+                } else {
+                    break;
+                }
+            }
+        }
+
+        deleteExpiredFile(files);
+
+        return deleteCount;
+    }
+
+
     /**
      * 刷盘
      *
@@ -539,6 +592,29 @@ public class MapedFileQueue {
         return result;
     }
 
+    /**
+     * 把堆外缓冲区中的数据提交到FileChannel
+     *
+     * @param commitLeastPages 最少提交页数
+     * @return 没有新数据被提交时返回true
+     */
+    public boolean commitWriteBuffer(final int commitLeastPages) {
+        boolean result = true;
+
+        MapedFile mapedFile = this.findMapedFileByOffset(this.writeBufferCommittedWhere, true);
+
+        if (mapedFile != null) {
+            int offset = mapedFile.commitWriteBuffer(commitLeastPages);
+
+            long where = mapedFile.getFileFromOffset() + offset;
+
+            result = (where == this.writeBufferCommittedWhere);
+            this.writeBufferCommittedWhere = where;
+        }
+
+        return result;
+    }
+
     /**
      * 根据Offset找到Offset所在的MapedFile
      *
@@ -684,6 +760,7 @@ public class MapedFileQueue {
         }
         this.mapedFiles.clear();
         this.committedWhere = 0;
+        this.writeBufferCommittedWhere = 0;
 
         // delete parent directory
         File file = new File(storePath);
@@ -704,6 +781,16 @@ public class MapedFileQueue {
     }
 
 
+    public long getWriteBufferCommittedWhere() {
+        return writeBufferCommittedWhere;
+    }
+
+
+    public void setWriteBufferCommittedWhere(long writeBufferCommittedWhere) {
+        this.writeBufferCommittedWhere = writeBufferCommittedWhere;
+    }
+
+
     public long getStoreTimestamp() {
         return storeTimestamp;
     }
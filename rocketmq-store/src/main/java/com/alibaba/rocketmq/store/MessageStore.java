@@ -18,6 +18,7 @@ package com.alibaba.rocketmq.store;
 
 import com.alibaba.rocketmq.common.message.MessageExt;
 import com.alibaba.rocketmq.common.protocol.heartbeat.SubscriptionData;
+import com.alibaba.rocketmq.store.index.QueryPropertyIndexResult;
 
 import java.net.SocketAddress;
 import java.util.HashMap;
@@ -40,6 +41,15 @@ public interface MessageStore {
 
     PutMessageResult putMessage(final MessageExtBrokerInner msg);
 
+    PutMessageResult putMessages(final MessageExtBatch messageExtBatch);
+
+    /**
+     * 异步存储消息，同步刷盘时不阻塞调用线程，刷盘完成后回调
+     */
+    void asyncPutMessage(final MessageExtBrokerInner msg, final PutMessageCallback callback);
+
+    void asyncPutMessages(final MessageExtBatch messageExtBatch, final PutMessageCallback callback);
+
 
     GetMessageResult getMessage(final String group, final String topic, final int queueId,
                                 final long offset, final int maxMsgNums, final SubscriptionData subscriptionData);
@@ -88,6 +98,10 @@ public interface MessageStore {
     QueryMessageResult queryMessage(final String topic, final String key, final int maxNum,
                                     final long begin, final long end);
 
+    QueryPropertyIndexResult queryMessageByProperty(final String topic, final String propertyKey, final String beginValue,
+                                                    final String endValue, final boolean prefix, final int maxNum,
+                                                    final long begin, final long end);
+
     void updateHaMasterAddress(final String newAddr);
 
     long slaveFallBehindMuch();
@@ -103,5 +117,11 @@ public interface MessageStore {
 
     boolean checkInDiskByConsumeOffset(final String topic, final int queueId, long consumeOffset);
 
+    /**
+     * 按队列积压条数乘以Topic平均消息大小粗略估计数据是否已不在内存中，只统计本队列的积压，结果偏向于判断为在内存中。
+     * 没有该Topic的写入统计时（重启后、只回放的Topic）读一条ConsumeQueue记录按物理offset判断。可以在网络IO线程上调用
+     */
+    boolean estimateInDiskByConsumeOffset(final String topic, final int queueId, long consumeOffset);
+
     long dispatchBehindBytes();
 }
@@ -74,6 +74,12 @@ public class StoreStatsService extends ServiceThread {
      */
     private final AtomicLong getMessageTimesTotalMiss = new AtomicLong(0);
 
+    /**
+     * 标签过滤时逐条扫描、按Bloom过滤器整块跳过的ConsumeQueue记录数
+     */
+    private final AtomicLong getMessageFilterScannedUnits = new AtomicLong(0);
+    private final AtomicLong getMessageFilterSkippedUnits = new AtomicLong(0);
+
     /**
      * PUT消息耗时矩阵
      * 根据时间的不同区间分为不同的段，统计PUT耗时在每一段时间的出现次数
@@ -443,6 +449,19 @@ public class StoreStatsService extends ServiceThread {
     }
 
 
+    /**
+     * Topic的平均消息大小，没有统计数据时返回-1
+     */
+    public long getPutMessageAverageSize(final String topic) {
+        AtomicLong times = putMessageTopicTimesTotal.get(topic);
+        AtomicLong size = putMessageTopicSizeTotal.get(topic);
+        if (null == times || null == size || times.get() <= 0) {
+            return -1;
+        }
+        return size.get() / times.get();
+    }
+
+
     public HashMap<String, String> getRuntimeInfo() {
         HashMap<String, String> result = new HashMap<String, String>(64);
 
@@ -479,6 +498,8 @@ public class StoreStatsService extends ServiceThread {
         result.put("getMissTps", String.valueOf(this.getGetMissTps()));
         result.put("getTotalTps", String.valueOf(this.getGetTotalTps()));
         result.put("getTransferedTps", String.valueOf(this.getGetTransferedTps()));
+        result.put("getMessageFilterScannedUnits", String.valueOf(this.getMessageFilterScannedUnits.get()));
+        result.put("getMessageFilterSkippedUnits", String.valueOf(this.getMessageFilterSkippedUnits.get()));
 
         return result;
     }
@@ -546,6 +567,9 @@ public class StoreStatsService extends ServiceThread {
             log.info("get_miss_tps {}", this.getGetMissTps(PrintTPSInterval));
 
             log.info("get_transfered_tps {}", this.getGetTransferedTps(PrintTPSInterval));
+
+            log.info("get_filter_scanned_units {} get_filter_skipped_units {}", this.getMessageFilterScannedUnits.get(),
+                    this.getMessageFilterSkippedUnits.get());
         }
     }
 
@@ -571,6 +595,16 @@ public class StoreStatsService extends ServiceThread {
     }
 
 
+    public AtomicLong getGetMessageFilterScannedUnits() {
+        return getMessageFilterScannedUnits;
+    }
+
+
+    public AtomicLong getGetMessageFilterSkippedUnits() {
+        return getMessageFilterSkippedUnits;
+    }
+
+
     public AtomicLong getPutMessageFailedTimes() {
         return putMessageFailedTimes;
     }
@@ -0,0 +1,109 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store;
+
+import com.alibaba.rocketmq.common.constant.LoggerName;
+import com.alibaba.rocketmq.store.config.MessageStoreConfig;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.LinkedBlockingDeque;
+
+
+/**
+ * 预分配并锁定在内存中的堆外缓冲区池
+ * 消息先写入池中的缓冲区，再由CommitRealTimeService批量写入FileChannel，
+ * 避免PageCache回写时阻塞写消息线程
+ */
+public class TransientStorePool {
+    private static final Logger log = LoggerFactory.getLogger(LoggerName.StoreLoggerName);
+
+    private final int poolSize;
+    private final int fileSize;
+    private final LinkedBlockingDeque<ByteBuffer> availableBuffers;
+
+
+    public TransientStorePool(final MessageStoreConfig storeConfig) {
+        this.poolSize = storeConfig.getTransientStorePoolSize();
+        this.fileSize = storeConfig.getMapedFileSizeCommitLog();
+        this.availableBuffers = new LinkedBlockingDeque<ByteBuffer>();
+    }
+
+
+    /**
+     * It's a heavy init method.
+     */
+    public void init() {
+        for (int i = 0; i < this.poolSize; i++) {
+            ByteBuffer byteBuffer = ByteBuffer.allocateDirect(this.fileSize);
+
+            try {
+                Pointer pointer = Native.getDirectBufferPointer(byteBuffer);
+                int ret = LibC.INSTANCE.mlock(pointer, new NativeLong(this.fileSize));
+                if (ret != 0) {
+                    log.warn("mlock transient store buffer failed, ret={}, check the memlock ulimit", ret);
+                }
+            } catch (Throwable e) {
+                log.warn("mlock transient store buffer exception", e);
+            }
+
+            this.availableBuffers.offer(byteBuffer);
+        }
+
+        log.info("transient store pool init OK, poolSize={} fileSize={}", this.poolSize, this.fileSize);
+    }
+
+
+    public void destroy() {
+        for (ByteBuffer byteBuffer : this.availableBuffers) {
+            try {
+                Pointer pointer = Native.getDirectBufferPointer(byteBuffer);
+                LibC.INSTANCE.munlock(pointer, new NativeLong(this.fileSize));
+            } catch (Throwable e) {
+                log.warn("munlock transient store buffer exception", e);
+            }
+        }
+    }
+
+
+    public void returnBuffer(ByteBuffer byteBuffer) {
+        byteBuffer.position(0);
+        byteBuffer.limit(this.fileSize);
+        this.availableBuffers.offerFirst(byteBuffer);
+    }
+
+
+    /**
+     * @return null if the pool is exhausted, the caller then writes to the mapped file directly
+     */
+    public ByteBuffer borrowBuffer() {
+        ByteBuffer buffer = this.availableBuffers.pollFirst();
+        if (this.availableBuffers.size() < this.poolSize * 0.4) {
+            log.warn("TransientStorePool only remain {} sheets.", this.availableBuffers.size());
+        }
+        return buffer;
+    }
+
+
+    public int remainBufferNums() {
+        return this.availableBuffers.size();
+    }
+}
@@ -127,6 +127,8 @@ public class MessageStoreConfig {
     @ImportantField
     private FlushDiskType flushDiskType = FlushDiskType.ASYNC_FLUSH;
     private int syncFlushTimeout = 1000 * 5;
+    // Threads running asyncPutMessage callbacks, so responses and hooks never run on the flush or HA threads
+    private int putMessageCompletionThreadNums = 4;
     private String messageDelayLevel = "1s 5s 10s 30s 1m 2m 3m 4m 5m 6m 7m 8m 9m 10m 20m 30m 1h 2h";
     private long flushDelayOffsetInterval = 1000 * 10;
 
@@ -142,6 +144,101 @@ public class MessageStoreConfig {
     private boolean warmMapedFileEnable = false;
     private boolean offsetCheckInSlave = false;
     private boolean diskFallRecorded = true;
+    // Use a parking ReentrantLock when putting message, false switches to the CAS spin lock. The critical
+    // section may create the next mapped file when the pre-allocated one is not ready, so spinning is opt-in
+    private boolean useReentrantLockWhenPutMessage = true;
+
+    /**
+     * 写消息先进入堆外缓冲区，再批量提交到FileChannel，只在ASYNC_FLUSH的Master上生效
+     * 每个缓冲区大小等于CommitLog文件大小，注意调整-XX:MaxDirectMemorySize与memlock限制
+     */
+    @ImportantField
+    private boolean transientStorePoolEnable = false;
+    private int transientStorePoolSize = 5;
+    // How often the transient store buffer is committed to the FileChannel
+    private int commitIntervalCommitLog = 200;
+    // How many pages are to be committed when commit the transient store buffer
+    private int commitCommitLogLeastPages = 4;
+    private int commitCommitLogThoroughInterval = 200;
+    /**
+     * 并行分发：ReputMessageService只负责解析，ConsumeQueue按topic-queueId分片交给多个线程构建，
+     * 索引由单独的线程构建，同一队列内顺序不变
+     */
+    private boolean parallelDispatchEnable = false;
+    private int dispatchConsumeQueueThreadNums = 4;
+    // Max dispatch requests buffered per stage thread, the parser blocks when the window is full
+    private int dispatchMaxInFlight = 4096;
+    // Max time(ms) ReputMessageService waits when idle, it is woken up as soon as new messages are appended
+    private int reputMaxIdleInterval = 10;
+    /**
+     * 任意时间定时消息：消息属性TIMER_DELIVER_MS指定投递时间，由分层时间轮驱动，
+     * 关闭时该属性被忽略，消息立即投递
+     */
+    @ImportantField
+    private boolean timerWheelEnable = false;
+    // Tick of the lowest wheel level, delivery is never early and at most one tick late
+    private int timerPrecisionMs = 1000;
+    // Slots per wheel level, level n ticks cover one full turn of level n-1
+    private int timerWheelSlots = 3600;
+    // Longer delays are clamped to this value, and to half of fileReservedTime so that the CommitLog
+    // holding a pending timer message is never deleted before it is delivered
+    private long timerMaxDelaySec = 24 * 3600;
+    // TimerLog file size, must be a multiple of the 28 bytes timer unit
+    private int timerLogFileSize = 28 * 1024 * 1024;
+    // Threads delivering the due messages of one tick in parallel, 1 delivers them on the dequeue thread
+    private int timerDeliverThreadNums = 4;
+    /**
+     * 为ConsumeQueue维护逐条对齐的存储时间索引，按时间查找队列位置时不再随机读CommitLog，默认关闭
+     */
+    private boolean consumeQueueTimeIndexEnable = false;
+    /**
+     * 为ConsumeQueue维护按块划分的标签Bloom过滤器，Broker端标签过滤时整块跳过不匹配的记录
+     */
+    private boolean consumeQueueTagBloomEnable = true;
+    // ConsumeQueue units covered by one bloom filter
+    private int consumeQueueTagBloomBlockUnits = 32;
+    // Max dispatch requests written to the IndexFile in one batch by the parallel dispatch index stage
+    private int indexBuildBatchSize = 256;
+    // Threads used to query several index files in parallel, 1 means query them one by one
+    private int indexQueryThreadNums = 4;
+    // User properties indexed per topic, format: TopicA:orderId,userId;TopicB:orderId
+    private String propertyIndexTopics = "";
+    // Property index entries kept in memory before being written to a sorted segment file
+    private int propertyIndexMemtableMaxEntries = 200000;
+    // Property index memtable is written to disk at least once per interval
+    private int propertyIndexFlushInterval = 1000 * 60;
+    // Small adjacent property index segments are merged until a segment holds this many entries
+    private int propertyIndexSegmentMaxEntries = 2000000;
+    // Beyond this many segment files the smallest adjacent pair is merged regardless of size
+    private int propertyIndexMaxSegments = 64;
+    // Upload sealed CommitLog files to cold storage and keep reading them after local deletion
+    private boolean tieredStorageEnable = false;
+    // Implementation of com.alibaba.rocketmq.store.tiered.ColdStorage
+    private String tieredColdStorageClass = "com.alibaba.rocketmq.store.tiered.LocalFileColdStorage";
+    // Directory or bucket used by the cold storage, empty means <storePathRootDir>/coldcommitlog
+    private String tieredColdStoragePath = "";
+    // Cold files are kept this many hours after upload
+    private int tieredFileReservedTime = 24 * 14;
+    // Cold storage is read in aligned blocks of this size
+    private int tieredReadBlockSize = 1024 * 1024;
+    // Blocks cached in heap for cold reads
+    private int tieredReadCacheBlocks = 32;
+    // Blocks prefetched asynchronously after each cold read
+    private int tieredReadAheadBlocks = 2;
+    // Prefetch upcoming CommitLog ranges into the page cache for sequential consumers reading data not in memory
+    private boolean coldReadPrefetchEnable = true;
+    // CommitLog bytes prefetched ahead of a catch-up consumer each time
+    private int coldReadPrefetchSize = 1024 * 1024 * 4;
+    // Consecutive sequential cold pulls of a queue before it is prefetched
+    private int coldReadPrefetchSequentialHits = 2;
+    // Use madvise(MADV_WILLNEED), otherwise touch one byte per page in the prefetch thread
+    private boolean coldReadPrefetchMadviseEnable = true;
+    // CompressedFileColdStorage compresses sealed CommitLog files in independent blocks of this size
+    private int tieredCompressBlockSize = 1024 * 256;
+    // Deflater level used by CompressedFileColdStorage
+    private int tieredCompressLevel = 5;
+    // ColdStorage that CompressedFileColdStorage stores the compressed files in
+    private String tieredCompressDelegateClass = "com.alibaba.rocketmq.store.tiered.LocalFileColdStorage";
 
     public boolean isDiskFallRecorded() {
         return diskFallRecorded;
@@ -553,6 +650,16 @@ public class MessageStoreConfig {
     }
 
 
+    public int getPutMessageCompletionThreadNums() {
+        return putMessageCompletionThreadNums;
+    }
+
+
+    public void setPutMessageCompletionThreadNums(int putMessageCompletionThreadNums) {
+        this.putMessageCompletionThreadNums = putMessageCompletionThreadNums;
+    }
+
+
     public String getHaMasterAddress() {
         return haMasterAddress;
     }
@@ -644,4 +751,408 @@ public class MessageStoreConfig {
     public void setOffsetCheckInSlave(boolean offsetCheckInSlave) {
         this.offsetCheckInSlave = offsetCheckInSlave;
     }
+
+
+    public boolean isUseReentrantLockWhenPutMessage() {
+        return useReentrantLockWhenPutMessage;
+    }
+
+
+    public void setUseReentrantLockWhenPutMessage(boolean useReentrantLockWhenPutMessage) {
+        this.useReentrantLockWhenPutMessage = useReentrantLockWhenPutMessage;
+    }
+
+
+    /**
+     * 只有异步刷盘的Master才启用堆外缓冲池
+     */
+    public boolean isTransientStorePoolEnable() {
+        return transientStorePoolEnable && FlushDiskType.ASYNC_FLUSH == getFlushDiskType()
+                && BrokerRole.SLAVE != getBrokerRole();
+    }
+
+
+    public void setTransientStorePoolEnable(boolean transientStorePoolEnable) {
+        this.transientStorePoolEnable = transientStorePoolEnable;
+    }
+
+
+    public int getTransientStorePoolSize() {
+        return transientStorePoolSize;
+    }
+
+
+    public void setTransientStorePoolSize(int transientStorePoolSize) {
+        this.transientStorePoolSize = transientStorePoolSize;
+    }
+
+
+    public int getCommitIntervalCommitLog() {
+        return commitIntervalCommitLog;
+    }
+
+
+    public void setCommitIntervalCommitLog(int commitIntervalCommitLog) {
+        this.commitIntervalCommitLog = commitIntervalCommitLog;
+    }
+
+
+    public int getCommitCommitLogLeastPages() {
+        return commitCommitLogLeastPages;
+    }
+
+
+    public void setCommitCommitLogLeastPages(int commitCommitLogLeastPages) {
+        this.commitCommitLogLeastPages = commitCommitLogLeastPages;
+    }
+
+
+    public int getCommitCommitLogThoroughInterval() {
+        return commitCommitLogThoroughInterval;
+    }
+
+
+    public void setCommitCommitLogThoroughInterval(int commitCommitLogThoroughInterval) {
+        this.commitCommitLogThoroughInterval = commitCommitLogThoroughInterval;
+    }
+
+
+    public boolean isParallelDispatchEnable() {
+        return parallelDispatchEnable;
+    }
+
+
+    public void setParallelDispatchEnable(boolean parallelDispatchEnable) {
+        this.parallelDispatchEnable = parallelDispatchEnable;
+    }
+
+
+    public int getDispatchConsumeQueueThreadNums() {
+        return dispatchConsumeQueueThreadNums;
+    }
+
+
+    public void setDispatchConsumeQueueThreadNums(int dispatchConsumeQueueThreadNums) {
+        this.dispatchConsumeQueueThreadNums = dispatchConsumeQueueThreadNums;
+    }
+
+
+    public int getDispatchMaxInFlight() {
+        return dispatchMaxInFlight;
+    }
+
+
+    public void setDispatchMaxInFlight(int dispatchMaxInFlight) {
+        this.dispatchMaxInFlight = dispatchMaxInFlight;
+    }
+
+
+    public int getReputMaxIdleInterval() {
+        return reputMaxIdleInterval;
+    }
+
+
+    public void setReputMaxIdleInterval(int reputMaxIdleInterval) {
+        this.reputMaxIdleInterval = reputMaxIdleInterval;
+    }
+
+
+    public boolean isTimerWheelEnable() {
+        return timerWheelEnable;
+    }
+
+
+    public void setTimerWheelEnable(boolean timerWheelEnable) {
+        this.timerWheelEnable = timerWheelEnable;
+    }
+
+
+    public int getTimerPrecisionMs() {
+        return timerPrecisionMs;
+    }
+
+
+    public void setTimerPrecisionMs(int timerPrecisionMs) {
+        this.timerPrecisionMs = timerPrecisionMs;
+    }
+
+
+    public int getTimerWheelSlots() {
+        return timerWheelSlots;
+    }
+
+
+    public void setTimerWheelSlots(int timerWheelSlots) {
+        this.timerWheelSlots = timerWheelSlots;
+    }
+
+
+    public long getTimerMaxDelaySec() {
+        return timerMaxDelaySec;
+    }
+
+
+    public void setTimerMaxDelaySec(long timerMaxDelaySec) {
+        this.timerMaxDelaySec = timerMaxDelaySec;
+    }
+
+
+    public int getTimerLogFileSize() {
+        return timerLogFileSize;
+    }
+
+
+    public void setTimerLogFileSize(int timerLogFileSize) {
+        this.timerLogFileSize = timerLogFileSize;
+    }
+
+
+    public int getTimerDeliverThreadNums() {
+        return timerDeliverThreadNums;
+    }
+
+
+    public void setTimerDeliverThreadNums(int timerDeliverThreadNums) {
+        this.timerDeliverThreadNums = timerDeliverThreadNums;
+    }
+
+
+    public boolean isConsumeQueueTimeIndexEnable() {
+        return consumeQueueTimeIndexEnable;
+    }
+
+
+    public void setConsumeQueueTimeIndexEnable(boolean consumeQueueTimeIndexEnable) {
+        this.consumeQueueTimeIndexEnable = consumeQueueTimeIndexEnable;
+    }
+
+
+    public boolean isConsumeQueueTagBloomEnable() {
+        return consumeQueueTagBloomEnable;
+    }
+
+
+    public void setConsumeQueueTagBloomEnable(boolean consumeQueueTagBloomEnable) {
+        this.consumeQueueTagBloomEnable = consumeQueueTagBloomEnable;
+    }
+
+
+    public int getConsumeQueueTagBloomBlockUnits() {
+        return consumeQueueTagBloomBlockUnits;
+    }
+
+
+    public void setConsumeQueueTagBloomBlockUnits(int consumeQueueTagBloomBlockUnits) {
+        this.consumeQueueTagBloomBlockUnits = consumeQueueTagBloomBlockUnits;
+    }
+
+
+    public int getIndexBuildBatchSize() {
+        return indexBuildBatchSize;
+    }
+
+
+    public void setIndexBuildBatchSize(int indexBuildBatchSize) {
+        this.indexBuildBatchSize = indexBuildBatchSize;
+    }
+
+
+    public int getIndexQueryThreadNums() {
+        return indexQueryThreadNums;
+    }
+
+
+    public void setIndexQueryThreadNums(int indexQueryThreadNums) {
+        this.indexQueryThreadNums = indexQueryThreadNums;
+    }
+
+
+    public String getPropertyIndexTopics() {
+        return propertyIndexTopics;
+    }
+
+
+    public void setPropertyIndexTopics(String propertyIndexTopics) {
+        this.propertyIndexTopics = propertyIndexTopics;
+    }
+
+
+    public int getPropertyIndexMemtableMaxEntries() {
+        return propertyIndexMemtableMaxEntries;
+    }
+
+
+    public void setPropertyIndexMemtableMaxEntries(int propertyIndexMemtableMaxEntries) {
+        this.propertyIndexMemtableMaxEntries = propertyIndexMemtableMaxEntries;
+    }
+
+
+    public int getPropertyIndexFlushInterval() {
+        return propertyIndexFlushInterval;
+    }
+
+
+    public void setPropertyIndexFlushInterval(int propertyIndexFlushInterval) {
+        this.propertyIndexFlushInterval = propertyIndexFlushInterval;
+    }
+
+
+    public int getPropertyIndexSegmentMaxEntries() {
+        return propertyIndexSegmentMaxEntries;
+    }
+
+
+    public void setPropertyIndexSegmentMaxEntries(int propertyIndexSegmentMaxEntries) {
+        this.propertyIndexSegmentMaxEntries = propertyIndexSegmentMaxEntries;
+    }
+
+
+    public int getPropertyIndexMaxSegments() {
+        return propertyIndexMaxSegments;
+    }
+
+
+    public void setPropertyIndexMaxSegments(int propertyIndexMaxSegments) {
+        this.propertyIndexMaxSegments = propertyIndexMaxSegments;
+    }
+
+
+    public boolean isTieredStorageEnable() {
+        return tieredStorageEnable;
+    }
+
+
+    public void setTieredStorageEnable(boolean tieredStorageEnable) {
+        this.tieredStorageEnable = tieredStorageEnable;
+    }
+
+
+    public String getTieredColdStorageClass() {
+        return tieredColdStorageClass;
+    }
+
+
+    public void setTieredColdStorageClass(String tieredColdStorageClass) {
+        this.tieredColdStorageClass = tieredColdStorageClass;
+    }
+
+
+    public String getTieredColdStoragePath() {
+        return tieredColdStoragePath;
+    }
+
+
+    public void setTieredColdStoragePath(String tieredColdStoragePath) {
+        this.tieredColdStoragePath = tieredColdStoragePath;
+    }
+
+
+    public int getTieredFileReservedTime() {
+        return tieredFileReservedTime;
+    }
+
+
+    public void setTieredFileReservedTime(int tieredFileReservedTime) {
+        this.tieredFileReservedTime = tieredFileReservedTime;
+    }
+
+
+    public int getTieredReadBlockSize() {
+        return tieredReadBlockSize;
+    }
+
+
+    public void setTieredReadBlockSize(int tieredReadBlockSize) {
+        this.tieredReadBlockSize = tieredReadBlockSize;
+    }
+
+
+    public int getTieredReadCacheBlocks() {
+        return tieredReadCacheBlocks;
+    }
+
+
+    public void setTieredReadCacheBlocks(int tieredReadCacheBlocks) {
+        this.tieredReadCacheBlocks = tieredReadCacheBlocks;
+    }
+
+
+    public int getTieredReadAheadBlocks() {
+        return tieredReadAheadBlocks;
+    }
+
+
+    public void setTieredReadAheadBlocks(int tieredReadAheadBlocks) {
+        this.tieredReadAheadBlocks = tieredReadAheadBlocks;
+    }
+
+
+    public boolean isColdReadPrefetchEnable() {
+        return coldReadPrefetchEnable;
+    }
+
+
+    public void setColdReadPrefetchEnable(boolean coldReadPrefetchEnable) {
+        this.coldReadPrefetchEnable = coldReadPrefetchEnable;
+    }
+
+
+    public int getColdReadPrefetchSize() {
+        return coldReadPrefetchSize;
+    }
+
+
+    public void setColdReadPrefetchSize(int coldReadPrefetchSize) {
+        this.coldReadPrefetchSize = coldReadPrefetchSize;
+    }
+
+
+    public int getColdReadPrefetchSequentialHits() {
+        return coldReadPrefetchSequentialHits;
+    }
+
+
+    public void setColdReadPrefetchSequentialHits(int coldReadPrefetchSequentialHits) {
+        this.coldReadPrefetchSequentialHits = coldReadPrefetchSequentialHits;
+    }
+
+
+    public boolean isColdReadPrefetchMadviseEnable() {
+        return coldReadPrefetchMadviseEnable;
+    }
+
+
+    public void setColdReadPrefetchMadviseEnable(boolean coldReadPrefetchMadviseEnable) {
+        this.coldReadPrefetchMadviseEnable = coldReadPrefetchMadviseEnable;
+    }
+
+
+    public int getTieredCompressBlockSize() {
+        return tieredCompressBlockSize;
+    }
+
+
+    public void setTieredCompressBlockSize(int tieredCompressBlockSize) {
+        this.tieredCompressBlockSize = tieredCompressBlockSize;
+    }
+
+
+    public int getTieredCompressLevel() {
+        return tieredCompressLevel;
+    }
+
+
+    public void setTieredCompressLevel(int tieredCompressLevel) {
+        this.tieredCompressLevel = tieredCompressLevel;
+    }
+
+
+    public String getTieredCompressDelegateClass() {
+        return tieredCompressDelegateClass;
+    }
+
+
+    public void setTieredCompressDelegateClass(String tieredCompressDelegateClass) {
+        this.tieredCompressDelegateClass = tieredCompressDelegateClass;
+    }
 }
@@ -26,11 +26,36 @@ public class StorePathConfigHelper {
     }
 
 
+    public static String getStorePathConsumeQueueTimeIndex(final String rootDir) {
+        return rootDir + File.separator + "consumequeue_time";
+    }
+
+
+    public static String getStorePathConsumeQueueTagBloom(final String rootDir) {
+        return rootDir + File.separator + "consumequeue_bloom";
+    }
+
+
     public static String getStorePathIndex(final String rootDir) {
         return rootDir + File.separator + "index";
     }
 
 
+    public static String getStorePathPropertyIndex(final String rootDir) {
+        return rootDir + File.separator + "propertyindex";
+    }
+
+
+    public static String getStorePathColdCommitLog(final String rootDir) {
+        return rootDir + File.separator + "coldcommitlog";
+    }
+
+
+    public static String getStorePathColdStaging(final String rootDir) {
+        return rootDir + File.separator + "coldstaging";
+    }
+
+
     public static String getStoreCheckpoint(final String rootDir) {
         return rootDir + File.separator + "checkpoint";
     }
@@ -46,6 +71,16 @@ public class StorePathConfigHelper {
     }
 
 
+    public static String getStorePathTimerLog(final String rootDir) {
+        return rootDir + File.separator + "timerlog";
+    }
+
+
+    public static String getTimerWheelPath(final String rootDir) {
+        return rootDir + File.separator + "config" + File.separator + "timerwheel";
+    }
+
+
     public static String getTranStateTableStorePath(final String rootDir) {
         return rootDir + File.separator + "transaction" + File.separator + "statetable";
     }
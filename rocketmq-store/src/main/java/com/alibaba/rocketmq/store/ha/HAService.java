@@ -30,8 +30,11 @@ import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
@@ -247,12 +250,23 @@ public class HAService {
     }
 
     /**
-     * GroupTransferService Service
+     * GroupTransferService Service<br>
+     * 同步复制时等待slave确认，slave汇报的offset超过请求的nextOffset后完成请求，
+     * 不阻塞在单个请求上，每个请求按自己的deadLine超时
      */
     class GroupTransferService extends ServiceThread {
-        private final WaitNotifyObject notifyTransferObject = new WaitNotifyObject();
         private volatile List<GroupCommitRequest> requestsWrite = new ArrayList<GroupCommitRequest>();
         private volatile List<GroupCommitRequest> requestsRead = new ArrayList<GroupCommitRequest>();
+        // 等待slave确认的请求，按nextOffset排序
+        private final PriorityQueue<GroupCommitRequest> pendingRequests =
+                new PriorityQueue<GroupCommitRequest>(64, new Comparator<GroupCommitRequest>() {
+                    @Override
+                    public int compare(GroupCommitRequest o1, GroupCommitRequest o2) {
+                        return o1.getNextOffset() < o2.getNextOffset() ? -1 : (o1.getNextOffset() == o2.getNextOffset() ? 0 : 1);
+                    }
+                });
+        // pendingRequests中最早的deadLine
+        private long minDeadLine = Long.MAX_VALUE;
 
 
         public void putRequest(final GroupCommitRequest request) {
@@ -266,8 +280,11 @@ public class HAService {
         }
 
 
+        /**
+         * slave确认的offset前进时调用
+         */
         public void notifyTransferSome() {
-            this.notifyTransferObject.wakeup();
+            this.wakeup();
         }
 
 
@@ -281,23 +298,35 @@ public class HAService {
         private void doWaitTransfer() {
             if (!this.requestsRead.isEmpty()) {
                 for (GroupCommitRequest req : this.requestsRead) {
+                    this.pendingRequests.add(req);
+                    this.minDeadLine = Math.min(this.minDeadLine, req.getDeadLine());
+                }
+                this.requestsRead.clear();
+            }
 
-                    //如果没有传输完成则一直等待
-                    boolean transferOK = HAService.this.push2SlaveMaxOffset.get() >= req.getNextOffset();
-                    for (int i = 0; !transferOK && i < 5; i++) {
-                        this.notifyTransferObject.waitForRunning(1000);
-                        transferOK = HAService.this.push2SlaveMaxOffset.get() >= req.getNextOffset();
-                    }
+            final long ackOffset = HAService.this.push2SlaveMaxOffset.get();
+            while (!this.pendingRequests.isEmpty() && this.pendingRequests.peek().getNextOffset() <= ackOffset) {
+                this.pendingRequests.poll().wakeupCustomer(true);
+            }
 
-                    if (!transferOK) {
+            final long now = System.currentTimeMillis();
+            if (now >= this.minDeadLine) {
+                this.minDeadLine = Long.MAX_VALUE;
+                Iterator<GroupCommitRequest> it = this.pendingRequests.iterator();
+                while (it.hasNext()) {
+                    GroupCommitRequest req = it.next();
+                    if (now >= req.getDeadLine()) {
+                        it.remove();
                         log.warn("transfer messsage to slave timeout, " + req.getNextOffset());
+                        req.wakeupCustomer(false);
+                    } else {
+                        this.minDeadLine = Math.min(this.minDeadLine, req.getDeadLine());
                     }
-
-
-                    req.wakeupCustomer(transferOK);
                 }
+            }
 
-                this.requestsRead.clear();
+            if (this.pendingRequests.isEmpty()) {
+                this.minDeadLine = Long.MAX_VALUE;
             }
         }
 
@@ -307,13 +336,28 @@ public class HAService {
 
             while (!this.isStoped()) {
                 try {
-                    this.waitForRunning(0);
+                    // 有未完成的请求时最多等到最早的超时时间
+                    long interval = 0;
+                    if (this.minDeadLine != Long.MAX_VALUE) {
+                        interval = Math.max(1, this.minDeadLine - System.currentTimeMillis());
+                    }
+                    this.waitForRunning(interval);
                     this.doWaitTransfer();
                 } catch (Exception e) {
                     log.warn(this.getServiceName() + " service has exception. ", e);
                 }
             }
 
+            // 停止时没有完成的请求全部按失败处理
+            synchronized (this) {
+                this.swapRequests();
+            }
+            this.pendingRequests.addAll(this.requestsRead);
+            this.requestsRead.clear();
+            while (!this.pendingRequests.isEmpty()) {
+                this.pendingRequests.poll().wakeupCustomer(false);
+            }
+
             log.info(this.getServiceName() + " service end");
         }
 
@@ -58,6 +58,14 @@ public class IndexFile {
         ByteBuffer byteBuffer = this.mappedByteBuffer.slice();
         this.indexHeader = new IndexHeader(byteBuffer);
 
+        this.initEndOffset(endPhyOffset, endTimestamp);
+    }
+
+
+    /**
+     * 预先创建的文件在启用时才知道上一个文件的结束位置
+     */
+    public void initEndOffset(final long endPhyOffset, final long endTimestamp) {
         if (endPhyOffset > 0) {
             this.indexHeader.setBeginPhyOffset(endPhyOffset);
             this.indexHeader.setEndPhyOffset(endPhyOffset);
@@ -70,6 +78,16 @@ public class IndexFile {
     }
 
 
+    public int getIndexCount() {
+        return this.indexHeader.getIndexCount();
+    }
+
+
+    public int getIndexNum() {
+        return indexNum;
+    }
+
+
     public String getFileName() {
         return this.mapedFile.getFileName();
     }
@@ -16,12 +16,15 @@
  */
 package com.alibaba.rocketmq.store.index;
 
+import com.alibaba.rocketmq.common.ServiceThread;
+import com.alibaba.rocketmq.common.ThreadFactoryImpl;
 import com.alibaba.rocketmq.common.UtilAll;
 import com.alibaba.rocketmq.common.constant.LoggerName;
 import com.alibaba.rocketmq.common.message.MessageConst;
 import com.alibaba.rocketmq.common.sysflag.MessageSysFlag;
 import com.alibaba.rocketmq.store.DefaultMessageStore;
 import com.alibaba.rocketmq.store.DispatchRequest;
+import com.alibaba.rocketmq.store.MapedFile;
 import com.alibaba.rocketmq.store.config.StorePathConfigHelper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -31,6 +34,10 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -40,12 +47,27 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  */
 public class IndexService {
     private static final Logger log = LoggerFactory.getLogger(LoggerName.StoreLoggerName);
+    /**
+     * 当前文件写到该比例后预先创建下一个文件，分发线程切换文件时不再等待创建映射文件
+     */
+    private static final double PrepareNextFileRatio = 0.75;
+    // 预先创建但还没有启用的索引文件的标记文件后缀
+    private static final String PreparedMarkerSuffix = ".prepared";
     private final DefaultMessageStore defaultMessageStore;
     private final int hashSlotNum;
     private final int indexNum;
     private final String storePath;
     private final ArrayList<IndexFile> indexFileList = new ArrayList<IndexFile>();
     private final ReadWriteLock readWriteLock = new ReentrantReadWriteLock();
+    /**
+     * 预先创建文件与切换文件互斥，保证文件名的顺序与启用顺序一致
+     */
+    private final Object createIndexFileLock = new Object();
+    private final IndexFileAllocateService indexFileAllocateService = new IndexFileAllocateService();
+    private volatile IndexFile preparedIndexFile;
+    // 多个索引文件并行查询，为null时顺序查询
+    private final ExecutorService queryExecutor;
+    private final int queryThreadNums;
 
 
     public IndexService(final DefaultMessageStore store) {
@@ -54,6 +76,13 @@ public class IndexService {
         this.indexNum = store.getMessageStoreConfig().getMaxIndexNum();
         this.storePath =
                 StorePathConfigHelper.getStorePathIndex(store.getMessageStoreConfig().getStorePathRootDir());
+
+        this.queryThreadNums = store.getMessageStoreConfig().getIndexQueryThreadNums();
+        if (this.queryThreadNums > 1) {
+            this.queryExecutor = Executors.newFixedThreadPool(this.queryThreadNums, new ThreadFactoryImpl("IndexQueryThread_"));
+        } else {
+            this.queryExecutor = null;
+        }
     }
 
 
@@ -64,10 +93,23 @@ public class IndexService {
             // ascending order
             Arrays.sort(files);
             for (File file : files) {
+                if (file.getName().endsWith(PreparedMarkerSuffix)) {
+                    continue;
+                }
+
                 try {
                     IndexFile f = new IndexFile(file.getPath(), this.hashSlotNum, this.indexNum, 0, 0);
                     f.load();
 
+                    // 预先创建但没有启用的文件
+                    File preparedMarker = new File(file.getPath() + PreparedMarkerSuffix);
+                    if (preparedMarker.exists()) {
+                        log.info("destroy unused index file, " + f.getFileName());
+                        f.destroy(0);
+                        preparedMarker.delete();
+                        continue;
+                    }
+
                     if (!lastExitOK) {
                         if (f.getEndTimestamp() > this.defaultMessageStore.getStoreCheckpoint()
                             .getIndexMsgTimestamp()) {
@@ -149,6 +191,7 @@ public class IndexService {
 
 
     public void destroy() {
+        this.destroyPreparedIndexFile();
         try {
             this.readWriteLock.readLock().lock();
             for (IndexFile f : this.indexFileList) {
@@ -173,24 +216,46 @@ public class IndexService {
         try {
             this.readWriteLock.readLock().lock();
             if (!this.indexFileList.isEmpty()) {
-                for (int i = this.indexFileList.size(); i > 0; i--) {
-                    IndexFile f = this.indexFileList.get(i - 1);
-                    boolean lastFile = (i == this.indexFileList.size());
-                    if (lastFile) {
-                        indexLastUpdateTimestamp = f.getEndTimestamp();
-                        indexLastUpdatePhyoffset = f.getEndPhyOffset();
-                    }
+                if (this.queryExecutor != null) {
+                    IndexFile lastIndexFile = this.indexFileList.get(this.indexFileList.size() - 1);
+                    indexLastUpdateTimestamp = lastIndexFile.getEndTimestamp();
+                    indexLastUpdatePhyoffset = lastIndexFile.getEndPhyOffset();
+
+                    List<IndexFile> matchedFiles = new ArrayList<IndexFile>();
+                    for (int i = this.indexFileList.size(); i > 0; i--) {
+                        IndexFile f = this.indexFileList.get(i - 1);
+                        if (f.isTimeMatched(begin, end)) {
+                            matchedFiles.add(f);
+                        }
 
-                    if (f.isTimeMatched(begin, end)) {
-                        f.selectPhyOffset(phyOffsets, this.buildKey(topic, key), maxNum, begin, end, lastFile);
+                        if (f.getBeginTimestamp() < begin) {
+                            break;
+                        }
                     }
 
-                    if (f.getBeginTimestamp() < begin) {
-                        break;
-                    }
+                    this.selectPhyOffsetParallel(matchedFiles, lastIndexFile, phyOffsets, this.buildKey(topic, key),
+                        maxNum, begin, end);
+                }
+                else {
+                    for (int i = this.indexFileList.size(); i > 0; i--) {
+                        IndexFile f = this.indexFileList.get(i - 1);
+                        boolean lastFile = (i == this.indexFileList.size());
+                        if (lastFile) {
+                            indexLastUpdateTimestamp = f.getEndTimestamp();
+                            indexLastUpdatePhyoffset = f.getEndPhyOffset();
+                        }
 
-                    if (phyOffsets.size() >= maxNum) {
-                        break;
+                        if (f.isTimeMatched(begin, end)) {
+                            f.selectPhyOffset(phyOffsets, this.buildKey(topic, key), maxNum, begin, end, lastFile);
+                        }
+
+                        if (f.getBeginTimestamp() < begin) {
+                            break;
+                        }
+
+                        if (phyOffsets.size() >= maxNum) {
+                            break;
+                        }
                     }
                 }
             }
@@ -206,58 +271,127 @@ public class IndexService {
     }
 
 
+    /**
+     * 每个文件一个任务并行查找，每次最多查queryThreadNums个文件，结果仍按从新到旧的文件顺序合并，
+     * 凑够maxNum后不再查更旧的文件
+     */
+    private void selectPhyOffsetParallel(final List<IndexFile> files, final IndexFile lastIndexFile,
+            final List<Long> phyOffsets, final String key, final int maxNum, final long begin, final long end)
+            throws Exception {
+        for (int from = 0; from < files.size() && phyOffsets.size() < maxNum; from += this.queryThreadNums) {
+            final int to = Math.min(files.size(), from + this.queryThreadNums);
+            final int remainNum = maxNum - phyOffsets.size();
+            if (to - from == 1) {
+                IndexFile f = files.get(from);
+                f.selectPhyOffset(phyOffsets, key, maxNum, begin, end, f == lastIndexFile);
+                continue;
+            }
+
+            List<Future<List<Long>>> futures = new ArrayList<Future<List<Long>>>(to - from);
+            for (final IndexFile f : files.subList(from, to)) {
+                futures.add(this.queryExecutor.submit(new Callable<List<Long>>() {
+                    @Override
+                    public List<Long> call() throws Exception {
+                        List<Long> result = new ArrayList<Long>();
+                        f.selectPhyOffset(result, key, remainNum, begin, end, f == lastIndexFile);
+                        return result;
+                    }
+                }));
+            }
+
+            for (Future<List<Long>> future : futures) {
+                for (Long phyOffset : future.get()) {
+                    if (phyOffsets.size() >= maxNum) {
+                        break;
+                    }
+                    phyOffsets.add(phyOffset);
+                }
+            }
+        }
+    }
+
+
     private String buildKey(final String topic, final String key) {
         return topic + "#" + key;
     }
 
 
     public void buildIndex(DispatchRequest req) {
-        boolean breakdown = false;
         IndexFile indexFile = retryGetAndCreateIndexFile();
         if (indexFile != null) {
-            long endPhyOffset = indexFile.getEndPhyOffset();
-            DispatchRequest msg = req;
-            String topic = msg.getTopic();
-            String keys = msg.getKeys();
-            if (msg.getCommitLogOffset() < endPhyOffset) {
-                return;
-            }
+            this.buildIndex(indexFile, req);
+        }
+        else {
+            log.error("build index error, stop building index");
+        }
+    }
 
-            final int tranType = MessageSysFlag.getTransactionValue(msg.getSysFlag());
-            switch (tranType) {
-            case MessageSysFlag.TransactionNotType:
-            case MessageSysFlag.TransactionPreparedType:
-                break;
-            case MessageSysFlag.TransactionCommitType:
-            case MessageSysFlag.TransactionRollbackType:
+
+    /**
+     * 批量构建索引，整批只获取一次当前索引文件
+     */
+    public void buildIndex(List<DispatchRequest> reqs) {
+        IndexFile indexFile = retryGetAndCreateIndexFile();
+        for (DispatchRequest req : reqs) {
+            if (null == indexFile) {
+                log.error("build index error, stop building index");
                 return;
             }
 
-            if (keys != null && keys.length() > 0) {
-                String[] keyset = keys.split(MessageConst.KEY_SEPARATOR);
-                for (String key : keyset) {
-                    if (key.length() > 0) {
-                        for (boolean ok =
-                                indexFile.putKey(buildKey(topic, key), msg.getCommitLogOffset(),
-                                    msg.getStoreTimestamp()); !ok;) {
-                            log.warn("index file full, so create another one, " + indexFile.getFileName());
-                            indexFile = retryGetAndCreateIndexFile();
-                            if (null == indexFile) {
-                                breakdown = true;
-                                return;
-                            }
-
-                            ok =
-                                    indexFile.putKey(buildKey(topic, key), msg.getCommitLogOffset(),
-                                        msg.getStoreTimestamp());
+            indexFile = this.buildIndex(indexFile, req);
+        }
+    }
+
+
+    /**
+     * @return 后续消息使用的索引文件，写满时会切换，返回null表示无法创建新文件
+     */
+    private IndexFile buildIndex(IndexFile indexFile, DispatchRequest req) {
+        long endPhyOffset = indexFile.getEndPhyOffset();
+        DispatchRequest msg = req;
+        String topic = msg.getTopic();
+        String keys = msg.getKeys();
+        if (msg.getCommitLogOffset() < endPhyOffset) {
+            return indexFile;
+        }
+
+        final int tranType = MessageSysFlag.getTransactionValue(msg.getSysFlag());
+        switch (tranType) {
+        case MessageSysFlag.TransactionNotType:
+        case MessageSysFlag.TransactionPreparedType:
+            break;
+        case MessageSysFlag.TransactionCommitType:
+        case MessageSysFlag.TransactionRollbackType:
+            return indexFile;
+        }
+
+        if (keys != null && keys.length() > 0) {
+            String[] keyset = keys.split(MessageConst.KEY_SEPARATOR);
+            for (String key : keyset) {
+                if (key.length() > 0) {
+                    for (boolean ok =
+                            indexFile.putKey(buildKey(topic, key), msg.getCommitLogOffset(),
+                                msg.getStoreTimestamp()); !ok;) {
+                        log.warn("index file full, so create another one, " + indexFile.getFileName());
+                        indexFile = retryGetAndCreateIndexFile();
+                        if (null == indexFile) {
+                            return null;
                         }
+
+                        ok =
+                                indexFile.putKey(buildKey(topic, key), msg.getCommitLogOffset(),
+                                    msg.getStoreTimestamp());
                     }
                 }
             }
+
+            if (null == this.preparedIndexFile
+                    && indexFile.getIndexCount() >= indexFile.getIndexNum() * PrepareNextFileRatio) {
+                this.indexFileAllocateService.wakeup();
+            }
         }
-        else {
-            log.error("build index error, stop building index");
-        }
+
+        return indexFile;
     }
 
 
@@ -309,21 +443,39 @@ public class IndexService {
         }
 
         if (indexFile == null) {
-            try {
-                String fileName =
-                        this.storePath + File.separator
-                                + UtilAll.timeMillisToHumanString(System.currentTimeMillis());
-                indexFile =
-                        new IndexFile(fileName, this.hashSlotNum, this.indexNum, lastUpdateEndPhyOffset,
-                            lastUpdateIndexTimestamp);
-                this.readWriteLock.writeLock().lock();
-                this.indexFileList.add(indexFile);
-            }
-            catch (Exception e) {
-                log.error("getLastIndexFile exception ", e);
-            }
-            finally {
-                this.readWriteLock.writeLock().unlock();
+            synchronized (this.createIndexFileLock) {
+                try {
+                    IndexFile prepared = this.preparedIndexFile;
+                    if (prepared != null) {
+                        this.preparedIndexFile = null;
+                        // 先去掉预创建标记再写入，重启后按正常文件加载
+                        File preparedMarker = new File(prepared.getFileName() + PreparedMarkerSuffix);
+                        if (!preparedMarker.delete()) {
+                            log.warn("delete prepared marker failed, " + preparedMarker.getPath());
+                        }
+                        prepared.initEndOffset(lastUpdateEndPhyOffset, lastUpdateIndexTimestamp);
+                        indexFile = prepared;
+                    }
+                    else {
+                        String fileName =
+                                this.storePath + File.separator
+                                        + UtilAll.timeMillisToHumanString(System.currentTimeMillis());
+                        indexFile =
+                                new IndexFile(fileName, this.hashSlotNum, this.indexNum, lastUpdateEndPhyOffset,
+                                    lastUpdateIndexTimestamp);
+                    }
+
+                    this.readWriteLock.writeLock().lock();
+                    try {
+                        this.indexFileList.add(indexFile);
+                    }
+                    finally {
+                        this.readWriteLock.writeLock().unlock();
+                    }
+                }
+                catch (Exception e) {
+                    log.error("getLastIndexFile exception ", e);
+                }
             }
 
             if (indexFile != null) {
@@ -363,12 +515,102 @@ public class IndexService {
     }
 
 
-    public void start() {
+    /**
+     * 当前文件快写满时创建下一个文件
+     */
+    private void prepareNextIndexFile() {
+        if (this.preparedIndexFile != null) {
+            return;
+        }
+
+        IndexFile lastIndexFile = null;
+        this.readWriteLock.readLock().lock();
+        try {
+            if (!this.indexFileList.isEmpty()) {
+                lastIndexFile = this.indexFileList.get(this.indexFileList.size() - 1);
+            }
+        }
+        finally {
+            this.readWriteLock.readLock().unlock();
+        }
+
+        if (null == lastIndexFile || lastIndexFile.getIndexCount() < lastIndexFile.getIndexNum() * PrepareNextFileRatio) {
+            return;
+        }
+
+        synchronized (this.createIndexFileLock) {
+            if (this.preparedIndexFile != null) {
+                return;
+            }
+
+            try {
+                long beginTime = System.currentTimeMillis();
+                String fileName = this.storePath + File.separator + UtilAll.timeMillisToHumanString(beginTime);
+                // 标记文件先于索引文件创建，宕机后据此删除没有启用的文件
+                File preparedMarker = new File(fileName + PreparedMarkerSuffix);
+                MapedFile.ensureDirOK(this.storePath);
+                if (!preparedMarker.exists() && !preparedMarker.createNewFile()) {
+                    log.warn("create prepared marker failed, " + preparedMarker.getPath());
+                    return;
+                }
+                this.preparedIndexFile = new IndexFile(fileName, this.hashSlotNum, this.indexNum, 0, 0);
+                log.info("prepare next index file " + fileName + " eclipse time(ms) "
+                        + (System.currentTimeMillis() - beginTime));
+            }
+            catch (IOException e) {
+                log.error("prepare next index file exception", e);
+            }
+        }
+    }
+
 
+    private void destroyPreparedIndexFile() {
+        synchronized (this.createIndexFileLock) {
+            if (this.preparedIndexFile != null) {
+                this.preparedIndexFile.destroy(0);
+                new File(this.preparedIndexFile.getFileName() + PreparedMarkerSuffix).delete();
+                this.preparedIndexFile = null;
+            }
+        }
+    }
+
+
+    public void start() {
+        this.indexFileAllocateService.start();
     }
 
 
     public void shutdown() {
+        this.indexFileAllocateService.shutdown();
+        if (this.queryExecutor != null) {
+            this.queryExecutor.shutdown();
+        }
+        this.destroyPreparedIndexFile();
+    }
 
+
+    class IndexFileAllocateService extends ServiceThread {
+        @Override
+        public void run() {
+            log.info(this.getServiceName() + " service started");
+
+            while (!this.isStoped()) {
+                try {
+                    this.waitForRunning(1000);
+                    IndexService.this.prepareNextIndexFile();
+                }
+                catch (Exception e) {
+                    log.warn(this.getServiceName() + " service has exception. ", e);
+                }
+            }
+
+            log.info(this.getServiceName() + " service end");
+        }
+
+
+        @Override
+        public String getServiceName() {
+            return IndexFileAllocateService.class.getSimpleName();
+        }
     }
 }
@@ -0,0 +1,128 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store.index;
+
+/**
+ * 属性索引中的一条记录，按topic、属性名、属性值、存储时间、物理位置排序
+ */
+public class PropertyIndexEntry implements Comparable<PropertyIndexEntry> {
+    private final String topic;
+    private final String propertyKey;
+    private final String value;
+    private final long storeTimestamp;
+    private final long commitLogOffset;
+
+
+    public PropertyIndexEntry(String topic, String propertyKey, String value, long storeTimestamp, long commitLogOffset) {
+        this.topic = topic;
+        this.propertyKey = propertyKey;
+        this.value = value;
+        this.storeTimestamp = storeTimestamp;
+        this.commitLogOffset = commitLogOffset;
+    }
+
+
+    /**
+     * 不大于所有属性值为value的记录，用于定位查询起点
+     */
+    public static PropertyIndexEntry lowerBound(String topic, String propertyKey, String value) {
+        return new PropertyIndexEntry(topic, propertyKey, value, Long.MIN_VALUE, Long.MIN_VALUE);
+    }
+
+
+    public boolean isSameProperty(String topic, String propertyKey) {
+        return this.topic.equals(topic) && this.propertyKey.equals(propertyKey);
+    }
+
+
+    @Override
+    public int compareTo(PropertyIndexEntry o) {
+        int c = this.topic.compareTo(o.topic);
+        if (c != 0) {
+            return c;
+        }
+        c = this.propertyKey.compareTo(o.propertyKey);
+        if (c != 0) {
+            return c;
+        }
+        c = this.value.compareTo(o.value);
+        if (c != 0) {
+            return c;
+        }
+        if (this.storeTimestamp != o.storeTimestamp) {
+            return this.storeTimestamp < o.storeTimestamp ? -1 : 1;
+        }
+        if (this.commitLogOffset != o.commitLogOffset) {
+            return this.commitLogOffset < o.commitLogOffset ? -1 : 1;
+        }
+        return 0;
+    }
+
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof PropertyIndexEntry)) {
+            return false;
+        }
+        return this.compareTo((PropertyIndexEntry) obj) == 0;
+    }
+
+
+    @Override
+    public int hashCode() {
+        int result = topic.hashCode();
+        result = 31 * result + propertyKey.hashCode();
+        result = 31 * result + value.hashCode();
+        result = 31 * result + (int) (commitLogOffset ^ (commitLogOffset >>> 32));
+        return result;
+    }
+
+
+    public String getTopic() {
+        return topic;
+    }
+
+
+    public String getPropertyKey() {
+        return propertyKey;
+    }
+
+
+    public String getValue() {
+        return value;
+    }
+
+
+    public long getStoreTimestamp() {
+        return storeTimestamp;
+    }
+
+
+    public long getCommitLogOffset() {
+        return commitLogOffset;
+    }
+
+
+    @Override
+    public String toString() {
+        return "PropertyIndexEntry [topic=" + topic + ", propertyKey=" + propertyKey + ", value=" + value
+                + ", storeTimestamp=" + storeTimestamp + ", commitLogOffset=" + commitLogOffset + "]";
+    }
+}
@@ -0,0 +1,426 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store.index;
+
+import com.alibaba.rocketmq.common.UtilAll;
+import com.alibaba.rocketmq.common.constant.LoggerName;
+import com.alibaba.rocketmq.common.message.MessageDecoder;
+import com.alibaba.rocketmq.store.MapedFile;
+import com.alibaba.rocketmq.store.SelectMapedBufferResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+
+/**
+ * 属性索引的不可变有序段文件，由内存表整体写出<br>
+ * 文件头：magic(4) + 条目数(4) + 最小物理位置(8) + 最大物理位置(8) + 最早存储时间(8) + 最晚存储时间(8)<br>
+ * 条目：topic长度(2) + topic + 属性名长度(2) + 属性名 + 属性值长度(2) + 属性值 + 存储时间(8) + 物理位置(8)<br>
+ * 每隔SparseInterval条在内存中保留一个稀疏索引，查询时二分定位后顺序扫描<br>
+ * 内存表写出的段文件以第一条消息的物理位置命名，合并后的段文件以最后一条消息的物理位置+1命名，
+ * 文件名按物理位置有序且互不重名
+ */
+public class PropertyIndexSegment {
+    private static final Logger log = LoggerFactory.getLogger(LoggerName.StoreLoggerName);
+    public static final int MagicCode = 0xAABBCC01;
+    private static final int HeaderSize = 4 + 4 + 8 + 8 + 8 + 8;
+    private static final int SparseInterval = 64;
+
+    private final MapedFile mapedFile;
+    private final int entryCount;
+    private final long minPhyOffset;
+    private final long maxPhyOffset;
+    private final long beginTimestamp;
+    private final long endTimestamp;
+    private final List<PropertyIndexEntry> sparseKeys = new ArrayList<PropertyIndexEntry>();
+    private final List<Integer> sparsePositions = new ArrayList<Integer>();
+
+
+    private PropertyIndexSegment(MapedFile mapedFile, ByteBuffer buffer) {
+        this.mapedFile = mapedFile;
+        this.entryCount = buffer.getInt(4);
+        this.minPhyOffset = buffer.getLong(8);
+        this.maxPhyOffset = buffer.getLong(16);
+        this.beginTimestamp = buffer.getLong(24);
+        this.endTimestamp = buffer.getLong(32);
+    }
+
+
+    /**
+     * 把有序的条目写成段文件，先写临时文件再改名，文件名为第一条消息的物理位置
+     */
+    public static File write(final String storePath, final Collection<PropertyIndexEntry> entries) throws IOException {
+        long minPhyOffset = Long.MAX_VALUE;
+        for (PropertyIndexEntry entry : entries) {
+            minPhyOffset = Math.min(minPhyOffset, entry.getCommitLogOffset());
+        }
+
+        return write(new File(storePath, UtilAll.offset2FileName(minPhyOffset)), entries.iterator());
+    }
+
+
+    /**
+     * 把物理位置相邻的多个段文件归并成一个，重复的条目只保留一条。被合并的段文件由调用方删除
+     *
+     * @param segments 按物理位置排序
+     */
+    public static File merge(final String storePath, final List<PropertyIndexSegment> segments) throws IOException {
+        long maxPhyOffset = 0;
+        final List<SelectMapedBufferResult> buffers = new ArrayList<SelectMapedBufferResult>(segments.size());
+        final PriorityQueue<SegmentCursor> cursors =
+                new PriorityQueue<SegmentCursor>(segments.size(), SegmentCursor.HeadComparator);
+        try {
+            for (PropertyIndexSegment segment : segments) {
+                maxPhyOffset = Math.max(maxPhyOffset, segment.getMaxPhyOffset());
+                SelectMapedBufferResult bufferResult = segment.mapedFile.selectMapedBuffer(0);
+                if (null == bufferResult) {
+                    throw new IOException("property index file is unavailable, " + segment.getFileName());
+                }
+                buffers.add(bufferResult);
+
+                ByteBuffer buffer = bufferResult.getByteBuffer();
+                buffer.position(HeaderSize);
+                SegmentCursor cursor = new SegmentCursor(buffer, segment.entryCount);
+                if (cursor.advance()) {
+                    cursors.add(cursor);
+                }
+            }
+
+            return write(new File(storePath, UtilAll.offset2FileName(maxPhyOffset + 1)), new MergeIterator(cursors));
+        } finally {
+            for (SelectMapedBufferResult bufferResult : buffers) {
+                bufferResult.release();
+            }
+        }
+    }
+
+
+    /**
+     * 顺序写出条目，写完后回填文件头
+     */
+    private static File write(final File file, final Iterator<PropertyIndexEntry> entries) throws IOException {
+        int entryCount = 0;
+        long minPhyOffset = Long.MAX_VALUE;
+        long maxPhyOffset = 0;
+        long beginTimestamp = Long.MAX_VALUE;
+        long endTimestamp = 0;
+
+        MapedFile.ensureDirOK(file.getParent());
+        File tmpFile = new File(file.getParent(), file.getName() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmpFile);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1024 * 64));
+            out.write(new byte[HeaderSize]);
+            while (entries.hasNext()) {
+                PropertyIndexEntry entry = entries.next();
+                writeString(out, entry.getTopic());
+                writeString(out, entry.getPropertyKey());
+                writeString(out, entry.getValue());
+                out.writeLong(entry.getStoreTimestamp());
+                out.writeLong(entry.getCommitLogOffset());
+
+                entryCount++;
+                minPhyOffset = Math.min(minPhyOffset, entry.getCommitLogOffset());
+                maxPhyOffset = Math.max(maxPhyOffset, entry.getCommitLogOffset());
+                beginTimestamp = Math.min(beginTimestamp, entry.getStoreTimestamp());
+                endTimestamp = Math.max(endTimestamp, entry.getStoreTimestamp());
+            }
+            out.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HeaderSize);
+            header.putInt(MagicCode);
+            header.putInt(entryCount);
+            header.putLong(minPhyOffset);
+            header.putLong(maxPhyOffset);
+            header.putLong(beginTimestamp);
+            header.putLong(endTimestamp);
+            header.flip();
+            FileChannel channel = fos.getChannel();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.force(true);
+        } finally {
+            fos.close();
+        }
+
+        if (file.exists() && !file.delete()) {
+            throw new IOException("delete old property index file failed, " + file);
+        }
+        if (!tmpFile.renameTo(file)) {
+            throw new IOException("rename property index file failed, " + tmpFile);
+        }
+        return file;
+    }
+
+
+    /**
+     * @return 文件不完整时返回null，由调用方删除
+     */
+    public static PropertyIndexSegment load(final File file) throws IOException {
+        if (file.length() < HeaderSize || file.length() > Integer.MAX_VALUE) {
+            return null;
+        }
+
+        MapedFile mapedFile = new MapedFile(file.getPath(), (int) file.length());
+        mapedFile.setWrotePostion(mapedFile.getFileSize());
+        mapedFile.setCommittedPosition(mapedFile.getFileSize());
+        ByteBuffer buffer = mapedFile.sliceByteBuffer();
+        if (buffer.getInt(0) != MagicCode) {
+            mapedFile.destroy(0);
+            return null;
+        }
+
+        PropertyIndexSegment segment = new PropertyIndexSegment(mapedFile, buffer);
+        buffer.position(HeaderSize);
+        try {
+            for (int i = 0; i < segment.entryCount; i++) {
+                int pos = buffer.position();
+                PropertyIndexEntry entry = readEntry(buffer);
+                if (i % SparseInterval == 0) {
+                    segment.sparseKeys.add(entry);
+                    segment.sparsePositions.add(pos);
+                }
+            }
+        } catch (RuntimeException e) {
+            log.warn("property index file is incomplete, " + file, e);
+            mapedFile.destroy(0);
+            return null;
+        }
+
+        return segment;
+    }
+
+
+    /**
+     * 查询属性值在[beginValue, endValue]内或以beginValue为前缀，且存储时间在[begin, end]内的条目
+     *
+     * @return 是否已经取满maxNum条
+     */
+    public boolean query(final String topic, final String propertyKey, final String beginValue, final String endValue,
+            final boolean prefix, final long begin, final long end, final int maxNum, final List<PropertyIndexEntry> result) {
+        if (this.endTimestamp < begin || this.beginTimestamp > end) {
+            return false;
+        }
+
+        SelectMapedBufferResult bufferResult = this.mapedFile.selectMapedBuffer(0);
+        if (null == bufferResult) {
+            return false;
+        }
+
+        int found = 0;
+        try {
+            ByteBuffer buffer = bufferResult.getByteBuffer();
+            PropertyIndexEntry lowerBound = PropertyIndexEntry.lowerBound(topic, propertyKey, beginValue);
+            int i = this.floorSparseKey(lowerBound);
+            buffer.position(i < 0 ? HeaderSize : this.sparsePositions.get(i));
+
+            int scanned = i < 0 ? 0 : i * SparseInterval;
+            for (; scanned < this.entryCount; scanned++) {
+                PropertyIndexEntry entry = readEntry(buffer);
+                if (entry.compareTo(lowerBound) < 0) {
+                    continue;
+                }
+                if (!entry.isSameProperty(topic, propertyKey)
+                        || PropertyIndexService.beyondEnd(entry.getValue(), beginValue, endValue, prefix)) {
+                    break;
+                }
+                if (entry.getStoreTimestamp() >= begin && entry.getStoreTimestamp() <= end) {
+                    result.add(entry);
+                    if (++found >= maxNum) {
+                        return true;
+                    }
+                }
+            }
+        } finally {
+            bufferResult.release();
+        }
+
+        return false;
+    }
+
+
+    private int floorSparseKey(final PropertyIndexEntry key) {
+        int low = 0;
+        int high = this.sparseKeys.size() - 1;
+        int floor = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (this.sparseKeys.get(mid).compareTo(key) <= 0) {
+                floor = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return floor;
+    }
+
+
+    private static void writeString(final DataOutputStream out, final String str) throws IOException {
+        byte[] data = str.getBytes(MessageDecoder.CHARSET_UTF8);
+        out.writeShort(data.length);
+        out.write(data);
+    }
+
+
+    private static String readString(final ByteBuffer buffer) {
+        byte[] data = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(data);
+        return new String(data, MessageDecoder.CHARSET_UTF8);
+    }
+
+
+    private static PropertyIndexEntry readEntry(final ByteBuffer buffer) {
+        String topic = readString(buffer);
+        String propertyKey = readString(buffer);
+        String value = readString(buffer);
+        long storeTimestamp = buffer.getLong();
+        long commitLogOffset = buffer.getLong();
+        return new PropertyIndexEntry(topic, propertyKey, value, storeTimestamp, commitLogOffset);
+    }
+
+
+    /**
+     * 段文件中未读条目的游标，head为当前最小的条目
+     */
+    private static class SegmentCursor {
+        static final Comparator<SegmentCursor> HeadComparator = new Comparator<SegmentCursor>() {
+            @Override
+            public int compare(SegmentCursor o1, SegmentCursor o2) {
+                return o1.head.compareTo(o2.head);
+            }
+        };
+
+        private final ByteBuffer buffer;
+        private int remaining;
+        private PropertyIndexEntry head;
+
+
+        SegmentCursor(ByteBuffer buffer, int entryCount) {
+            this.buffer = buffer;
+            this.remaining = entryCount;
+        }
+
+
+        boolean advance() {
+            if (this.remaining <= 0) {
+                return false;
+            }
+            this.remaining--;
+            this.head = readEntry(this.buffer);
+            return true;
+        }
+    }
+
+
+    /**
+     * 多路归并多个段文件的条目，跳过重复条目
+     */
+    private static class MergeIterator implements Iterator<PropertyIndexEntry> {
+        private final PriorityQueue<SegmentCursor> cursors;
+        private PropertyIndexEntry last;
+        private PropertyIndexEntry next;
+
+
+        MergeIterator(PriorityQueue<SegmentCursor> cursors) {
+            this.cursors = cursors;
+        }
+
+
+        @Override
+        public boolean hasNext() {
+            while (null == this.next && !this.cursors.isEmpty()) {
+                SegmentCursor cursor = this.cursors.poll();
+                PropertyIndexEntry entry = cursor.head;
+                if (cursor.advance()) {
+                    this.cursors.add(cursor);
+                }
+                if (null == this.last || entry.compareTo(this.last) != 0) {
+                    this.next = entry;
+                }
+            }
+            return this.next != null;
+        }
+
+
+        @Override
+        public PropertyIndexEntry next() {
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            this.last = this.next;
+            this.next = null;
+            return this.last;
+        }
+
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+
+    public boolean destroy(final long intervalForcibly) {
+        return this.mapedFile.destroy(intervalForcibly);
+    }
+
+
+    public String getFileName() {
+        return this.mapedFile.getFileName();
+    }
+
+
+    public int getEntryCount() {
+        return entryCount;
+    }
+
+
+    public long getMinPhyOffset() {
+        return minPhyOffset;
+    }
+
+
+    public long getMaxPhyOffset() {
+        return maxPhyOffset;
+    }
+
+
+    public long getBeginTimestamp() {
+        return beginTimestamp;
+    }
+
+
+    public long getEndTimestamp() {
+        return endTimestamp;
+    }
+}
@@ -0,0 +1,616 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store.index;
+
+import com.alibaba.rocketmq.common.MixAll;
+import com.alibaba.rocketmq.common.ServiceThread;
+import com.alibaba.rocketmq.common.constant.LoggerName;
+import com.alibaba.rocketmq.common.sysflag.MessageSysFlag;
+import com.alibaba.rocketmq.store.CommitLog;
+import com.alibaba.rocketmq.store.DefaultMessageStore;
+import com.alibaba.rocketmq.store.DispatchRequest;
+import com.alibaba.rocketmq.store.SelectMapedBufferResult;
+import com.alibaba.rocketmq.store.config.StorePathConfigHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+/**
+ * 按Topic配置的用户属性（如orderId）建立二级索引，支持精确、前缀、范围查询并限定存储时间窗口。<br>
+ * 分发线程先写入有序内存表，内存表写满或超过刷盘间隔后整体写成不可变的有序段文件（LSM方式）；
+ * checkpoint记录已经写入段文件的分发位置，重启时从该位置重放CommitLog补齐内存表中丢失的部分。<br>
+ * 刷盘线程把物理位置相邻的小段文件合并到propertyIndexSegmentMaxEntries条以内，段文件数超过
+ * propertyIndexMaxSegments时不论大小继续合并，限制打开的映射数和每次查询扫描的段数。
+ */
+public class PropertyIndexService {
+    private static final Logger log = LoggerFactory.getLogger(LoggerName.StoreLoggerName);
+    private static final String CheckpointFileName = "checkpoint";
+    // 连续的小段文件达到该数量才合并，避免每次刷盘都重写一遍
+    private static final int CompactMinSegments = 4;
+
+    private final DefaultMessageStore defaultMessageStore;
+    private final String storePath;
+    private final String checkpointPath;
+    private final CopyOnWriteArrayList<PropertyIndexSegment> segmentList =
+            new CopyOnWriteArrayList<PropertyIndexSegment>();
+    private final PropertyIndexFlushService propertyIndexFlushService = new PropertyIndexFlushService();
+    // 未启用时不启动刷盘线程，运行中配置了propertyIndexTopics后由第一次建索引启动
+    private final AtomicBoolean flushServiceStarted = new AtomicBoolean(false);
+
+    // 分发线程写内存表与刷盘线程切换内存表互斥
+    private final Object memtableLock = new Object();
+    private volatile ConcurrentSkipListSet<PropertyIndexEntry> memtable = new ConcurrentSkipListSet<PropertyIndexEntry>();
+    // 正在写成段文件的内存表，写完并加入segmentList后置为null
+    private volatile ConcurrentSkipListSet<PropertyIndexEntry> flushingMemtable;
+    private volatile int memtableSize = 0;
+    private volatile long memtableCreateTimestamp = System.currentTimeMillis();
+
+    // 已经分发过的消息的结束物理位置
+    private volatile long dispatchedPhyOffset = 0;
+    // 小于该位置的消息已经在段文件中，恢复时重复分发的消息直接跳过
+    private volatile long persistedPhyOffset = 0;
+    // 已经写入段文件的分发位置，-1表示首次启用，启动时不重放历史消息
+    private volatile long checkpointPhyOffset = -1;
+
+    private volatile String indexTopicsConfig;
+    private volatile Map<String, String[]> indexTopics = Collections.emptyMap();
+
+
+    public PropertyIndexService(final DefaultMessageStore store) {
+        this.defaultMessageStore = store;
+        this.storePath =
+                StorePathConfigHelper.getStorePathPropertyIndex(store.getMessageStoreConfig().getStorePathRootDir());
+        this.checkpointPath = this.storePath + File.separator + CheckpointFileName;
+    }
+
+
+    public boolean load() {
+        File dir = new File(this.storePath);
+        File[] files = dir.listFiles();
+        if (files != null) {
+            // ascending order
+            Arrays.sort(files);
+            for (File file : files) {
+                if (file.getName().endsWith(".tmp") && isNumeric(file.getName().substring(0, file.getName().length() - 4))) {
+                    log.info("delete incomplete property index file, " + file);
+                    file.delete();
+                    continue;
+                }
+                if (!isNumeric(file.getName())) {
+                    continue;
+                }
+
+                try {
+                    PropertyIndexSegment segment = PropertyIndexSegment.load(file);
+                    if (null == segment) {
+                        log.warn("delete broken property index file, " + file);
+                        file.delete();
+                        continue;
+                    }
+
+                    log.info("load property index file OK, " + file);
+                    this.segmentList.add(segment);
+                    this.persistedPhyOffset = Math.max(this.persistedPhyOffset, segment.getMaxPhyOffset() + 1);
+                } catch (IOException e) {
+                    log.error("load property index file " + file + " error", e);
+                    return false;
+                }
+            }
+        }
+
+        // 合并完成后、删除旧文件前退出时，旧文件的范围被合并后的文件覆盖
+        for (PropertyIndexSegment segment : this.segmentList) {
+            for (PropertyIndexSegment other : this.segmentList) {
+                if (other != segment && other.getMinPhyOffset() <= segment.getMinPhyOffset()
+                        && other.getMaxPhyOffset() >= segment.getMaxPhyOffset()
+                        && other.getEntryCount() > segment.getEntryCount()) {
+                    log.info("delete property index file already merged into {}, {}", other.getFileName(),
+                            segment.getFileName());
+                    this.segmentList.remove(segment);
+                    segment.destroy(0);
+                    break;
+                }
+            }
+        }
+
+        String checkpoint = MixAll.file2String(this.checkpointPath);
+        if (checkpoint != null && checkpoint.trim().length() > 0) {
+            this.checkpointPhyOffset = Long.parseLong(checkpoint.trim());
+            this.persistedPhyOffset = Math.max(this.persistedPhyOffset, this.checkpointPhyOffset);
+        }
+
+        return true;
+    }
+
+
+    /**
+     * 在CommitLog恢复之后、重放分发开始之前调用，补齐上次退出时没有写入段文件的索引
+     */
+    public void start() {
+        final CommitLog commitLog = this.defaultMessageStore.getCommitLog();
+        final long maxOffset = commitLog.getMaxOffset();
+
+        // CommitLog异常恢复时可能被截断，超出的段文件不再可信
+        for (PropertyIndexSegment segment : this.segmentList) {
+            if (segment.getMaxPhyOffset() >= maxOffset) {
+                log.warn("destroy property index file beyond commitlog, " + segment.getFileName());
+                this.segmentList.remove(segment);
+                segment.destroy(0);
+            }
+        }
+        this.persistedPhyOffset = Math.min(this.persistedPhyOffset, maxOffset);
+
+        if (!this.isEnable()) {
+            // 之前启用过留下的checkpoint已经过时，以后再启用时按首次启用处理，不重放历史消息
+            if (this.checkpointPhyOffset >= 0) {
+                log.info("property index disabled, delete stale checkpoint {}", this.checkpointPhyOffset);
+                new File(this.checkpointPath).delete();
+                new File(this.checkpointPath + ".bak").delete();
+                this.checkpointPhyOffset = -1;
+            }
+            this.dispatchedPhyOffset = Math.max(this.dispatchedPhyOffset, maxOffset);
+            return;
+        }
+
+        this.startFlushService();
+
+        if (this.checkpointPhyOffset >= 0) {
+            this.replay(Math.max(this.checkpointPhyOffset, commitLog.getMinOffset()), maxOffset);
+        }
+        this.dispatchedPhyOffset = Math.max(this.dispatchedPhyOffset, maxOffset);
+    }
+
+
+    private void startFlushService() {
+        if (this.flushServiceStarted.compareAndSet(false, true)) {
+            this.propertyIndexFlushService.start();
+        }
+    }
+
+
+    private void replay(final long fromOffset, final long maxOffset) {
+        final CommitLog commitLog = this.defaultMessageStore.getCommitLog();
+        long offset = fromOffset;
+        log.info("replay commitlog to build property index, from {} to {}", fromOffset, maxOffset);
+
+        while (offset < maxOffset) {
+            SelectMapedBufferResult result = commitLog.getData(offset);
+            if (null == result) {
+                break;
+            }
+
+            try {
+                for (int readSize = 0; readSize < result.getSize(); ) {
+                    DispatchRequest req = commitLog.checkMessageAndReturnSize(result.getByteBuffer(), false, false);
+                    int size = req.getMsgSize();
+                    if (req.isSuccess() && size > 0) {
+                        this.buildIndex(req);
+                        offset += size;
+                        readSize += size;
+                    } else if (req.isSuccess() && size == 0) {
+                        offset = commitLog.rollNextFile(offset);
+                        break;
+                    } else {
+                        log.warn("replay property index stopped at {}, message is broken", offset);
+                        return;
+                    }
+                }
+            } finally {
+                result.release();
+            }
+        }
+    }
+
+
+    public void shutdown() {
+        if (this.flushServiceStarted.get()) {
+            this.propertyIndexFlushService.shutdown();
+        }
+        this.flush();
+    }
+
+
+    public void destroy() {
+        for (PropertyIndexSegment segment : this.segmentList) {
+            segment.destroy(1000 * 3);
+        }
+        this.segmentList.clear();
+        synchronized (this.memtableLock) {
+            this.memtable = new ConcurrentSkipListSet<PropertyIndexEntry>();
+            this.memtableSize = 0;
+        }
+        new File(this.checkpointPath).delete();
+        new File(this.checkpointPath + ".bak").delete();
+    }
+
+
+    public boolean isEnable() {
+        String config = this.defaultMessageStore.getMessageStoreConfig().getPropertyIndexTopics();
+        return config != null && config.trim().length() > 0;
+    }
+
+
+    public void buildIndex(final DispatchRequest req) {
+        synchronized (this.memtableLock) {
+            this.putEntries(req);
+        }
+        this.wakeupFlushIfFull();
+    }
+
+
+    public void buildIndex(final List<DispatchRequest> reqs) {
+        synchronized (this.memtableLock) {
+            for (DispatchRequest req : reqs) {
+                this.putEntries(req);
+            }
+        }
+        this.wakeupFlushIfFull();
+    }
+
+
+    private void putEntries(final DispatchRequest req) {
+        final long endOffset = req.getCommitLogOffset() + req.getMsgSize();
+        if (endOffset > this.dispatchedPhyOffset) {
+            this.dispatchedPhyOffset = endOffset;
+        }
+        if (req.getCommitLogOffset() < this.persistedPhyOffset) {
+            return;
+        }
+
+        // 与IndexService一致，事务消息只索引Prepared消息
+        final int tranType = MessageSysFlag.getTransactionValue(req.getSysFlag());
+        if (MessageSysFlag.TransactionCommitType == tranType || MessageSysFlag.TransactionRollbackType == tranType) {
+            return;
+        }
+
+        String[] keys = this.getIndexKeys(req.getTopic());
+        Map<String, String> properties = req.getPropertiesMap();
+        if (null == keys || null == properties) {
+            return;
+        }
+
+        for (String key : keys) {
+            String value = properties.get(key);
+            if (value != null && value.length() > 0) {
+                PropertyIndexEntry entry = new PropertyIndexEntry(req.getTopic(), key, value, req.getStoreTimestamp(),
+                        req.getCommitLogOffset());
+                if (this.memtable.add(entry)) {
+                    this.memtableSize++;
+                }
+            }
+        }
+    }
+
+
+    private void wakeupFlushIfFull() {
+        this.startFlushService();
+        if (this.memtableSize >= this.defaultMessageStore.getMessageStoreConfig().getPropertyIndexMemtableMaxEntries()) {
+            this.propertyIndexFlushService.wakeup();
+        }
+    }
+
+
+    private String[] getIndexKeys(final String topic) {
+        String config = this.defaultMessageStore.getMessageStoreConfig().getPropertyIndexTopics();
+        if (null == config || config.length() == 0) {
+            return null;
+        }
+
+        if (!config.equals(this.indexTopicsConfig)) {
+            this.indexTopics = parseIndexTopics(config);
+            this.indexTopicsConfig = config;
+        }
+
+        return this.indexTopics.get(topic);
+    }
+
+
+    /**
+     * @param config 格式：TopicA:orderId,userId;TopicB:orderId
+     */
+    public static Map<String, String[]> parseIndexTopics(final String config) {
+        Map<String, String[]> result = new HashMap<String, String[]>();
+        for (String item : config.split(";")) {
+            int index = item.indexOf(':');
+            if (index <= 0) {
+                continue;
+            }
+
+            List<String> keys = new ArrayList<String>();
+            for (String key : item.substring(index + 1).split(",")) {
+                if (key.trim().length() > 0) {
+                    keys.add(key.trim());
+                }
+            }
+            if (!keys.isEmpty()) {
+                result.put(item.substring(0, index).trim(), keys.toArray(new String[keys.size()]));
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * 把当前内存表写成段文件，空内存表只更新checkpoint；未启用时不写checkpoint
+     */
+    public void flush() {
+        if (!this.isEnable()) {
+            return;
+        }
+
+        ConcurrentSkipListSet<PropertyIndexEntry> toFlush;
+        long phyOffset;
+        synchronized (this.memtableLock) {
+            toFlush = this.memtable;
+            phyOffset = this.dispatchedPhyOffset;
+            this.flushingMemtable = toFlush;
+            this.memtable = new ConcurrentSkipListSet<PropertyIndexEntry>();
+            this.memtableSize = 0;
+            this.memtableCreateTimestamp = System.currentTimeMillis();
+        }
+
+        try {
+            if (!toFlush.isEmpty()) {
+                long beginTime = System.currentTimeMillis();
+                File file = PropertyIndexSegment.write(this.storePath, toFlush);
+                PropertyIndexSegment segment = PropertyIndexSegment.load(file);
+                if (null == segment) {
+                    throw new IOException("load property index file failed, " + file);
+                }
+                this.segmentList.add(segment);
+                log.info("write property index file {}, entries {}, cost {}ms", file, segment.getEntryCount(),
+                        System.currentTimeMillis() - beginTime);
+            }
+
+            if (phyOffset != this.checkpointPhyOffset) {
+                MixAll.string2File(String.valueOf(phyOffset), this.checkpointPath);
+                this.checkpointPhyOffset = phyOffset;
+            }
+        } catch (IOException e) {
+            log.error("flush property index exception, retry later", e);
+            synchronized (this.memtableLock) {
+                for (PropertyIndexEntry entry : toFlush) {
+                    if (this.memtable.add(entry)) {
+                        this.memtableSize++;
+                    }
+                }
+            }
+        } finally {
+            this.flushingMemtable = null;
+        }
+    }
+
+
+    /**
+     * 合并一组物理位置相邻的段文件：优先合并连续CompactMinSegments个以上、合计不超过
+     * propertyIndexSegmentMaxEntries条的小段文件；段文件数超过propertyIndexMaxSegments时，
+     * 合并相邻两个条目数之和最小的段文件，不受条数上限限制
+     */
+    public void compact() {
+        final int maxEntries = this.defaultMessageStore.getMessageStoreConfig().getPropertyIndexSegmentMaxEntries();
+        final int maxSegments = this.defaultMessageStore.getMessageStoreConfig().getPropertyIndexMaxSegments();
+        final List<PropertyIndexSegment> segments = new ArrayList<PropertyIndexSegment>(this.segmentList);
+
+        List<PropertyIndexSegment> run = new ArrayList<PropertyIndexSegment>();
+        long runEntries = 0;
+        for (PropertyIndexSegment segment : segments) {
+            if (runEntries + segment.getEntryCount() > maxEntries) {
+                if (run.size() >= CompactMinSegments) {
+                    break;
+                }
+                run.clear();
+                runEntries = 0;
+            }
+            run.add(segment);
+            runEntries += segment.getEntryCount();
+        }
+
+        if (run.size() < CompactMinSegments) {
+            if (segments.size() <= Math.max(maxSegments, 1)) {
+                return;
+            }
+
+            int smallest = 0;
+            for (int i = 1; i < segments.size() - 1; i++) {
+                if (segments.get(i).getEntryCount() + segments.get(i + 1).getEntryCount() < segments.get(smallest)
+                        .getEntryCount() + segments.get(smallest + 1).getEntryCount()) {
+                    smallest = i;
+                }
+            }
+            run = segments.subList(smallest, smallest + 2);
+        }
+
+        this.merge(run);
+    }
+
+
+    private void merge(final List<PropertyIndexSegment> run) {
+        final long beginTime = System.currentTimeMillis();
+        PropertyIndexSegment merged = null;
+        try {
+            File file = PropertyIndexSegment.merge(this.storePath, run);
+            merged = PropertyIndexSegment.load(file);
+            if (null == merged) {
+                throw new IOException("load property index file failed, " + file);
+            }
+        } catch (IOException e) {
+            log.error("merge property index files exception, retry later", e);
+            return;
+        }
+
+        // 先加入合并后的文件再删除旧文件，查询期间最多读到重复条目，不会遗漏
+        int index = this.segmentList.indexOf(run.get(0));
+        if (index < 0) {
+            // 合并期间旧文件已经过期删除，等下次合并
+            log.info("property index file expired while merging, drop {}", merged.getFileName());
+            merged.destroy(0);
+            return;
+        }
+        this.segmentList.add(index, merged);
+        for (PropertyIndexSegment segment : run) {
+            this.segmentList.remove(segment);
+            segment.destroy(1000 * 60);
+        }
+
+        log.info("merge {} property index files into {}, entries {}, cost {}ms", run.size(), merged.getFileName(),
+                merged.getEntryCount(), System.currentTimeMillis() - beginTime);
+    }
+
+
+    /**
+     * 查询属性值在[beginValue, endValue]内的消息，endValue为null表示精确匹配beginValue；
+     * prefix为true时查询以beginValue为前缀的属性值，忽略endValue。结果按属性值、存储时间排序
+     */
+    public QueryPropertyIndexResult queryOffset(final String topic, final String propertyKey, final String beginValue,
+            final String endValue, final boolean prefix, final int maxNum, final long begin, final long end) {
+        final int num = Math.min(maxNum, this.defaultMessageStore.getMessageStoreConfig().getMaxMsgsNumBatch());
+        final long indexLastUpdatePhyoffset = this.dispatchedPhyOffset;
+        final List<PropertyIndexEntry> found = new ArrayList<PropertyIndexEntry>();
+
+        // 先读内存表再读段文件，切换过程中的记录最多重复，不会遗漏
+        ConcurrentSkipListSet<PropertyIndexEntry> active = this.memtable;
+        ConcurrentSkipListSet<PropertyIndexEntry> flushing = this.flushingMemtable;
+        queryMemtable(active, topic, propertyKey, beginValue, endValue, prefix, begin, end, num, found);
+        if (flushing != null) {
+            queryMemtable(flushing, topic, propertyKey, beginValue, endValue, prefix, begin, end, num, found);
+        }
+        for (PropertyIndexSegment segment : this.segmentList) {
+            segment.query(topic, propertyKey, beginValue, endValue, prefix, begin, end, num, found);
+        }
+
+        List<PropertyIndexEntry> entries = new ArrayList<PropertyIndexEntry>(num);
+        for (PropertyIndexEntry entry : new TreeSet<PropertyIndexEntry>(found)) {
+            if (entries.size() >= num) {
+                break;
+            }
+            entries.add(entry);
+        }
+
+        return new QueryPropertyIndexResult(entries, indexLastUpdatePhyoffset);
+    }
+
+
+    private static void queryMemtable(final ConcurrentSkipListSet<PropertyIndexEntry> table, final String topic,
+            final String propertyKey, final String beginValue, final String endValue, final boolean prefix,
+            final long begin, final long end, final int maxNum, final List<PropertyIndexEntry> result) {
+        int found = 0;
+        for (PropertyIndexEntry entry : table.tailSet(PropertyIndexEntry.lowerBound(topic, propertyKey, beginValue))) {
+            if (!entry.isSameProperty(topic, propertyKey) || beyondEnd(entry.getValue(), beginValue, endValue, prefix)) {
+                break;
+            }
+            if (entry.getStoreTimestamp() >= begin && entry.getStoreTimestamp() <= end) {
+                result.add(entry);
+                if (++found >= maxNum) {
+                    break;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * 有序扫描时判断是否已经越过查询范围
+     */
+    static boolean beyondEnd(final String value, final String beginValue, final String endValue, final boolean prefix) {
+        if (prefix) {
+            return !value.startsWith(beginValue);
+        }
+
+        return value.compareTo(endValue != null ? endValue : beginValue) > 0;
+    }
+
+
+    public void deleteExpiredFile(final long offset) {
+        for (PropertyIndexSegment segment : this.segmentList) {
+            if (segment.getMaxPhyOffset() < offset) {
+                if (segment.destroy(1000 * 60)) {
+                    this.segmentList.remove(segment);
+                    log.info("delete expired property index file, " + segment.getFileName());
+                }
+            }
+        }
+    }
+
+
+    private static boolean isNumeric(final String name) {
+        if (name.length() == 0) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (!Character.isDigit(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    public long getDispatchedPhyOffset() {
+        return dispatchedPhyOffset;
+    }
+
+
+    public int getSegmentCount() {
+        return this.segmentList.size();
+    }
+
+
+    class PropertyIndexFlushService extends ServiceThread {
+        @Override
+        public void run() {
+            log.info(this.getServiceName() + " service started");
+
+            while (!this.isStoped()) {
+                try {
+                    this.waitForRunning(1000);
+                    final int maxEntries =
+                            PropertyIndexService.this.defaultMessageStore.getMessageStoreConfig().getPropertyIndexMemtableMaxEntries();
+                    final int interval =
+                            PropertyIndexService.this.defaultMessageStore.getMessageStoreConfig().getPropertyIndexFlushInterval();
+                    if (PropertyIndexService.this.memtableSize >= maxEntries
+                            || System.currentTimeMillis() - PropertyIndexService.this.memtableCreateTimestamp >= interval) {
+                        PropertyIndexService.this.flush();
+                        PropertyIndexService.this.compact();
+                    }
+                } catch (Exception e) {
+                    log.warn(this.getServiceName() + " service has exception. ", e);
+                }
+            }
+
+            log.info(this.getServiceName() + " service end");
+        }
+
+
+        @Override
+        public String getServiceName() {
+            return PropertyIndexFlushService.class.getSimpleName();
+        }
+    }
+}
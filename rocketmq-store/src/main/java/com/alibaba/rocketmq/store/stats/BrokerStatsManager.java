@@ -66,6 +66,7 @@ public class BrokerStatsManager {
     public static final String GROUP_GET_FROM_DISK_SIZE = "GROUP_GET_FROM_DISK_SIZE";
     public static final String BROKER_GET_FROM_DISK_NUMS = "BROKER_GET_FROM_DISK_NUMS";
     public static final String BROKER_GET_FROM_DISK_SIZE = "BROKER_GET_FROM_DISK_SIZE";
+    public static final String GROUP_PULL_QUEUE_WAIT = "GROUP_PULL_QUEUE_WAIT";
 
     // For commercial
     public static final String COMMERCIAL_TOPIC_SEND_TIMES = "COMMERCIAL_TOPIC_SEND_TIMES";
@@ -121,6 +122,11 @@ public class BrokerStatsManager {
         this.statsTable.put(BROKER_GET_FROM_DISK_NUMS, new StatsItemSet(BROKER_GET_FROM_DISK_NUMS, this.scheduledExecutorService, log));
         this.statsTable.put(BROKER_GET_FROM_DISK_SIZE, new StatsItemSet(BROKER_GET_FROM_DISK_SIZE, this.scheduledExecutorService, log));
 
+        /**
+         * 拉消息请求在调度队列中的等待时间(毫秒)
+         */
+        this.statsTable.put(GROUP_PULL_QUEUE_WAIT, new StatsItemSet(GROUP_PULL_QUEUE_WAIT, this.scheduledExecutorService, log));
+
         // For commercial
         this.statsTable.put(COMMERCIAL_TOPIC_SEND_TIMES, new StatsItemSet(COMMERCIAL_TOPIC_SEND_TIMES, this.commercialStatsExecutor,
                 commercialLog));
@@ -174,6 +180,11 @@ public class BrokerStatsManager {
         this.statsTable.get(TOPIC_PUT_NUMS).addValue(topic, 1, 1);
     }
 
+
+    public void incTopicPutNums(final String topic, final int num, final int times) {
+        this.statsTable.get(TOPIC_PUT_NUMS).addValue(topic, num, times);
+    }
+
     /**
      * 新增向当前Topic put的消息的大小
      *
@@ -202,6 +213,11 @@ public class BrokerStatsManager {
     }
 
 
+    public void incBrokerPutNums(final int incValue) {
+        this.statsTable.get(BROKER_PUT_NUMS).getAndCreateStatsItem(this.clusterName).getValue().addAndGet(incValue);
+    }
+
+
     public void incBrokerGetNums(final int incValue) {
         this.statsTable.get(BROKER_GET_NUMS).getAndCreateStatsItem(this.clusterName).getValue().addAndGet(incValue);
     }
@@ -248,6 +264,12 @@ public class BrokerStatsManager {
     }
 
 
+    public void incGroupPullQueueWait(final String scheduler, final String group, final long waitMillis) {
+        final String statsKey = scheduler + "@" + group;
+        this.statsTable.get(GROUP_PULL_QUEUE_WAIT).addValue(statsKey, (int) waitMillis, 1);
+    }
+
+
     public String buildStatsKey(String topic, String group) {
         StringBuffer strBuilder = new StringBuffer();
         strBuilder.append(topic);
@@ -0,0 +1,193 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store.tiered;
+
+import com.alibaba.rocketmq.common.ThreadFactoryImpl;
+import com.alibaba.rocketmq.common.UtilAll;
+import com.alibaba.rocketmq.common.constant.LoggerName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * 冷存储读缓存，按blockSize对齐整块读取并LRU缓存在堆内，
+ * 每次读取后异步预读同一文件中后续的readAheadBlocks块，顺序回放时大部分读取命中缓存
+ */
+public class ColdReadAheadCache {
+    private static final Logger log = LoggerFactory.getLogger(LoggerName.StoreLoggerName);
+
+    private final ColdStorage coldStorage;
+    private final int blockSize;
+    private final int readAheadBlocks;
+    // 块的起始物理位置 -> 块内容
+    private final LinkedHashMap<Long, byte[]> blockTable;
+    private final ConcurrentHashMap<Long, Boolean> prefetchingTable = new ConcurrentHashMap<Long, Boolean>();
+    private final ThreadPoolExecutor prefetchExecutor;
+    private final AtomicLong hitTimes = new AtomicLong(0);
+    private final AtomicLong missTimes = new AtomicLong(0);
+
+
+    public ColdReadAheadCache(final ColdStorage coldStorage, final int blockSize, final int maxBlocks,
+            final int readAheadBlocks) {
+        this.coldStorage = coldStorage;
+        this.blockSize = blockSize;
+        this.readAheadBlocks = readAheadBlocks;
+        this.blockTable = new LinkedHashMap<Long, byte[]>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+                return this.size() > maxBlocks;
+            }
+        };
+        this.prefetchExecutor = new ThreadPoolExecutor(1, 1, 1000 * 60, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(Math.max(1, readAheadBlocks * 16)),
+                new ThreadFactoryImpl("ColdPrefetchThread_"));
+    }
+
+
+    /**
+     * 读取[offset, offset + size)，不能跨越文件
+     *
+     * @return 读取失败返回null
+     */
+    public ByteBuffer read(final long fileFromOffset, final long fileLength, final long offset, final int size)
+            throws IOException {
+        byte[] data = new byte[size];
+        long blockPos = 0;
+        for (int copied = 0; copied < size; ) {
+            long pos = offset + copied - fileFromOffset;
+            blockPos = pos - pos % this.blockSize;
+            byte[] block = this.getBlock(fileFromOffset, fileLength, blockPos, true);
+            int inBlock = (int) (pos - blockPos);
+            if (null == block || inBlock >= block.length) {
+                return null;
+            }
+
+            int n = Math.min(size - copied, block.length - inBlock);
+            System.arraycopy(block, inBlock, data, copied, n);
+            copied += n;
+        }
+
+        this.prefetch(fileFromOffset, fileLength, blockPos);
+        return ByteBuffer.wrap(data);
+    }
+
+
+    private byte[] getBlock(final long fileFromOffset, final long fileLength, final long blockPos,
+            final boolean countStats) throws IOException {
+        final Long key = fileFromOffset + blockPos;
+        synchronized (this.blockTable) {
+            byte[] block = this.blockTable.get(key);
+            if (block != null) {
+                if (countStats) {
+                    this.hitTimes.incrementAndGet();
+                }
+                return block;
+            }
+        }
+
+        if (countStats) {
+            this.missTimes.incrementAndGet();
+        }
+
+        int length = (int) Math.min(this.blockSize, fileLength - blockPos);
+        if (length <= 0) {
+            return null;
+        }
+
+        byte[] block = new byte[length];
+        int read = this.coldStorage.read(UtilAll.offset2FileName(fileFromOffset), blockPos, block, 0, length);
+        if (read != length) {
+            log.warn("read cold file {} at {} failed, expect {} but {}", fileFromOffset, blockPos, length, read);
+            return null;
+        }
+
+        synchronized (this.blockTable) {
+            this.blockTable.put(key, block);
+        }
+        return block;
+    }
+
+
+    private void prefetch(final long fileFromOffset, final long fileLength, final long blockPos) {
+        for (int i = 1; i <= this.readAheadBlocks; i++) {
+            final long nextBlockPos = blockPos + (long) i * this.blockSize;
+            if (nextBlockPos >= fileLength) {
+                break;
+            }
+
+            final Long key = fileFromOffset + nextBlockPos;
+            synchronized (this.blockTable) {
+                if (this.blockTable.containsKey(key)) {
+                    continue;
+                }
+            }
+            if (this.prefetchingTable.putIfAbsent(key, Boolean.TRUE) != null) {
+                continue;
+            }
+
+            try {
+                this.prefetchExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            ColdReadAheadCache.this.getBlock(fileFromOffset, fileLength, nextBlockPos, false);
+                        } catch (Throwable e) {
+                            log.warn("prefetch cold file exception", e);
+                        } finally {
+                            ColdReadAheadCache.this.prefetchingTable.remove(key);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                this.prefetchingTable.remove(key);
+                break;
+            }
+        }
+    }
+
+
+    public void shutdown() {
+        this.prefetchExecutor.shutdown();
+        synchronized (this.blockTable) {
+            this.blockTable.clear();
+        }
+    }
+
+
+    public long getHitTimes() {
+        return hitTimes.get();
+    }
+
+
+    public long getMissTimes() {
+        return missTimes.get();
+    }
+}
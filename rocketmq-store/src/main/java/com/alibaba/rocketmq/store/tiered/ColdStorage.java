@@ -0,0 +1,64 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store.tiered;
+
+import com.alibaba.rocketmq.store.config.MessageStoreConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+
+/**
+ * 冷存储SPI，保存已经写满的CommitLog文件，实现类通过tieredColdStorageClass配置，需要无参构造函数。<br>
+ * 文件以CommitLog文件名（起始物理位置）为名称，上传后不再修改。
+ */
+public interface ColdStorage {
+    void init(final MessageStoreConfig messageStoreConfig) throws IOException;
+
+    void shutdown();
+
+    /**
+     * 上传完整文件，返回前必须保证可读，同名文件覆盖
+     */
+    void upload(final String name, final File file) throws IOException;
+
+    /**
+     * 从position处读取最多length字节
+     *
+     * @return 实际读取的字节数，文件不存在返回-1
+     */
+    int read(final String name, final long position, final byte[] dst, final int offset, final int length)
+            throws IOException;
+
+    /**
+     * @return 所有文件名，无序
+     */
+    List<String> list() throws IOException;
+
+    /**
+     * @return 文件长度，不存在返回-1
+     */
+    long length(final String name);
+
+    /**
+     * @return 上传时间，不存在返回0
+     */
+    long lastModified(final String name);
+
+    boolean delete(final String name);
+}
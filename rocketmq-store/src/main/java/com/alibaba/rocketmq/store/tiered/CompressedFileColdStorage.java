@@ -0,0 +1,383 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store.tiered;
+
+import com.alibaba.rocketmq.store.MapedFile;
+import com.alibaba.rocketmq.store.config.MessageStoreConfig;
+import com.alibaba.rocketmq.store.config.StorePathConfigHelper;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+
+/**
+ * 按块压缩的冷存储装饰器，上传前在本地暂存目录压缩，再交给被装饰的冷存储保存；
+ * 读取时只从被装饰的冷存储读取并解压需要的块，解压后的数据由ColdReadAheadCache缓存。<br>
+ * 被装饰的实现通过tieredCompressDelegateClass配置，默认LocalFileColdStorage。<br>
+ * 文件格式：[压缩块0][压缩块1]...[块偏移表 long * (blockCount + 1)][Footer]<br>
+ * Footer：rawLength(8) blockSize(4) blockCount(4) indexPosition(8) codec(4) magic(4)
+ */
+public class CompressedFileColdStorage implements ColdStorage {
+    public final static int SegmentMagicCode = 0xC0DEC0DE;
+    public final static int CodecZlib = 1;
+    private final static int FooterSize = 8 + 4 + 4 + 8 + 4 + 4;
+
+    private ColdStorage delegate;
+    private String stagingPath;
+    private int blockSize;
+    private int compressLevel;
+    // 块偏移表只在第一次读取时从被装饰的冷存储加载
+    private final ConcurrentHashMap<String/* name */, SegmentIndex> segmentTable =
+            new ConcurrentHashMap<String, SegmentIndex>();
+
+
+    /**
+     * 供tieredColdStorageClass反射创建，被装饰的实现在init时按tieredCompressDelegateClass创建
+     */
+    public CompressedFileColdStorage() {
+    }
+
+
+    public CompressedFileColdStorage(final ColdStorage delegate) {
+        this.delegate = delegate;
+    }
+
+
+    @Override
+    public void init(final MessageStoreConfig messageStoreConfig) throws IOException {
+        if (null == this.delegate) {
+            try {
+                this.delegate =
+                        (ColdStorage) Class.forName(messageStoreConfig.getTieredCompressDelegateClass()).newInstance();
+            } catch (Exception e) {
+                throw new IOException("create cold storage " + messageStoreConfig.getTieredCompressDelegateClass()
+                        + " failed, " + e);
+            }
+        }
+        this.delegate.init(messageStoreConfig);
+
+        this.stagingPath = StorePathConfigHelper.getStorePathColdStaging(messageStoreConfig.getStorePathRootDir());
+        this.blockSize = messageStoreConfig.getTieredCompressBlockSize();
+        this.compressLevel = messageStoreConfig.getTieredCompressLevel();
+        MapedFile.ensureDirOK(this.stagingPath);
+    }
+
+
+    @Override
+    public void shutdown() {
+        this.segmentTable.clear();
+        this.delegate.shutdown();
+    }
+
+
+    @Override
+    public void upload(final String name, final File file) throws IOException {
+        File compressedFile = new File(this.stagingPath, name + ".tmp");
+        try {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                FileOutputStream out = new FileOutputStream(compressedFile);
+                try {
+                    this.compress(in.getChannel(), out.getChannel());
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+
+            this.segmentTable.remove(name);
+            this.delegate.upload(name, compressedFile);
+        } finally {
+            compressedFile.delete();
+        }
+    }
+
+
+    private void compress(final FileChannel src, final FileChannel dst) throws IOException {
+        final long rawLength = src.size();
+        final int blockCount = (int) ((rawLength + this.blockSize - 1) / this.blockSize);
+        final ByteBuffer index = ByteBuffer.allocate(8 * (blockCount + 1));
+        final byte[] raw = new byte[this.blockSize];
+        // 压缩结果可能略大于原始数据
+        byte[] compressed = new byte[this.blockSize + this.blockSize / 16 + 64];
+        final Deflater deflater = new Deflater(this.compressLevel);
+        try {
+            long position = 0;
+            for (int i = 0; i < blockCount; i++) {
+                final int rawSize = (int) Math.min(this.blockSize, rawLength - (long) i * this.blockSize);
+                ByteBuffer rawBuffer = ByteBuffer.wrap(raw, 0, rawSize);
+                while (rawBuffer.hasRemaining()) {
+                    if (src.read(rawBuffer, (long) i * this.blockSize + rawBuffer.position()) < 0) {
+                        throw new IOException("unexpected end of file, block " + i);
+                    }
+                }
+
+                deflater.reset();
+                deflater.setInput(raw, 0, rawSize);
+                deflater.finish();
+                int compressedSize = 0;
+                while (!deflater.finished()) {
+                    if (compressedSize == compressed.length) {
+                        byte[] bigger = new byte[compressed.length * 2];
+                        System.arraycopy(compressed, 0, bigger, 0, compressedSize);
+                        compressed = bigger;
+                    }
+                    compressedSize += deflater.deflate(compressed, compressedSize, compressed.length - compressedSize);
+                }
+
+                index.putLong(position);
+                position += this.writeFully(dst, ByteBuffer.wrap(compressed, 0, compressedSize));
+            }
+            index.putLong(position);
+
+            index.flip();
+            final long indexPosition = position;
+            position += this.writeFully(dst, index);
+
+            ByteBuffer footer = ByteBuffer.allocate(FooterSize);
+            footer.putLong(rawLength);
+            footer.putInt(this.blockSize);
+            footer.putInt(blockCount);
+            footer.putLong(indexPosition);
+            footer.putInt(CodecZlib);
+            footer.putInt(SegmentMagicCode);
+            footer.flip();
+            this.writeFully(dst, footer);
+        } finally {
+            deflater.end();
+        }
+    }
+
+
+    private int writeFully(final FileChannel channel, final ByteBuffer buffer) throws IOException {
+        int size = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        return size;
+    }
+
+
+    /**
+     * @return 文件不存在时返回null
+     */
+    private SegmentIndex getSegmentIndex(final String name) throws IOException {
+        SegmentIndex index = this.segmentTable.get(name);
+        if (index != null) {
+            return index;
+        }
+
+        final long fileSize = this.delegate.length(name);
+        if (fileSize < 0) {
+            return null;
+        }
+        if (fileSize < FooterSize) {
+            throw new IOException("compressed segment too small, " + name + " " + fileSize);
+        }
+
+        ByteBuffer footer = this.readFully(name, fileSize - FooterSize, FooterSize);
+        if (null == footer) {
+            return null;
+        }
+        final long rawLength = footer.getLong();
+        final int blockSize = footer.getInt();
+        final int blockCount = footer.getInt();
+        final long indexPosition = footer.getLong();
+        final int codec = footer.getInt();
+        final int magic = footer.getInt();
+        if (magic != SegmentMagicCode || codec != CodecZlib) {
+            throw new IOException("illegal compressed segment " + name + ", magic " + magic + " codec " + codec);
+        }
+
+        ByteBuffer indexBuffer = this.readFully(name, indexPosition, 8 * (blockCount + 1));
+        if (null == indexBuffer) {
+            return null;
+        }
+        long[] blockOffsets = new long[blockCount + 1];
+        for (int i = 0; i <= blockCount; i++) {
+            blockOffsets[i] = indexBuffer.getLong();
+        }
+
+        index = new SegmentIndex(rawLength, blockSize, blockOffsets);
+        SegmentIndex prev = this.segmentTable.putIfAbsent(name, index);
+        return prev != null ? prev : index;
+    }
+
+
+    /**
+     * @return 文件不存在时返回null
+     */
+    private ByteBuffer readFully(final String name, final long position, final int size) throws IOException {
+        byte[] data = new byte[size];
+        int read = 0;
+        while (read < size) {
+            int n = this.delegate.read(name, position + read, data, read, size - read);
+            if (n < 0) {
+                return null;
+            }
+            if (0 == n) {
+                throw new IOException("unexpected end of compressed segment " + name + " at " + (position + read));
+            }
+            read += n;
+        }
+        return ByteBuffer.wrap(data);
+    }
+
+
+    @Override
+    public int read(final String name, final long position, final byte[] dst, final int offset, final int length)
+            throws IOException {
+        final SegmentIndex index = this.getSegmentIndex(name);
+        if (null == index) {
+            return -1;
+        }
+
+        final int total = (int) Math.max(0, Math.min(length, index.rawLength - position));
+        final Inflater inflater = new Inflater();
+        try {
+            int read = 0;
+            byte[] block = null;
+            while (read < total) {
+                final long rawPos = position + read;
+                final int blockIndex = (int) (rawPos / index.blockSize);
+                final int posInBlock = (int) (rawPos % index.blockSize);
+                final int rawSize = index.rawSize(blockIndex);
+                final int copySize = Math.min(rawSize - posInBlock, total - read);
+
+                final long blockBegin = index.blockOffsets[blockIndex];
+                ByteBuffer compressed = this.readFully(name, blockBegin,
+                        (int) (index.blockOffsets[blockIndex + 1] - blockBegin));
+                if (null == compressed) {
+                    // 读取期间文件被删除
+                    return -1;
+                }
+
+                inflater.reset();
+                inflater.setInput(compressed.array());
+                if (0 == posInBlock && copySize == rawSize) {
+                    // 整块读取时直接解压到目标数组
+                    this.inflateFully(inflater, dst, offset + read, rawSize);
+                } else {
+                    if (null == block) {
+                        block = new byte[index.blockSize];
+                    }
+                    this.inflateFully(inflater, block, 0, rawSize);
+                    System.arraycopy(block, posInBlock, dst, offset + read, copySize);
+                }
+                read += copySize;
+            }
+            return read;
+        } finally {
+            inflater.end();
+        }
+    }
+
+
+    private void inflateFully(final Inflater inflater, final byte[] dst, final int offset, final int size)
+            throws IOException {
+        try {
+            int inflated = 0;
+            while (inflated < size) {
+                int n = inflater.inflate(dst, offset + inflated, size - inflated);
+                if (0 == n && (inflater.finished() || inflater.needsInput())) {
+                    throw new IOException("compressed block is truncated, expected " + size + " but " + inflated);
+                }
+                inflated += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("compressed block is corrupted, " + e.getMessage());
+        }
+    }
+
+
+    @Override
+    public List<String> list() throws IOException {
+        return this.delegate.list();
+    }
+
+
+    /**
+     * @return 压缩前的文件长度
+     */
+    @Override
+    public long length(final String name) {
+        try {
+            SegmentIndex index = this.getSegmentIndex(name);
+            return null == index ? -1 : index.rawLength;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+
+    /**
+     * @return 压缩后在被装饰的冷存储中占用的空间
+     */
+    public long compressedLength(final String name) {
+        return this.delegate.length(name);
+    }
+
+
+    @Override
+    public long lastModified(final String name) {
+        return this.delegate.lastModified(name);
+    }
+
+
+    @Override
+    public boolean delete(final String name) {
+        this.segmentTable.remove(name);
+        return this.delegate.delete(name);
+    }
+
+
+    public ColdStorage getDelegate() {
+        return delegate;
+    }
+
+
+    /**
+     * 压缩文件的块偏移表，上传后文件不再修改，可以一直缓存到文件被删除或替换
+     */
+    static class SegmentIndex {
+        private final long rawLength;
+        private final int blockSize;
+        private final long[] blockOffsets;
+
+
+        SegmentIndex(long rawLength, int blockSize, long[] blockOffsets) {
+            this.rawLength = rawLength;
+            this.blockSize = blockSize;
+            this.blockOffsets = blockOffsets;
+        }
+
+
+        int rawSize(final int blockIndex) {
+            return (int) Math.min(this.blockSize, this.rawLength - (long) blockIndex * this.blockSize);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store.tiered;
+
+import com.alibaba.rocketmq.store.MapedFile;
+import com.alibaba.rocketmq.store.config.MessageStoreConfig;
+import com.alibaba.rocketmq.store.config.StorePathConfigHelper;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * 本地目录实现的冷存储，用于测试或挂载的廉价大容量磁盘、网络文件系统
+ */
+public class LocalFileColdStorage implements ColdStorage {
+    private String storePath;
+
+
+    @Override
+    public void init(final MessageStoreConfig messageStoreConfig) throws IOException {
+        String path = messageStoreConfig.getTieredColdStoragePath();
+        if (null == path || path.length() == 0) {
+            path = StorePathConfigHelper.getStorePathColdCommitLog(messageStoreConfig.getStorePathRootDir());
+        }
+        this.storePath = path;
+        MapedFile.ensureDirOK(this.storePath);
+    }
+
+
+    @Override
+    public void shutdown() {
+    }
+
+
+    @Override
+    public void upload(final String name, final File file) throws IOException {
+        File target = new File(this.storePath, name);
+        File tmpFile = new File(this.storePath, name + ".tmp");
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileOutputStream out = new FileOutputStream(tmpFile);
+            try {
+                FileChannel src = in.getChannel();
+                FileChannel dst = out.getChannel();
+                long size = src.size();
+                for (long position = 0; position < size; ) {
+                    position += src.transferTo(position, size - position, dst);
+                }
+                dst.force(true);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+
+        if (target.exists() && !target.delete()) {
+            throw new IOException("delete old cold file failed, " + target);
+        }
+        if (!tmpFile.renameTo(target)) {
+            throw new IOException("rename cold file failed, " + tmpFile);
+        }
+    }
+
+
+    @Override
+    public int read(final String name, final long position, final byte[] dst, final int offset, final int length)
+            throws IOException {
+        File file = new File(this.storePath, name);
+        if (!file.exists()) {
+            return -1;
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.seek(position);
+            int read = 0;
+            while (read < length) {
+                int n = raf.read(dst, offset + read, length - read);
+                if (n < 0) {
+                    break;
+                }
+                read += n;
+            }
+            return read;
+        } finally {
+            raf.close();
+        }
+    }
+
+
+    @Override
+    public List<String> list() throws IOException {
+        List<String> names = new ArrayList<String>();
+        File[] files = new File(this.storePath).listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.getName().endsWith(".tmp")) {
+                    names.add(file.getName());
+                }
+            }
+        }
+        return names;
+    }
+
+
+    @Override
+    public long length(final String name) {
+        File file = new File(this.storePath, name);
+        return file.exists() ? file.length() : -1;
+    }
+
+
+    @Override
+    public long lastModified(final String name) {
+        return new File(this.storePath, name).lastModified();
+    }
+
+
+    @Override
+    public boolean delete(final String name) {
+        return new File(this.storePath, name).delete();
+    }
+}
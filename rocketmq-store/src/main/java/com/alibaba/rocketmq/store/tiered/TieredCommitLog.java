@@ -0,0 +1,270 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store.tiered;
+
+import com.alibaba.rocketmq.common.ServiceThread;
+import com.alibaba.rocketmq.common.UtilAll;
+import com.alibaba.rocketmq.common.constant.LoggerName;
+import com.alibaba.rocketmq.store.CommitLog;
+import com.alibaba.rocketmq.store.DefaultMessageStore;
+import com.alibaba.rocketmq.store.MapedFile;
+import com.alibaba.rocketmq.store.SelectMapedBufferResult;
+import com.alibaba.rocketmq.store.config.MessageStoreConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+
+/**
+ * 分层存储：写满并刷盘的CommitLog文件上传到冷存储，本地文件只有上传之后才允许被删除。<br>
+ * 本地已经删除的消息从冷存储按块读取，ConsumeQueue和索引按冷存储的最小位置保留，
+ * 因此可以回放远超本地磁盘容量的历史消息。
+ */
+public class TieredCommitLog {
+    private static final Logger log = LoggerFactory.getLogger(LoggerName.StoreLoggerName);
+
+    private final DefaultMessageStore defaultMessageStore;
+    // 冷存储中的文件，起始物理位置 -> 文件长度
+    private final ConcurrentSkipListMap<Long, Long> coldFileTable = new ConcurrentSkipListMap<Long, Long>();
+    private final TieredUploadService tieredUploadService = new TieredUploadService();
+    private ColdStorage coldStorage;
+    private ColdReadAheadCache readAheadCache;
+
+
+    public TieredCommitLog(final DefaultMessageStore defaultMessageStore) {
+        this.defaultMessageStore = defaultMessageStore;
+    }
+
+
+    public boolean load() {
+        final MessageStoreConfig config = this.defaultMessageStore.getMessageStoreConfig();
+        try {
+            this.coldStorage = (ColdStorage) Class.forName(config.getTieredColdStorageClass()).newInstance();
+            this.coldStorage.init(config);
+            for (String name : this.coldStorage.list()) {
+                if (!isFileName(name)) {
+                    continue;
+                }
+
+                long length = this.coldStorage.length(name);
+                if (length > 0) {
+                    this.coldFileTable.put(Long.parseLong(name), length);
+                }
+            }
+        } catch (Exception e) {
+            log.error("load cold storage exception", e);
+            return false;
+        }
+
+        this.readAheadCache = new ColdReadAheadCache(this.coldStorage, config.getTieredReadBlockSize(),
+                config.getTieredReadCacheBlocks(), config.getTieredReadAheadBlocks());
+        log.info("load cold storage OK, {} files", this.coldFileTable.size());
+        return true;
+    }
+
+
+    public void start() {
+        this.tieredUploadService.start();
+    }
+
+
+    public void shutdown() {
+        this.tieredUploadService.shutdown();
+        if (this.readAheadCache != null) {
+            this.readAheadCache.shutdown();
+        }
+        if (this.coldStorage != null) {
+            this.coldStorage.shutdown();
+        }
+    }
+
+
+    /**
+     * @return 冷存储中最小的物理位置，没有文件返回-1
+     */
+    public long getMinOffset() {
+        Map.Entry<Long, Long> first = this.coldFileTable.firstEntry();
+        return first != null ? first.getKey() : -1;
+    }
+
+
+    /**
+     * 本地文件从头开始连续上传到的位置，之前的本地文件可以删除
+     */
+    public long getDeletableOffset() {
+        final CommitLog commitLog = this.defaultMessageStore.getCommitLog();
+        final int mapedFileSize = this.defaultMessageStore.getMessageStoreConfig().getMapedFileSizeCommitLog();
+        long offset = commitLog.getMinOffset();
+        if (offset < 0) {
+            return 0;
+        }
+
+        for (Long length = this.coldFileTable.get(offset); length != null && length >= mapedFileSize;
+             length = this.coldFileTable.get(offset)) {
+            offset += length;
+        }
+        return offset;
+    }
+
+
+    /**
+     * 上传已经写满并刷盘、还没有上传的文件
+     *
+     * @return 本次上传的文件数
+     */
+    public int uploadSealedFiles() throws IOException {
+        int count = 0;
+        for (MapedFile mapedFile : this.defaultMessageStore.getCommitLog().getSealedMapedFiles()) {
+            if (this.coldFileTable.containsKey(mapedFile.getFileFromOffset())) {
+                continue;
+            }
+
+            long beginTime = System.currentTimeMillis();
+            File file = new File(mapedFile.getFileName());
+            this.coldStorage.upload(file.getName(), file);
+            this.coldFileTable.put(mapedFile.getFileFromOffset(), (long) mapedFile.getFileSize());
+            log.info("upload commitlog file {} to cold storage OK, {}", file.getName(),
+                    UtilAll.computeEclipseTimeMilliseconds(beginTime));
+            count++;
+        }
+        return count;
+    }
+
+
+    /**
+     * 从头删除超过tieredFileReservedTime并且本地已经删除的冷文件
+     */
+    public int deleteExpiredFiles() {
+        final long reservedTime = this.defaultMessageStore.getMessageStoreConfig().getTieredFileReservedTime() * 60L * 60 * 1000;
+        final long localMinOffset = this.defaultMessageStore.getCommitLog().getMinOffset();
+        int count = 0;
+        for (Map.Entry<Long, Long> entry : this.coldFileTable.entrySet()) {
+            String name = UtilAll.offset2FileName(entry.getKey());
+            if (entry.getKey() >= localMinOffset
+                    || System.currentTimeMillis() - this.coldStorage.lastModified(name) < reservedTime) {
+                break;
+            }
+
+            this.coldFileTable.remove(entry.getKey());
+            if (this.coldStorage.delete(name)) {
+                log.info("delete expired cold file {} OK", name);
+            } else {
+                log.warn("delete expired cold file {} failed", name);
+            }
+            count++;
+        }
+        return count;
+    }
+
+
+    /**
+     * 从冷存储读取消息，消息不在冷存储中返回null
+     */
+    public SelectMapedBufferResult getMessage(final long offset, final int size) {
+        Map.Entry<Long, Long> entry = this.coldFileTable.floorEntry(offset);
+        if (null == entry || offset + size > entry.getKey() + entry.getValue()) {
+            return null;
+        }
+
+        try {
+            ByteBuffer byteBuffer = this.readAheadCache.read(entry.getKey(), entry.getValue(), offset, size);
+            if (byteBuffer != null) {
+                return new SelectMapedBufferResult(offset, byteBuffer, size, null);
+            }
+        } catch (IOException e) {
+            log.warn("read message from cold storage exception, offset " + offset, e);
+        }
+
+        return null;
+    }
+
+
+    /**
+     * HA传输从冷存储读取数据，不跨越读缓存块，最多读取haTransferBatchSize
+     */
+    public SelectMapedBufferResult getData(final long offset) {
+        Map.Entry<Long, Long> entry = this.coldFileTable.floorEntry(offset);
+        if (null == entry || offset >= entry.getKey() + entry.getValue()) {
+            return null;
+        }
+
+        final MessageStoreConfig config = this.defaultMessageStore.getMessageStoreConfig();
+        final int blockSize = config.getTieredReadBlockSize();
+        long size = Math.min(entry.getKey() + entry.getValue() - offset, blockSize - (offset - entry.getKey()) % blockSize);
+        size = Math.min(size, config.getHaTransferBatchSize());
+        return this.getMessage(offset, (int) size);
+    }
+
+
+    public ColdStorage getColdStorage() {
+        return coldStorage;
+    }
+
+
+    public int getColdFileCount() {
+        return this.coldFileTable.size();
+    }
+
+
+    public ColdReadAheadCache getReadAheadCache() {
+        return readAheadCache;
+    }
+
+
+    private static boolean isFileName(final String name) {
+        if (name.length() == 0) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (!Character.isDigit(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    class TieredUploadService extends ServiceThread {
+        @Override
+        public void run() {
+            log.info(this.getServiceName() + " service started");
+
+            while (!this.isStoped()) {
+                try {
+                    this.waitForRunning(1000 * 10);
+                    TieredCommitLog.this.uploadSealedFiles();
+                    TieredCommitLog.this.deleteExpiredFiles();
+                } catch (Exception e) {
+                    log.warn(this.getServiceName() + " service has exception. ", e);
+                }
+            }
+
+            log.info(this.getServiceName() + " service end");
+        }
+
+
+        @Override
+        public String getServiceName() {
+            return TieredUploadService.class.getSimpleName();
+        }
+    }
+}
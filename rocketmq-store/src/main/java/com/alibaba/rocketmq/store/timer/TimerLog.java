@@ -0,0 +1,192 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store.timer;
+
+import com.alibaba.rocketmq.common.constant.LoggerName;
+import com.alibaba.rocketmq.store.MapedFile;
+import com.alibaba.rocketmq.store.MapedFileQueue;
+import com.alibaba.rocketmq.store.SelectMapedBufferResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+
+/**
+ * 定时消息日志，只追加，同一个时间轮槽位中的记录通过prevPos向前串成链表
+ * <p>
+ * 记录格式：|8Byte prevPos|8Byte deliverMs|8Byte commitLog offset|4Byte size|
+ * <p>
+ * 非线程安全，由TimerMessageService加锁访问
+ */
+public class TimerLog {
+    public static final int UNIT_SIZE = 28;
+    private static final Logger log = LoggerFactory.getLogger(LoggerName.StoreLoggerName);
+
+    private final MapedFileQueue mapedFileQueue;
+    private final int mapedFileSize;
+    private final ByteBuffer unitBuffer = ByteBuffer.allocate(UNIT_SIZE);
+    private long wrotePos = 0;
+
+
+    public TimerLog(final String storePath, final int mapedFileSize) {
+        // 记录不能跨文件
+        this.mapedFileSize = Math.max(UNIT_SIZE, mapedFileSize - mapedFileSize % UNIT_SIZE);
+        this.mapedFileQueue = new MapedFileQueue(storePath, this.mapedFileSize, null);
+    }
+
+
+    public boolean load() {
+        boolean result = this.mapedFileQueue.load();
+        log.info("load timer log " + (result ? "OK" : "Failed"));
+        return result;
+    }
+
+
+    /**
+     * 截掉最后一次checkpoint之后写入的数据，时间轮快照中的槽位不会引用这些位置
+     */
+    public void recover(final long wrotePos) {
+        this.mapedFileQueue.truncateDirtyFiles(wrotePos);
+        this.mapedFileQueue.setCommittedWhere(wrotePos);
+        this.wrotePos = wrotePos;
+    }
+
+
+    /**
+     * @return 记录位置，失败返回-1
+     */
+    public long append(final long prevPos, final long deliverMs, final long offsetPy, final int sizePy) {
+        MapedFile mapedFile = this.mapedFileQueue.getLastMapedFile(this.wrotePos);
+        if (null == mapedFile) {
+            log.error("create timer log file failed, wrotePos: {}", this.wrotePos);
+            return -1;
+        }
+
+        final long pos = mapedFile.getFileFromOffset() + mapedFile.getWrotePostion();
+        this.unitBuffer.clear();
+        this.unitBuffer.putLong(prevPos);
+        this.unitBuffer.putLong(deliverMs);
+        this.unitBuffer.putLong(offsetPy);
+        this.unitBuffer.putInt(sizePy);
+        if (!mapedFile.appendMessage(this.unitBuffer.array())) {
+            return -1;
+        }
+
+        this.wrotePos = pos + UNIT_SIZE;
+        return pos;
+    }
+
+
+    /**
+     * 从lastPos开始沿prevPos读取整条链表，按写入的逆序输出
+     */
+    public void readChain(final long lastPos, final int num, final List<TimerUnit> units) {
+        long pos = lastPos;
+        for (int i = 0; i < num && pos >= 0; i++) {
+            MapedFile mapedFile = this.mapedFileQueue.findMapedFileByOffset(pos);
+            if (null == mapedFile) {
+                log.error("timer log position not found, pos: {}, lost {} units", pos, num - i);
+                return;
+            }
+
+            SelectMapedBufferResult result = mapedFile.selectMapedBuffer((int) (pos % this.mapedFileSize), UNIT_SIZE);
+            if (null == result) {
+                log.error("read timer log failed, pos: {}, lost {} units", pos, num - i);
+                return;
+            }
+
+            try {
+                ByteBuffer byteBuffer = result.getByteBuffer();
+                long prevPos = byteBuffer.getLong();
+                long deliverMs = byteBuffer.getLong();
+                long offsetPy = byteBuffer.getLong();
+                int sizePy = byteBuffer.getInt();
+                units.add(new TimerUnit(deliverMs, offsetPy, sizePy));
+                pos = prevPos;
+            } finally {
+                result.release();
+            }
+        }
+    }
+
+
+    public boolean commit(final int flushLeastPages) {
+        return this.mapedFileQueue.commit(flushLeastPages);
+    }
+
+
+    /**
+     * 删除所有记录都已经投递（或已被转移到低层时间轮）的文件
+     *
+     * @param minReferencedPos 时间轮中仍被引用的最小位置
+     */
+    public int deleteExpiredFile(final long minReferencedPos) {
+        return this.mapedFileQueue.deleteFilesBeforeOffset(minReferencedPos);
+    }
+
+
+    public void shutdown() {
+        this.mapedFileQueue.shutdown(1000 * 3);
+    }
+
+
+    public void destroy() {
+        this.mapedFileQueue.destroy();
+        this.wrotePos = 0;
+    }
+
+
+    public long getWrotePos() {
+        return wrotePos;
+    }
+
+
+    public long getMinOffset() {
+        return this.mapedFileQueue.getMinOffset();
+    }
+
+
+    public static class TimerUnit {
+        private final long deliverMs;
+        private final long offsetPy;
+        private final int sizePy;
+
+
+        public TimerUnit(long deliverMs, long offsetPy, int sizePy) {
+            this.deliverMs = deliverMs;
+            this.offsetPy = offsetPy;
+            this.sizePy = sizePy;
+        }
+
+
+        public long getDeliverMs() {
+            return deliverMs;
+        }
+
+
+        public long getOffsetPy() {
+            return offsetPy;
+        }
+
+
+        public int getSizePy() {
+            return sizePy;
+        }
+    }
+}
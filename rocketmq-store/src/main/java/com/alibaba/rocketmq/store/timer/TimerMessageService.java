@@ -0,0 +1,703 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store.timer;
+
+import com.alibaba.rocketmq.common.ServiceThread;
+import com.alibaba.rocketmq.common.ThreadFactoryImpl;
+import com.alibaba.rocketmq.common.TopicFilterType;
+import com.alibaba.rocketmq.common.constant.LoggerName;
+import com.alibaba.rocketmq.common.message.MessageAccessor;
+import com.alibaba.rocketmq.common.message.MessageConst;
+import com.alibaba.rocketmq.common.message.MessageDecoder;
+import com.alibaba.rocketmq.common.message.MessageExt;
+import com.alibaba.rocketmq.common.running.RunningStats;
+import com.alibaba.rocketmq.store.*;
+import com.alibaba.rocketmq.store.config.MessageStoreConfig;
+import com.alibaba.rocketmq.store.config.StorePathConfigHelper;
+import com.alibaba.rocketmq.store.timer.TimerLog.TimerUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * 任意时间定时消息
+ * <p>
+ * 带TIMER_DELIVER_MS属性的消息先写入TIMER_TOPIC，ConsumeQueue的tagsCode为投递时间。
+ * TimerEnqueueService把ConsumeQueue中的记录追加到TimerLog并挂到分层时间轮的槽位上，
+ * TimerDequeueService逐格推进时间轮：高层槽位到期时整体下沉到低层，第0层槽位到期时按物理offset排序，
+ * 切成连续的几段由投递线程池并行读取原消息并写入真实Topic。
+ * <p>
+ * 时间轮槽位、ConsumeQueue进度、投递进度和TimerLog写入位置在同一个快照文件中原子落盘，
+ * 重启后截掉快照之后的TimerLog，再从快照记录的ConsumeQueue进度继续，投递语义为至少一次
+ */
+public class TimerMessageService {
+    public static final String TIMER_TOPIC = "TIMER_TOPIC_XXXX";
+    private static final Logger log = LoggerFactory.getLogger(LoggerName.StoreLoggerName);
+    private static final int SNAPSHOT_MAGIC = 0x54494D52;
+    // magic + precisionMs + slots + levels + enqueueOffset + readTimeMs + timerLogWrotePos
+    private static final int SNAPSHOT_HEADER_SIZE = 4 + 4 + 4 + 4 + 8 + 8 + 8;
+    // Max consume queue units moved into the wheel per lock hold
+    private static final int ENQUEUE_BATCH_MAX = 1024;
+    private static final long ENQUEUE_IDLE_INTERVAL = 100L;
+    private static final long DELAY_FOR_A_WHILE = 1000L;
+    // A tick with fewer due messages than this is delivered on the dequeue thread
+    private static final int DELIVER_PARALLEL_MIN = 64;
+
+    private final DefaultMessageStore defaultMessageStore;
+    private final MessageStoreConfig messageStoreConfig;
+    private final TimerLog timerLog;
+    private final int precisionMs;
+    private final long maxDelayMs;
+    private final String snapshotPath;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final TimerEnqueueService timerEnqueueService = new TimerEnqueueService();
+    private final TimerDequeueService timerDequeueService = new TimerDequeueService();
+    private final int deliverThreadNums;
+    private final ExecutorService deliverExecutor;
+    private final AtomicLong enqueueTimes = new AtomicLong(0);
+    private final AtomicLong deliverTimes = new AtomicLong(0);
+
+    // guarded by lock
+    private TimerWheel timerWheel;
+    private long enqueueOffset = 0;
+    // 下一个待投递时间格的起点
+    private long readTimeMs;
+    // readTimeMs所在时间格正在投递，新到的过期消息只能放到下一格
+    private boolean delivering = false;
+
+    private volatile boolean started = false;
+    private long lastPersistTimestamp = System.currentTimeMillis();
+
+
+    public TimerMessageService(final DefaultMessageStore defaultMessageStore) {
+        this.defaultMessageStore = defaultMessageStore;
+        this.messageStoreConfig = defaultMessageStore.getMessageStoreConfig();
+        this.precisionMs = Math.max(1, this.messageStoreConfig.getTimerPrecisionMs());
+        this.maxDelayMs = computeMaxDelayMs(this.messageStoreConfig);
+        final int slots = Math.max(2, this.messageStoreConfig.getTimerWheelSlots());
+        this.timerWheel = new TimerWheel(this.precisionMs, slots,
+                TimerWheel.computeLevels(this.precisionMs, slots, this.maxDelayMs));
+        this.timerLog = new TimerLog(StorePathConfigHelper.getStorePathTimerLog(this.messageStoreConfig.getStorePathRootDir()),
+                this.messageStoreConfig.getTimerLogFileSize());
+        this.snapshotPath = StorePathConfigHelper.getTimerWheelPath(this.messageStoreConfig.getStorePathRootDir());
+        this.readTimeMs = System.currentTimeMillis() / this.precisionMs * this.precisionMs;
+        this.deliverThreadNums = Math.max(1, this.messageStoreConfig.getTimerDeliverThreadNums());
+        this.deliverExecutor = this.deliverThreadNums > 1 ? Executors.newFixedThreadPool(this.deliverThreadNums,
+                new ThreadFactoryImpl("TimerDeliverThread_")) : null;
+    }
+
+
+    /**
+     * 定时消息在投递前一直引用CommitLog中的原消息，延时上限不能超过文件保留时间的一半
+     */
+    static long computeMaxDelayMs(final MessageStoreConfig messageStoreConfig) {
+        final long maxDelayMs = messageStoreConfig.getTimerMaxDelaySec() * 1000;
+        final long reservedLimitMs = messageStoreConfig.getFileReservedTime() * 3600L * 1000 / 2;
+        if (maxDelayMs > reservedLimitMs) {
+            log.warn("timerMaxDelaySec {} exceeds half of fileReservedTime {}h, use {}ms",
+                    messageStoreConfig.getTimerMaxDelaySec(), messageStoreConfig.getFileReservedTime(), reservedLimitMs);
+            return reservedLimitMs;
+        }
+        return maxDelayMs;
+    }
+
+
+    /**
+     * 投递时间超过上限的按上限处理
+     */
+    public long correctDeliverTimestamp(final long storeTimestamp, final long deliverMs) {
+        return Math.min(deliverMs, storeTimestamp + this.maxDelayMs);
+    }
+
+
+    public boolean load() {
+        boolean result = this.timerLog.load();
+        if (!result) {
+            return false;
+        }
+
+        File file = new File(this.snapshotPath);
+        if (!file.exists()) {
+            this.timerLog.recover(0);
+            log.info("timer wheel snapshot not exists, start from empty, {}", this.snapshotPath);
+            return true;
+        }
+
+        try {
+            ByteBuffer byteBuffer = readFile(file);
+            if (byteBuffer.getInt() != SNAPSHOT_MAGIC) {
+                log.error("timer wheel snapshot magic mismatched, {}", this.snapshotPath);
+                return false;
+            }
+
+            final int precision = byteBuffer.getInt();
+            final int slots = byteBuffer.getInt();
+            final int levels = byteBuffer.getInt();
+            this.enqueueOffset = byteBuffer.getLong();
+            this.readTimeMs = byteBuffer.getLong();
+            final long wrotePos = byteBuffer.getLong();
+            this.timerLog.recover(wrotePos);
+
+            TimerWheel loaded = new TimerWheel(precision, slots, levels);
+            loaded.decode(byteBuffer);
+            if (precision == this.timerWheel.getPrecisionMs() && slots == this.timerWheel.getSlots()
+                    && levels == this.timerWheel.getLevels()) {
+                this.timerWheel = loaded;
+            } else {
+                this.rebucket(loaded);
+            }
+
+            log.info("load timer wheel OK, enqueueOffset: {}, readTimeMs: {}, timerLogWrotePos: {}, pending: {}",
+                    this.enqueueOffset, this.readTimeMs, wrotePos, this.timerWheel.getTotalNum());
+        } catch (Exception e) {
+            log.error("load timer wheel snapshot exception, " + this.snapshotPath, e);
+            return false;
+        }
+
+        return true;
+    }
+
+
+    /**
+     * 时间轮参数变化后，把旧槽位中的记录按新参数重新挂到时间轮上
+     */
+    private void rebucket(final TimerWheel old) {
+        log.warn("timer wheel config changed, precisionMs {} -> {}, slots {} -> {}, levels {} -> {}, rebucket it",
+                old.getPrecisionMs(), this.timerWheel.getPrecisionMs(), old.getSlots(), this.timerWheel.getSlots(),
+                old.getLevels(), this.timerWheel.getLevels());
+
+        this.readTimeMs = this.readTimeMs / this.precisionMs * this.precisionMs;
+        final int total = old.getSlotTotal();
+        long[] bucketTime = new long[total];
+        long[] lastPos = new long[total];
+        int[] num = new int[total];
+        int active = old.activeSlots(bucketTime, lastPos, num);
+        List<TimerUnit> units = new ArrayList<TimerUnit>();
+        for (int i = 0; i < active; i++) {
+            units.clear();
+            this.timerLog.readChain(lastPos[i], num[i], units);
+            for (TimerUnit unit : units) {
+                this.addToWheel(unit.getDeliverMs(), unit.getOffsetPy(), unit.getSizePy());
+            }
+        }
+    }
+
+
+    private static ByteBuffer readFile(final File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[(int) randomAccessFile.length()];
+            randomAccessFile.readFully(data);
+            return ByteBuffer.wrap(data);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+
+    public void start() {
+        this.timerEnqueueService.start();
+        this.timerDequeueService.start();
+        this.started = true;
+    }
+
+
+    public void shutdown() {
+        if (this.started) {
+            this.timerEnqueueService.shutdown();
+            this.timerDequeueService.shutdown();
+            if (this.deliverExecutor != null) {
+                this.deliverExecutor.shutdown();
+            }
+            this.persist();
+            this.started = false;
+        }
+        this.timerLog.shutdown();
+    }
+
+
+    public void destroy() {
+        this.timerLog.destroy();
+        new File(this.snapshotPath).delete();
+    }
+
+
+    /**
+     * 先刷TimerLog再写快照，快照中的槽位不会引用未落盘的记录
+     */
+    public void persist() {
+        long minReferencedPos;
+        ByteBuffer snapshot;
+        this.lock.lock();
+        try {
+            snapshot = ByteBuffer.allocate(SNAPSHOT_HEADER_SIZE + this.timerWheel.getSlotTotal() * TimerWheel.SLOT_SIZE);
+            snapshot.putInt(SNAPSHOT_MAGIC);
+            snapshot.putInt(this.timerWheel.getPrecisionMs());
+            snapshot.putInt(this.timerWheel.getSlots());
+            snapshot.putInt(this.timerWheel.getLevels());
+            snapshot.putLong(this.enqueueOffset);
+            snapshot.putLong(this.readTimeMs);
+            snapshot.putLong(this.timerLog.getWrotePos());
+            this.timerWheel.encode(snapshot);
+            snapshot.flip();
+
+            minReferencedPos = this.timerWheel.getMinFirstPos();
+            if (minReferencedPos < 0) {
+                minReferencedPos = this.timerLog.getWrotePos();
+            }
+        } finally {
+            this.lock.unlock();
+        }
+
+        this.timerLog.commit(0);
+
+        try {
+            File file = new File(this.snapshotPath);
+            MapedFile.ensureDirOK(file.getParent());
+            File tmpFile = new File(this.snapshotPath + ".tmp");
+            RandomAccessFile randomAccessFile = new RandomAccessFile(tmpFile, "rw");
+            try {
+                randomAccessFile.setLength(0);
+                randomAccessFile.getChannel().write(snapshot);
+                randomAccessFile.getChannel().force(true);
+            } finally {
+                randomAccessFile.close();
+            }
+
+            if (!tmpFile.renameTo(file)) {
+                file.delete();
+                if (!tmpFile.renameTo(file)) {
+                    log.error("rename timer wheel snapshot failed, {}", this.snapshotPath);
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            log.error("persist timer wheel snapshot exception, " + this.snapshotPath, e);
+            return;
+        }
+
+        // 只删除刚落盘的快照也不再引用的文件
+        this.timerLog.deleteExpiredFile(minReferencedPos);
+    }
+
+
+    /**
+     * 根据当前投递进度选择层级和时间格，调用方持有锁
+     */
+    private boolean addToWheel(final long deliverMs, final long offsetPy, final int sizePy) {
+        final long cursor = this.readTimeMs;
+        final long minBucketTime = this.delivering ? cursor + this.precisionMs : cursor;
+        final int levels = this.timerWheel.getLevels();
+        final int slots = this.timerWheel.getSlots();
+
+        int level = -1;
+        long bucketTime = 0;
+        if (deliverMs < minBucketTime) {
+            level = 0;
+            bucketTime = minBucketTime;
+        } else {
+            for (int i = 0; i < levels; i++) {
+                long tick = this.timerWheel.tickMs(i);
+                if (deliverMs / tick - cursor / tick < slots) {
+                    level = i;
+                    bucketTime = deliverMs / tick * tick;
+                    break;
+                }
+            }
+
+            // 超出最高层范围，放到最高层最远的一格，下沉时重新计算
+            if (level < 0) {
+                level = levels - 1;
+                long tick = this.timerWheel.tickMs(level);
+                bucketTime = (cursor / tick + slots - 1) * tick;
+            }
+        }
+
+        long pos = this.timerLog.append(this.timerWheel.getLastPos(level, bucketTime), deliverMs, offsetPy, sizePy);
+        if (pos < 0) {
+            return false;
+        }
+
+        this.timerWheel.put(level, bucketTime, pos);
+        return true;
+    }
+
+
+    /**
+     * 把TIMER_TOPIC的ConsumeQueue记录挂到时间轮上
+     *
+     * @return 是否有进展
+     */
+    private boolean enqueue() {
+        ConsumeQueue cq = this.defaultMessageStore.findConsumeQueue(TIMER_TOPIC, 0);
+        if (null == cq) {
+            return false;
+        }
+
+        long offset;
+        this.lock.lock();
+        try {
+            if (this.enqueueOffset < cq.getMinOffsetInQuque()) {
+                log.error("timer consume queue offset invalid, offset: {}, cqMinOffset: {}", this.enqueueOffset,
+                        cq.getMinOffsetInQuque());
+                this.enqueueOffset = cq.getMinOffsetInQuque();
+            }
+            offset = this.enqueueOffset;
+        } finally {
+            this.lock.unlock();
+        }
+
+        SelectMapedBufferResult bufferCQ = cq.getIndexBuffer(offset);
+        if (null == bufferCQ) {
+            return false;
+        }
+
+        int count = 0;
+        try {
+            final int size = Math.min(bufferCQ.getSize(), ENQUEUE_BATCH_MAX * ConsumeQueue.CQStoreUnitSize);
+            this.lock.lock();
+            try {
+                for (int i = 0; i < size; i += ConsumeQueue.CQStoreUnitSize) {
+                    long offsetPy = bufferCQ.getByteBuffer().getLong();
+                    int sizePy = bufferCQ.getByteBuffer().getInt();
+                    long deliverMs = bufferCQ.getByteBuffer().getLong();
+                    if (!this.addToWheel(deliverMs, offsetPy, sizePy)) {
+                        log.error("append timer log failed, enqueueOffset: {}", this.enqueueOffset);
+                        break;
+                    }
+                    this.enqueueOffset++;
+                    count++;
+                }
+            } finally {
+                this.lock.unlock();
+            }
+        } finally {
+            bufferCQ.release();
+        }
+
+        this.enqueueTimes.addAndGet(count);
+        return count > 0;
+    }
+
+
+    /**
+     * 推进一格
+     *
+     * @return 是否推进了
+     */
+    private boolean dequeue() {
+        final long now = System.currentTimeMillis();
+        final long tick;
+        List<TimerUnit> units = new ArrayList<TimerUnit>();
+        this.lock.lock();
+        try {
+            tick = this.readTimeMs;
+            // 整格都到期后才投递，保证不早于指定时间
+            if (tick + this.precisionMs > now) {
+                return false;
+            }
+
+            for (int level = this.timerWheel.getLevels() - 1; level > 0; level--) {
+                if (tick % this.timerWheel.tickMs(level) == 0) {
+                    this.cascade(level, tick);
+                }
+            }
+
+            int num = this.timerWheel.getNum(0, tick);
+            if (num > 0) {
+                this.timerLog.readChain(this.timerWheel.getLastPos(0, tick), num, units);
+            }
+            this.delivering = true;
+        } finally {
+            this.lock.unlock();
+        }
+
+        boolean delivered = this.deliver(units);
+
+        this.lock.lock();
+        try {
+            this.delivering = false;
+            if (delivered) {
+                this.timerWheel.clear(0, tick);
+                this.readTimeMs = tick + this.precisionMs;
+            }
+        } finally {
+            this.lock.unlock();
+        }
+
+        return delivered;
+    }
+
+
+    /**
+     * 高层槽位到期，整体下沉到低层，调用方持有锁
+     */
+    private void cascade(final int level, final long bucketTime) {
+        int num = this.timerWheel.getNum(level, bucketTime);
+        if (num <= 0) {
+            return;
+        }
+
+        List<TimerUnit> units = new ArrayList<TimerUnit>(num);
+        this.timerLog.readChain(this.timerWheel.getLastPos(level, bucketTime), num, units);
+        for (TimerUnit unit : units) {
+            if (!this.addToWheel(unit.getDeliverMs(), unit.getOffsetPy(), unit.getSizePy())) {
+                log.error("cascade timer unit failed, level: {}, bucketTime: {}, offsetPy: {}", level, bucketTime,
+                        unit.getOffsetPy());
+            }
+        }
+        this.timerWheel.clear(level, bucketTime);
+    }
+
+
+    /**
+     * 一个时间格的消息按物理offset排序，切成连续的几段并行投递，每段内读CommitLog仍然是顺序的
+     *
+     * @return 全部投递成功返回true，服务停止时返回false
+     */
+    private boolean deliver(final List<TimerUnit> units) {
+        if (units.isEmpty()) {
+            return true;
+        }
+
+        Collections.sort(units, new Comparator<TimerUnit>() {
+            @Override
+            public int compare(TimerUnit o1, TimerUnit o2) {
+                return o1.getOffsetPy() < o2.getOffsetPy() ? -1 : (o1.getOffsetPy() == o2.getOffsetPy() ? 0 : 1);
+            }
+        });
+
+        if (null == this.deliverExecutor || units.size() < DELIVER_PARALLEL_MIN) {
+            return this.deliver(units, 0, units.size());
+        }
+
+        final int sliceSize = (units.size() + this.deliverThreadNums - 1) / this.deliverThreadNums;
+        final int sliceNums = (units.size() + sliceSize - 1) / sliceSize;
+        final CountDownLatch latch = new CountDownLatch(sliceNums);
+        final AtomicBoolean allDelivered = new AtomicBoolean(true);
+        for (int i = 0; i < sliceNums; i++) {
+            final int from = i * sliceSize;
+            final int to = Math.min(units.size(), from + sliceSize);
+            Runnable task = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (!TimerMessageService.this.deliver(units, from, to)) {
+                            allDelivered.set(false);
+                        }
+                    } catch (Throwable e) {
+                        log.error("deliver timer messages exception", e);
+                        allDelivered.set(false);
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            };
+            try {
+                this.deliverExecutor.execute(task);
+            } catch (Exception e) {
+                // 线程池已关闭
+                allDelivered.set(false);
+                latch.countDown();
+            }
+        }
+
+        try {
+            while (!latch.await(DELAY_FOR_A_WHILE, TimeUnit.MILLISECONDS)) {
+                log.warn("deliver timer messages slowly, {} slices left", latch.getCount());
+            }
+        } catch (InterruptedException e) {
+            return false;
+        }
+        // 部分失败时整格重投，投递语义本来就是至少一次
+        return allDelivered.get();
+    }
+
+
+    /**
+     * 按顺序投递units中[from, to)的消息
+     */
+    private boolean deliver(final List<TimerUnit> units, final int from, final int to) {
+        for (int i = from; i < to; i++) {
+            final TimerUnit unit = units.get(i);
+            MessageExt msgExt = this.defaultMessageStore.lookMessageByOffset(unit.getOffsetPy(), unit.getSizePy());
+            if (null == msgExt) {
+                log.error("timer message not found in commit log, drop it. offsetPy: {}, sizePy: {}",
+                        unit.getOffsetPy(), unit.getSizePy());
+                continue;
+            }
+
+            MessageExtBrokerInner msgInner;
+            try {
+                msgInner = this.messageTimeup(msgExt);
+            } catch (Exception e) {
+                log.error("timer messageTimeup execute error, drop it. msgExt=" + msgExt + ", offsetPy="
+                        + unit.getOffsetPy() + ", sizePy=" + unit.getSizePy(), e);
+                continue;
+            }
+
+            while (true) {
+                PutMessageResult putMessageResult = this.defaultMessageStore.putMessage(msgInner);
+                if (putMessageResult != null && putMessageResult.getPutMessageStatus() == PutMessageStatus.PUT_OK) {
+                    this.deliverTimes.incrementAndGet();
+                    break;
+                }
+
+                log.error("a timer message time up, but reput it failed, topic: {} msgId {}", msgExt.getTopic(),
+                        msgExt.getMsgId());
+                if (this.timerDequeueService.isStoped()) {
+                    return false;
+                }
+                try {
+                    Thread.sleep(DELAY_FOR_A_WHILE);
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+
+    private MessageExtBrokerInner messageTimeup(MessageExt msgExt) {
+        MessageExtBrokerInner msgInner = new MessageExtBrokerInner();
+        msgInner.setBody(msgExt.getBody());
+        msgInner.setFlag(msgExt.getFlag());
+        MessageAccessor.setProperties(msgInner, msgExt.getProperties());
+        msgInner.setSysFlag(msgExt.getSysFlag());
+
+        TopicFilterType topicFilterType = MessageExt.parseTopicFilterType(msgInner.getSysFlag());
+        long tagsCodeValue = MessageExtBrokerInner.tagsString2tagsCode(topicFilterType, msgInner.getTags());
+        msgInner.setTagsCode(tagsCodeValue);
+
+        msgInner.setBornTimestamp(msgExt.getBornTimestamp());
+        msgInner.setBornHost(msgExt.getBornHost());
+        msgInner.setStoreHost(msgExt.getStoreHost());
+        msgInner.setReconsumeTimes(msgExt.getReconsumeTimes());
+
+        msgInner.setWaitStoreMsgOK(false);
+        MessageAccessor.clearProperty(msgInner, MessageConst.PROPERTY_TIMER_DELIVER_MS);
+        msgInner.setPropertiesString(MessageDecoder.messageProperties2String(msgInner.getProperties()));
+
+        msgInner.setTopic(msgInner.getProperty(MessageConst.PROPERTY_REAL_TOPIC));
+        msgInner.setQueueId(Integer.parseInt(msgInner.getProperty(MessageConst.PROPERTY_REAL_QUEUE_ID)));
+
+        return msgInner;
+    }
+
+
+    public void buildRunningStats(HashMap<String, String> stats) {
+        long maxOffset = this.defaultMessageStore.getMaxOffsetInQuque(TIMER_TOPIC, 0);
+        this.lock.lock();
+        try {
+            stats.put(RunningStats.timerMessageOffset.name(), String.format("%d,%d", this.enqueueOffset, maxOffset));
+            stats.put(RunningStats.timerMessageBacklog.name(), String.format("%d,%d", this.timerWheel.getTotalNum(),
+                    this.readTimeMs));
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+
+    public long getEnqueueTimes() {
+        return enqueueTimes.get();
+    }
+
+
+    public long getDeliverTimes() {
+        return deliverTimes.get();
+    }
+
+
+    class TimerEnqueueService extends ServiceThread {
+        @Override
+        public void run() {
+            log.info(this.getServiceName() + " service started");
+
+            while (!this.isStoped()) {
+                try {
+                    if (!TimerMessageService.this.enqueue()) {
+                        this.waitForRunning(ENQUEUE_IDLE_INTERVAL);
+                    }
+                } catch (Exception e) {
+                    log.warn(this.getServiceName() + " service has exception. ", e);
+                    this.waitForRunning(DELAY_FOR_A_WHILE);
+                }
+            }
+
+            log.info(this.getServiceName() + " service end");
+        }
+
+
+        @Override
+        public String getServiceName() {
+            return TimerEnqueueService.class.getSimpleName();
+        }
+    }
+
+
+    class TimerDequeueService extends ServiceThread {
+        @Override
+        public void run() {
+            log.info(this.getServiceName() + " service started");
+
+            while (!this.isStoped()) {
+                try {
+                    if (!TimerMessageService.this.dequeue()) {
+                        this.waitForRunning(Math.min(TimerMessageService.this.precisionMs, ENQUEUE_IDLE_INTERVAL));
+                    }
+
+                    long now = System.currentTimeMillis();
+                    if (now - TimerMessageService.this.lastPersistTimestamp >= TimerMessageService.this.messageStoreConfig
+                            .getFlushDelayOffsetInterval()) {
+                        TimerMessageService.this.lastPersistTimestamp = now;
+                        TimerMessageService.this.persist();
+                    }
+                } catch (Exception e) {
+                    log.warn(this.getServiceName() + " service has exception. ", e);
+                    this.waitForRunning(DELAY_FOR_A_WHILE);
+                }
+            }
+
+            log.info(this.getServiceName() + " service end");
+        }
+
+
+        @Override
+        public String getServiceName() {
+            return TimerDequeueService.class.getSimpleName();
+        }
+    }
+}
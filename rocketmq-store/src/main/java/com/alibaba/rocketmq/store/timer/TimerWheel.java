@@ -0,0 +1,206 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store.timer;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+
+/**
+ * 分层时间轮的槽位表
+ * <p>
+ * 第0层每格precisionMs，第n层每格是第n-1层转一圈的时间。槽位只保存TimerLog中链表的首尾位置和条数，
+ * 并记录所属的时间格，时间格不匹配的槽位视为空，过期槽位不需要额外清理
+ * <p>
+ * 非线程安全，由TimerMessageService加锁访问
+ */
+public class TimerWheel {
+    // bucketTime + firstPos + lastPos + num
+    public static final int SLOT_SIZE = 8 + 8 + 8 + 4;
+
+    private final int precisionMs;
+    private final int slots;
+    private final int levels;
+    private final long[] tickMs;
+
+    private final long[] bucketTime;
+    private final long[] firstPos;
+    private final long[] lastPos;
+    private final int[] num;
+
+
+    public TimerWheel(final int precisionMs, final int slots, final int levels) {
+        this.precisionMs = precisionMs;
+        this.slots = slots;
+        this.levels = levels;
+        this.tickMs = new long[levels];
+        long tick = precisionMs;
+        for (int i = 0; i < levels; i++) {
+            this.tickMs[i] = tick;
+            tick *= slots;
+        }
+
+        final int total = slots * levels;
+        this.bucketTime = new long[total];
+        this.firstPos = new long[total];
+        this.lastPos = new long[total];
+        this.num = new int[total];
+        Arrays.fill(this.bucketTime, -1);
+    }
+
+
+    /**
+     * 覆盖maxDelayMs所需的层数
+     */
+    public static int computeLevels(final int precisionMs, final int slots, final long maxDelayMs) {
+        int levels = 1;
+        long span = (long) precisionMs * slots;
+        while (span < maxDelayMs && span < Long.MAX_VALUE / slots) {
+            levels++;
+            span *= slots;
+        }
+        return levels;
+    }
+
+
+    private int index(final int level, final long bucketTimeMs) {
+        return level * this.slots + (int) ((bucketTimeMs / this.tickMs[level]) % this.slots);
+    }
+
+
+    public long tickMs(final int level) {
+        return this.tickMs[level];
+    }
+
+
+    public int getNum(final int level, final long bucketTimeMs) {
+        int i = this.index(level, bucketTimeMs);
+        return this.bucketTime[i] == bucketTimeMs ? this.num[i] : 0;
+    }
+
+
+    /**
+     * @return 槽位链表尾部位置，空槽位返回-1
+     */
+    public long getLastPos(final int level, final long bucketTimeMs) {
+        int i = this.index(level, bucketTimeMs);
+        return this.bucketTime[i] == bucketTimeMs && this.num[i] > 0 ? this.lastPos[i] : -1;
+    }
+
+
+    public void put(final int level, final long bucketTimeMs, final long pos) {
+        int i = this.index(level, bucketTimeMs);
+        if (this.bucketTime[i] == bucketTimeMs && this.num[i] > 0) {
+            this.lastPos[i] = pos;
+            this.num[i]++;
+        } else {
+            this.bucketTime[i] = bucketTimeMs;
+            this.firstPos[i] = pos;
+            this.lastPos[i] = pos;
+            this.num[i] = 1;
+        }
+    }
+
+
+    public void clear(final int level, final long bucketTimeMs) {
+        int i = this.index(level, bucketTimeMs);
+        if (this.bucketTime[i] == bucketTimeMs) {
+            this.bucketTime[i] = -1;
+            this.num[i] = 0;
+        }
+    }
+
+
+    /**
+     * @return 非空槽位引用的最小TimerLog位置，没有非空槽位返回-1
+     */
+    public long getMinFirstPos() {
+        long min = -1;
+        for (int i = 0; i < this.num.length; i++) {
+            if (this.num[i] > 0 && (min < 0 || this.firstPos[i] < min)) {
+                min = this.firstPos[i];
+            }
+        }
+        return min;
+    }
+
+
+    public long getTotalNum() {
+        long total = 0;
+        for (int i = 0; i < this.num.length; i++) {
+            total += this.num[i];
+        }
+        return total;
+    }
+
+
+    /**
+     * 遍历非空槽位，用于时间轮参数变化后重新分桶
+     */
+    public int activeSlots(final long[] outBucketTime, final long[] outLastPos, final int[] outNum) {
+        int n = 0;
+        for (int i = 0; i < this.num.length; i++) {
+            if (this.num[i] > 0) {
+                outBucketTime[n] = this.bucketTime[i];
+                outLastPos[n] = this.lastPos[i];
+                outNum[n] = this.num[i];
+                n++;
+            }
+        }
+        return n;
+    }
+
+
+    public int getSlotTotal() {
+        return this.num.length;
+    }
+
+
+    public void encode(final ByteBuffer byteBuffer) {
+        for (int i = 0; i < this.num.length; i++) {
+            byteBuffer.putLong(this.bucketTime[i]);
+            byteBuffer.putLong(this.firstPos[i]);
+            byteBuffer.putLong(this.lastPos[i]);
+            byteBuffer.putInt(this.num[i]);
+        }
+    }
+
+
+    public void decode(final ByteBuffer byteBuffer) {
+        for (int i = 0; i < this.num.length; i++) {
+            this.bucketTime[i] = byteBuffer.getLong();
+            this.firstPos[i] = byteBuffer.getLong();
+            this.lastPos[i] = byteBuffer.getLong();
+            this.num[i] = byteBuffer.getInt();
+        }
+    }
+
+
+    public int getPrecisionMs() {
+        return precisionMs;
+    }
+
+
+    public int getSlots() {
+        return slots;
+    }
+
+
+    public int getLevels() {
+        return levels;
+    }
+}
@@ -0,0 +1,113 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store;
+
+import com.alibaba.rocketmq.common.BrokerConfig;
+import com.alibaba.rocketmq.common.message.MessageDecoder;
+import com.alibaba.rocketmq.store.config.MessageStoreConfig;
+import com.alibaba.rocketmq.store.stats.BrokerStatsManager;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import static org.junit.Assert.*;
+
+
+public class ColdReadPrefetchServiceTest {
+    private static final String Topic = "ColdReadTopic";
+    private static final int Total = 500;
+
+
+    private static void deleteFile(final File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                deleteFile(f);
+            }
+        }
+        file.delete();
+    }
+
+
+    @Test
+    public void test_prefetch_after_sequential_cold_reads() throws Exception {
+        String storePath = System.getProperty("java.io.tmpdir") + File.separator + "ColdReadPrefetchServiceTest-" + System.nanoTime();
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setStorePathRootDir(storePath);
+        messageStoreConfig.setStorePathCommitLog(storePath + File.separator + "commitlog");
+        messageStoreConfig.setMapedFileSizeCommitLog(1024 * 64);
+        messageStoreConfig.setMapedFileSizeConsumeQueue(1024 * 20);
+        messageStoreConfig.setColdReadPrefetchSize(1024 * 16);
+
+        BrokerConfig brokerConfig = new BrokerConfig();
+        brokerConfig.setLongPollingEnable(false);
+        DefaultMessageStore store =
+                new DefaultMessageStore(messageStoreConfig, new BrokerStatsManager("test"), null, brokerConfig);
+        try {
+            assertTrue(store.load());
+            store.start();
+
+            InetSocketAddress bornHost = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0);
+            InetSocketAddress storeHost = new InetSocketAddress(InetAddress.getLocalHost(), 8123);
+            for (int i = 0; i < Total; i++) {
+                MessageExtBrokerInner msg = new MessageExtBrokerInner();
+                msg.setTopic(Topic);
+                msg.setBody(("cold message " + i).getBytes());
+                msg.setQueueId(0);
+                msg.setBornTimestamp(System.currentTimeMillis());
+                msg.setStoreHost(storeHost);
+                msg.setBornHost(bornHost);
+                msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+                assertEquals(PutMessageStatus.PUT_OK, store.putMessage(msg).getPutMessageStatus());
+            }
+
+            final long deadline = System.currentTimeMillis() + 10 * 1000;
+            while (store.getMaxOffsetInQuque(Topic, 0) < Total && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+
+            // 不使用madvise时逐页读取
+            store.getCommitLog().prefetch(0, 1024 * 8, true);
+            assertFalse(store.getCommitLog().prefetch(0, 1024 * 8, false));
+            assertFalse(store.getCommitLog().prefetch(store.getMaxPhyOffset() + 1024 * 1024, 1024, true));
+
+            ColdReadPrefetchService service = store.getColdReadPrefetchService();
+            service.onColdRead(Topic, 0, 0, 32);
+            assertFalse(service.isSequentialColdReader(Topic, 0));
+            assertEquals(0, service.getPrefetchTimes());
+
+            // 第二次顺序拉取触发预读
+            service.onColdRead(Topic, 0, 32, 64);
+            assertTrue(service.isSequentialColdReader(Topic, 0));
+            while (service.getPrefetchTimes() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(service.getPrefetchTimes() > 0);
+            assertTrue(service.getPrefetchBytes() >= 1024 * 16);
+
+            // 跳跃拉取重新计数
+            service.onColdRead(Topic, 0, 300, 332);
+            assertFalse(service.isSequentialColdReader(Topic, 0));
+        } finally {
+            store.shutdown();
+            store.destroy();
+            deleteFile(new File(storePath));
+        }
+    }
+}
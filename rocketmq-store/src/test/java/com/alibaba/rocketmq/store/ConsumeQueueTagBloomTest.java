@@ -0,0 +1,197 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store;
+
+import com.alibaba.rocketmq.common.BrokerConfig;
+import com.alibaba.rocketmq.common.message.MessageDecoder;
+import com.alibaba.rocketmq.common.message.MessageExt;
+import com.alibaba.rocketmq.common.protocol.heartbeat.SubscriptionData;
+import com.alibaba.rocketmq.store.config.MessageStoreConfig;
+import com.alibaba.rocketmq.store.config.StorePathConfigHelper;
+import com.alibaba.rocketmq.store.stats.BrokerStatsManager;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+
+public class ConsumeQueueTagBloomTest {
+    private static final String Topic = "TagBloomTopic";
+    private static final int Total = 2000;
+    private static SocketAddress BornHost;
+    private static SocketAddress StoreHost;
+
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        StoreHost = new InetSocketAddress(InetAddress.getLocalHost(), 8123);
+        BornHost = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0);
+    }
+
+
+    private static boolean isRare(int i) {
+        return i % 500 == 7 || i == 1807 || i == Total - 1;
+    }
+
+
+    private static MessageExtBrokerInner buildMessage(int i) {
+        MessageExtBrokerInner msg = new MessageExtBrokerInner();
+        msg.setTopic(Topic);
+        msg.setTags(isRare(i) ? "TagB" : "TagA");
+        msg.setBody(("tag bloom " + i).getBytes());
+        msg.setQueueId(0);
+        msg.setBornTimestamp(System.currentTimeMillis());
+        msg.setStoreHost(StoreHost);
+        msg.setBornHost(BornHost);
+        msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+        return msg;
+    }
+
+
+    private static DefaultMessageStore createStore(String storePath) throws Exception {
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setStorePathRootDir(storePath);
+        messageStoreConfig.setStorePathCommitLog(storePath + File.separator + "commitlog");
+        messageStoreConfig.setMapedFileSizeCommitLog(1024 * 1024);
+        // 每个ConsumeQueue文件300条，最后一个块不完整
+        messageStoreConfig.setMapedFileSizeConsumeQueue(300 * ConsumeQueue.CQStoreUnitSize);
+        messageStoreConfig.setMessageIndexEnable(false);
+
+        BrokerConfig brokerConfig = new BrokerConfig();
+        brokerConfig.setLongPollingEnable(false);
+        DefaultMessageStore store =
+                new DefaultMessageStore(messageStoreConfig, new BrokerStatsManager("test"), null, brokerConfig);
+        assertTrue(store.load());
+        store.start();
+        return store;
+    }
+
+
+    private static void deleteFile(final File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                deleteFile(f);
+            }
+        }
+        file.delete();
+    }
+
+
+    private static List<MessageExt> pullAll(DefaultMessageStore store, SubscriptionData subscriptionData) {
+        List<MessageExt> msgs = new ArrayList<MessageExt>();
+        long offset = 0;
+        while (offset < store.getMaxOffsetInQuque(Topic, 0)) {
+            GetMessageResult result = store.getMessage("GROUP_A", Topic, 0, offset, 32, subscriptionData);
+            assertNotNull(result);
+            try {
+                for (ByteBuffer bb : result.getMessageBufferList()) {
+                    msgs.add(MessageDecoder.decode(bb));
+                }
+            } finally {
+                result.release();
+            }
+            assertTrue(result.getNextBeginOffset() > offset);
+            offset = result.getNextBeginOffset();
+        }
+        return msgs;
+    }
+
+
+    private static void assertRareMessages(DefaultMessageStore store) throws Exception {
+        SubscriptionData subscriptionData = new SubscriptionData(Topic, "TagB");
+        subscriptionData.getTagsSet().add("TagB");
+        subscriptionData.getCodeSet().add("TagB".hashCode());
+
+        StoreStatsService stats = store.getStoreStatsService();
+        long skippedBefore = stats.getGetMessageFilterSkippedUnits().get();
+        long scannedBefore = stats.getGetMessageFilterScannedUnits().get();
+
+        List<MessageExt> msgs = pullAll(store, subscriptionData);
+        List<Long> offsets = new ArrayList<Long>();
+        for (MessageExt msg : msgs) {
+            assertEquals("TagB", msg.getTags());
+            offsets.add(msg.getQueueOffset());
+        }
+        List<Long> expected = new ArrayList<Long>();
+        for (int i = 0; i < Total; i++) {
+            if (isRare(i)) {
+                expected.add((long) i);
+            }
+        }
+        assertEquals(expected, offsets);
+
+        long skipped = stats.getGetMessageFilterSkippedUnits().get() - skippedBefore;
+        long scanned = stats.getGetMessageFilterScannedUnits().get() - scannedBefore;
+        assertEquals(Total, skipped + scanned);
+        assertTrue("skipped " + skipped + " scanned " + scanned, skipped > scanned);
+    }
+
+
+    @Test
+    public void test_skip_unmatched_blocks() throws Exception {
+        String storePath = System.getProperty("java.io.tmpdir") + File.separator + "ConsumeQueueTagBloomTest-" + System.nanoTime();
+        DefaultMessageStore store = createStore(storePath);
+        try {
+            for (int i = 0; i < Total; i++) {
+                PutMessageResult result = store.putMessage(buildMessage(i));
+                assertEquals(PutMessageStatus.PUT_OK, result.getPutMessageStatus());
+            }
+
+            final long deadline = System.currentTimeMillis() + 10 * 1000;
+            while (store.getMaxOffsetInQuque(Topic, 0) < Total && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(Total, store.getMaxOffsetInQuque(Topic, 0));
+            assertRareMessages(store);
+
+            // 模拟操作系统宕机时ConsumeQueue已经落盘而最后一个过滤器文件的位丢失，
+            // 重启后整个文件由ConsumeQueue重建
+            store.shutdown();
+            File[] bloomFiles = new File(StorePathConfigHelper.getStorePathConsumeQueueTagBloom(storePath)
+                    + File.separator + Topic + File.separator + "0").listFiles();
+            Arrays.sort(bloomFiles);
+            RandomAccessFile lastBloomFile = new RandomAccessFile(bloomFiles[bloomFiles.length - 1], "rw");
+            try {
+                byte[] lostBits = new byte[ConsumeQueueTagBloom.BloomBytes];
+                lostBits[0] = 1;
+                for (long pos = 0; pos < lastBloomFile.length(); pos += lostBits.length) {
+                    lastBloomFile.seek(pos);
+                    lastBloomFile.write(lostBits);
+                }
+            } finally {
+                lastBloomFile.close();
+            }
+            store = createStore(storePath);
+            assertRareMessages(store);
+        } finally {
+            store.shutdown();
+            store.destroy();
+            deleteFile(new File(storePath));
+        }
+    }
+}
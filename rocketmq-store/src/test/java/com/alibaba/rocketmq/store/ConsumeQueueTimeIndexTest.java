@@ -0,0 +1,175 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store;
+
+import com.alibaba.rocketmq.common.BrokerConfig;
+import com.alibaba.rocketmq.store.config.MessageStoreConfig;
+import com.alibaba.rocketmq.store.config.StorePathConfigHelper;
+import com.alibaba.rocketmq.store.stats.BrokerStatsManager;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+import static org.junit.Assert.*;
+
+
+public class ConsumeQueueTimeIndexTest {
+    private static final String Topic = "TimeIndexTopic";
+    private static SocketAddress BornHost;
+    private static SocketAddress StoreHost;
+
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        StoreHost = new InetSocketAddress(InetAddress.getLocalHost(), 8123);
+        BornHost = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0);
+    }
+
+
+    private static MessageExtBrokerInner buildMessage(int i) {
+        MessageExtBrokerInner msg = new MessageExtBrokerInner();
+        msg.setTopic(Topic);
+        msg.setTags("TAG1");
+        msg.setBody(("time index " + i).getBytes());
+        msg.setQueueId(0);
+        msg.setBornTimestamp(System.currentTimeMillis());
+        msg.setStoreHost(StoreHost);
+        msg.setBornHost(BornHost);
+        return msg;
+    }
+
+
+    private static DefaultMessageStore createStore(String storePath) throws Exception {
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setStorePathRootDir(storePath);
+        messageStoreConfig.setStorePathCommitLog(storePath + File.separator + "commitlog");
+        messageStoreConfig.setMapedFileSizeCommitLog(1024 * 1024);
+        // 每个ConsumeQueue文件64条，覆盖跨文件查找
+        messageStoreConfig.setMapedFileSizeConsumeQueue(64 * ConsumeQueue.CQStoreUnitSize);
+        messageStoreConfig.setMessageIndexEnable(false);
+        messageStoreConfig.setConsumeQueueTimeIndexEnable(true);
+
+        BrokerConfig brokerConfig = new BrokerConfig();
+        brokerConfig.setLongPollingEnable(false);
+        DefaultMessageStore store =
+                new DefaultMessageStore(messageStoreConfig, new BrokerStatsManager("test"), null, brokerConfig);
+        assertTrue(store.load());
+        store.start();
+        return store;
+    }
+
+
+    private static long[] putMessages(DefaultMessageStore store, int begin, int total) throws Exception {
+        long[] storeTimes = new long[total];
+        for (int i = 0; i < total; i++) {
+            PutMessageResult result = store.putMessage(buildMessage(begin + i));
+            assertEquals(PutMessageStatus.PUT_OK, result.getPutMessageStatus());
+            storeTimes[i] = result.getAppendMessageResult().getStoreTimestamp();
+            if (i % 10 == 9) {
+                Thread.sleep(5);
+            }
+        }
+
+        final long deadline = System.currentTimeMillis() + 10 * 1000;
+        while (store.getMaxOffsetInQuque(Topic, 0) < begin + total && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(begin + total, store.getMaxOffsetInQuque(Topic, 0));
+        return storeTimes;
+    }
+
+
+    private static void deleteFile(final File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                deleteFile(f);
+            }
+        }
+        file.delete();
+    }
+
+
+    private static void assertSeekByTime(DefaultMessageStore store, long[] storeTimes) {
+        for (int i = 0; i < storeTimes.length; i += 7) {
+            long offset = store.getOffsetInQueueByTime(Topic, 0, storeTimes[i]);
+            assertEquals(storeTimes[i], store.getMessageStoreTimeStamp(Topic, 0, offset));
+        }
+    }
+
+
+    @Test
+    public void test_seek_by_time_from_index() throws Exception {
+        String storePath = System.getProperty("java.io.tmpdir") + File.separator + "ConsumeQueueTimeIndexTest-" + System.nanoTime();
+        DefaultMessageStore store = createStore(storePath);
+        try {
+            final int total = 200;
+            long[] storeTimes = putMessages(store, 0, total);
+
+            ConsumeQueue cq = store.findConsumeQueue(Topic, 0);
+            for (int i = 0; i < total; i++) {
+                assertEquals(storeTimes[i], cq.getStoreTimestampInQueue(i));
+            }
+            assertSeekByTime(store, storeTimes);
+        } finally {
+            store.shutdown();
+            store.destroy();
+            deleteFile(new File(storePath));
+        }
+    }
+
+
+    @Test
+    public void test_rebuild_index_from_consume_queue() throws Exception {
+        String storePath = System.getProperty("java.io.tmpdir") + File.separator + "ConsumeQueueTimeIndexTest-" + System.nanoTime();
+        DefaultMessageStore store = createStore(storePath);
+        final int total = 100;
+        long[] storeTimes = putMessages(store, 0, total);
+        store.shutdown();
+
+        // 模拟升级前写入的数据：启动后在后台从ConsumeQueue和CommitLog补齐时间索引
+        deleteFile(new File(StorePathConfigHelper.getStorePathConsumeQueueTimeIndex(storePath)));
+        store = createStore(storePath);
+        try {
+            ConsumeQueue cq = store.findConsumeQueue(Topic, 0);
+            // 补齐前回退到CommitLog查找
+            assertSeekByTime(store, storeTimes);
+
+            for (int i = 0; i < 100 && cq.getStoreTimestampInQueue(total - 1) < 0; i++) {
+                Thread.sleep(100);
+            }
+            for (int i = 0; i < total; i++) {
+                assertEquals(storeTimes[i], cq.getStoreTimestampInQueue(i));
+            }
+            assertSeekByTime(store, storeTimes);
+
+            long[] moreStoreTimes = putMessages(store, total, total);
+            for (int i = 0; i < total; i++) {
+                assertEquals(moreStoreTimes[i], cq.getStoreTimestampInQueue(total + i));
+            }
+            assertSeekByTime(store, moreStoreTimes);
+        } finally {
+            store.shutdown();
+            store.destroy();
+            deleteFile(new File(storePath));
+        }
+    }
+}
@@ -17,8 +17,16 @@
 
 package com.alibaba.rocketmq.store;
 
+import com.alibaba.rocketmq.common.BrokerConfig;
+import com.alibaba.rocketmq.common.message.Message;
+import com.alibaba.rocketmq.common.message.MessageBatch;
+import com.alibaba.rocketmq.common.message.MessageDecoder;
+import com.alibaba.rocketmq.common.message.MessageExt;
+import com.alibaba.rocketmq.store.config.BrokerRole;
 import com.alibaba.rocketmq.store.config.FlushDiskType;
 import com.alibaba.rocketmq.store.config.MessageStoreConfig;
+import com.alibaba.rocketmq.store.stats.BrokerStatsManager;
+import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -26,7 +34,12 @@ import org.junit.Test;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.junit.Assert.assertTrue;
 
@@ -43,6 +56,9 @@ public class DefaultMessageStoreTest {
 
     private static final String StoreMessage = "Once, there was a chance for me!";
 
+    // 由startStore创建，测试结束后统一关闭并删除
+    private DefaultMessageStore store;
+
 
     public MessageExtBrokerInner buildMessage() {
         MessageExtBrokerInner msg = new MessageExtBrokerInner();
@@ -74,6 +90,36 @@ public class DefaultMessageStoreTest {
     }
 
 
+    @After
+    public void tearDown() throws Exception {
+        if (this.store != null) {
+            this.store.shutdown();
+            this.store.destroy();
+            this.store = null;
+        }
+    }
+
+
+    private static MessageStoreConfig createStoreConfig(final int mapedFileSizeCommitLog) {
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setMapedFileSizeCommitLog(mapedFileSizeCommitLog);
+        messageStoreConfig.setMapedFileSizeConsumeQueue(1024 * 4);
+        messageStoreConfig.setMaxHashSlotNum(100);
+        messageStoreConfig.setMaxIndexNum(100 * 10);
+        return messageStoreConfig;
+    }
+
+
+    private DefaultMessageStore startStore(final MessageStoreConfig messageStoreConfig) throws Exception {
+        BrokerConfig brokerConfig = new BrokerConfig();
+        brokerConfig.setLongPollingEnable(false);
+        this.store = new DefaultMessageStore(messageStoreConfig, new BrokerStatsManager("test"), null, brokerConfig);
+        assertTrue(this.store.load());
+        this.store.start();
+        return this.store;
+    }
+
+
     @Test
     public void test_write_read() throws Exception {
         System.out.println("================================================================");
@@ -167,4 +213,188 @@ public class DefaultMessageStoreTest {
         master.destroy();
         System.out.println("================================================================");
     }
+
+
+    @Test
+    public void test_write_read_with_transient_store_pool() throws Exception {
+        long totalMsgs = 1000;
+        QUEUE_TOTAL = 1;
+
+        MessageBody = StoreMessage.getBytes();
+
+        MessageStoreConfig messageStoreConfig = createStoreConfig(1024 * 8);
+        messageStoreConfig.setTransientStorePoolEnable(true);
+        messageStoreConfig.setCommitIntervalCommitLog(10);
+        MessageStore master = this.startStore(messageStoreConfig);
+        for (long i = 0; i < totalMsgs; i++) {
+            MessageExtBrokerInner msg = buildMessage();
+            // 非事务消息才会进入ConsumeQueue
+            msg.setSysFlag(0);
+            PutMessageResult result = master.putMessage(msg);
+            assertTrue(result.isOk());
+        }
+
+        // wait for the commit service to move the write buffers into the file channel
+        for (int i = 0; i < 100 && master.getMaxOffsetInQuque("AAA", 0) < totalMsgs; i++) {
+            Thread.sleep(50);
+        }
+        assertTrue(master.getMaxOffsetInQuque("AAA", 0) == totalMsgs);
+
+        for (long i = 0; i < totalMsgs; i++) {
+            GetMessageResult result = master.getMessage("GROUP_A", "AAA", 0, i, 1, null);
+            assertTrue(result != null);
+            assertTrue(result.getStatus() == GetMessageStatus.FOUND);
+            result.release();
+        }
+    }
+
+
+    @Test
+    public void test_write_read_with_parallel_dispatch() throws Exception {
+        long totalMsgs = 1000;
+        QUEUE_TOTAL = 8;
+        QueueId.set(0);
+
+        MessageBody = StoreMessage.getBytes();
+
+        MessageStoreConfig messageStoreConfig = createStoreConfig(1024 * 8);
+        messageStoreConfig.setParallelDispatchEnable(true);
+        messageStoreConfig.setDispatchConsumeQueueThreadNums(3);
+        messageStoreConfig.setDispatchMaxInFlight(16);
+        DefaultMessageStore master = this.startStore(messageStoreConfig);
+        for (long i = 0; i < totalMsgs; i++) {
+            MessageExtBrokerInner msg = buildMessage();
+            msg.setSysFlag(0);
+            PutMessageResult result = master.putMessage(msg);
+            assertTrue(result.isOk());
+        }
+
+        long perQueue = totalMsgs / QUEUE_TOTAL;
+        for (int i = 0; i < 100 && master.dispatchBehindBytes() > 0; i++) {
+            Thread.sleep(50);
+        }
+
+        for (int queueId = 0; queueId < QUEUE_TOTAL; queueId++) {
+            assertTrue(master.getMaxOffsetInQuque("AAA", queueId) == perQueue);
+            for (long i = 0; i < perQueue; i++) {
+                GetMessageResult result = master.getMessage("GROUP_A", "AAA", queueId, i, 1, null);
+                assertTrue(result != null);
+                assertTrue(result.getStatus() == GetMessageStatus.FOUND);
+                result.release();
+            }
+        }
+    }
+
+
+    @Test
+    public void test_put_messages_batch() throws Exception {
+        final int batchNum = 100;
+        final int batchSize = 10;
+        QUEUE_TOTAL = 1;
+
+        MessageStore master = this.startStore(createStoreConfig(1024 * 8));
+        for (int i = 0; i < batchNum; i++) {
+            List<Message> messages = new ArrayList<Message>();
+            for (int j = 0; j < batchSize; j++) {
+                messages.add(new Message("AAA", "TAG1", String.valueOf(i * batchSize + j).getBytes()));
+            }
+
+            MessageExtBatch messageExtBatch = new MessageExtBatch();
+            messageExtBatch.setTopic("AAA");
+            messageExtBatch.setQueueId(0);
+            messageExtBatch.setBody(MessageBatch.generateFromList(messages).encode());
+            messageExtBatch.setBornTimestamp(System.currentTimeMillis());
+            messageExtBatch.setBornHost(BornHost);
+            messageExtBatch.setStoreHost(StoreHost);
+
+            PutMessageResult result = master.putMessages(messageExtBatch);
+            assertTrue(result.isOk());
+            assertTrue(result.getAppendMessageResult().getMsgNum() == batchSize);
+            assertTrue(result.getAppendMessageResult().getLogicsOffset() == i * batchSize);
+            assertTrue(result.getAppendMessageResult().getMsgId().split(",").length == batchSize);
+        }
+
+        final long totalMsgs = batchNum * batchSize;
+        for (int i = 0; i < 100 && master.getMaxOffsetInQuque("AAA", 0) < totalMsgs; i++) {
+            Thread.sleep(50);
+        }
+        assertTrue(master.getMaxOffsetInQuque("AAA", 0) == totalMsgs);
+
+        for (long i = 0; i < totalMsgs; i++) {
+            GetMessageResult result = master.getMessage("GROUP_A", "AAA", 0, i, 1, null);
+            assertTrue(result != null);
+            assertTrue(result.getStatus() == GetMessageStatus.FOUND);
+            MessageExt msg = MessageDecoder.decode(result.getMessageBufferList().get(0));
+            assertTrue(msg.getQueueOffset() == i);
+            assertTrue(new String(msg.getBody()).equals(String.valueOf(i)));
+            assertTrue("TAG1".equals(msg.getTags()));
+            result.release();
+        }
+    }
+
+
+    @Test
+    public void test_async_put_message_sync_flush() throws Exception {
+        final int totalMsgs = 10000;
+        QUEUE_TOTAL = 1;
+
+        MessageBody = StoreMessage.getBytes();
+
+        MessageStoreConfig messageStoreConfig = createStoreConfig(1024 * 64);
+        messageStoreConfig.setFlushDiskType(FlushDiskType.SYNC_FLUSH);
+        MessageStore master = this.startStore(messageStoreConfig);
+        final CountDownLatch latch = new CountDownLatch(totalMsgs);
+        final AtomicInteger okNums = new AtomicInteger(0);
+        for (int i = 0; i < totalMsgs; i++) {
+            master.asyncPutMessage(buildMessage(), new PutMessageCallback() {
+                @Override
+                public void onComplete(PutMessageResult putMessageResult) {
+                    if (putMessageResult.getPutMessageStatus() == PutMessageStatus.PUT_OK) {
+                        okNums.incrementAndGet();
+                    }
+                    latch.countDown();
+                }
+            });
+        }
+
+        assertTrue(latch.await(30, TimeUnit.SECONDS));
+        assertTrue(okNums.get() == totalMsgs);
+    }
+
+
+    @Test
+    public void test_sync_master_transfer_complete_and_timeout() throws Exception {
+        MessageStoreConfig messageStoreConfig = createStoreConfig(1024 * 8);
+        messageStoreConfig.setBrokerRole(BrokerRole.SYNC_MASTER);
+        messageStoreConfig.setHaListenPort(messageStoreConfig.getHaListenPort() + 1000);
+        DefaultMessageStore master = this.startStore(messageStoreConfig);
+
+        final CountDownLatch latch = new CountDownLatch(2);
+        final AtomicInteger transferOKNums = new AtomicInteger(0);
+        final long beginTime = System.currentTimeMillis();
+        final AtomicLong timeoutCost = new AtomicLong(0);
+        master.getHaService().putRequest(master.getCommitLog().new GroupCommitRequest(1000, 3000) {
+            @Override
+            protected void onComplete(boolean transferOK) {
+                if (transferOK) {
+                    transferOKNums.incrementAndGet();
+                }
+                latch.countDown();
+            }
+        });
+        master.getHaService().putRequest(master.getCommitLog().new GroupCommitRequest(2000, 300) {
+            @Override
+            protected void onComplete(boolean transferOK) {
+                timeoutCost.set(System.currentTimeMillis() - beginTime);
+                latch.countDown();
+            }
+        });
+
+        // slave确认到1500，第一个请求完成，第二个请求按自己的超时时间失败
+        master.getHaService().notifyTransferSome(1500);
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(transferOKNums.get() == 1);
+        assertTrue(timeoutCost.get() >= 300 && timeoutCost.get() < 3000);
+    }
 }
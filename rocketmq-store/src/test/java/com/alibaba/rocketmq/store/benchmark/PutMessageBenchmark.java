@@ -0,0 +1,145 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store.benchmark;
+
+import com.alibaba.rocketmq.common.BrokerConfig;
+import com.alibaba.rocketmq.common.MixAll;
+import com.alibaba.rocketmq.common.message.MessageDecoder;
+import com.alibaba.rocketmq.store.DefaultMessageStore;
+import com.alibaba.rocketmq.store.MessageExtBrokerInner;
+import com.alibaba.rocketmq.store.PutMessageResult;
+import com.alibaba.rocketmq.store.config.MessageStoreConfig;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * DefaultMessageStore.putMessage throughput from 1 to 64 send threads.
+ * <p>
+ * The store config is applied through MixAll.properties2Object, so the same
+ * benchmark runs unchanged on a tree without the pluggable put message lock,
+ * which is how the before/after numbers are produced.
+ * <p>
+ * mvn -pl rocketmq-store test-compile -Dmaven.test.skip=false, then run main with the test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PutMessageBenchmark {
+    private static final int QueueTotal = 16;
+
+    @Param({"false", "true"})
+    private String useReentrantLockWhenPutMessage;
+
+    @Param({"128", "1024"})
+    private int bodySize;
+
+    private final AtomicInteger queueId = new AtomicInteger(0);
+    private String storePath;
+    private DefaultMessageStore messageStore;
+    private SocketAddress bornHost;
+    private SocketAddress storeHost;
+    private byte[] body;
+
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        this.storePath = System.getProperty("java.io.tmpdir") + File.separator + "PutMessageBenchmark-" + System.nanoTime();
+
+        Properties properties = new Properties();
+        properties.setProperty("storePathRootDir", this.storePath);
+        properties.setProperty("storePathCommitLog", this.storePath + File.separator + "commitlog");
+        properties.setProperty("mapedFileSizeCommitLog", String.valueOf(1024 * 1024 * 128));
+        properties.setProperty("messageIndexEnable", "false");
+        properties.setProperty("useReentrantLockWhenPutMessage", this.useReentrantLockWhenPutMessage);
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        MixAll.properties2Object(properties, messageStoreConfig);
+
+        BrokerConfig brokerConfig = new BrokerConfig();
+        brokerConfig.setLongPollingEnable(false);
+
+        this.messageStore = new DefaultMessageStore(messageStoreConfig, null, null, brokerConfig);
+        if (!this.messageStore.load()) {
+            throw new IllegalStateException("load message store failed, " + this.storePath);
+        }
+        this.messageStore.start();
+
+        this.bornHost = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0);
+        this.storeHost = new InetSocketAddress(InetAddress.getLocalHost(), 10911);
+        this.body = new byte[this.bodySize];
+    }
+
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.messageStore.shutdown();
+        this.messageStore.destroy();
+        deleteFile(new File(this.storePath));
+    }
+
+
+    private static void deleteFile(final File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                deleteFile(f);
+            }
+        }
+        file.delete();
+    }
+
+
+    @Benchmark
+    public PutMessageResult putMessage() {
+        MessageExtBrokerInner msg = new MessageExtBrokerInner();
+        msg.setTopic("PutMessageBenchmark");
+        msg.setTags("TagA");
+        msg.setKeys("Key");
+        msg.setBody(this.body);
+        msg.setQueueId(Math.abs(this.queueId.getAndIncrement()) % QueueTotal);
+        msg.setBornTimestamp(System.currentTimeMillis());
+        msg.setBornHost(this.bornHost);
+        msg.setStoreHost(this.storeHost);
+        msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+        return this.messageStore.putMessage(msg);
+    }
+
+
+    public static void main(String[] args) throws RunnerException {
+        for (int threads : new int[]{1, 4, 16, 32, 64}) {
+            Options opt = new OptionsBuilder()//
+                    .include(PutMessageBenchmark.class.getSimpleName())//
+                    .threads(threads)//
+                    .build();
+            new Runner(opt).run();
+        }
+    }
+}
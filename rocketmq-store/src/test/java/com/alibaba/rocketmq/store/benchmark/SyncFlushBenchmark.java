@@ -0,0 +1,207 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store.benchmark;
+
+import com.alibaba.rocketmq.common.BrokerConfig;
+import com.alibaba.rocketmq.common.MixAll;
+import com.alibaba.rocketmq.common.message.MessageDecoder;
+import com.alibaba.rocketmq.store.DefaultMessageStore;
+import com.alibaba.rocketmq.store.MessageExtBrokerInner;
+import com.alibaba.rocketmq.store.PutMessageCallback;
+import com.alibaba.rocketmq.store.PutMessageResult;
+import com.alibaba.rocketmq.store.PutMessageStatus;
+import com.alibaba.rocketmq.store.config.MessageStoreConfig;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Properties;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * SYNC_FLUSH throughput with a fixed number of send threads: blocking putMessage,
+ * where every in-flight message parks a send thread, against asyncPutMessage,
+ * where GroupCommitService wakes the request after the flush and the callback
+ * runs on the store's put message completion threads.
+ * <p>
+ * In async mode all send threads together keep at most maxInFlight messages in
+ * flight, standing in for the broker writing responses from the completion threads.
+ * Throughput is counted on completion, so both modes report flushed messages per second.
+ * <p>
+ * The send threads block by design, which JMH does not measure well, so this is a plain main:
+ * mvn -pl rocketmq-store test-compile -Dmaven.test.skip=false, then run with the test classpath
+ * and optional args: putMode(sync|async|both) threads seconds bodySize maxInFlight.
+ */
+public class SyncFlushBenchmark {
+    private static final int QueueTotal = 16;
+
+    private final String putMode;
+    private final int threads;
+    private final int bodySize;
+    private final int maxInFlight;
+
+    private final AtomicInteger queueId = new AtomicInteger(0);
+    private final AtomicLong okTimes = new AtomicLong(0);
+    private final AtomicLong failedTimes = new AtomicLong(0);
+    private volatile boolean stopped = false;
+    private SocketAddress bornHost;
+    private SocketAddress storeHost;
+    private byte[] body;
+
+
+    public SyncFlushBenchmark(String putMode, int threads, int bodySize, int maxInFlight) {
+        this.putMode = putMode;
+        this.threads = threads;
+        this.bodySize = bodySize;
+        this.maxInFlight = maxInFlight;
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        String putMode = args.length > 0 ? args[0] : "both";
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+        int bodySize = args.length > 3 ? Integer.parseInt(args[3]) : 1024;
+        int maxInFlight = args.length > 4 ? Integer.parseInt(args[4]) : 8192;
+
+        if ("both".equals(putMode) || "sync".equals(putMode)) {
+            new SyncFlushBenchmark("sync", threads, bodySize, maxInFlight).run(seconds);
+        }
+        if ("both".equals(putMode) || "async".equals(putMode)) {
+            new SyncFlushBenchmark("async", threads, bodySize, maxInFlight).run(seconds);
+        }
+    }
+
+
+    public void run(final int seconds) throws Exception {
+        final String storePath = System.getProperty("java.io.tmpdir") + File.separator + "SyncFlushBenchmark-" + System.nanoTime();
+
+        Properties properties = new Properties();
+        properties.setProperty("storePathRootDir", storePath);
+        properties.setProperty("storePathCommitLog", storePath + File.separator + "commitlog");
+        properties.setProperty("mapedFileSizeCommitLog", String.valueOf(1024 * 1024 * 128));
+        properties.setProperty("messageIndexEnable", "false");
+        properties.setProperty("flushDiskType", "SYNC_FLUSH");
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        MixAll.properties2Object(properties, messageStoreConfig);
+
+        BrokerConfig brokerConfig = new BrokerConfig();
+        brokerConfig.setLongPollingEnable(false);
+
+        final DefaultMessageStore messageStore = new DefaultMessageStore(messageStoreConfig, null, null, brokerConfig);
+        if (!messageStore.load()) {
+            throw new IllegalStateException("load message store failed, " + storePath);
+        }
+        messageStore.start();
+
+        this.bornHost = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0);
+        this.storeHost = new InetSocketAddress(InetAddress.getLocalHost(), 10911);
+        this.body = new byte[this.bodySize];
+
+        final Semaphore inFlight = new Semaphore(this.maxInFlight);
+        final PutMessageCallback callback = new PutMessageCallback() {
+            @Override
+            public void onComplete(PutMessageResult putMessageResult) {
+                SyncFlushBenchmark.this.countResult(putMessageResult);
+                inFlight.release();
+            }
+        };
+
+        Thread[] senders = new Thread[this.threads];
+        for (int i = 0; i < senders.length; i++) {
+            senders[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (!SyncFlushBenchmark.this.stopped) {
+                        try {
+                            if ("async".equals(SyncFlushBenchmark.this.putMode)) {
+                                inFlight.acquire();
+                                messageStore.asyncPutMessage(SyncFlushBenchmark.this.buildMessage(), callback);
+                            } else {
+                                SyncFlushBenchmark.this.countResult(messageStore.putMessage(SyncFlushBenchmark.this.buildMessage()));
+                            }
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            }, "SyncFlushBenchmarkSender-" + i);
+            senders[i].start();
+        }
+
+        // 预热5秒后开始计数
+        Thread.sleep(5000);
+        long beginOk = this.okTimes.get();
+        long beginTimestamp = System.currentTimeMillis();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+        long okNums = this.okTimes.get() - beginOk;
+        long costMs = System.currentTimeMillis() - beginTimestamp;
+
+        this.stopped = true;
+        for (Thread sender : senders) {
+            sender.join();
+        }
+        inFlight.acquire(this.maxInFlight);
+
+        System.out.printf("putMode: %s threads: %d bodySize: %d maxInFlight: %d TPS: %d failed: %d%n", //
+                this.putMode, this.threads, this.bodySize, this.maxInFlight, okNums * 1000 / costMs, this.failedTimes.get());
+
+        messageStore.shutdown();
+        messageStore.destroy();
+        deleteFile(new File(storePath));
+    }
+
+
+    private void countResult(final PutMessageResult putMessageResult) {
+        if (putMessageResult.getPutMessageStatus() == PutMessageStatus.PUT_OK) {
+            this.okTimes.incrementAndGet();
+        } else {
+            this.failedTimes.incrementAndGet();
+        }
+    }
+
+
+    private MessageExtBrokerInner buildMessage() {
+        MessageExtBrokerInner msg = new MessageExtBrokerInner();
+        msg.setTopic("SyncFlushBenchmark");
+        msg.setTags("TagA");
+        msg.setKeys("Key");
+        msg.setBody(this.body);
+        msg.setQueueId(Math.abs(this.queueId.getAndIncrement()) % QueueTotal);
+        msg.setBornTimestamp(System.currentTimeMillis());
+        msg.setBornHost(this.bornHost);
+        msg.setStoreHost(this.storeHost);
+        msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+        return msg;
+    }
+
+
+    private static void deleteFile(final File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                deleteFile(f);
+            }
+        }
+        file.delete();
+    }
+}
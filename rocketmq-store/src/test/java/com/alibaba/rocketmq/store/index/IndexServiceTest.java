@@ -0,0 +1,141 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store.index;
+
+import com.alibaba.rocketmq.common.BrokerConfig;
+import com.alibaba.rocketmq.common.message.MessageDecoder;
+import com.alibaba.rocketmq.store.*;
+import com.alibaba.rocketmq.store.config.MessageStoreConfig;
+import com.alibaba.rocketmq.store.config.StorePathConfigHelper;
+import com.alibaba.rocketmq.store.stats.BrokerStatsManager;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import static org.junit.Assert.*;
+
+
+public class IndexServiceTest {
+    private static final String Topic = "IndexTopic";
+    private static final int Total = 1000;
+
+
+    private static void deleteFile(final File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                deleteFile(f);
+            }
+        }
+        file.delete();
+    }
+
+
+    private static int queryCount(DefaultMessageStore store, String key, int maxNum) {
+        QueryMessageResult result = store.queryMessage(Topic, key, maxNum, 0, Long.MAX_VALUE);
+        try {
+            return result.getMessageBufferList().size();
+        } finally {
+            result.release();
+        }
+    }
+
+
+    private static DefaultMessageStore createStore(String storePath) throws Exception {
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setStorePathRootDir(storePath);
+        messageStoreConfig.setStorePathCommitLog(storePath + File.separator + "commitlog");
+        messageStoreConfig.setMapedFileSizeCommitLog(1024 * 1024);
+        messageStoreConfig.setMapedFileSizeConsumeQueue(1024 * 20);
+        messageStoreConfig.setParallelDispatchEnable(true);
+        // 每个索引文件399条，每条消息2个key，写满多个文件
+        messageStoreConfig.setMaxHashSlotNum(100);
+        messageStoreConfig.setMaxIndexNum(400);
+
+        BrokerConfig brokerConfig = new BrokerConfig();
+        brokerConfig.setLongPollingEnable(false);
+        return new DefaultMessageStore(messageStoreConfig, new BrokerStatsManager("test"), null, brokerConfig);
+    }
+
+
+    @Test
+    public void test_batch_build_and_parallel_query() throws Exception {
+        String storePath = System.getProperty("java.io.tmpdir") + File.separator + "IndexServiceTest-" + System.nanoTime();
+        DefaultMessageStore store = createStore(storePath);
+        try {
+            assertTrue(store.load());
+            store.start();
+
+            InetSocketAddress bornHost = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0);
+            InetSocketAddress storeHost = new InetSocketAddress(InetAddress.getLocalHost(), 8123);
+            for (int i = 0; i < Total; i++) {
+                MessageExtBrokerInner msg = new MessageExtBrokerInner();
+                msg.setTopic(Topic);
+                msg.setKeys("K" + i + " ALL");
+                msg.setBody(("index " + i).getBytes());
+                msg.setQueueId(0);
+                msg.setBornTimestamp(System.currentTimeMillis());
+                msg.setStoreHost(storeHost);
+                msg.setBornHost(bornHost);
+                msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+                assertEquals(PutMessageStatus.PUT_OK, store.putMessage(msg).getPutMessageStatus());
+            }
+
+            final long deadline = System.currentTimeMillis() + 10 * 1000;
+            while (queryCount(store, "K" + (Total - 1), 1) == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+
+            for (int i = 0; i < Total; i += 13) {
+                assertEquals("K" + i, 1, queryCount(store, "K" + i, 32));
+            }
+            assertEquals(32, queryCount(store, "ALL", 32));
+        } finally {
+            store.shutdown();
+        }
+
+        // 预先创建但没有启用的文件在关闭时删除
+        File[] indexFiles = new File(StorePathConfigHelper.getStorePathIndex(storePath)).listFiles();
+        assertNotNull(indexFiles);
+        assertEquals((2 * Total + 398) / 399, indexFiles.length);
+
+        // 模拟宕机遗留的预创建文件，重启时按标记删除，已启用的文件都保留
+        String indexPath = StorePathConfigHelper.getStorePathIndex(storePath);
+        String preparedFileName = indexPath + File.separator + "99991231235959999";
+        RandomAccessFile preparedFile = new RandomAccessFile(preparedFileName, "rw");
+        preparedFile.setLength(indexFiles[0].length());
+        preparedFile.close();
+        assertTrue(new File(preparedFileName + ".prepared").createNewFile());
+
+        store = createStore(storePath);
+        try {
+            assertTrue(store.load());
+            store.start();
+            assertFalse(new File(preparedFileName).exists());
+            assertFalse(new File(preparedFileName + ".prepared").exists());
+            assertEquals(indexFiles.length, new File(indexPath).listFiles().length);
+            assertEquals(32, queryCount(store, "ALL", 32));
+        } finally {
+            store.shutdown();
+            store.destroy();
+            deleteFile(new File(storePath));
+        }
+    }
+}
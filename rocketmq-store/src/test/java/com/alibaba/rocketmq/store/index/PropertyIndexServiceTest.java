@@ -0,0 +1,179 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store.index;
+
+import com.alibaba.rocketmq.common.BrokerConfig;
+import com.alibaba.rocketmq.common.message.MessageDecoder;
+import com.alibaba.rocketmq.store.*;
+import com.alibaba.rocketmq.store.config.MessageStoreConfig;
+import com.alibaba.rocketmq.store.config.StorePathConfigHelper;
+import com.alibaba.rocketmq.store.stats.BrokerStatsManager;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+
+public class PropertyIndexServiceTest {
+    private static final String Topic = "OrderTopic";
+    private static final int Total = 1000;
+
+
+    private static void deleteFile(final File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                deleteFile(f);
+            }
+        }
+        file.delete();
+    }
+
+
+    private static DefaultMessageStore createStore(String storePath) throws Exception {
+        return createStore(storePath, Topic + ":orderId,userId;OtherTopic:orderId");
+    }
+
+
+    private static DefaultMessageStore createStore(String storePath, String propertyIndexTopics) throws Exception {
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setStorePathRootDir(storePath);
+        messageStoreConfig.setStorePathCommitLog(storePath + File.separator + "commitlog");
+        messageStoreConfig.setMapedFileSizeCommitLog(1024 * 1024);
+        messageStoreConfig.setMapedFileSizeConsumeQueue(1024 * 20);
+        messageStoreConfig.setMaxMsgsNumBatch(Total);
+        messageStoreConfig.setPropertyIndexTopics(propertyIndexTopics);
+        // 写出多个段文件
+        messageStoreConfig.setPropertyIndexMemtableMaxEntries(300);
+
+        BrokerConfig brokerConfig = new BrokerConfig();
+        brokerConfig.setLongPollingEnable(false);
+        DefaultMessageStore store =
+                new DefaultMessageStore(messageStoreConfig, new BrokerStatsManager("test"), null, brokerConfig);
+        assertTrue(store.load());
+        store.start();
+        return store;
+    }
+
+
+    private static List<PropertyIndexEntry> query(DefaultMessageStore store, String key, String beginValue,
+            String endValue, boolean prefix) {
+        return store.queryMessageByProperty(Topic, key, beginValue, endValue, prefix, Total, 0, Long.MAX_VALUE)
+                .getEntries();
+    }
+
+
+    private static void verify(DefaultMessageStore store) {
+        List<PropertyIndexEntry> exact = query(store, "orderId", "O0123", null, false);
+        assertEquals(1, exact.size());
+        assertEquals("O0123", exact.get(0).getValue());
+        assertNotNull(store.lookMessageByOffset(exact.get(0).getCommitLogOffset()));
+        assertEquals("O0123",
+                store.lookMessageByOffset(exact.get(0).getCommitLogOffset()).getUserProperty("orderId"));
+
+        assertEquals(100, query(store, "orderId", "O01", null, true).size());
+        assertEquals(100, query(store, "userId", "U7", null, false).size());
+
+        List<PropertyIndexEntry> range = query(store, "orderId", "O0100", "O0109", false);
+        assertEquals(10, range.size());
+        for (int i = 0; i < range.size(); i++) {
+            assertEquals(String.format("O%04d", 100 + i), range.get(i).getValue());
+        }
+
+        assertTrue(store.queryMessageByProperty(Topic, "orderId", "O", null, true, Total, 0, 1).getEntries().isEmpty());
+        assertTrue(query(store, "noSuchKey", "O0123", null, false).isEmpty());
+    }
+
+
+    @Test
+    public void test_query_and_reload() throws Exception {
+        String storePath = System.getProperty("java.io.tmpdir") + File.separator + "PropertyIndexTest-" + System.nanoTime();
+        DefaultMessageStore store = createStore(storePath);
+        try {
+            InetSocketAddress bornHost = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0);
+            InetSocketAddress storeHost = new InetSocketAddress(InetAddress.getLocalHost(), 8123);
+            for (int i = 0; i < Total; i++) {
+                MessageExtBrokerInner msg = new MessageExtBrokerInner();
+                msg.setTopic(Topic);
+                msg.putUserProperty("orderId", String.format("O%04d", i));
+                msg.putUserProperty("userId", "U" + (i % 10));
+                msg.setBody(("order " + i).getBytes());
+                msg.setQueueId(0);
+                msg.setBornTimestamp(System.currentTimeMillis());
+                msg.setStoreHost(storeHost);
+                msg.setBornHost(bornHost);
+                msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+                assertEquals(PutMessageStatus.PUT_OK, store.putMessage(msg).getPutMessageStatus());
+            }
+
+            final long deadline = System.currentTimeMillis() + 10 * 1000;
+            while (query(store, "orderId", String.format("O%04d", Total - 1), null, false).isEmpty()
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+
+            verify(store);
+        } finally {
+            store.shutdown();
+        }
+
+        // 每次刷盘后连续的小段文件达到4个就合并，退出时再写出一个
+        File[] segmentFiles = new File(StorePathConfigHelper.getStorePathPropertyIndex(storePath)).listFiles();
+        int segmentCount = 0;
+        for (File file : segmentFiles) {
+            if (file.getName().matches("\\d+")) {
+                segmentCount++;
+            }
+        }
+        assertTrue(segmentCount > 0 && segmentCount <= 4);
+
+        // 重启后从段文件中查询
+        store = createStore(storePath);
+        try {
+            verify(store);
+        } finally {
+            store.shutdown();
+            store.destroy();
+            deleteFile(new File(storePath));
+        }
+    }
+
+
+    @Test
+    public void test_disabled_drops_checkpoint() throws Exception {
+        String storePath = System.getProperty("java.io.tmpdir") + File.separator + "PropertyIndexTest-" + System.nanoTime();
+        File checkpoint = new File(StorePathConfigHelper.getStorePathPropertyIndex(storePath), "checkpoint");
+        DefaultMessageStore store = createStore(storePath);
+        store.shutdown();
+        assertTrue(checkpoint.exists());
+
+        // 未启用时不写checkpoint，旧的checkpoint删除，以后再启用时不从旧位置重放
+        store = createStore(storePath, "");
+        try {
+            assertFalse(checkpoint.exists());
+        } finally {
+            store.shutdown();
+            assertFalse(checkpoint.exists());
+            store.destroy();
+            deleteFile(new File(storePath));
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store.tiered;
+
+import com.alibaba.rocketmq.common.BrokerConfig;
+import com.alibaba.rocketmq.common.UtilAll;
+import com.alibaba.rocketmq.common.message.MessageDecoder;
+import com.alibaba.rocketmq.common.message.MessageExt;
+import com.alibaba.rocketmq.store.*;
+import com.alibaba.rocketmq.store.config.MessageStoreConfig;
+import com.alibaba.rocketmq.store.stats.BrokerStatsManager;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+
+public class TieredCommitLogTest {
+    private static final String Topic = "TieredTopic";
+    private static final int Total = 1000;
+
+
+    private static void deleteFile(final File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                deleteFile(f);
+            }
+        }
+        file.delete();
+    }
+
+
+    @Test
+    public void test_read_after_local_delete() throws Exception {
+        this.readAfterLocalDelete(LocalFileColdStorage.class.getName());
+    }
+
+
+    @Test
+    public void test_read_compressed_segments() throws Exception {
+        this.readAfterLocalDelete(CompressedFileColdStorage.class.getName());
+    }
+
+
+    private void readAfterLocalDelete(final String coldStorageClass) throws Exception {
+        String storePath = System.getProperty("java.io.tmpdir") + File.separator + "TieredCommitLogTest-" + System.nanoTime();
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setStorePathRootDir(storePath);
+        messageStoreConfig.setStorePathCommitLog(storePath + File.separator + "commitlog");
+        messageStoreConfig.setMapedFileSizeCommitLog(1024 * 32);
+        messageStoreConfig.setMapedFileSizeConsumeQueue(1024 * 20);
+        messageStoreConfig.setTieredStorageEnable(true);
+        messageStoreConfig.setTieredReadBlockSize(1024 * 4);
+        messageStoreConfig.setTieredReadCacheBlocks(8);
+        messageStoreConfig.setTieredColdStorageClass(coldStorageClass);
+        messageStoreConfig.setTieredCompressBlockSize(1024 * 2);
+
+        BrokerConfig brokerConfig = new BrokerConfig();
+        brokerConfig.setLongPollingEnable(false);
+        DefaultMessageStore store =
+                new DefaultMessageStore(messageStoreConfig, new BrokerStatsManager("test"), null, brokerConfig);
+        try {
+            assertTrue(store.load());
+            store.start();
+
+            InetSocketAddress bornHost = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0);
+            InetSocketAddress storeHost = new InetSocketAddress(InetAddress.getLocalHost(), 8123);
+            long firstOffset = -1;
+            for (int i = 0; i < Total; i++) {
+                MessageExtBrokerInner msg = new MessageExtBrokerInner();
+                msg.setTopic(Topic);
+                msg.setBody(("tiered message " + i).getBytes());
+                msg.setQueueId(0);
+                msg.setBornTimestamp(System.currentTimeMillis());
+                msg.setStoreHost(storeHost);
+                msg.setBornHost(bornHost);
+                msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+                PutMessageResult result = store.putMessage(msg);
+                assertEquals(PutMessageStatus.PUT_OK, result.getPutMessageStatus());
+                if (firstOffset < 0) {
+                    firstOffset = result.getAppendMessageResult().getWroteOffset();
+                }
+            }
+
+            final long deadline = System.currentTimeMillis() + 10 * 1000;
+            while (store.getMaxOffsetInQuque(Topic, 0) < Total && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            CommitLog commitLog = store.getCommitLog();
+            final int sealedFiles = (int) (store.getMaxPhyOffset() / (1024 * 32));
+            while (commitLog.getSealedMapedFiles().size() < sealedFiles && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            TieredCommitLog tieredCommitLog = store.getTieredCommitLog();
+
+            // 没有上传的文件不能删除
+            assertEquals(0, commitLog.deleteExpiredFile(0, 0, 0, true, tieredCommitLog.getDeletableOffset()));
+            assertEquals(0, commitLog.getMinOffset());
+
+            int uploaded = tieredCommitLog.uploadSealedFiles();
+            assertEquals(sealedFiles, uploaded);
+            assertTrue(uploaded > 1);
+            assertEquals(0, tieredCommitLog.uploadSealedFiles());
+
+            assertEquals(uploaded, commitLog.deleteExpiredFile(0, 0, 0, true, tieredCommitLog.getDeletableOffset()));
+            assertTrue(commitLog.getMinOffset() > 0);
+            assertEquals(0, store.getMinPhyOffset());
+
+            MessageExt first = store.lookMessageByOffset(firstOffset);
+            assertNotNull(first);
+            assertEquals("tiered message 0", new String(first.getBody()));
+
+            // HA从冷存储同步本地已经删除的数据
+            SelectMapedBufferResult data = store.getCommitLogData(firstOffset);
+            assertNotNull(data);
+            try {
+                assertEquals(firstOffset, MessageDecoder.decode(data.getByteBuffer()).getCommitLogOffset());
+            } finally {
+                data.release();
+            }
+
+            if (tieredCommitLog.getColdStorage() instanceof CompressedFileColdStorage) {
+                CompressedFileColdStorage coldStorage = (CompressedFileColdStorage) tieredCommitLog.getColdStorage();
+                // 压缩后的文件保存在被装饰的冷存储中
+                assertTrue(coldStorage.getDelegate() instanceof LocalFileColdStorage);
+                String name = UtilAll.offset2FileName(0);
+                assertEquals(1024 * 32, coldStorage.length(name));
+                assertTrue(coldStorage.compressedLength(name) < 1024 * 32 / 2);
+            }
+
+            // 顺序回放全部消息
+            long offset = 0;
+            while (offset < Total) {
+                GetMessageResult result = store.getMessage("group", Topic, 0, offset, 32, null);
+                assertEquals(GetMessageStatus.FOUND, result.getStatus());
+                try {
+                    for (ByteBuffer buffer : result.getMessageBufferList()) {
+                        MessageExt msg = MessageDecoder.decode(buffer);
+                        assertEquals("tiered message " + offset, new String(msg.getBody()));
+                        offset++;
+                    }
+                } finally {
+                    result.release();
+                }
+            }
+            assertTrue(tieredCommitLog.getReadAheadCache().getHitTimes() > 0);
+        } finally {
+            store.shutdown();
+            store.destroy();
+            deleteFile(new File(storePath));
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store.timer;
+
+import com.alibaba.rocketmq.common.BrokerConfig;
+import com.alibaba.rocketmq.common.message.MessageDecoder;
+import com.alibaba.rocketmq.common.message.MessageExt;
+import com.alibaba.rocketmq.store.*;
+import com.alibaba.rocketmq.store.config.MessageStoreConfig;
+import com.alibaba.rocketmq.store.stats.BrokerStatsManager;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+
+public class TimerMessageTest {
+    private static final String Topic = "TimerTopic";
+    private static final int QueueTotal = 4;
+    private static SocketAddress BornHost;
+    private static SocketAddress StoreHost;
+
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        StoreHost = new InetSocketAddress(InetAddress.getLocalHost(), 8123);
+        BornHost = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0);
+    }
+
+
+    private static MessageExtBrokerInner buildMessage(int i, long deliverMs) {
+        MessageExtBrokerInner msg = new MessageExtBrokerInner();
+        msg.setTopic(Topic);
+        msg.setTags("TAG1");
+        msg.setBody(("timer message " + i).getBytes());
+        msg.setQueueId(i % QueueTotal);
+        msg.setBornTimestamp(System.currentTimeMillis());
+        msg.setStoreHost(StoreHost);
+        msg.setBornHost(BornHost);
+        msg.putUserProperty("EXPECT_DELIVER_MS", String.valueOf(deliverMs));
+        msg.setDeliverTimeMs(deliverMs);
+        msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+        return msg;
+    }
+
+
+    private static DefaultMessageStore createStore(String storePath) throws Exception {
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setStorePathRootDir(storePath);
+        messageStoreConfig.setStorePathCommitLog(storePath + File.separator + "commitlog");
+        messageStoreConfig.setMapedFileSizeCommitLog(1024 * 1024);
+        messageStoreConfig.setMapedFileSizeConsumeQueue(1024 * 20);
+        messageStoreConfig.setMessageIndexEnable(false);
+        messageStoreConfig.setTimerWheelEnable(true);
+        // 第0层1秒一圈，第1层10秒一圈，覆盖下沉路径
+        messageStoreConfig.setTimerPrecisionMs(100);
+        messageStoreConfig.setTimerWheelSlots(10);
+        messageStoreConfig.setTimerMaxDelaySec(60);
+        messageStoreConfig.setTimerLogFileSize(TimerLog.UNIT_SIZE * 16);
+
+        BrokerConfig brokerConfig = new BrokerConfig();
+        brokerConfig.setLongPollingEnable(false);
+        DefaultMessageStore store =
+                new DefaultMessageStore(messageStoreConfig, new BrokerStatsManager("test"), null, brokerConfig);
+        assertTrue(store.load());
+        store.start();
+        return store;
+    }
+
+
+    private static List<MessageExt> waitMessages(DefaultMessageStore store, int expected, long timeoutMillis)
+            throws InterruptedException {
+        final long begin = System.currentTimeMillis();
+        while (true) {
+            long total = 0;
+            for (int q = 0; q < QueueTotal; q++) {
+                total += store.getMaxOffsetInQuque(Topic, q);
+            }
+            if (total >= expected || System.currentTimeMillis() - begin > timeoutMillis) {
+                break;
+            }
+            Thread.sleep(100);
+        }
+
+        List<MessageExt> msgs = new ArrayList<MessageExt>();
+        for (int q = 0; q < QueueTotal; q++) {
+            GetMessageResult result = store.getMessage("GROUP_A", Topic, q, 0, 1024, null);
+            if (result == null) {
+                continue;
+            }
+            try {
+                for (ByteBuffer bb : result.getMessageBufferList()) {
+                    msgs.add(MessageDecoder.decode(bb));
+                }
+            } finally {
+                result.release();
+            }
+        }
+        return msgs;
+    }
+
+
+    private static void deleteFile(final File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                deleteFile(f);
+            }
+        }
+        file.delete();
+    }
+
+
+    @Test
+    public void test_timer_message_deliver_on_time() throws Exception {
+        String storePath = System.getProperty("java.io.tmpdir") + File.separator + "TimerMessageTest-" + System.nanoTime();
+        DefaultMessageStore store = createStore(storePath);
+        try {
+            final int total = 100;
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < total; i++) {
+                // 包含已过期、第0层、需要从第1层下沉的投递时间
+                long deliverMs = now + (i % 10 == 0 ? -1000 : 35 * i);
+                PutMessageResult result = store.putMessage(buildMessage(i, deliverMs));
+                assertEquals(PutMessageStatus.PUT_OK, result.getPutMessageStatus());
+            }
+
+            List<MessageExt> msgs = waitMessages(store, total, 15 * 1000);
+            assertEquals(total, msgs.size());
+            for (MessageExt msg : msgs) {
+                long expect = Long.parseLong(msg.getProperty("EXPECT_DELIVER_MS"));
+                assertTrue("delivered too early", msg.getStoreTimestamp() >= expect);
+                if (expect > now) {
+                    assertNull(msg.getProperty("TIMER_DELIVER_MS"));
+                }
+            }
+            assertEquals(total - total / 10, store.getTimerMessageService().getDeliverTimes());
+        } finally {
+            store.shutdown();
+            store.destroy();
+            deleteFile(new File(storePath));
+        }
+    }
+
+
+    @Test
+    public void test_deliver_one_tick_in_parallel() throws Exception {
+        String storePath = System.getProperty("java.io.tmpdir") + File.separator + "TimerMessageTest-" + System.nanoTime();
+        DefaultMessageStore store = createStore(storePath);
+        try {
+            // 同一格的消息足够多，走投递线程池
+            final int total = 300;
+            long deliverMs = System.currentTimeMillis() + 500;
+            for (int i = 0; i < total; i++) {
+                assertEquals(PutMessageStatus.PUT_OK, store.putMessage(buildMessage(i, deliverMs)).getPutMessageStatus());
+            }
+
+            // 一次拉取受maxTransferCountOnMessageInMemory限制，总数按队列最大offset计算
+            List<MessageExt> msgs = waitMessages(store, total, 15 * 1000);
+            long delivered = 0;
+            for (int q = 0; q < QueueTotal; q++) {
+                delivered += store.getMaxOffsetInQuque(Topic, q);
+            }
+            assertEquals(total, delivered);
+            for (MessageExt msg : msgs) {
+                assertTrue("delivered too early", msg.getStoreTimestamp() >= deliverMs);
+            }
+            assertEquals(total, store.getTimerMessageService().getDeliverTimes());
+        } finally {
+            store.shutdown();
+            store.destroy();
+            deleteFile(new File(storePath));
+        }
+    }
+
+
+    @Test
+    public void test_timer_wheel_recover() throws Exception {
+        String storePath = System.getProperty("java.io.tmpdir") + File.separator + "TimerMessageTest-" + System.nanoTime();
+        DefaultMessageStore store = createStore(storePath);
+        final int total = 20;
+        try {
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < total; i++) {
+                store.putMessage(buildMessage(i, now + 6000 + 100 * i));
+            }
+            Thread.sleep(500);
+        } finally {
+            store.shutdown();
+        }
+        assertEquals(0, waitMessages(store, 0, 0).size());
+
+        store = createStore(storePath);
+        try {
+            List<MessageExt> msgs = waitMessages(store, total, 15 * 1000);
+            assertEquals(total, msgs.size());
+            for (MessageExt msg : msgs) {
+                assertTrue(msg.getStoreTimestamp() >= Long.parseLong(msg.getProperty("EXPECT_DELIVER_MS")));
+            }
+        } finally {
+            store.shutdown();
+            store.destroy();
+            deleteFile(new File(storePath));
+        }
+    }
+}
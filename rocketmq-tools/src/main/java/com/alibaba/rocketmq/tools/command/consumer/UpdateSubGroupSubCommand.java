@@ -88,6 +88,10 @@ public class UpdateSubGroupSubCommand implements SubCommand {
         opt.setRequired(false);
         options.addOption(opt);
 
+        opt = new Option("p", "pullWeight", true, "pull scheduling weight on broker");
+        opt.setRequired(false);
+        options.addOption(opt);
+
         return options;
     }
 
@@ -147,6 +151,11 @@ public class UpdateSubGroupSubCommand implements SubCommand {
                     .getOptionValue('w').trim()));
             }
 
+            // pullWeight
+            if (commandLine.hasOption('p')) {
+                subscriptionGroupConfig.setPullWeight(Integer.parseInt(commandLine.getOptionValue('p').trim()));
+            }
+
             if (commandLine.hasOption('b')) {
                 String addr = commandLine.getOptionValue('b').trim();
 